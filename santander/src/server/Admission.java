@@ -0,0 +1,71 @@
+package netizens.bank.server;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Admission.java
+ *
+ * Limits the number of requests being processed at once. Requests over the
+ * limit wait in a bounded queue, once the queue is full any further requests
+ * are turned away rather than being allowed to pile up.
+ **/
+public class Admission{
+  private Semaphore inFlight;
+  private AtomicInteger waiting;
+  private int queue;
+
+  /**
+   * Admission()
+   *
+   * Creates the admission control.
+   *
+   * @param inFlight The maximum number of requests processed at once.
+   * @param queue The maximum number of requests allowed to wait.
+   **/
+  public Admission(int inFlight, int queue){
+    this.inFlight = new Semaphore(Math.max(inFlight, 1), true);
+    this.waiting = new AtomicInteger(0);
+    this.queue = Math.max(queue, 0);
+  }
+
+  /**
+   * enter()
+   *
+   * Waits for a free slot. Each successful call must be paired with a call to
+   * exit().
+   *
+   * @return True if admitted, false if the queue was full or the wait was
+   * interrupted.
+   **/
+  public boolean enter(){
+    /* Fast path, a slot is free */
+    if(inFlight.tryAcquire()){
+      return true;
+    }
+    /* Only queue if there is room */
+    if(waiting.incrementAndGet() > queue){
+      waiting.decrementAndGet();
+      return false;
+    }
+    /* Safely wait for a slot */
+    try{
+      inFlight.acquire();
+      return true;
+    }catch(InterruptedException e){
+      Thread.currentThread().interrupt();
+      return false;
+    }finally{
+      waiting.decrementAndGet();
+    }
+  }
+
+  /**
+   * exit()
+   *
+   * Releases the slot taken by enter().
+   **/
+  public void exit(){
+    inFlight.release();
+  }
+}
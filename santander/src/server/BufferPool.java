@@ -0,0 +1,118 @@
+package netizens.bank.server;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * BufferPool.java
+ *
+ * A pool of reusable buffers so that reading a request does not allocate.
+ * Buffers are grouped into power of two size classes, each class only keeps
+ * a limited number of free buffers so that a burst of large requests cannot
+ * hold on to memory forever.
+ **/
+public class BufferPool{
+  private static int minShift = 12;
+  private static int maxShift = 24;
+  private static int keep = 64;
+  private static ConcurrentLinkedQueue<ByteBuffer>[] free = create();
+  private static AtomicInteger[] sizes = counters();
+
+  /**
+   * acquire()
+   *
+   * Gets a cleared buffer with at least the requested capacity, the limit is
+   * set to the requested size.
+   *
+   * @param size The number of bytes required.
+   * @return The buffer to be used.
+   **/
+  public static ByteBuffer acquire(int size){
+    int c = sizeClass(size);
+    /* Too large to pool, allocate the exact size */
+    if(c < 0){
+      return ByteBuffer.allocate(size);
+    }
+    ByteBuffer buffer = free[c].poll();
+    if(buffer == null){
+      buffer = ByteBuffer.allocate(1 << (c + minShift));
+    }else{
+      sizes[c].decrementAndGet();
+      buffer.clear();
+    }
+    buffer.limit(size);
+    return buffer;
+  }
+
+  /**
+   * release()
+   *
+   * Returns a buffer to the pool, the buffer must not be used afterwards.
+   *
+   * @param buffer The buffer given out by acquire(), may be NULL.
+   **/
+  public static void release(ByteBuffer buffer){
+    if(buffer == null){
+      return;
+    }
+    int c = sizeClass(buffer.capacity());
+    /* Only keep buffers that exactly match a size class */
+    if(c < 0 || buffer.capacity() != 1 << (c + minShift)){
+      return;
+    }
+    /* Drop the buffer if we already have enough of this size */
+    if(sizes[c].incrementAndGet() > keep){
+      sizes[c].decrementAndGet();
+      return;
+    }
+    free[c].offer(buffer);
+  }
+
+  /**
+   * sizeClass()
+   *
+   * Finds the smallest size class that fits the given size.
+   *
+   * @param size The number of bytes required.
+   * @return The index of the size class, -1 if too large to pool.
+   **/
+  private static int sizeClass(int size){
+    int shift = minShift;
+    while(shift <= maxShift && (1 << shift) < size){
+      shift++;
+    }
+    return shift > maxShift ? -1 : shift - minShift;
+  }
+
+  /**
+   * create()
+   *
+   * Creates the free lists for each size class.
+   *
+   * @return The free lists.
+   **/
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private static ConcurrentLinkedQueue<ByteBuffer>[] create(){
+    ConcurrentLinkedQueue<ByteBuffer>[] lists = new ConcurrentLinkedQueue[maxShift - minShift + 1];
+    for(int x = 0; x < lists.length; x++){
+      lists[x] = new ConcurrentLinkedQueue<ByteBuffer>();
+    }
+    return lists;
+  }
+
+  /**
+   * counters()
+   *
+   * Creates the counters of free buffers for each size class.
+   *
+   * @return The counters.
+   **/
+  private static AtomicInteger[] counters(){
+    AtomicInteger[] counts = new AtomicInteger[maxShift - minShift + 1];
+    for(int x = 0; x < counts.length; x++){
+      counts[x] = new AtomicInteger(0);
+    }
+    return counts;
+  }
+}
@@ -2,23 +2,46 @@ package netizens.bank.server;
 
 import java.io.InputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import netizens.bank.server.Admission;
+import netizens.bank.server.BufferPool;
+import netizens.bank.server.Frame;
+import netizens.bank.server.IdempotencyCache;
+import netizens.bank.server.LoadShedder;
+import netizens.bank.server.Tls;
+import netizens.bank.server.TlsSession;
+import netizens.bank.server.router.Reply;
+import netizens.bank.server.router.Router;
 import netizens.bank.utils.Error;
-import org.json.JSONException;
 import org.json.JSONObject;
-import org.json.JSONTokener;
 
 /**
  * Client.java
  *
  * The client as accepted by the sever is handled on an independent thread and
- * processed before replying.
+ * processed before replying. The connection is kept open for as many
+ * requests as the client wishes to send, replies are always sent in the order
+ * the requests arrived. When TLS is enabled the handshake happens on the
+ * client's thread as part of the first read.
  **/
 public class Client extends Thread{
-  private static int timeout = 5000;
-  private static int readSize = 4096;
+  static int timeout = 5000;
+  static Tls tls = null;
+  private static Router router = null;
+  private static IdempotencyCache idempotency = null;
+  private static IdempotencyCache.Handler routed = new IdempotencyCache.Handler(){
+    @Override
+    public JSONObject handle(JSONObject request){
+      return router.route(request);
+    }
+  };
   private Socket socket;
+  private Admission admission;
+  private LoadShedder shedder;
 
   /**
    * Client()
@@ -28,8 +51,25 @@ public class Client extends Thread{
    * @param connection The socket connection from the server accept.
    **/
   public Client(Socket connection){
+    this(connection, null, null);
+  }
+
+  /**
+   * Client()
+   *
+   * Accepts the client connection, limiting the requests processed at once.
+   *
+   * @param connection The socket connection from the server accept.
+   * @param admission The admission control each request must pass, otherwise
+   * NULL.
+   * @param shedder The load shedder that admitted the connection, released
+   * once the connection closes, otherwise NULL.
+   **/
+  public Client(Socket connection, Admission admission, LoadShedder shedder){
     /* Save the socket connection */
     socket = connection;
+    this.admission = admission;
+    this.shedder = shedder;
   }
 
   /**
@@ -39,49 +79,161 @@ public class Client extends Thread{
    **/
   @Override
   public void run(){
-    /* Safely set time out on request to prevent malicious code */
+    /* Safely set the idle time out to prevent malicious code */
     try{
       socket.setSoTimeout(timeout);
     }catch(SocketException e){
       /* Default error handling */
       Error.safeThrow(e, false);
     }
-    /* Read the maximum size */
-    byte[] request = new byte[readSize];
-    /* Safely request bytes from stream */
+    /* Safely read request frames and reply until the client is done */
+    ByteBuffer request = null;
+    TlsSession session = null;
+    String peer = socket.getInetAddress().getHostAddress();
     try{
-      /* Get JSON request*/
       InputStream is = socket.getInputStream();
-      is.read(request, 0, readSize);
+      OutputStream os = socket.getOutputStream();
+      /* Everything passes through the TLS session if there is one */
+      if(tls != null){
+        session = new TlsSession(tls.createEngine(), socket);
+        is = session.getInputStream();
+        os = session.getOutputStream();
+      }
+      /* Get JSON requests */
+      while((request = Frame.read(is)) != null){
+        /* Parse the object straight from the frame */
+        JSONObject jObj;
+        try{
+          jObj = Frame.decode(request);
+        }finally{
+          BufferPool.release(request);
+          request = null;
+        }
+        /* Answer busy if the client is sending too often, it may carry on */
+        if(shedder != null && !shedder.allow(socket.getInetAddress())){
+          Frame.write(os, Reply.error("busy"));
+          continue;
+        }
+        /* Turn the request away if we are too busy */
+        if(admission != null && !admission.enter()){
+          Frame.write(os, Reply.error("busy"));
+          break;
+        }
+        /* Handle the request and send back the reply */
+        try{
+          JSONObject reply;
+          /* A request that fails still gets its reply, the connection carries on */
+          try{
+            reply = reply(jObj, peer);
+          }catch(RuntimeException e){
+            /* Default error handling */
+            Error.safeThrow(e, false);
+            reply = Reply.error("internal");
+          }
+          Frame.write(os, reply);
+        }finally{
+          if(admission != null){
+            admission.exit();
+          }
+        }
+      }
+    }catch(SocketTimeoutException e){
+      /* The client has been idle for too long, nothing to report */
     }catch(IOException e){
       /* Default error handling */
       Error.safeThrow(e, false);
+    }finally{
+      BufferPool.release(request);
+      /* Finally, close the socket */
+      if(session != null){
+        session.close();
+      }
+      try{
+        /* Close the socket connection */
+        socket.close();
+      }catch(IOException e){
+        /* Default error handling */
+        Error.safeThrow(e, false);
+      }
+      /* Let another connection take our place */
+      if(shedder != null){
+        shedder.release();
+      }
     }
-    /* Cast to String */
-    String raw = new String(request);
-    /* Parse the object */
-    JSONTokener jToke = new JSONTokener(raw);
-    /* Create NULL object */
-    JSONObject jObj = null;
-    /* Safely parse JSON */
-    try{
-      /* Create JSONObject */
-      jObj = new JSONObject(jToke);
-    }catch(JSONException e){
-      /* Default error handling */
-      Error.safeThrow(e, false);
+  }
+
+  /**
+   * reply()
+   *
+   * Gets the reply for a request. Every request gets exactly one reply so
+   * that pipelined replies always line up with their requests.
+   *
+   * @param request The parsed JSON request, NULL if it could not be parsed.
+   * @param peer The address of the client.
+   * @return The reply to be sent back to the client.
+   **/
+  static JSONObject reply(JSONObject request, String peer){
+    /* Make sure the request was parsed */
+    if(request == null){
+      return Reply.error("malformed");
     }
-    /* Make sure the string was parsed */
-    if(jObj != null){
-      /* TODO: Handle JSON. */
+    JSONObject reply = process(request, peer);
+    return reply != null ? reply : Reply.error("unsupported");
+  }
+
+  /**
+   * process()
+   *
+   * Processes a parsed request, this may be run on any thread. This is shared
+   * between the threaded and event driven servers so that both handle
+   * exactly the same requests.
+   *
+   * @param request The parsed JSON request.
+   * @param peer The address of the client.
+   * @return The reply to be sent back to the client, otherwise NULL.
+   **/
+  static JSONObject process(JSONObject request, String peer){
+    if(router == null){
+      return null;
     }
-    /* Finally, close the socket */
-    try{
-      /* Close the socket connection */
-      socket.close();
-    }catch(IOException e){
-      /* Default error handling */
-      Error.safeThrow(e, false);
+    /* Retried requests carry the same key as the first attempt */
+    String key = request.optString("key", null);
+    if(key != null && idempotency != null){
+      return idempotency.run(key, peer, request, routed);
     }
+    return router.route(request);
+  }
+
+  /**
+   * setRouter()
+   *
+   * Sets the router every request is passed to.
+   *
+   * @param r The router.
+   **/
+  public static void setRouter(Router r){
+    router = r;
+  }
+
+  /**
+   * setTls()
+   *
+   * Sets the TLS context used to secure every connection.
+   *
+   * @param t The TLS context, otherwise NULL for plain connections.
+   **/
+  public static void setTls(Tls t){
+    tls = t;
+  }
+
+  /**
+   * setIdempotency()
+   *
+   * Sets the cache used to answer retried requests.
+   *
+   * @param cache The cache, otherwise NULL to run every request.
+   **/
+  public static void setIdempotency(IdempotencyCache cache){
+    idempotency = cache;
   }
 }
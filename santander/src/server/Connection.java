@@ -0,0 +1,388 @@
+package netizens.bank.server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import netizens.bank.server.BufferPool;
+import netizens.bank.server.Client;
+import netizens.bank.server.EventLoop;
+import netizens.bank.server.Frame;
+import netizens.bank.server.TlsSession;
+import netizens.bank.server.router.Reply;
+import netizens.bank.utils.Clock;
+import netizens.bank.utils.Error;
+import org.json.JSONObject;
+
+/**
+ * Connection.java
+ *
+ * The state of a single non-blocking client connection. The connection is
+ * kept open for as many requests as the client wishes to send and several
+ * requests may be processed at once, replies are always written in the order
+ * the requests arrived. When TLS is enabled everything passes through the
+ * connection's TLS session. All methods other than handle() are only ever
+ * called on the thread of the owning loop.
+ **/
+public class Connection{
+  private static int pipeline = 16;
+  private EventLoop loop;
+  private SocketChannel channel;
+  private SelectionKey key;
+  private InetAddress address;
+  private String peer;
+  private TlsSession tls;
+  private ByteBuffer header;
+  private ByteBuffer body;
+  private ArrayDeque<Pending> pending;
+  private ArrayDeque<ByteBuffer> out;
+  private boolean finished;
+  private boolean closed;
+  private long active;
+
+  /**
+   * Pending
+   *
+   * A request that has been dispatched, holding its reply once processed.
+   **/
+  static class Pending{
+    ByteBuffer reply = null;
+  }
+
+  /**
+   * Connection()
+   *
+   * Creates the state for a newly registered channel.
+   *
+   * @param loop The loop that owns the channel.
+   * @param channel The non-blocking client channel.
+   * @param key The key of the channel in the loop's selector.
+   * @throws IOException If the TLS session could not be set up.
+   **/
+  public Connection(EventLoop loop, SocketChannel channel, SelectionKey key) throws IOException{
+    this.loop = loop;
+    this.channel = channel;
+    this.key = key;
+    address = channel.socket().getInetAddress();
+    peer = address.getHostAddress();
+    tls = Client.tls != null ? new TlsSession(Client.tls.createEngine(), channel, loop.getWorkers(), new Runnable(){
+      @Override
+      public void run(){
+        /* The handshake carries on from the loop's thread */
+        Connection.this.loop.execute(Connection.this, new Runnable(){
+          @Override
+          public void run(){
+            resume();
+          }
+        });
+      }
+    }) : null;
+    header = ByteBuffer.allocate(Frame.HEADER);
+    body = null;
+    pending = new ArrayDeque<Pending>();
+    out = new ArrayDeque<ByteBuffer>();
+    finished = false;
+    closed = false;
+    active = Clock.getTime();
+  }
+
+  /**
+   * setPipeline()
+   *
+   * Sets the number of requests from one connection that may be processed at
+   * once, reading from the connection pauses while this many are
+   * outstanding.
+   *
+   * @param size The maximum number of outstanding requests.
+   **/
+  public static void setPipeline(int size){
+    pipeline = Math.max(size, 1);
+  }
+
+  /**
+   * read()
+   *
+   * Reads whatever is available, first the frame header and then the body
+   * into a pooled buffer, dispatching each request as soon as its frame is
+   * complete.
+   **/
+  void read(){
+    active = Clock.getTime();
+    /* Keep going while there are frames waiting and room to process them */
+    while(pending.size() < pipeline){
+      /* Safely read from the channel */
+      try{
+        /* Read the header until we know the size of the body */
+        if(body == null){
+          if(receive(header) < 0){
+            finish();
+            return;
+          }
+          if(header.hasRemaining()){
+            break;
+          }
+          int length = Frame.length(header);
+          if(length < 0){
+            close();
+            return;
+          }
+          body = BufferPool.acquire(length);
+        }
+        /* Read as much of the body as is available */
+        if(body.hasRemaining() && receive(body) < 0){
+          finish();
+          return;
+        }
+      }catch(IOException e){
+        /* Default error handling */
+        Error.safeThrow(e, false);
+        close();
+        return;
+      }
+      if(body.hasRemaining()){
+        break;
+      }
+      /* Dispatch the complete request */
+      body.flip();
+      ByteBuffer request = body;
+      body = null;
+      header.clear();
+      Pending slot = new Pending();
+      pending.add(slot);
+      loop.dispatch(this, slot, request);
+    }
+    /* Wait for more, reading stops while too many requests are outstanding */
+    interest();
+  }
+
+  /**
+   * handle()
+   *
+   * Processes the request, this is called on a worker thread.
+   *
+   * @param request The body of the request frame, released once parsed.
+   * @return The reply frame.
+   **/
+  ByteBuffer handle(ByteBuffer request){
+    /* Parse the object straight from the frame */
+    JSONObject jObj;
+    try{
+      jObj = Frame.decode(request);
+    }finally{
+      BufferPool.release(request);
+    }
+    /* Answer busy if the client is sending too often, it may carry on */
+    if(!loop.allow(address)){
+      return Frame.encode(Reply.error("busy"));
+    }
+    return Frame.encode(Client.reply(jObj, peer));
+  }
+
+  /**
+   * reply()
+   *
+   * Stores the reply for a request and writes every reply that is now ready
+   * in order.
+   *
+   * @param slot The slot of the request that was processed.
+   * @param reply The reply frame.
+   **/
+  void reply(Pending slot, ByteBuffer reply){
+    /* Make sure the client did not go away while we were busy */
+    if(!key.isValid()){
+      return;
+    }
+    slot.reply = reply;
+    /* Move replies that are ready over to be written */
+    while(!pending.isEmpty() && pending.peek().reply != null){
+      out.add(pending.poll().reply);
+    }
+    write();
+    /* There may be frames that were held back by the pipeline limit */
+    if(key.isValid() && !finished && pending.size() < pipeline){
+      read();
+    }
+  }
+
+  /**
+   * write()
+   *
+   * Writes as much of the replies as the channel accepts.
+   **/
+  void write(){
+    /* Safely write to the channel */
+    try{
+      /* Anything already encrypted goes first */
+      if(tls != null && !tls.flush()){
+        interest();
+        return;
+      }
+      while(!out.isEmpty()){
+        ByteBuffer frame = out.peek();
+        send(frame);
+        if(frame.hasRemaining()){
+          break;
+        }
+        out.poll();
+      }
+    }catch(IOException e){
+      /* Default error handling */
+      Error.safeThrow(e, false);
+      close();
+      return;
+    }
+    active = Clock.getTime();
+    /* The handshake may have been waiting for this write */
+    if(tls != null && tls.isHandshaking() && !finished){
+      read();
+      if(closed){
+        return;
+      }
+    }
+    /* Once the client has finished and everything is sent, close */
+    if(finished && isSent()){
+      close();
+      return;
+    }
+    interest();
+  }
+
+  /**
+   * resume()
+   *
+   * Carries on with the handshake once its key exchange work is done.
+   **/
+  void resume(){
+    if(!closed){
+      write();
+    }
+  }
+
+  /**
+   * expired()
+   *
+   * Checks whether the connection has been idle for too long, a connection
+   * with requests still being processed is never idle.
+   *
+   * @param now The current time in milliseconds.
+   * @return True if the connection should be dropped.
+   **/
+  boolean expired(long now){
+    return pending.isEmpty() && out.isEmpty() && now - active > Client.timeout;
+  }
+
+  /**
+   * close()
+   *
+   * Removes the connection from the loop and closes the channel.
+   **/
+  void close(){
+    /* Only close once */
+    if(closed){
+      return;
+    }
+    closed = true;
+    key.cancel();
+    /* Give back any partly read request */
+    BufferPool.release(body);
+    body = null;
+    if(tls != null){
+      tls.close();
+    }
+    /* Safely close the channel */
+    try{
+      channel.close();
+    }catch(IOException e){
+      /* Default error handling */
+      Error.safeThrow(e, false);
+    }
+    loop.released();
+  }
+
+  /**
+   * finish()
+   *
+   * The client has stopped sending, finish replying before closing.
+   **/
+  private void finish(){
+    finished = true;
+    if(isSent()){
+      close();
+      return;
+    }
+    interest();
+  }
+
+  /**
+   * interest()
+   *
+   * Updates the events the loop waits for, reading only while there is room
+   * for more requests and writing only while there are replies to send.
+   **/
+  private void interest(){
+    int ops = 0;
+    if(!finished && pending.size() < pipeline && (tls == null || !tls.isTasking())){
+      ops |= SelectionKey.OP_READ;
+    }
+    if(!out.isEmpty() || (tls != null && tls.isPending())){
+      ops |= SelectionKey.OP_WRITE;
+    }
+    key.interestOps(ops);
+  }
+
+  /**
+   * isSent()
+   *
+   * Checks whether every request has been replied to and the replies have
+   * left.
+   *
+   * @return True if there is nothing left to send.
+   **/
+  private boolean isSent(){
+    return pending.isEmpty() && out.isEmpty() && (tls == null || !tls.isPending());
+  }
+
+  /**
+   * receive()
+   *
+   * Reads from the channel, through the TLS session if there is one.
+   *
+   * @param dst The buffer to be read into.
+   * @return The number of bytes read, -1 at the end of the stream.
+   * @throws IOException If the connection failed.
+   **/
+  private int receive(ByteBuffer dst) throws IOException{
+    if(tls == null){
+      return channel.read(dst);
+    }
+    /* The session decrypts a record at a time, keep going until it is dry as
+     * the channel will not signal for bytes the session already holds */
+    int total = 0;
+    while(dst.hasRemaining()){
+      int n = tls.read(dst);
+      if(n < 0){
+        return total > 0 ? total : -1;
+      }
+      if(n == 0){
+        break;
+      }
+      total += n;
+    }
+    return total;
+  }
+
+  /**
+   * send()
+   *
+   * Writes to the channel, through the TLS session if there is one.
+   *
+   * @param src The bytes to be written.
+   * @return The number of bytes written.
+   * @throws IOException If the connection failed.
+   **/
+  private int send(ByteBuffer src) throws IOException{
+    return tls != null ? tls.write(src) : channel.write(src);
+  }
+}
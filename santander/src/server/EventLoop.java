@@ -0,0 +1,298 @@
+package netizens.bank.server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import netizens.bank.server.BufferPool;
+import netizens.bank.server.Connection;
+import netizens.bank.server.Frame;
+import netizens.bank.server.LoadShedder;
+import netizens.bank.server.router.Reply;
+import netizens.bank.utils.Clock;
+import netizens.bank.utils.Error;
+
+/**
+ * EventLoop.java
+ *
+ * A single I/O thread that owns a selector and services the reads and writes
+ * of every connection registered with it. Requests are never processed on
+ * this thread, they are handed to the worker pool and the reply is handed
+ * back to be written.
+ **/
+public class EventLoop extends Thread{
+  private static int tick = 1000;
+  private Selector selector;
+  private ExecutorService workers;
+  private LoadShedder shedder;
+  private ConcurrentLinkedQueue<Runnable> tasks;
+  private long lastScan;
+
+  /**
+   * EventLoop()
+   *
+   * Creates the selector for the loop, the thread must be started separately.
+   *
+   * @param name The name of the I/O thread.
+   * @param workers The pool that requests are processed on.
+   * @param shedder The load shedder that admitted the connections, otherwise
+   * NULL.
+   * @throws IOException If the selector could not be opened.
+   **/
+  public EventLoop(String name, ExecutorService workers, LoadShedder shedder) throws IOException{
+    super(name);
+    this.workers = workers;
+    this.shedder = shedder;
+    selector = Selector.open();
+    tasks = new ConcurrentLinkedQueue<Runnable>();
+    lastScan = Clock.getTime();
+    /* The loop should never keep the program alive on its own */
+    setDaemon(true);
+  }
+
+  /**
+   * register()
+   *
+   * Hands a newly accepted channel to this loop, may be called from any
+   * thread.
+   *
+   * @param channel The accepted client channel.
+   **/
+  public void register(final SocketChannel channel){
+    execute(new Runnable(){
+      @Override
+      public void run(){
+        /* Safely register the channel for reading */
+        try{
+          channel.configureBlocking(false);
+          SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+          key.attach(new Connection(EventLoop.this, channel, key));
+        }catch(IOException | RuntimeException e){
+          /* Default error handling */
+          Error.safeThrow(e, false);
+          close(channel);
+          released();
+        }
+      }
+    });
+  }
+
+  /**
+   * execute()
+   *
+   * Queues a task to be run on this loop's thread and wakes the selector.
+   *
+   * @param task The task to be run.
+   **/
+  void execute(Runnable task){
+    tasks.add(task);
+    selector.wakeup();
+  }
+
+  /**
+   * execute()
+   *
+   * Queues a task for a connection to be run on this loop's thread, the
+   * connection is closed if the task fails.
+   *
+   * @param connection The connection the task works on.
+   * @param task The task to be run.
+   **/
+  void execute(final Connection connection, final Runnable task){
+    execute(new Runnable(){
+      @Override
+      public void run(){
+        try{
+          task.run();
+        }catch(RuntimeException e){
+          /* Default error handling */
+          Error.safeThrow(e, false);
+          drop(connection);
+        }
+      }
+    });
+  }
+
+  /**
+   * getWorkers()
+   *
+   * Gets the pool that work too slow for this thread is handed to.
+   *
+   * @return The worker pool.
+   **/
+  ExecutorService getWorkers(){
+    return workers;
+  }
+
+  /**
+   * allow()
+   *
+   * Checks whether a request from a connection may be processed, may be
+   * called from any thread.
+   *
+   * @param address The remote address of the connection.
+   * @return True if the request is within the rate of its address.
+   **/
+  boolean allow(InetAddress address){
+    return shedder == null || shedder.allow(address);
+  }
+
+  /**
+   * released()
+   *
+   * Called once for every registered channel after it has been closed.
+   **/
+  void released(){
+    if(shedder != null){
+      shedder.release();
+    }
+  }
+
+  /**
+   * dispatch()
+   *
+   * Processes a request on the worker pool and queues the reply back onto
+   * this loop to be written.
+   *
+   * @param connection The connection the request was read from.
+   * @param slot The slot the reply is to be stored in.
+   * @param request The body of the request frame.
+   **/
+  void dispatch(final Connection connection, final Connection.Pending slot, final ByteBuffer request){
+    /* Safely hand the request to the workers */
+    try{
+      workers.execute(new Runnable(){
+        @Override
+        public void run(){
+          ByteBuffer frame;
+          /* Every request fills its slot, otherwise the replies behind it
+           * would wait forever and the connection would never expire */
+          try{
+            frame = connection.handle(request);
+          }catch(RuntimeException e){
+            /* Default error handling */
+            Error.safeThrow(e, false);
+            frame = Frame.encode(Reply.error("internal"));
+          }
+          final ByteBuffer reply = frame;
+          execute(connection, new Runnable(){
+            @Override
+            public void run(){
+              connection.reply(slot, reply);
+            }
+          });
+        }
+      });
+    }catch(RejectedExecutionException e){
+      /* Default error handling */
+      Error.safeThrow(e, false);
+      BufferPool.release(request);
+      connection.close();
+    }
+  }
+
+  /**
+   * run()
+   *
+   * The run method for the Thread.
+   **/
+  @Override
+  public void run(){
+    /* Loop infinitely */
+    for(;;){
+      /* Safely wait for events */
+      try{
+        selector.select(tick);
+      }catch(IOException e){
+        /* Default error handling */
+        Error.safeThrow(e, false);
+      }
+      /* Run anything handed to us by other threads, one failing must not
+       * stop the loop */
+      Runnable task;
+      while((task = tasks.poll()) != null){
+        try{
+          task.run();
+        }catch(RuntimeException e){
+          /* Default error handling */
+          Error.safeThrow(e, false);
+        }
+      }
+      /* Service the ready channels */
+      Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+      while(keys.hasNext()){
+        SelectionKey key = keys.next();
+        keys.remove();
+        Connection connection = (Connection)key.attachment();
+        /* Ignore keys cancelled while in the selected set */
+        if(!key.isValid()){
+          continue;
+        }
+        /* A connection that fails, for example on a key cancelled under
+         * it, is dropped and the others carry on */
+        try{
+          if(key.isReadable()){
+            connection.read();
+          }
+          if(key.isValid() && key.isWritable()){
+            connection.write();
+          }
+        }catch(RuntimeException e){
+          /* Default error handling */
+          Error.safeThrow(e, false);
+          drop(connection);
+        }
+      }
+      /* Drop connections that have taken too long, once per tick */
+      long now = Clock.getTime();
+      if(now - lastScan < tick){
+        continue;
+      }
+      lastScan = now;
+      for(SelectionKey key : selector.keys()){
+        Connection connection = (Connection)key.attachment();
+        if(connection != null && connection.expired(now)){
+          drop(connection);
+        }
+      }
+    }
+  }
+
+  /**
+   * drop()
+   *
+   * Closes a connection without letting anything it throws reach the loop.
+   *
+   * @param connection The connection to be closed.
+   **/
+  private static void drop(Connection connection){
+    try{
+      connection.close();
+    }catch(RuntimeException e){
+      /* Default error handling */
+      Error.safeThrow(e, false);
+    }
+  }
+
+  /**
+   * close()
+   *
+   * Safely closes a channel that never made it into the loop.
+   *
+   * @param channel The channel to be closed.
+   **/
+  private static void close(SocketChannel channel){
+    try{
+      channel.close();
+    }catch(IOException e){
+      /* Default error handling */
+      Error.safeThrow(e, false);
+    }
+  }
+}
@@ -0,0 +1,209 @@
+package netizens.bank.server;
+
+import java.io.CharArrayReader;
+import java.io.EOFException;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import netizens.bank.server.BufferPool;
+import netizens.bank.utils.Error;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+/**
+ * Frame.java
+ *
+ * Every request and reply is sent as a frame, a four byte big-endian length
+ * followed by that many bytes of UTF-8 JSON. This lets a request be split
+ * over any number of packets and be any size up to the configured maximum.
+ **/
+public class Frame{
+  public static final int HEADER = 4;
+  private static final int KEEP_CHARS = 1 << 16;
+  private static int maxSize = 1 << 20;
+  private static ThreadLocal<CharsetDecoder> decoders = new ThreadLocal<CharsetDecoder>(){
+    @Override
+    protected CharsetDecoder initialValue(){
+      return StandardCharsets.UTF_8.newDecoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+  };
+  private static ThreadLocal<CharBuffer> chars = new ThreadLocal<CharBuffer>(){
+    @Override
+    protected CharBuffer initialValue(){
+      return CharBuffer.allocate(4096);
+    }
+  };
+
+  /**
+   * setMaxSize()
+   *
+   * Sets the largest frame that will be accepted.
+   *
+   * @param size The maximum number of bytes in a frame body.
+   **/
+  public static void setMaxSize(int size){
+    maxSize = size;
+  }
+
+  /**
+   * length()
+   *
+   * Gets the body length from a complete header.
+   *
+   * @param header The buffer holding the four header bytes from position
+   * zero.
+   * @return The body length, -1 if the length is not valid.
+   **/
+  public static int length(ByteBuffer header){
+    int length = header.getInt(0);
+    return length < 0 || length > maxSize ? -1 : length;
+  }
+
+  /**
+   * read()
+   *
+   * Reads a complete frame from a blocking stream into a pooled buffer,
+   * reading as many times as it takes.
+   *
+   * @param in The stream to read from.
+   * @return The body of the frame ready to be decoded, which must be given
+   * back with BufferPool.release(), otherwise NULL at the end of the stream.
+   * @throws IOException If the stream fails, ends part way through a frame or
+   * the frame is too large.
+   **/
+  public static ByteBuffer read(InputStream in) throws IOException{
+    ByteBuffer buffer = BufferPool.acquire(HEADER);
+    /* Read the header into the start of the buffer */
+    if(!fill(in, buffer.array(), 0, HEADER, true)){
+      BufferPool.release(buffer);
+      return null;
+    }
+    int length = length(buffer);
+    if(length < 0){
+      BufferPool.release(buffer);
+      throw new IOException("Bad frame length " + buffer.getInt(0));
+    }
+    /* Swap for a larger buffer if needed */
+    if(length > buffer.capacity()){
+      BufferPool.release(buffer);
+      buffer = BufferPool.acquire(length);
+    }
+    buffer.clear();
+    buffer.limit(length);
+    /* Read the body */
+    try{
+      fill(in, buffer.array(), 0, length, false);
+    }catch(IOException e){
+      BufferPool.release(buffer);
+      throw e;
+    }
+    return buffer;
+  }
+
+  /**
+   * decode()
+   *
+   * Parses the body of a frame straight from its bytes. The bytes are
+   * decoded into characters kept by the thread, which the parser reads
+   * directly, so nothing the size of the frame is allocated.
+   *
+   * @param body The body between its position and limit, left unchanged.
+   * @return The parsed object, otherwise NULL.
+   **/
+  public static JSONObject decode(ByteBuffer body){
+    JSONObject jObj = null;
+    /* UTF-8 never gives more characters than bytes */
+    CharBuffer text = chars.get();
+    if(text.capacity() < body.remaining()){
+      text = CharBuffer.allocate(body.remaining());
+      /* Only small buffers are kept, a rare large frame should not pin memory */
+      if(text.capacity() <= KEEP_CHARS){
+        chars.set(text);
+      }
+    }
+    text.clear();
+    CharsetDecoder decoder = decoders.get();
+    decoder.reset();
+    int start = body.position();
+    decoder.decode(body, text, true);
+    decoder.flush(text);
+    body.position(start);
+    /* Safely parse JSON, the reader supports mark so the tokener uses it as is */
+    try{
+      jObj = new JSONObject(new JSONTokener(new CharArrayReader(text.array(), 0, text.position())));
+    }catch(JSONException e){
+      /* Default error handling */
+      Error.safeThrow(e, false);
+    }
+    return jObj;
+  }
+
+  /**
+   * encode()
+   *
+   * Converts a reply into a complete frame.
+   *
+   * @param reply The reply to be encoded.
+   * @return The frame, ready to be written.
+   **/
+  public static ByteBuffer encode(JSONObject reply){
+    byte[] body = reply.toString().getBytes(StandardCharsets.UTF_8);
+    ByteBuffer frame = ByteBuffer.allocate(HEADER + body.length);
+    frame.putInt(body.length);
+    frame.put(body);
+    frame.flip();
+    return frame;
+  }
+
+  /**
+   * write()
+   *
+   * Writes a reply to a blocking stream as a frame.
+   *
+   * @param out The stream to write to.
+   * @param reply The reply to be written.
+   * @throws IOException If the stream fails.
+   **/
+  public static void write(OutputStream out, JSONObject reply) throws IOException{
+    ByteBuffer frame = encode(reply);
+    out.write(frame.array(), 0, frame.limit());
+    out.flush();
+  }
+
+  /**
+   * fill()
+   *
+   * Reads exactly the number of bytes asked for.
+   *
+   * @param in The stream to read from.
+   * @param data The array to read into.
+   * @param offset The first index to read into.
+   * @param length The number of bytes to read.
+   * @param start True if the end of the stream is allowed before any bytes
+   * have been read.
+   * @return True if all bytes were read, false if the stream ended cleanly.
+   * @throws IOException If the stream fails or ends early.
+   **/
+  private static boolean fill(InputStream in, byte[] data, int offset, int length, boolean start) throws IOException{
+    int done = 0;
+    while(done < length){
+      int n = in.read(data, offset + done, length - done);
+      if(n < 0){
+        if(start && done == 0){
+          return false;
+        }
+        throw new EOFException("Frame ended early");
+      }
+      done += n;
+    }
+    return true;
+  }
+}
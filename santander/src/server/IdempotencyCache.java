@@ -0,0 +1,197 @@
+package netizens.bank.server;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import netizens.bank.server.router.Reply;
+import netizens.bank.utils.Clock;
+import org.json.JSONObject;
+
+/**
+ * IdempotencyCache.java
+ *
+ * Remembers the replies of recent requests by the idempotency key the client
+ * sent with them. A client that retries a request with the same key gets the
+ * remembered reply instead of the request being run a second time, a retry
+ * that arrives while the first attempt is still running waits for it for a
+ * limited time. Keys are only shared by requests from the same address for
+ * the same account, and a request that reuses a key for a different
+ * operation is refused rather than given another request's reply.
+ * Entries are forgotten after a fixed time and the number of entries is
+ * bounded, as every entry lives for the same time the oldest is always the
+ * first to go.
+ **/
+public class IdempotencyCache{
+  private ConcurrentHashMap<String, Entry> entries;
+  private ConcurrentLinkedQueue<Entry> order;
+  private AtomicInteger size;
+  private int maxEntries;
+  private long life;
+  private long wait;
+
+  /**
+   * Entry
+   *
+   * The reply for a single key, the latch opens once the reply is known.
+   **/
+  private static class Entry{
+    String key;
+    String fingerprint;
+    long expires;
+    volatile JSONObject reply = null;
+    CountDownLatch done = new CountDownLatch(1);
+  }
+
+  /**
+   * Handler
+   *
+   * Runs a request that has not been seen before.
+   **/
+  public interface Handler{
+    /**
+     * handle()
+     *
+     * Runs the request.
+     *
+     * @param request The parsed JSON request.
+     * @return The reply.
+     **/
+    public JSONObject handle(JSONObject request);
+  }
+
+  /**
+   * IdempotencyCache()
+   *
+   * Creates an empty cache.
+   *
+   * @param maxEntries The maximum number of replies remembered.
+   * @param life How long a reply is remembered in milliseconds.
+   * @param wait How long a retry waits for the first attempt in milliseconds.
+   **/
+  public IdempotencyCache(int maxEntries, long life, long wait){
+    entries = new ConcurrentHashMap<String, Entry>();
+    order = new ConcurrentLinkedQueue<Entry>();
+    size = new AtomicInteger(0);
+    this.maxEntries = Math.max(maxEntries, 1);
+    this.life = life;
+    this.wait = wait;
+  }
+
+  /**
+   * run()
+   *
+   * Gets the remembered reply for a key, otherwise runs the request and
+   * remembers its reply. Replies saying the server was unavailable or busy
+   * are not remembered, nothing was done so a retry gets another chance.
+   *
+   * @param key The idempotency key sent by the client.
+   * @param peer The address of the client.
+   * @param request The parsed JSON request.
+   * @param handler Runs the request if the key has not been seen.
+   * @return The reply.
+   **/
+  public JSONObject run(String key, String peer, JSONObject request, Handler handler){
+    long now = Clock.getTime();
+    Entry entry = new Entry();
+    /* Scoped so that clients picking the same key never see each other */
+    entry.key = peer + "/" + request.opt("account") + "/" + key;
+    entry.fingerprint = fingerprint(request);
+    entry.expires = now + life;
+    key = entry.key;
+    for(;;){
+      Entry existing = entries.putIfAbsent(key, entry);
+      if(existing == null){
+        break;
+      }
+      /* Forget anything that has expired and try again */
+      if(existing.expires < now){
+        entries.remove(key, existing);
+        continue;
+      }
+      /* The same key for a different operation is a client error */
+      if(!existing.fingerprint.equals(entry.fingerprint)){
+        return Reply.error("key reused");
+      }
+      /* Seen before, wait for the first attempt if it is still running */
+      try{
+        if(!existing.done.await(wait, TimeUnit.MILLISECONDS)){
+          return Reply.error("busy");
+        }
+      }catch(InterruptedException e){
+        Thread.currentThread().interrupt();
+        return Reply.error("busy");
+      }
+      JSONObject reply = existing.reply;
+      if(reply != null){
+        return reply;
+      }
+      /* The first attempt was not remembered, try to be the one to run */
+    }
+    order.add(entry);
+    size.incrementAndGet();
+    evict(now);
+    JSONObject reply = null;
+    try{
+      reply = handler.handle(request);
+    }finally{
+      if(reply != null && !isRetryable(reply)){
+        entry.reply = reply;
+      }else{
+        entries.remove(key, entry);
+        /* Rare, so the scan of the queue is not worth avoiding */
+        if(order.remove(entry)){
+          size.decrementAndGet();
+        }
+      }
+      entry.done.countDown();
+    }
+    return reply;
+  }
+
+  /**
+   * evict()
+   *
+   * Forgets the oldest entries while they have expired or there are too
+   * many.
+   *
+   * @param now The current time in milliseconds.
+   **/
+  private void evict(long now){
+    Entry head;
+    while((head = order.peek()) != null && (head.expires < now || size.get() > maxEntries)){
+      if(order.remove(head)){
+        size.decrementAndGet();
+        entries.remove(head.key, head);
+      }
+    }
+  }
+
+  /**
+   * fingerprint()
+   *
+   * Sums up what a request does, so that a retry can be told apart from a
+   * different request sent with the same key.
+   *
+   * @param request The parsed JSON request.
+   * @return The fingerprint.
+   **/
+  private static String fingerprint(JSONObject request){
+    return request.optString("type") + "/" + request.opt("account") + "/" + request.opt("amount") + "/" + request.opt("to") + "/" + request.opt("operations");
+  }
+
+  /**
+   * isRetryable()
+   *
+   * Checks whether a reply says the request was turned away before it did
+   * anything, because the server was unavailable or too busy.
+   *
+   * @param reply The reply.
+   * @return True if the reply should not be remembered.
+   **/
+  private static boolean isRetryable(JSONObject reply){
+    String reason = reply.optString("reason");
+    return "unavailable".equals(reason) || "busy".equals(reason);
+  }
+}
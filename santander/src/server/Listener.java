@@ -0,0 +1,160 @@
+package netizens.bank.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import netizens.bank.utils.Debug;
+import netizens.bank.utils.Error;
+
+/**
+ * Listener.java
+ *
+ * Accepts connections on a number of threads at once. Where the operating
+ * system allows it (Linux) every thread has its own socket bound to the same
+ * port with SO_REUSEPORT, so the kernel spreads new connections over the
+ * threads and they never contend for one accept queue. Elsewhere all threads
+ * share a single socket.
+ **/
+public class Listener{
+  private ServerSocketChannel[] channels;
+  private int acceptors;
+
+  /**
+   * Acceptor
+   *
+   * Takes a newly accepted connection.
+   **/
+  public interface Acceptor{
+    /**
+     * accept()
+     *
+     * Takes a newly accepted connection, this is called on the accepting
+     * thread so it should return quickly.
+     *
+     * @param channel The blocking client channel.
+     **/
+    public void accept(SocketChannel channel);
+  }
+
+  /**
+   * Listener()
+   *
+   * Opens and binds the sockets.
+   *
+   * @param port The port to listen on.
+   * @param backlog The length of the queue of connections waiting to be
+   * accepted, for each socket.
+   * @param acceptors The number of threads accepting connections.
+   * @throws IOException If the port could not be bound.
+   **/
+  public Listener(int port, int backlog, int acceptors) throws IOException{
+    this.acceptors = Math.max(acceptors, 1);
+    boolean shared = this.acceptors == 1 || !supportsReusePort();
+    channels = new ServerSocketChannel[shared ? 1 : this.acceptors];
+    for(int x = 0; x < channels.length; x++){
+      channels[x] = ServerSocketChannel.open();
+      if(!shared){
+        channels[x].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+      }
+      channels[x].bind(new InetSocketAddress(port), backlog);
+    }
+    Debug.println(
+      "Listening on " + port + " with " + this.acceptors + " acceptors and " +
+      channels.length + " sockets"
+    );
+  }
+
+  /**
+   * run()
+   *
+   * Starts accepting connections on every acceptor thread, one of which is
+   * the calling thread, so this never returns.
+   *
+   * @param acceptor Takes every accepted connection.
+   **/
+  public void run(final Acceptor acceptor){
+    for(int x = 1; x < acceptors; x++){
+      final ServerSocketChannel channel = channels[x % channels.length];
+      new Thread("acceptor-" + x){
+        @Override
+        public void run(){
+          accept(channel, acceptor);
+        }
+      }.start();
+    }
+    accept(channels[0], acceptor);
+  }
+
+  /**
+   * accept()
+   *
+   * Accepts connections from a socket forever. A connection that can't be
+   * handed on is closed and the thread carries on accepting.
+   *
+   * @param channel The socket to accept from.
+   * @param acceptor Takes every accepted connection.
+   **/
+  private static void accept(ServerSocketChannel channel, Acceptor acceptor){
+    /* Loop infinitely */
+    for(;;){
+      SocketChannel client = null;
+      /* Safely deal with client exceptions */
+      try{
+        /* Accept client connection and pass it on */
+        client = channel.accept();
+        acceptor.accept(client);
+      }catch(IOException e){
+        /* Default error handling */
+        Error.safeThrow(e, false);
+      }catch(RuntimeException e){
+        /* For example a pool that refused the client, only it is lost */
+        Error.safeThrow(e, false);
+        close(client);
+      }
+    }
+  }
+
+  /**
+   * close()
+   *
+   * Safely closes a client channel.
+   *
+   * @param client The channel, otherwise NULL.
+   **/
+  private static void close(SocketChannel client){
+    if(client == null){
+      return;
+    }
+    try{
+      client.close();
+    }catch(IOException e){
+      /* Default error handling */
+      Error.safeThrow(e, false);
+    }
+  }
+
+  /**
+   * supportsReusePort()
+   *
+   * Checks whether SO_REUSEPORT spreads connections over sockets, which is
+   * only the case on Linux.
+   *
+   * @return True if each acceptor can have its own socket.
+   **/
+  private static boolean supportsReusePort(){
+    if(!System.getProperty("os.name", "").toLowerCase().contains("linux")){
+      return false;
+    }
+    /* Safely check the option is available */
+    try{
+      ServerSocketChannel probe = ServerSocketChannel.open();
+      boolean supported = probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+      probe.close();
+      return supported;
+    }catch(IOException e){
+      return false;
+    }
+  }
+}
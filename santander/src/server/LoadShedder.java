@@ -0,0 +1,142 @@
+package netizens.bank.server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+import netizens.bank.server.Frame;
+import netizens.bank.server.RateLimiter;
+import netizens.bank.server.router.Reply;
+import netizens.bank.utils.Error;
+
+/**
+ * LoadShedder.java
+ *
+ * Decides whether a newly accepted connection is served at all. A connection
+ * is turned away if its address is connecting too often or if the server
+ * already has as many connections as it is allowed. Turned away connections
+ * are sent a single prepared error frame and closed without ever reaching a
+ * thread, so clients that behave are not slowed down by those that do not.
+ * Once admitted, each request must also pass the limit for its address,
+ * otherwise a single connection could send as many requests as it likes.
+ **/
+public class LoadShedder{
+  private RateLimiter limiter;
+  private RateLimiter requests;
+  private AtomicInteger active;
+  private int maxActive;
+  private byte[] busy;
+
+  /**
+   * LoadShedder()
+   *
+   * Creates the load shedder.
+   *
+   * @param limiter The limit on how often each address may connect.
+   * @param requests The limit on how often each address may send a request.
+   * @param maxActive The maximum number of connections open at once.
+   **/
+  public LoadShedder(RateLimiter limiter, RateLimiter requests, int maxActive){
+    this.limiter = limiter;
+    this.requests = requests;
+    this.maxActive = Math.max(maxActive, 1);
+    active = new AtomicInteger(0);
+    /* The reply is always the same, so only encode it once */
+    ByteBuffer frame = Frame.encode(Reply.error("busy"));
+    busy = new byte[frame.remaining()];
+    frame.get(busy);
+  }
+
+  /**
+   * admit()
+   *
+   * Checks whether a connection may be served. Each admitted connection must
+   * be paired with a call to release() once closed.
+   *
+   * @param address The remote address of the connection.
+   * @return True if the connection should be served.
+   **/
+  public boolean admit(InetAddress address){
+    /* Cheapest check first, the global limit */
+    if(active.incrementAndGet() > maxActive){
+      active.decrementAndGet();
+      return false;
+    }
+    if(!limiter.acquire(address)){
+      active.decrementAndGet();
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * allow()
+   *
+   * Checks whether a request from an admitted connection may be processed.
+   *
+   * @param address The remote address of the connection.
+   * @return True if the request should be processed, otherwise it should be
+   * answered as busy.
+   **/
+  public boolean allow(InetAddress address){
+    return requests.acquire(address);
+  }
+
+  /**
+   * release()
+   *
+   * Gives back the slot of a closed connection.
+   **/
+  public void release(){
+    active.decrementAndGet();
+  }
+
+  /**
+   * reject()
+   *
+   * Sends the busy frame and closes the connection.
+   *
+   * @param socket The connection being turned away.
+   **/
+  public void reject(Socket socket){
+    /* Safely send the reply and close, over TLS a handshake would cost more
+     * than it is worth so the connection is just closed */
+    try{
+      if(Client.tls == null){
+        socket.getOutputStream().write(busy);
+      }
+    }catch(IOException e){
+      /* The client is being turned away, nothing to report */
+    }
+    close(socket);
+  }
+
+  /**
+   * reject()
+   *
+   * Sends the busy frame and closes the connection.
+   *
+   * @param channel The blocking connection being turned away.
+   **/
+  public void reject(SocketChannel channel){
+    reject(channel.socket());
+  }
+
+  /**
+   * close()
+   *
+   * Safely closes a socket.
+   *
+   * @param socket The socket to be closed.
+   **/
+  private static void close(Socket socket){
+    try{
+      socket.close();
+    }catch(IOException e){
+      /* Default error handling */
+      Error.safeThrow(e, false);
+    }
+  }
+}
@@ -0,0 +1,83 @@
+package netizens.bank.server;
+
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * RateLimiter.java
+ *
+ * Limits how often each remote address may connect or send a request using
+ * token buckets.
+ * Addresses are hashed onto a fixed number of stripes, each stripe being a
+ * single bucket stored as the time at which it will next be completely full.
+ * Taking a token is a single compare and swap, so no locks are ever held and
+ * no memory is allocated per address.
+ **/
+public class RateLimiter{
+  private AtomicLongArray stripes;
+  private int mask;
+  private long interval;
+  private long tolerance;
+
+  /**
+   * RateLimiter()
+   *
+   * Creates the rate limiter.
+   *
+   * @param count The number of stripes, rounded up to a power of two.
+   * @param rate The number of tokens each bucket gains per second.
+   * @param burst The number of tokens each bucket holds when full.
+   **/
+  public RateLimiter(int count, int rate, int burst){
+    int size = Integer.highestOneBit(Math.max(count, 1) - 1) << 1;
+    stripes = new AtomicLongArray(Math.max(size, 1));
+    mask = stripes.length() - 1;
+    interval = 1000000000L / Math.max(rate, 1);
+    tolerance = interval * (Math.max(burst, 1) - 1);
+    /* Every bucket starts full, the clock may be anywhere including below zero */
+    long now = System.nanoTime();
+    for(int x = 0; x < stripes.length(); x++){
+      stripes.set(x, now - tolerance);
+    }
+  }
+
+  /**
+   * acquire()
+   *
+   * Takes a token from the bucket of an address.
+   *
+   * @param address The remote address.
+   * @return True if a token was taken, false if the address is over its
+   * rate.
+   **/
+  public boolean acquire(InetAddress address){
+    int stripe = stripe(address);
+    for(;;){
+      long now = System.nanoTime();
+      long full = stripes.get(stripe);
+      /* A bucket that filled in the past is simply full */
+      long start = full - now < 0 ? now : full;
+      /* Not enough tokens left */
+      if(start - now > tolerance){
+        return false;
+      }
+      if(stripes.compareAndSet(stripe, full, start + interval)){
+        return true;
+      }
+    }
+  }
+
+  /**
+   * stripe()
+   *
+   * Finds the stripe for an address.
+   *
+   * @param address The remote address.
+   * @return The index of the stripe.
+   **/
+  private int stripe(InetAddress address){
+    /* Spread the bits so that neighbouring addresses use different stripes */
+    int h = address.hashCode() * 0x9E3779B9;
+    return (h ^ (h >>> 16)) & mask;
+  }
+}
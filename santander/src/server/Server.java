@@ -1,12 +1,28 @@
 package netizens.bank.server;
 
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.lang.reflect.Method;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import netizens.bank.server.Admission;
 import netizens.bank.server.Client;
+import netizens.bank.server.Connection;
+import netizens.bank.server.EventLoop;
+import netizens.bank.server.Frame;
+import netizens.bank.server.IdempotencyCache;
+import netizens.bank.server.Listener;
+import netizens.bank.server.LoadShedder;
+import netizens.bank.server.RateLimiter;
+import netizens.bank.server.Tls;
+import netizens.bank.server.router.Ledger;
+import netizens.bank.server.router.Router;
 import netizens.bank.utils.Debug;
 import netizens.bank.utils.Error;
 import netizens.bank.utils.JSON;
+import netizens.bank.utils.SafeParse;
 import org.json.JSONObject;
 import org.json.JSONTokener;
 
@@ -16,7 +32,8 @@ import org.json.JSONTokener;
  * This class handles the simple server input and output.
  **/
 public class Server{
-  private ServerSocket server;
+  private Listener listener;
+  private LoadShedder shedder;
 
   /**
    * Server()
@@ -36,29 +53,216 @@ public class Server{
     Debug.println("serverPath -> " + serverPath);
     /* Load window settings JSON file */
     JSONObject serverObj = (new JSONObject(JSON.getJSONTokener(serverPath))).getJSONObject("server");
-    /* Safely create the server instance */
+    /* Limit the size of a single request */
+    Frame.setMaxSize(SafeParse.getInt(serverObj.optString("frame"), 1 << 20));
+    /* Limit the requests processed at once for a single connection */
+    Connection.setPipeline(SafeParse.getInt(serverObj.optString("pipeline"), 16));
+    /* Limit the number of operations in a single batch */
+    Router.setMaxBatch(SafeParse.getInt(serverObj.optString("batch"), 64));
+    /* Secure connections if a key store is given */
+    Client.setTls(Tls.load(serverObj.optJSONObject("tls")));
+    /* Build the dispatch table once before accepting anything */
+    Client.setRouter(Router.create(serverObj.optString("operator", "")));
+    /* Open replicated databases up front and start shipping or following */
+    if(!Ledger.replicate()){
+      Error.safeThrow(new IOException("Could not start database replication"), true);
+    }
+    /* Remember recent replies so that retried requests are not run twice */
+    Client.setIdempotency(
+      new IdempotencyCache(
+        SafeParse.getInt(serverObj.optString("keys"), 100000),
+        SafeParse.getInt(serverObj.optString("keytime"), 60000),
+        Client.timeout
+      )
+    );
+    /* Decide which connections are served at all */
+    shedder = new LoadShedder(
+      new RateLimiter(
+        4096,
+        SafeParse.getInt(serverObj.optString("rate"), 50),
+        SafeParse.getInt(serverObj.optString("burst"), 100)
+      ),
+      new RateLimiter(
+        4096,
+        SafeParse.getInt(serverObj.optString("requestrate"), 5000),
+        SafeParse.getInt(serverObj.optString("requestburst"), 10000)
+      ),
+      SafeParse.getInt(serverObj.optString("connections"), 1024)
+    );
+    /* Safely open the listening sockets */
     try{
-      /* Create server */
-      server = new ServerSocket(3333);
+      listener = new Listener(
+        SafeParse.getInt(serverObj.optString("port"), 3333),
+        SafeParse.getInt(serverObj.optString("backlog"), 1024),
+        SafeParse.getInt(serverObj.optString("acceptors"), 1)
+      );
     }catch(IOException e){
       /* Default error handling */
       Error.safeThrow(e, true);
     }
-    /* Loop infinitely */
-    for(;;){
-      /* Safely deal with client exceptions */
-      try{
-        /* Internal infinite loop */
-        for(;;){
-          /* Accept client connection */
-          Socket s = server.accept();
-          /* Pass connection on and start the thread */
-          new Client(s).start();
+    /* Decide how connections are to be handled */
+    String mode = serverObj.optString("mode", "thread");
+    Debug.println("mode -> " + mode);
+    switch(mode){
+      case "nio" :
+        runEvents(
+          SafeParse.getInt(serverObj.optString("io"), 2),
+          SafeParse.getInt(serverObj.optString("workers"), 8)
+        );
+        break;
+      case "virtual" :
+        runVirtual(
+          SafeParse.getInt(serverObj.optString("inflight"), 256),
+          SafeParse.getInt(serverObj.optString("queue"), 1024)
+        );
+        break;
+      case "thread" :
+      default :
+        runThreads();
+        break;
+    }
+  }
+
+  /**
+   * runThreads()
+   *
+   * Accepts connections, starting a new thread for every client.
+   **/
+  private void runThreads(){
+    listener.run(new Listener.Acceptor(){
+      @Override
+      public void accept(SocketChannel channel){
+        Socket s = channel.socket();
+        /* Turn the client away if it should not be served */
+        if(!shedder.admit(s.getInetAddress())){
+          shedder.reject(s);
+          return;
+        }
+        /* Pass connection on and start the thread */
+        try{
+          new Client(s, null, shedder).start();
+        }catch(RuntimeException e){
+          unserved(s, e);
+        }
+      }
+    });
+  }
+
+  /**
+   * runVirtual()
+   *
+   * Accepts connections, running every client on its own virtual thread so
+   * that blocking I/O does not hold on to an operating system thread. The
+   * number of requests processed at once is capped, with a bounded queue for
+   * those waiting.
+   *
+   * @param inFlight The maximum number of requests processed at once.
+   * @param queue The maximum number of requests allowed to wait.
+   **/
+  private void runVirtual(int inFlight, int queue){
+    final Admission admission = new Admission(inFlight, queue);
+    final ExecutorService pool = getVirtualExecutor();
+    listener.run(new Listener.Acceptor(){
+      @Override
+      public void accept(SocketChannel channel){
+        Socket s = channel.socket();
+        /* Turn the client away if it should not be served */
+        if(!shedder.admit(s.getInetAddress())){
+          shedder.reject(s);
+          return;
+        }
+        /* Pass connection on to a new virtual thread */
+        try{
+          pool.execute(new Client(s, admission, shedder));
+        }catch(RuntimeException e){
+          unserved(s, e);
         }
-      }catch(IOException e){
-        /* Default error handling */
-        Error.safeThrow(e, false);
       }
+    });
+  }
+
+  /**
+   * unserved()
+   *
+   * Gives back the slot of an admitted connection that could not be handed
+   * on, as it will never be released by a client, and closes it.
+   *
+   * @param socket The connection.
+   * @param e Why it could not be handed on.
+   **/
+  private void unserved(Socket socket, RuntimeException e){
+    shedder.release();
+    /* Default error handling */
+    Error.safeThrow(e, false);
+    try{
+      socket.close();
+    }catch(IOException ex){
+      /* Default error handling */
+      Error.safeThrow(ex, false);
+    }
+  }
+
+  /**
+   * getVirtualExecutor()
+   *
+   * Gets an executor that starts a new virtual thread per task. This is
+   * looked up at runtime so that the program still builds and runs on Java
+   * versions without virtual threads, where a cached thread pool is used
+   * instead.
+   *
+   * @return The executor for client tasks.
+   **/
+  private static ExecutorService getVirtualExecutor(){
+    /* Safely look up the virtual thread executor */
+    try{
+      Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService)method.invoke(null);
+    }catch(ReflectiveOperationException e){
+      Debug.println("Virtual threads unavailable, using platform threads");
+      return Executors.newCachedThreadPool();
+    }
+  }
+
+  /**
+   * runEvents()
+   *
+   * Accepts connections and spreads them over a small fixed number of
+   * non-blocking I/O threads, requests are processed on a separate pool of
+   * worker threads.
+   *
+   * @param io The number of I/O threads.
+   * @param workers The number of worker threads.
+   **/
+  private void runEvents(int io, int workers){
+    final EventLoop[] loops = new EventLoop[Math.max(io, 1)];
+    final AtomicInteger next = new AtomicInteger(0);
+    ExecutorService pool = Executors.newFixedThreadPool(Math.max(workers, 1));
+    /* Safely create the loops */
+    try{
+      for(int x = 0; x < loops.length; x++){
+        loops[x] = new EventLoop("io-" + x, pool, shedder);
+        loops[x].start();
+      }
+    }catch(IOException e){
+      /* Default error handling */
+      Error.safeThrow(e, true);
     }
+    listener.run(new Listener.Acceptor(){
+      @Override
+      public void accept(SocketChannel channel){
+        /* Turn the client away if it should not be served */
+        if(!shedder.admit(channel.socket().getInetAddress())){
+          shedder.reject(channel);
+          return;
+        }
+        /* Pass connection on to the next loop */
+        int x = (next.getAndIncrement() & Integer.MAX_VALUE) % loops.length;
+        try{
+          loops[x].register(channel);
+        }catch(RuntimeException e){
+          unserved(channel.socket(), e);
+        }
+      }
+    });
   }
 }
@@ -0,0 +1,94 @@
+package netizens.bank.server;
+
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.security.KeyStore;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSessionContext;
+import netizens.bank.utils.Debug;
+import netizens.bank.utils.Error;
+import netizens.bank.utils.SafeParse;
+import org.json.JSONObject;
+
+/**
+ * Tls.java
+ *
+ * Holds the TLS settings for the server and creates an engine for every
+ * connection. Sessions are kept in a server side cache and handed out as
+ * session tickets, so a client that connects again resumes its session and
+ * skips the full handshake.
+ **/
+public class Tls{
+  private SSLContext context;
+
+  /**
+   * Tls()
+   *
+   * Creates the TLS context.
+   *
+   * @param context The initialised context.
+   **/
+  private Tls(SSLContext context){
+    this.context = context;
+  }
+
+  /**
+   * load()
+   *
+   * Loads the key store and sets up the session cache from the "tls" section
+   * of the server settings.
+   *
+   * @param tlsObj The TLS settings, otherwise NULL.
+   * @return The TLS context, otherwise NULL if TLS is not enabled.
+   **/
+  public static Tls load(JSONObject tlsObj){
+    if(tlsObj == null){
+      return null;
+    }
+    String path = tlsObj.getString("keystore");
+    char[] password = tlsObj.optString("password", "").toCharArray();
+    /* Stateless resumption, the session is handed to the client as a ticket */
+    if(System.getProperty("jdk.tls.server.enableSessionTicketExtension") == null){
+      System.setProperty("jdk.tls.server.enableSessionTicketExtension", "true");
+    }
+    /* Safely load the key store and create the context */
+    try{
+      KeyStore store = KeyStore.getInstance(KeyStore.getDefaultType());
+      InputStream in = new FileInputStream(path);
+      try{
+        store.load(in, password);
+      }finally{
+        in.close();
+      }
+      KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+      kmf.init(store, password);
+      SSLContext context = SSLContext.getInstance("TLS");
+      context.init(kmf.getKeyManagers(), null, null);
+      /* Keep sessions around so that clients can resume them */
+      SSLSessionContext sessions = context.getServerSessionContext();
+      sessions.setSessionCacheSize(SafeParse.getInt(tlsObj.optString("sessions"), 20000));
+      sessions.setSessionTimeout(SafeParse.getInt(tlsObj.optString("lifetime"), 86400));
+      Debug.println("TLS enabled with " + path);
+      return new Tls(context);
+    }catch(Exception e){
+      /* Default error handling */
+      Error.safeThrow(e, true);
+      return null;
+    }
+  }
+
+  /**
+   * createEngine()
+   *
+   * Creates the server side engine for a new connection.
+   *
+   * @return The engine.
+   **/
+  public SSLEngine createEngine(){
+    SSLEngine engine = context.createSSLEngine();
+    engine.setUseClientMode(false);
+    return engine;
+  }
+}
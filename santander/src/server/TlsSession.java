@@ -0,0 +1,502 @@
+package netizens.bank.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import netizens.bank.server.BufferPool;
+
+/**
+ * TlsSession.java
+ *
+ * Drives the TLS engine of a single connection, encrypting what is written
+ * and decrypting what is read. The same session works over a blocking socket
+ * or a non-blocking channel, on a non-blocking channel read() and write() may
+ * make no progress and return zero, the caller should then wait for the
+ * channel to be ready and call again. The handshake happens as part of the
+ * first read. Session tickets and close notifications go out as small writes
+ * of their own, so Nagle's algorithm is turned off to stop them holding up
+ * the reply that follows. The key exchange work of the handshake runs on the
+ * reading thread for a blocking socket, and on the worker pool for a
+ * non-blocking channel so that the loop is free for other connections
+ * meanwhile.
+ **/
+public class TlsSession{
+  private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+  private SSLEngine engine;
+  private SocketChannel channel;
+  private InputStream in;
+  private OutputStream out;
+  private ByteBuffer netIn;
+  private ByteBuffer appIn;
+  private ByteBuffer netOut;
+  private boolean eof;
+  private Executor tasks;
+  private Runnable resume;
+  private volatile boolean tasking;
+
+  /**
+   * TlsSession()
+   *
+   * Creates the session for a non-blocking channel.
+   *
+   * @param engine The server side engine for the connection.
+   * @param channel The client channel.
+   * @param tasks Where the key exchange work of the handshake is run.
+   * @param resume Called on the thread of the tasks once they are done, the
+   * session then needs reading or writing again.
+   * @throws IOException If the channel could not be set up.
+   **/
+  public TlsSession(SSLEngine engine, SocketChannel channel, Executor tasks, Runnable resume) throws IOException{
+    this(engine, channel, (InputStream)null, (OutputStream)null);
+    this.tasks = tasks;
+    this.resume = resume;
+    channel.socket().setTcpNoDelay(true);
+  }
+
+  /**
+   * TlsSession()
+   *
+   * Creates the session for a blocking socket.
+   *
+   * @param engine The server side engine for the connection.
+   * @param socket The client socket.
+   * @throws IOException If the socket streams could not be opened.
+   **/
+  public TlsSession(SSLEngine engine, Socket socket) throws IOException{
+    this(engine, null, socket.getInputStream(), socket.getOutputStream());
+    socket.setTcpNoDelay(true);
+  }
+
+  /**
+   * TlsSession()
+   *
+   * Creates the session with pooled buffers sized for a full TLS record.
+   *
+   * @param engine The server side engine for the connection.
+   * @param channel The client channel, otherwise NULL.
+   * @param in The socket input, otherwise NULL.
+   * @param out The socket output, otherwise NULL.
+   **/
+  private TlsSession(SSLEngine engine, SocketChannel channel, InputStream in, OutputStream out){
+    this.engine = engine;
+    this.channel = channel;
+    this.in = in;
+    this.out = out;
+    /* All buffers are kept ready to be written into */
+    netIn = BufferPool.acquire(engine.getSession().getPacketBufferSize());
+    appIn = BufferPool.acquire(engine.getSession().getApplicationBufferSize());
+    netOut = BufferPool.acquire(engine.getSession().getPacketBufferSize());
+    eof = false;
+  }
+
+  /**
+   * read()
+   *
+   * Reads decrypted bytes, completing the handshake first if needed.
+   *
+   * @param dst The buffer to be read into.
+   * @return The number of bytes read, zero if nothing is available yet or -1
+   * once the client has closed the connection.
+   * @throws IOException If the connection failed or the client broke the
+   * protocol.
+   **/
+  public int read(ByteBuffer dst) throws IOException{
+    for(;;){
+      /* Hand over anything already decrypted */
+      if(appIn.position() > 0){
+        appIn.flip();
+        int n = Math.min(appIn.remaining(), dst.remaining());
+        ByteBuffer part = appIn.duplicate();
+        part.limit(part.position() + n);
+        dst.put(part);
+        appIn.position(appIn.position() + n);
+        appIn.compact();
+        return n;
+      }
+      if(eof){
+        return -1;
+      }
+      if(!handshake()){
+        return eof ? -1 : 0;
+      }
+      /* Decrypt what has arrived, otherwise send what is owed and wait */
+      if(!unwrap()){
+        flush();
+        int n = fill();
+        if(n < 0){
+          end();
+          return -1;
+        }
+        if(n == 0){
+          return 0;
+        }
+      }
+    }
+  }
+
+  /**
+   * write()
+   *
+   * Encrypts and sends as much as the connection accepts, completing the
+   * handshake first if needed.
+   *
+   * @param src The bytes to be written.
+   * @return The number of bytes taken from the buffer.
+   * @throws IOException If the connection failed.
+   **/
+  public int write(ByteBuffer src) throws IOException{
+    if(!handshake()){
+      return 0;
+    }
+    int start = src.position();
+    /* Gather records and only send once the buffer is full or at the end */
+    while(src.hasRemaining()){
+      SSLEngineResult result = engine.wrap(src, netOut);
+      if(result.getStatus() == SSLEngineResult.Status.CLOSED){
+        throw new SSLException("Connection closed");
+      }
+      if(result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW && !flush()){
+        break;
+      }
+    }
+    flush();
+    return src.position() - start;
+  }
+
+  /**
+   * flush()
+   *
+   * Sends any encrypted bytes still waiting.
+   *
+   * @return True if nothing is left waiting to be sent.
+   * @throws IOException If the connection failed.
+   **/
+  public boolean flush() throws IOException{
+    netOut.flip();
+    try{
+      while(netOut.hasRemaining()){
+        if(channel != null){
+          if(channel.write(netOut) == 0){
+            return false;
+          }
+        }else{
+          out.write(netOut.array(), netOut.arrayOffset() + netOut.position(), netOut.remaining());
+          out.flush();
+          netOut.position(netOut.limit());
+        }
+      }
+      return true;
+    }finally{
+      netOut.compact();
+    }
+  }
+
+  /**
+   * isPending()
+   *
+   * Checks whether encrypted bytes are still waiting to be sent.
+   *
+   * @return True if flush() needs to be called again.
+   **/
+  public boolean isPending(){
+    return netOut.position() > 0;
+  }
+
+  /**
+   * isHandshaking()
+   *
+   * Checks whether the handshake is still in progress.
+   *
+   * @return True if the handshake has not completed.
+   **/
+  public boolean isHandshaking(){
+    return engine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING;
+  }
+
+  /**
+   * isTasking()
+   *
+   * Checks whether the handshake is waiting for its key exchange work to
+   * finish on another thread, nothing can be read or written until then.
+   *
+   * @return True while the work is running.
+   **/
+  public boolean isTasking(){
+    return tasking;
+  }
+
+  /**
+   * close()
+   *
+   * Tells the client the connection is closing, as far as the connection
+   * allows without waiting, and gives back the buffers. The session must
+   * not be used afterwards.
+   **/
+  public void close(){
+    engine.closeOutbound();
+    /* Safely send the close notification */
+    try{
+      while(!engine.isOutboundDone() && flush()){
+        engine.wrap(EMPTY, netOut);
+      }
+      flush();
+    }catch(IOException e){
+      /* The client has most likely gone already, nothing to report */
+    }
+    BufferPool.release(netIn);
+    BufferPool.release(appIn);
+    BufferPool.release(netOut);
+    netIn = appIn = netOut = null;
+  }
+
+  /**
+   * getInputStream()
+   *
+   * Gets a blocking stream of the decrypted input.
+   *
+   * @return The stream.
+   **/
+  public InputStream getInputStream(){
+    return new InputStream(){
+      @Override
+      public int read() throws IOException{
+        byte[] one = new byte[1];
+        return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException{
+        if(len == 0){
+          return 0;
+        }
+        int n;
+        while((n = TlsSession.this.read(ByteBuffer.wrap(b, off, len))) == 0);
+        return n;
+      }
+    };
+  }
+
+  /**
+   * getOutputStream()
+   *
+   * Gets a blocking stream that encrypts everything written to it.
+   *
+   * @return The stream.
+   **/
+  public OutputStream getOutputStream(){
+    return new OutputStream(){
+      @Override
+      public void write(int b) throws IOException{
+        write(new byte[]{ (byte)b }, 0, 1);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException{
+        ByteBuffer src = ByteBuffer.wrap(b, off, len);
+        while(src.hasRemaining()){
+          if(TlsSession.this.write(src) == 0 && eof){
+            throw new EOFException("Connection closed");
+          }
+        }
+      }
+    };
+  }
+
+  /**
+   * handshake()
+   *
+   * Moves the handshake on as far as it can go without waiting.
+   *
+   * @return True once the handshake is complete.
+   * @throws IOException If the connection failed or the handshake was
+   * refused.
+   **/
+  private boolean handshake() throws IOException{
+    for(;;){
+      if(tasking){
+        return false;
+      }
+      switch(engine.getHandshakeStatus()){
+        case NEED_TASK :
+          /* Key exchange work, here only if there is nowhere else for it */
+          if(offload()){
+            return false;
+          }
+          runTasks();
+          break;
+        case NEED_WRAP :
+          /* Messages are gathered up and sent together */
+          SSLEngineResult result = engine.wrap(EMPTY, netOut);
+          if(result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW && !flush()){
+            return false;
+          }
+          break;
+        case NEED_UNWRAP :
+        case NEED_UNWRAP_AGAIN :
+          if(!unwrap()){
+            /* Send what the client is waiting for before waiting */
+            if(!flush()){
+              return false;
+            }
+            int n = fill();
+            if(n < 0){
+              end();
+              return false;
+            }
+            if(n == 0){
+              return false;
+            }
+          }
+          break;
+        default :
+          return true;
+      }
+      if(eof){
+        return false;
+      }
+    }
+  }
+
+  /**
+   * offload()
+   *
+   * Hands the key exchange work of the handshake to the worker pool.
+   *
+   * @return True if the work was handed over, false if it must be run on
+   * this thread.
+   **/
+  private boolean offload(){
+    if(tasks == null){
+      return false;
+    }
+    tasking = true;
+    /* Safely hand the work to the workers */
+    try{
+      tasks.execute(new Runnable(){
+        @Override
+        public void run(){
+          try{
+            runTasks();
+          }finally{
+            tasking = false;
+            resume.run();
+          }
+        }
+      });
+      return true;
+    }catch(RejectedExecutionException e){
+      tasking = false;
+      return false;
+    }
+  }
+
+  /**
+   * runTasks()
+   *
+   * Runs the key exchange work the engine is waiting for.
+   **/
+  private void runTasks(){
+    Runnable task;
+    while((task = engine.getDelegatedTask()) != null){
+      task.run();
+    }
+  }
+
+  /**
+   * unwrap()
+   *
+   * Decrypts the records that have arrived.
+   *
+   * @return True if anything was decrypted, false if more bytes need to be
+   * read first.
+   * @throws IOException If the client broke the protocol.
+   **/
+  private boolean unwrap() throws IOException{
+    if(netIn.position() == 0){
+      return false;
+    }
+    netIn.flip();
+    SSLEngineResult result;
+    try{
+      result = engine.unwrap(netIn, appIn);
+    }finally{
+      netIn.compact();
+    }
+    switch(result.getStatus()){
+      case BUFFER_UNDERFLOW :
+        return false;
+      case BUFFER_OVERFLOW :
+        appIn = grow(appIn, engine.getSession().getApplicationBufferSize());
+        return true;
+      case CLOSED :
+        eof = true;
+        return true;
+      default :
+        return true;
+    }
+  }
+
+  /**
+   * fill()
+   *
+   * Reads more encrypted bytes from the connection.
+   *
+   * @return The number of bytes read, -1 at the end of the stream.
+   * @throws IOException If the connection failed.
+   **/
+  private int fill() throws IOException{
+    /* A record larger than the buffer needs a larger buffer */
+    if(!netIn.hasRemaining()){
+      netIn = grow(netIn, engine.getSession().getPacketBufferSize());
+    }
+    if(channel != null){
+      return channel.read(netIn);
+    }
+    int n = in.read(netIn.array(), netIn.arrayOffset() + netIn.position(), netIn.remaining());
+    if(n > 0){
+      netIn.position(netIn.position() + n);
+    }
+    return n;
+  }
+
+  /**
+   * end()
+   *
+   * The connection ended, possibly without the client saying so.
+   **/
+  private void end(){
+    eof = true;
+    /* Safely tell the engine, a missing close notification is not an error */
+    try{
+      engine.closeInbound();
+    }catch(SSLException e){
+      /* Nothing more can be read either way */
+    }
+  }
+
+  /**
+   * grow()
+   *
+   * Swaps a buffer for a larger one, keeping what it holds.
+   *
+   * @param buffer The buffer ready to be written into.
+   * @param extra The additional space needed.
+   * @return The larger buffer.
+   **/
+  private static ByteBuffer grow(ByteBuffer buffer, int extra){
+    ByteBuffer larger = BufferPool.acquire(buffer.position() + extra);
+    buffer.flip();
+    larger.put(buffer);
+    BufferPool.release(buffer);
+    return larger;
+  }
+}
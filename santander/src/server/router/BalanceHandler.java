@@ -0,0 +1,34 @@
+package netizens.bank.server.router;
+
+import netizens.bank.server.router.Handler;
+import netizens.bank.server.router.Ledger;
+import netizens.bank.server.router.Reply;
+import netizens.bank.server.router.Request;
+import org.json.JSONObject;
+
+/**
+ * BalanceHandler.java
+ *
+ * Replies with the balance of an account.
+ **/
+public class BalanceHandler implements Handler{
+  /**
+   * handle()
+   *
+   * Handles a balance request.
+   *
+   * @param request The typed request.
+   * @param ledger The open ledger.
+   * @return The reply to be sent back to the client.
+   **/
+  @Override
+  public JSONObject handle(Request request, Ledger ledger){
+    Long balance = ledger.balance(request.getAccount());
+    if(balance == null){
+      return Reply.error("unknown account");
+    }
+    JSONObject reply = Reply.ok();
+    reply.put("balance", balance.longValue());
+    return reply;
+  }
+}
@@ -0,0 +1,59 @@
+package netizens.bank.server.router;
+
+import netizens.bank.server.router.Handler;
+import netizens.bank.server.router.Ledger;
+import netizens.bank.server.router.Reply;
+import netizens.bank.server.router.Request;
+import netizens.bank.utils.Database;
+import netizens.bank.utils.database.CachedStorage;
+import org.json.JSONObject;
+
+/**
+ * CacheHandler.java
+ *
+ * Replies with how well the cache in front of the database does.
+ **/
+public class CacheHandler implements Handler{
+  /**
+   * handle()
+   *
+   * Handles a cache request, giving the hits, misses, evictions and size of
+   * the cache in front of the accounts, which holds their postings too. It
+   * is left out of the reply if there is no cache.
+   *
+   * @param request The typed request.
+   * @param ledger Not used, NULL.
+   * @return The reply to be sent back to the client.
+   **/
+  @Override
+  public JSONObject handle(Request request, Ledger ledger){
+    Database<Long, Object> accounts = Ledger.database();
+    if(accounts == null){
+      return Reply.error("unavailable");
+    }
+    JSONObject reply = Reply.ok();
+    counts(reply, "accounts", accounts.getCache());
+    return reply;
+  }
+
+  /**
+   * counts()
+   *
+   * Adds the counts of one cache to a reply.
+   *
+   * @param reply The reply to add to.
+   * @param name The name to add them under.
+   * @param cached The cache, or null if there is none.
+   **/
+  private static void counts(JSONObject reply, String name, CachedStorage<?, ?> cached){
+    if(cached == null){
+      return;
+    }
+    JSONObject counts = new JSONObject();
+    counts.put("hits", cached.getHits());
+    counts.put("misses", cached.getMisses());
+    counts.put("evictions", cached.getEvictions());
+    counts.put("size", cached.size());
+    reply.put(name, counts);
+  }
+}
@@ -0,0 +1,47 @@
+package netizens.bank.server.router;
+
+import netizens.bank.server.router.Handler;
+import netizens.bank.server.router.Ledger;
+import netizens.bank.server.router.Reply;
+import netizens.bank.server.router.Request;
+import org.json.JSONObject;
+
+/**
+ * DepositHandler.java
+ *
+ * Puts money into an account, the first deposit creates the account.
+ * An account that exists is credited in place, anything else goes through
+ * the transaction.
+ **/
+public class DepositHandler implements Handler{
+  /**
+   * handle()
+   *
+   * Handles a deposit request.
+   *
+   * @param request The typed request.
+   * @param ledger The open ledger.
+   * @return The reply to be sent back to the client.
+   **/
+  @Override
+  public JSONObject handle(Request request, Ledger ledger){
+    long credited = ledger.credit(request.getAccount(), request.getAmount());
+    if(credited != Long.MIN_VALUE){
+      JSONObject reply = Reply.ok();
+      reply.put("balance", credited);
+      return reply;
+    }
+    /* A new account, or one the amount would overflow */
+    Long balance = ledger.balance(request.getAccount());
+    long current = balance == null ? 0 : balance.longValue();
+    /* Refuse anything that would overflow */
+    if(current > Long.MAX_VALUE - request.getAmount()){
+      return Reply.error("amount too large");
+    }
+    long total = current + request.getAmount();
+    ledger.set(request.getAccount(), total);
+    JSONObject reply = Reply.ok();
+    reply.put("balance", total);
+    return reply;
+  }
+}
@@ -0,0 +1,24 @@
+package netizens.bank.server.router;
+
+import netizens.bank.server.router.Ledger;
+import netizens.bank.server.router.Request;
+import org.json.JSONObject;
+
+/**
+ * Handler.java
+ *
+ * Handles a single type of request.
+ **/
+public interface Handler{
+  /**
+   * handle()
+   *
+   * Handles a request, this may be called on any thread.
+   *
+   * @param request The typed request.
+   * @param ledger The open ledger to read and change accounts with, NULL
+   * for a request that is not for an account.
+   * @return The reply to be sent back to the client.
+   **/
+  public JSONObject handle(Request request, Ledger ledger);
+}
@@ -0,0 +1,455 @@
+package netizens.bank.server.router;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import netizens.bank.server.router.Posting;
+import netizens.bank.server.router.PostingCodec;
+import netizens.bank.utils.Clock;
+import netizens.bank.utils.Debug;
+import netizens.bank.utils.Database;
+import netizens.bank.utils.Transaction;
+import netizens.bank.utils.database.Codecs;
+import netizens.bank.utils.database.Indexer;
+import netizens.bank.utils.database.Recorder;
+import netizens.bank.utils.database.Tuple;
+
+/**
+ * Ledger.java
+ *
+ * Gives handlers access to account balances. A ledger is opened for each
+ * request and closed once the reply has been created, changes are only
+ * saved if something was changed. Every ledger works on the one shared
+ * database, so any number may be open at once.
+ * Each request runs in a transaction: balances are read without locking
+ * and sets are kept back until commit(), which fails if another request
+ * changed an account read in between. The request is then run again
+ * after retry(), so requests only wait for each other while changes are
+ * saved, or once one has collided over the same accounts a few times.
+ * Every balance set is also recorded as a posting, kept in the same
+ * database under the negative of its number as account numbers are never
+ * negative. A commit saves the balances and their postings in one change,
+ * so neither is ever kept without the other, and postings are indexed by
+ * account and time so that a statement only reads the postings it lists.
+ * A deposit or withdrawal from an account that exists doesn't need a
+ * transaction: credit() and debit() change the balance in place straight
+ * away with its posting, only locking the account while they do. They
+ * refuse, so the handler falls back to the transaction, while the ledger
+ * is read only or once the transaction has locked its accounts after
+ * colliding, as taking another lock then could deadlock.
+ * A server following a primary is read only until it is promoted, the
+ * balances and postings only change as the primary ships them. A server
+ * that fails to save a change is read only until it is restarted, as the
+ * changes made in memory could no longer be made to last.
+ **/
+public class Ledger{
+  private static final String STATEMENT = "statement";
+  private static final String OLD_POSTINGS = "postings";
+  private static volatile Database<Long, Object> shared;
+  private static AtomicLong sequence;
+  private static volatile boolean readOnly;
+  private static volatile boolean failed;
+  private Database<Long, Object> accounts;
+  private Transaction<Long, Object> transaction;
+  private List<Posting> pending;
+  private boolean changed;
+  private InPlace inPlace;
+
+  /**
+   * Ledger()
+   *
+   * Wraps the shared database of account balances and postings.
+   *
+   * @param accounts The opened database.
+   **/
+  private Ledger(Database<Long, Object> accounts){
+    this.accounts = accounts;
+    pending = new ArrayList<Posting>();
+    changed = false;
+    inPlace = new InPlace();
+  }
+
+  /**
+   * InPlace
+   *
+   * Makes the posting for a balance changed in place. A ledger is only used
+   * by one request at a time, so the same one is filled in for every change
+   * rather than made for each.
+   **/
+  private static class InPlace implements Recorder<Object>{
+    long account;
+    long time;
+    long amount;
+
+    @Override
+    public Object record(long balance){
+      return new Posting(account, time, amount, balance, -1);
+    }
+  }
+
+  /**
+   * open()
+   *
+   * Opens the ledger, the database is only loaded the first time.
+   *
+   * @return The opened ledger, otherwise NULL if the database failed to open.
+   **/
+  public static Ledger open(){
+    Database<Long, Object> accounts = database();
+    if(accounts == null){
+      return null;
+    }
+    return new Ledger(accounts);
+  }
+
+  /**
+   * database()
+   *
+   * Opens the shared database and builds the statement index, this is only
+   * done once. Postings kept in a database of their own by older versions
+   * are moved in first. Postings are numbered in the order they are made,
+   * carrying on from the highest number stored.
+   *
+   * @return The opened database, otherwise NULL if it failed to open.
+   **/
+  static synchronized Database<Long, Object> database(){
+    if(shared != null){
+      return shared;
+    }
+    Codecs.register(new PostingCodec());
+    final Database<Long, Object> accounts = Database.shared();
+    if(accounts == null || !moveOldPostings(accounts)){
+      return null;
+    }
+    accounts.index(STATEMENT, new Indexer<Long, Object>(){
+      @Override
+      public Tuple key(Long key, Object value){
+        if(!(value instanceof Posting)){
+          return null;
+        }
+        Posting posting = (Posting) value;
+        // by number within the same time, the key sorts them backwards
+        return Tuple.of(posting.getAccount(), posting.getTime(), -key);
+      }
+    });
+    sequence = new AtomicLong(lastPosting(accounts));
+    shared = accounts;
+    return shared;
+  }
+
+  /**
+   * moveOldPostings()
+   *
+   * Moves the postings an older version kept in the "postings" database
+   * into the shared one, deleting the old files once they are saved. If
+   * the server stops in between they are moved again on the next start.
+   *
+   * @param accounts The shared database.
+   * @return False if the old postings could not be read or saved.
+   **/
+  private static boolean moveOldPostings(final Database<Long, Object> accounts){
+    final int[] moved = new int[1];
+    boolean read = Database.drain(OLD_POSTINGS, new BiConsumer<Long, Posting>(){
+      @Override
+      public void accept(Long id, Posting posting){
+        accounts.put(-id, posting);
+        moved[0]++;
+      }
+    });
+    if(!read || (moved[0] > 0 && !accounts.flush()) || !Database.drop(OLD_POSTINGS)){
+      System.err.println("Error moving the postings database into the accounts");
+      return false;
+    }
+    if(moved[0] > 0){
+      Debug.println("Moved " + moved[0] + " postings into the accounts");
+    }
+    return true;
+  }
+
+  /**
+   * lastPosting()
+   *
+   * Finds the highest posting number stored.
+   *
+   * @param accounts The shared database.
+   * @return The highest number, zero if there are no postings.
+   **/
+  private static long lastPosting(Database<Long, Object> accounts){
+    final long[] last = new long[1];
+    accounts.forEach(new BiConsumer<Long, Object>(){
+      @Override
+      public void accept(Long key, Object value){
+        if(value instanceof Posting){
+          last[0] = Math.max(last[0], -key);
+        }
+      }
+    });
+    return last[0];
+  }
+
+  /**
+   * replicate()
+   *
+   * Opens the databases at start up when they are replicated, so that a
+   * follower connecting straight away copies all of them, then starts
+   * shipping or following as set in database.json. A follower is read only.
+   *
+   * @return False if the databases failed to open or replication could not
+   * be started.
+   **/
+  public static boolean replicate(){
+    if(!Database.isReplicated()){
+      return true;
+    }
+    if(open() == null || !Database.replicate()){
+      return false;
+    }
+    readOnly = Database.getFollower() != null;
+    return true;
+  }
+
+  /**
+   * promote()
+   *
+   * Stops following the primary and starts accepting changes, numbering
+   * postings on from the highest one copied.
+   *
+   * @return False if this server was not following.
+   **/
+  public static synchronized boolean promote(){
+    if(!Database.promote()){
+      return false;
+    }
+    sequence.set(lastPosting(shared));
+    readOnly = false;
+    return true;
+  }
+
+  /**
+   * isReadOnly()
+   *
+   * Checks whether requests may change balances.
+   *
+   * @return True while following a primary, or once saving has failed.
+   **/
+  public static boolean isReadOnly(){
+    return readOnly || failed;
+  }
+
+  /**
+   * begin()
+   *
+   * Starts the transaction for a request, must be matched by end().
+   **/
+  public void begin(){
+    transaction = accounts.begin();
+    pending.clear();
+  }
+
+  /**
+   * commit()
+   *
+   * Saves the balances set since begin() together with their postings,
+   * as one change, as long as no account read has been changed by another
+   * request. Postings are numbered here, a number taken by a commit that
+   * fails is not used again.
+   *
+   * @return False if an account read was changed, nothing is saved and
+   * retry() must be called before running the request again.
+   **/
+  public boolean commit(){
+    for(Posting posting : pending){
+      transaction.put(-sequence.incrementAndGet(), posting);
+    }
+    if(!transaction.commit()){
+      return false;
+    }
+    changed |= !pending.isEmpty();
+    pending.clear();
+    return true;
+  }
+
+  /**
+   * retry()
+   *
+   * Forgets the balances read and set after a failed commit().
+   **/
+  public void retry(){
+    transaction.retry();
+    pending.clear();
+  }
+
+  /**
+   * isPending()
+   *
+   * Checks whether balances have been set that commit() has yet to save.
+   *
+   * @return True if there are.
+   **/
+  public boolean isPending(){
+    return !pending.isEmpty();
+  }
+
+  /**
+   * getTries()
+   *
+   * Gets the number of times the request has been run since begin().
+   *
+   * @return The number of tries, one until retry() is called.
+   **/
+  public int getTries(){
+    return transaction.getTries();
+  }
+
+  /**
+   * end()
+   *
+   * Finishes the transaction started by begin(), whether or not it was
+   * committed.
+   **/
+  public void end(){
+    transaction.end();
+    transaction = null;
+    pending.clear();
+  }
+
+  /**
+   * balance()
+   *
+   * Gets the balance of an account.
+   *
+   * @param account The account number.
+   * @return The balance in minor units, otherwise NULL if the account does
+   * not exist.
+   **/
+  public Long balance(long account){
+    return (Long) transaction.get(account);
+  }
+
+  /**
+   * set()
+   *
+   * Sets the balance of an account, creating it if needed.
+   *
+   * @param account The account number.
+   * @param balance The new balance in minor units.
+   **/
+  public void set(long account, long balance){
+    set(account, balance, -1);
+  }
+
+  /**
+   * set()
+   *
+   * Sets the balance of an account, creating it if needed, and records the
+   * change as a posting. Both are saved by commit().
+   *
+   * @param account The account number.
+   * @param balance The new balance in minor units.
+   * @param other The account the money came from or went to, -1 if none.
+   **/
+  public void set(long account, long balance, long other){
+    Long old = balance(account);
+    long amount = balance - (old == null ? 0 : old.longValue());
+    transaction.put(account, balance);
+    pending.add(new Posting(account, Clock.getTime(), amount, balance, other));
+  }
+
+  /**
+   * credit()
+   *
+   * Adds to the balance of an account that exists straight away, rather
+   * than at commit(), and records the posting in the same change.
+   *
+   * @param account The account number.
+   * @param amount The amount in minor units.
+   * @return The new balance, otherwise Long.MIN_VALUE if the account does
+   * not exist, it would overflow or the change was refused, and nothing is
+   * changed.
+   **/
+  public long credit(long account, long amount){
+    return add(account, amount, Long.MIN_VALUE + 1);
+  }
+
+  /**
+   * debit()
+   *
+   * Takes from the balance of an account straight away, rather than at
+   * commit(), as long as there is enough in it, and records the posting in
+   * the same change.
+   *
+   * @param account The account number.
+   * @param amount The amount in minor units.
+   * @return The new balance, otherwise Long.MIN_VALUE if the account does
+   * not exist, there is not enough in it or the change was refused, and
+   * nothing is changed.
+   **/
+  public long debit(long account, long amount){
+    return add(account, -amount, 0);
+  }
+
+  /**
+   * add()
+   *
+   * Adds an amount to a balance in place, numbering its posting.
+   *
+   * @param account The account number.
+   * @param amount The amount in minor units, negative to take away.
+   * @param floor The lowest the balance may become.
+   * @return The new balance, otherwise Long.MIN_VALUE.
+   **/
+  private long add(long account, long amount, long floor){
+    /* Nothing may change in place that the transaction couldn't change */
+    if(isReadOnly() || (transaction != null && transaction.isLocked())){
+      return Long.MIN_VALUE;
+    }
+    inPlace.account = account;
+    inPlace.time = Clock.getTime();
+    inPlace.amount = amount;
+    long balance = accounts.add(account, amount, floor, -sequence.incrementAndGet(), inPlace);
+    changed |= balance != Long.MIN_VALUE;
+    return balance;
+  }
+
+
+  /**
+   * statement()
+   *
+   * Gets the most recent postings of an account, only reading as many as
+   * are asked for.
+   *
+   * @param account The account number.
+   * @param count The most postings to get.
+   * @return The postings, newest first.
+   **/
+  public List<Posting> statement(long account, int count){
+    List<Posting> list = new ArrayList<Posting>();
+    Iterator<Map.Entry<Long, Object>> newest = accounts.prefix(STATEMENT, Tuple.of(account), true);
+    while(list.size() < count && newest.hasNext()){
+      list.add((Posting) newest.next().getValue());
+    }
+    return list;
+  }
+
+  /**
+   * close()
+   *
+   * Saves any changes and closes the ledger, it must not be used afterwards.
+   *
+   * @return False if the changes could not be saved.
+   **/
+  public boolean close(){
+    if(!changed){
+      return true;
+    }
+    boolean saved = accounts.flush();
+    if(!saved && !failed){
+      failed = true;
+      System.err.println("Error saving to the database, no more changes are taken until restarted");
+    }
+    return saved;
+  }
+}
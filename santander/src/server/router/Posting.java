@@ -0,0 +1,80 @@
+package netizens.bank.server.router;
+
+/**
+ * Posting.java
+ *
+ * A change to the balance of an account, recorded every time a balance is
+ * set so that recent transactions can be listed in a statement. Amounts are
+ * in minor units, negative when money leaves the account.
+ **/
+public class Posting{
+  private long account;
+  private long time;
+  private long amount;
+  private long balance;
+  private long other;
+
+  /**
+   * Posting()
+   *
+   * Creates a posting.
+   *
+   * @param account The account changed.
+   * @param time The time of the change in milliseconds.
+   * @param amount The change in minor units.
+   * @param balance The balance after the change.
+   * @param other The account money came from or went to, -1 if none.
+   **/
+  public Posting(long account, long time, long amount, long balance, long other){
+    this.account = account;
+    this.time = time;
+    this.amount = amount;
+    this.balance = balance;
+    this.other = other;
+  }
+
+  /**
+   * getAccount()
+   *
+   * @return The account changed.
+   **/
+  public long getAccount(){
+    return account;
+  }
+
+  /**
+   * getTime()
+   *
+   * @return The time of the change in milliseconds.
+   **/
+  public long getTime(){
+    return time;
+  }
+
+  /**
+   * getAmount()
+   *
+   * @return The change in minor units.
+   **/
+  public long getAmount(){
+    return amount;
+  }
+
+  /**
+   * getBalance()
+   *
+   * @return The balance after the change.
+   **/
+  public long getBalance(){
+    return balance;
+  }
+
+  /**
+   * getOther()
+   *
+   * @return The account money came from or went to, -1 if none.
+   **/
+  public long getOther(){
+    return other;
+  }
+}
@@ -0,0 +1,75 @@
+package netizens.bank.server.router;
+
+import java.nio.ByteBuffer;
+import netizens.bank.server.router.Posting;
+import netizens.bank.utils.database.Codec;
+
+/**
+ * PostingCodec.java
+ *
+ * Stores a posting as its five numbers, eight bytes each.
+ **/
+public class PostingCodec implements Codec<Posting>{
+  public static final byte TAG = 5;
+
+  /**
+   * tag()
+   *
+   * @return The tag written before every posting.
+   **/
+  @Override
+  public byte tag(){
+    return TAG;
+  }
+
+  /**
+   * type()
+   *
+   * @return The posting class.
+   **/
+  @Override
+  public Class<Posting> type(){
+    return Posting.class;
+  }
+
+  /**
+   * size()
+   *
+   * @param value The posting.
+   * @return The number of bytes written for a posting.
+   **/
+  @Override
+  public int size(Posting value){
+    return 40;
+  }
+
+  /**
+   * write()
+   *
+   * Writes a posting.
+   *
+   * @param out The buffer being filled.
+   * @param value The posting.
+   **/
+  @Override
+  public void write(ByteBuffer out, Posting value){
+    out.putLong(value.getAccount());
+    out.putLong(value.getTime());
+    out.putLong(value.getAmount());
+    out.putLong(value.getBalance());
+    out.putLong(value.getOther());
+  }
+
+  /**
+   * read()
+   *
+   * Reads a posting.
+   *
+   * @param in The buffer holding the posting.
+   * @return The posting.
+   **/
+  @Override
+  public Posting read(ByteBuffer in){
+    return new Posting(in.getLong(), in.getLong(), in.getLong(), in.getLong(), in.getLong());
+  }
+}
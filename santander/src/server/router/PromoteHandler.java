@@ -0,0 +1,57 @@
+package netizens.bank.server.router;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import netizens.bank.server.router.Handler;
+import netizens.bank.server.router.Ledger;
+import netizens.bank.server.router.Reply;
+import netizens.bank.server.router.Request;
+import org.json.JSONObject;
+
+/**
+ * PromoteHandler.java
+ *
+ * Turns a follower into a primary that accepts changes. Only an operator
+ * may do this, the request must carry the operator secret from
+ * server.json, and with no secret set no request may.
+ **/
+public class PromoteHandler implements Handler{
+  private Handler replication;
+  private byte[] operator;
+
+  /**
+   * PromoteHandler()
+   *
+   * Creates the handler.
+   *
+   * @param replication The handler that replies with the state of
+   * replication once promoted.
+   * @param operator The operator secret, empty to refuse every request.
+   **/
+  public PromoteHandler(Handler replication, String operator){
+    this.replication = replication;
+    this.operator = operator.getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * handle()
+   *
+   * Handles a promote request.
+   *
+   * @param request The typed request.
+   * @param ledger Not used, NULL.
+   * @return The reply to be sent back to the client.
+   **/
+  @Override
+  public JSONObject handle(Request request, Ledger ledger){
+    /* Compared in constant time, so the secret can't be guessed a byte at a time */
+    byte[] given = request.getSecret().getBytes(StandardCharsets.UTF_8);
+    if(operator.length == 0 || !MessageDigest.isEqual(operator, given)){
+      return Reply.error("forbidden");
+    }
+    if(!Ledger.promote()){
+      return Reply.error("not following");
+    }
+    return replication.handle(request, ledger);
+  }
+}
@@ -0,0 +1,50 @@
+package netizens.bank.server.router;
+
+import netizens.bank.server.router.Handler;
+import netizens.bank.server.router.Ledger;
+import netizens.bank.server.router.Reply;
+import netizens.bank.server.router.Request;
+import netizens.bank.utils.Database;
+import netizens.bank.utils.Follower;
+import netizens.bank.utils.database.LogShipper;
+import org.json.JSONObject;
+
+/**
+ * ReplicationHandler.java
+ *
+ * Replies with how far behind the followers of this primary, or this
+ * follower, are.
+ **/
+public class ReplicationHandler implements Handler{
+  /**
+   * handle()
+   *
+   * Handles a replication request. A primary gives the number of the last
+   * change shipped, its followers and the most changes waiting to be sent to
+   * one. A follower gives the last change applied, whether the first copy is
+   * done and its lag behind the primary in milliseconds.
+   *
+   * @param request The typed request.
+   * @param ledger Not used, NULL.
+   * @return The reply to be sent back to the client.
+   **/
+  @Override
+  public JSONObject handle(Request request, Ledger ledger){
+    JSONObject reply = Reply.ok();
+    LogShipper shipper = Database.getShipper();
+    Follower follower = Database.getFollower();
+    reply.put("role", follower != null ? "follower" : shipper != null ? "primary" : "none");
+    if(shipper != null){
+      reply.put("shipped", shipper.getSequence());
+      reply.put("followers", shipper.getFollowers());
+      reply.put("behind", shipper.getBehind());
+    }
+    if(follower != null){
+      reply.put("applied", follower.getSequence());
+      reply.put("connected", follower.isConnected());
+      reply.put("copied", follower.isCopied());
+      reply.put("lag", follower.getLag());
+    }
+    return reply;
+  }
+}
@@ -0,0 +1,38 @@
+package netizens.bank.server.router;
+
+import org.json.JSONObject;
+
+/**
+ * Reply.java
+ *
+ * Creates the replies sent back to the client.
+ **/
+public class Reply{
+  /**
+   * ok()
+   *
+   * Creates a successful reply, values may be added by the caller.
+   *
+   * @return The reply.
+   **/
+  public static JSONObject ok(){
+    JSONObject reply = new JSONObject();
+    reply.put("status", "ok");
+    return reply;
+  }
+
+  /**
+   * error()
+   *
+   * Creates an error reply.
+   *
+   * @param reason A short reason for the error.
+   * @return The error reply.
+   **/
+  public static JSONObject error(String reason){
+    JSONObject reply = new JSONObject();
+    reply.put("status", "error");
+    reply.put("reason", reason);
+    return reply;
+  }
+}
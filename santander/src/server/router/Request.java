@@ -0,0 +1,151 @@
+package netizens.bank.server.router;
+
+import netizens.bank.server.router.RequestType;
+import org.json.JSONObject;
+
+/**
+ * Request.java
+ *
+ * A request parsed once from its JSON into typed values, so that handlers
+ * never have to look at the JSON themselves. Amounts are always in minor
+ * units, for example pence.
+ **/
+public class Request{
+  private RequestType type;
+  private long account;
+  private long amount;
+  private long target;
+  private int count;
+  private String secret;
+
+  /**
+   * Request()
+   *
+   * Creates a typed request.
+   *
+   * @param type The type of the request.
+   * @param account The account the request is for.
+   * @param amount The amount in minor units, zero if not used.
+   * @param target The account money is moved to, zero if not used.
+   * @param count The number of items asked for, zero if not used.
+   **/
+  public Request(RequestType type, long account, long amount, long target, int count){
+    this(type, account, amount, target, count, "");
+  }
+
+  /**
+   * Request()
+   *
+   * Creates a typed request that carries a secret.
+   *
+   * @param type The type of the request.
+   * @param account The account the request is for.
+   * @param amount The amount in minor units, zero if not used.
+   * @param target The account money is moved to, zero if not used.
+   * @param count The number of items asked for, zero if not used.
+   * @param secret The secret given to allow the request, empty if none.
+   **/
+  public Request(RequestType type, long account, long amount, long target, int count, String secret){
+    this.type = type;
+    this.account = account;
+    this.amount = amount;
+    this.target = target;
+    this.count = count;
+    this.secret = secret;
+  }
+
+  /**
+   * parse()
+   *
+   * Parses a JSON request, checking that the values make sense for its type.
+   *
+   * @param jObj The JSON request.
+   * @return The typed request, otherwise NULL if it is not valid.
+   **/
+  public static Request parse(JSONObject jObj){
+    RequestType type = RequestType.find(jObj.optString("type", null));
+    long account = jObj.optLong("account", -1);
+    long amount = jObj.optLong("amount", 0);
+    long target = jObj.optLong("to", -1);
+    int count = jObj.optInt("count", 10);
+    /* Every request needs a type, and an account unless it is about the server */
+    if(type == null || (type.hasAccount() && account < 0)){
+      return null;
+    }
+    switch(type){
+      case WITHDRAW :
+      case DEPOSIT :
+        if(amount <= 0){
+          return null;
+        }
+        break;
+      case TRANSFER :
+        if(amount <= 0 || target < 0 || target == account){
+          return null;
+        }
+        break;
+      case STATEMENT :
+        if(count <= 0){
+          return null;
+        }
+        break;
+      default :
+        break;
+    }
+    return new Request(type, account, amount, target, count, jObj.optString("secret", ""));
+  }
+
+  /**
+   * getType()
+   *
+   * @return The type of the request.
+   **/
+  public RequestType getType(){
+    return type;
+  }
+
+  /**
+   * getAccount()
+   *
+   * @return The account the request is for.
+   **/
+  public long getAccount(){
+    return account;
+  }
+
+  /**
+   * getAmount()
+   *
+   * @return The amount in minor units.
+   **/
+  public long getAmount(){
+    return amount;
+  }
+
+  /**
+   * getTarget()
+   *
+   * @return The account money is moved to.
+   **/
+  public long getTarget(){
+    return target;
+  }
+
+  /**
+   * getCount()
+   *
+   * @return The number of items asked for.
+   **/
+  public int getCount(){
+    return count;
+  }
+
+  /**
+   * getSecret()
+   *
+   * @return The secret given to allow the request, empty if none.
+   **/
+  public String getSecret(){
+    return secret;
+  }
+}
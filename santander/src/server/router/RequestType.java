@@ -0,0 +1,83 @@
+package netizens.bank.server.router;
+
+import java.util.HashMap;
+
+/**
+ * RequestType.java
+ *
+ * This enumerator declares the types of request the server understands, the
+ * ordinal of each type is its index in the router's dispatch table. Types
+ * that change balances are refused by a server following a primary. Types
+ * that are about the server rather than an account run without a ledger.
+ **/
+public enum RequestType{
+  BALANCE(false, true), WITHDRAW(true, true), DEPOSIT(true, true), TRANSFER(true, true), STATEMENT(false, true),
+  REPLICATION(false, false), PROMOTE(false, false), CACHE(false, false);
+
+  private static HashMap<String, RequestType> names = createNames();
+  private final boolean write;
+  private final boolean account;
+
+  /**
+   * RequestType()
+   *
+   * Declares a type of request.
+   *
+   * @param write True if the request changes balances.
+   * @param account True if the request is for an account.
+   **/
+  private RequestType(boolean write, boolean account){
+    this.write = write;
+    this.account = account;
+  }
+
+  /**
+   * isWrite()
+   *
+   * Checks whether requests of this type change balances.
+   *
+   * @return True if they do.
+   **/
+  public boolean isWrite(){
+    return write;
+  }
+
+  /**
+   * hasAccount()
+   *
+   * Checks whether requests of this type are for an account, and so are run
+   * against the ledger.
+   *
+   * @return True if they are.
+   **/
+  public boolean hasAccount(){
+    return account;
+  }
+
+  /**
+   * find()
+   *
+   * Finds the type for the name given in a request.
+   *
+   * @param name The lower case name of the type.
+   * @return The type, otherwise NULL.
+   **/
+  public static RequestType find(String name){
+    return name == null ? null : names.get(name);
+  }
+
+  /**
+   * createNames()
+   *
+   * Creates the lookup of request names, this is only done once.
+   *
+   * @return The lookup of lower case names to types.
+   **/
+  private static HashMap<String, RequestType> createNames(){
+    HashMap<String, RequestType> map = new HashMap<String, RequestType>();
+    for(RequestType type : values()){
+      map.put(type.name().toLowerCase(), type);
+    }
+    return map;
+  }
+}
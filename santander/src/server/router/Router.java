@@ -0,0 +1,230 @@
+package netizens.bank.server.router;
+
+import netizens.bank.server.router.BalanceHandler;
+import netizens.bank.server.router.CacheHandler;
+import netizens.bank.server.router.DepositHandler;
+import netizens.bank.server.router.Handler;
+import netizens.bank.server.router.Ledger;
+import netizens.bank.server.router.PromoteHandler;
+import netizens.bank.server.router.ReplicationHandler;
+import netizens.bank.server.router.Reply;
+import netizens.bank.server.router.Request;
+import netizens.bank.server.router.RequestType;
+import netizens.bank.server.router.StatementHandler;
+import netizens.bank.server.router.TransferHandler;
+import netizens.bank.server.router.WithdrawHandler;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Router.java
+ *
+ * Passes each request to the handler registered for its type. Handlers are
+ * held in a table indexed by the ordinal of the type, so finding the handler
+ * for a request never searches or allocates however many types there are.
+ * A batch request carries many operations which are all run before saving
+ * once. Requests about the server rather than an account, such as
+ * "replication", "promote" and "cache", have handlers in the same table and
+ * are run without opening a ledger.
+ **/
+public class Router{
+  private static final String BATCH = "batch";
+  private static final int MAX_TRIES = 8;
+  private static int maxBatch = 64;
+  private final Handler[] table;
+
+  /**
+   * Router()
+   *
+   * Creates a router with no handlers registered.
+   **/
+  public Router(){
+    table = new Handler[RequestType.values().length];
+  }
+
+  /**
+   * create()
+   *
+   * Creates a router with the handlers for every banking operation and
+   * server request registered, this should be done once at start up.
+   *
+   * @param operator The secret a promote request must carry, empty to refuse
+   * them all.
+   * @return The router.
+   **/
+  public static Router create(String operator){
+    Router router = new Router();
+    router.register(RequestType.BALANCE, new BalanceHandler());
+    router.register(RequestType.WITHDRAW, new WithdrawHandler());
+    router.register(RequestType.DEPOSIT, new DepositHandler());
+    router.register(RequestType.TRANSFER, new TransferHandler());
+    router.register(RequestType.STATEMENT, new StatementHandler());
+    Handler replication = new ReplicationHandler();
+    router.register(RequestType.REPLICATION, replication);
+    router.register(RequestType.PROMOTE, new PromoteHandler(replication, operator));
+    router.register(RequestType.CACHE, new CacheHandler());
+    return router;
+  }
+
+  /**
+   * register()
+   *
+   * Registers the handler for a type of request, replacing any handler
+   * already registered.
+   *
+   * @param type The type of request.
+   * @param handler The handler for the type.
+   **/
+  public void register(RequestType type, Handler handler){
+    table[type.ordinal()] = handler;
+  }
+
+  /**
+   * setMaxBatch()
+   *
+   * Sets the largest number of operations allowed in one batch.
+   *
+   * @param size The maximum number of operations.
+   **/
+  public static void setMaxBatch(int size){
+    maxBatch = Math.max(size, 1);
+  }
+
+  /**
+   * route()
+   *
+   * Parses a request and passes it to its handler.
+   *
+   * @param jObj The JSON request.
+   * @return The reply to be sent back to the client.
+   **/
+  public JSONObject route(JSONObject jObj){
+    /* A batch carries many requests */
+    if(BATCH.equals(jObj.optString("type"))){
+      return batch(jObj.optJSONArray("operations"));
+    }
+    Request request = Request.parse(jObj);
+    if(request == null){
+      return Reply.error("malformed");
+    }
+    if(!request.getType().hasAccount()){
+      return dispatch(request, null);
+    }
+    if(request.getType().isWrite() && Ledger.isReadOnly()){
+      return Reply.error("read only");
+    }
+    Ledger ledger = Ledger.open();
+    if(ledger == null){
+      return Reply.error("unavailable");
+    }
+    JSONObject reply = null;
+    try{
+      reply = dispatch(request, ledger);
+    }finally{
+      /* The change was made but may not last, so it must not be run again */
+      if(!ledger.close()){
+        reply = Reply.error("not saved");
+      }
+    }
+    return reply;
+  }
+
+  /**
+   * batch()
+   *
+   * Runs every operation in a batch against the same ledger, in order, so
+   * that all of the changes are saved together. Each operation succeeds or
+   * fails on its own and has its own result in the reply.
+   *
+   * @param operations The JSON requests in the batch.
+   * @return The reply holding a result for each operation.
+   **/
+  private JSONObject batch(JSONArray operations){
+    if(operations == null || operations.length() == 0){
+      return Reply.error("malformed");
+    }
+    if(operations.length() > maxBatch){
+      return Reply.error("batch too large");
+    }
+    /* Parse everything before touching the ledger */
+    Request[] requests = new Request[operations.length()];
+    for(int x = 0; x < requests.length; x++){
+      JSONObject jObj = operations.optJSONObject(x);
+      requests[x] = jObj != null ? Request.parse(jObj) : null;
+    }
+    Ledger ledger = Ledger.open();
+    if(ledger == null){
+      return Reply.error("unavailable");
+    }
+    JSONArray results = new JSONArray();
+    boolean saved = false;
+    try{
+      for(int x = 0; x < requests.length; x++){
+        if(requests[x] == null){
+          results.put(Reply.error("malformed"));
+        }else if(requests[x].getType().isWrite() && Ledger.isReadOnly()){
+          results.put(Reply.error("read only"));
+        }else{
+          results.put(dispatch(requests[x], ledger));
+        }
+      }
+    }finally{
+      /* One save for the whole batch */
+      saved = ledger.close();
+    }
+    if(!saved){
+      return Reply.error("not saved");
+    }
+    JSONObject reply = Reply.ok();
+    reply.put("results", results);
+    return reply;
+  }
+
+  /**
+   * dispatch()
+   *
+   * Passes a parsed request to its handler, running it again if another
+   * request changed the same accounts before it could be saved. A request
+   * that still can't be saved after MAX_TRIES tries is given up on as busy,
+   * with nothing saved.
+   *
+   * @param request The typed request.
+   * @param ledger The open ledger, NULL for a request not for an account.
+   * @return The reply for the request.
+   **/
+  private JSONObject dispatch(Request request, Ledger ledger){
+    Handler handler = table[request.getType().ordinal()];
+    if(handler == null){
+      return Reply.error("unsupported");
+    }
+    /* Requests about the server have nothing to commit */
+    if(!request.getType().hasAccount()){
+      return handler.handle(request, null);
+    }
+    /* Nothing is locked while the handler runs, the commit checks for conflicts */
+    ledger.begin();
+    try{
+      for(;;){
+        /* Saving may have failed since the request was let in */
+        if(request.getType().isWrite() && Ledger.isReadOnly()){
+          return Reply.error("read only");
+        }
+        JSONObject reply = handler.handle(request, ledger);
+        /* A change made in place has already happened and keeps its reply,
+         * one kept for the commit is dropped if saving failed meanwhile */
+        if(ledger.isPending() && Ledger.isReadOnly()){
+          return Reply.error("read only");
+        }
+        if(ledger.commit()){
+          return reply;
+        }
+        if(ledger.getTries() >= MAX_TRIES){
+          return Reply.error("busy");
+        }
+        ledger.retry();
+      }
+    }finally{
+      ledger.end();
+    }
+  }
+}
@@ -0,0 +1,50 @@
+package netizens.bank.server.router;
+
+import netizens.bank.server.router.Handler;
+import netizens.bank.server.router.Ledger;
+import netizens.bank.server.router.Posting;
+import netizens.bank.server.router.Reply;
+import netizens.bank.server.router.Request;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * StatementHandler.java
+ *
+ * Replies with the balance and most recent postings of an account.
+ **/
+public class StatementHandler implements Handler{
+  private static final int MAX_COUNT = 100;
+
+  /**
+   * handle()
+   *
+   * Handles a statement request, at most MAX_COUNT postings are listed.
+   *
+   * @param request The typed request.
+   * @param ledger The open ledger.
+   * @return The reply to be sent back to the client.
+   **/
+  @Override
+  public JSONObject handle(Request request, Ledger ledger){
+    Long balance = ledger.balance(request.getAccount());
+    if(balance == null){
+      return Reply.error("unknown account");
+    }
+    JSONArray postings = new JSONArray();
+    for(Posting posting : ledger.statement(request.getAccount(), Math.min(request.getCount(), MAX_COUNT))){
+      JSONObject item = new JSONObject();
+      item.put("time", posting.getTime());
+      item.put("amount", posting.getAmount());
+      item.put("balance", posting.getBalance());
+      if(posting.getOther() >= 0){
+        item.put("other", posting.getOther());
+      }
+      postings.put(item);
+    }
+    JSONObject reply = Reply.ok();
+    reply.put("balance", balance.longValue());
+    reply.put("postings", postings);
+    return reply;
+  }
+}
@@ -0,0 +1,44 @@
+package netizens.bank.server.router;
+
+import netizens.bank.server.router.Handler;
+import netizens.bank.server.router.Ledger;
+import netizens.bank.server.router.Reply;
+import netizens.bank.server.router.Request;
+import org.json.JSONObject;
+
+/**
+ * TransferHandler.java
+ *
+ * Moves money from one account to another existing account.
+ **/
+public class TransferHandler implements Handler{
+  /**
+   * handle()
+   *
+   * Handles a transfer request.
+   *
+   * @param request The typed request.
+   * @param ledger The open ledger.
+   * @return The reply to be sent back to the client.
+   **/
+  @Override
+  public JSONObject handle(Request request, Ledger ledger){
+    Long from = ledger.balance(request.getAccount());
+    Long to = ledger.balance(request.getTarget());
+    if(from == null || to == null){
+      return Reply.error("unknown account");
+    }
+    if(from.longValue() < request.getAmount()){
+      return Reply.error("insufficient funds");
+    }
+    if(to.longValue() > Long.MAX_VALUE - request.getAmount()){
+      return Reply.error("amount too large");
+    }
+    long remaining = from.longValue() - request.getAmount();
+    ledger.set(request.getAccount(), remaining, request.getTarget());
+    ledger.set(request.getTarget(), to.longValue() + request.getAmount(), request.getAccount());
+    JSONObject reply = Reply.ok();
+    reply.put("balance", remaining);
+    return reply;
+  }
+}
@@ -0,0 +1,46 @@
+package netizens.bank.server.router;
+
+import netizens.bank.server.router.Handler;
+import netizens.bank.server.router.Ledger;
+import netizens.bank.server.router.Reply;
+import netizens.bank.server.router.Request;
+import org.json.JSONObject;
+
+/**
+ * WithdrawHandler.java
+ *
+ * Takes money out of an account if there is enough in it. The account is
+ * debited in place, otherwise the transaction finds out why it couldn't be.
+ **/
+public class WithdrawHandler implements Handler{
+  /**
+   * handle()
+   *
+   * Handles a withdraw request.
+   *
+   * @param request The typed request.
+   * @param ledger The open ledger.
+   * @return The reply to be sent back to the client.
+   **/
+  @Override
+  public JSONObject handle(Request request, Ledger ledger){
+    long debited = ledger.debit(request.getAccount(), request.getAmount());
+    if(debited != Long.MIN_VALUE){
+      JSONObject reply = Reply.ok();
+      reply.put("balance", debited);
+      return reply;
+    }
+    Long balance = ledger.balance(request.getAccount());
+    if(balance == null){
+      return Reply.error("unknown account");
+    }
+    if(balance.longValue() < request.getAmount()){
+      return Reply.error("insufficient funds");
+    }
+    long remaining = balance.longValue() - request.getAmount();
+    ledger.set(request.getAccount(), remaining);
+    JSONObject reply = Reply.ok();
+    reply.put("balance", remaining);
+    return reply;
+  }
+}
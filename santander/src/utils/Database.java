@@ -1,7 +1,28 @@
 package netizens.bank.utils;
 
-import java.io.*;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import netizens.bank.utils.database.BloomStorage;
+import netizens.bank.utils.database.CachedStorage;
+import netizens.bank.utils.database.Index;
+import netizens.bank.utils.database.Indexer;
+import netizens.bank.utils.database.LogShipper;
+import netizens.bank.utils.database.LogStorage;
+import netizens.bank.utils.database.MappedStorage;
+import netizens.bank.utils.database.Recorder;
+import netizens.bank.utils.database.Scan;
+import netizens.bank.utils.database.SerialStorage;
+import netizens.bank.utils.database.ShardedStorage;
+import netizens.bank.utils.database.ShippingStorage;
+import netizens.bank.utils.database.Storage;
+import netizens.bank.utils.database.Tuple;
 import org.json.JSONObject;
 import org.json.JSONTokener;
 
@@ -9,10 +30,54 @@ import org.json.JSONTokener;
  * Database.java
  *
  * Stores data in the form "key:value"
- * The data is written to a file on close, and read from the file on open
+ * The data is read from the file on open, and saved to the file
  * In essence, this is a fancy wrapper of the HashMap class,
  * making it simple to read and write to a file
  * <br/>
+ * How the data is saved depends on the "engine" in database.json:
+ * "serial" writes the whole map to the file on close,
+ * "log" appends every put to a log as it is made (see LogStorage),
+ * syncing it to disk once per batch of puts unless "sync" is "false",
+ * with checkpoints written in the background at up to "checkpointrate" KB a second,
+ * the log split into segments of "segment" KB that are replayed in parallel on open,
+ * "mapped" keeps the data off the heap in memory mapped files (see MappedStorage).
+ * A "compression" of 1 to 9 compresses the files "serial" and "log" save
+ * the whole map to with Deflater at that level, in pages (see Snapshot).
+ * "shards" of more than one splits the keys over that many engines, each
+ * with its own files, saved at the same time (see ShardedStorage).
+ * A "cache" of more than zero keeps that many of the most used values on
+ * the heap in front of the engine (see CachedStorage).
+ * A "bloom" of more than zero keeps a filter of every key with that many
+ * bits for each, so gets for keys never put don't reach the engine (see BloomStorage)
+ * <br/>
+ * A "replicate" port makes this the primary, shipping every change the
+ * shared databases save to followers that connect on it at
+ * "replicateaddress", the loopback unless set (see LogShipper).
+ * "follow" set to the "host:port" of a primary makes this a follower,
+ * applying the changes it ships (see Follower). Both sides must be given
+ * the same "replicatesecret". Both start with replicate()
+ * <br/>
+ * The whole program shares one database, loaded the first time it is
+ * asked for and closed when the program exits. It may be used from
+ * any number of threads, get and put never need a lock of their own.
+ * Reading a value and writing back a new one based on it must hold
+ * the lock for that key, keys are spread over a fixed set of locks
+ * so callers working on different keys rarely wait for each other
+ * <br/>
+ * Changes to several keys can instead be made in a transaction from
+ * begin(), which takes no locks while it runs. Every lock has a version
+ * that goes up with each put to its keys, a transaction remembers the
+ * version of each key it reads and buffers its puts. commit() locks the
+ * keys written, checks nothing read has changed since and puts everything
+ * at once, otherwise nothing is put and the transaction is retried
+ * (see Transaction). A single number, such as a balance, can instead be
+ * added to in place with add(), which saves a value such as its posting
+ * in the same change
+ * <br/>
+ * Values can also be found in order through secondary indexes, declared
+ * with index() and kept up to date by every put. scan() and prefix() walk
+ * part of an index, reading each value only when it is reached
+ * <br/>
  * Example usage:
  * <pre>
  * 
@@ -20,27 +85,80 @@ import org.json.JSONTokener;
  * Database.initialise(mainJSON);
  * 
  * // Any method in the program
- * Database<String, String> database = new Database();
- * database.open();
+ * Database<String, String> database = Database.shared();
  * ...
  * database.put("index 1", "random string to be stored");
  * ...
- * String index1 = database.get("index 1");
+ * database.lock("index 1");
+ * try{
+ *     String index1 = database.get("index 1");
+ *     database.put("index 1", index1 + " and more");
+ * }finally{
+ *     database.unlock("index 1");
+ * }
+ * ...
+ * // Once the changes should be saved
+ * database.flush();
  * ...
- * // End of method
- * database.close();
+ * // Several keys changed together
+ * Transaction<String, Long> transaction = database.begin();
+ * try{
+ *     for(;;){
+ *         Long from = transaction.get("from");
+ *         Long to = transaction.get("to");
+ *         transaction.put("from", from - 10);
+ *         transaction.put("to", to + 10);
+ *         if(transaction.commit()){
+ *             break;
+ *         }
+ *         transaction.retry();
+ *     }
+ * }finally{
+ *     transaction.end();
+ * }
+ * ...
+ * // Every value for one account, in time order
+ * database.index("time", new Indexer<String, Payment>(){
+ *     public Tuple key(String id, Payment payment){
+ *         return Tuple.of(payment.getAccount(), payment.getTime());
+ *     }
+ * });
+ * Iterator<Map.Entry<String, Payment>> payments = database.prefix("time", Tuple.of(account), false);
  * </pre>
  * 
- * @param <K> The type of key to use (must extend Serializable)
- * @param <V> The type of value to use (must extend Serializable)
+ * @param <K> The type of key to use (must have a codec, see Codecs)
+ * @param <V> The type of value to use (must have a codec, see Codecs)
  **/
-public class Database<K extends Serializable, V extends Serializable> {
+public class Database<K, V> {
 	
+	// nanoseconds a commit waits for someone else to let go of a lock it read from
+	private static final long READ_WAIT = 20000000;
+	// nanoseconds between looks at that lock
+	private static final long READ_WAIT_STEP = 50000;
+
 	private static String dbPath;
+	private static String engine = "serial";
+	private static int checkpoint = 10000;
+	private static int checkpointRate = 0;
+	private static int cache = 0;
+	private static int shards = 1;
+	private static int bloom = 0;
+	private static int compression = 0;
+	private static int replicate = 0;
+	private static String follow = "";
+	private static String replicateAddress = "";
+	private static String replicateSecret = "";
+	private static LogShipper shipper;
+	private static volatile Follower follower;
+	private static boolean sync = true;
+	private static int commitDelay = 0;
+	private static int commitBytes = 1 << 20;
+	private static int segment = 4096;
+	private static HashMap<String, Database<?, ?>> shared = new HashMap<>();
 
 	/**
-	 * gets the path given in database.json and stores
-	 * it on the Database class
+	 * gets the path and engine given in database.json and stores
+	 * them on the Database class
 	 *
 	 * @param mainJSON The main json tokener
 	 **/
@@ -54,11 +172,216 @@ public class Database<K extends Serializable, V extends Serializable> {
 		JSONObject databaseObj = (new JSONObject(JSON.getJSONTokener(databasePath))).getJSONObject("database");
 
 		dbPath = databaseObj.getString("path");
+		engine = databaseObj.optString("engine", "serial");
+		checkpoint = SafeParse.getInt(databaseObj.optString("checkpoint"), 10000);
+		checkpointRate = SafeParse.getInt(databaseObj.optString("checkpointrate"), 0);
+		cache = SafeParse.getInt(databaseObj.optString("cache"), 0);
+		shards = SafeParse.getInt(databaseObj.optString("shards"), 1);
+		bloom = SafeParse.getInt(databaseObj.optString("bloom"), 0);
+		compression = SafeParse.getInt(databaseObj.optString("compression"), 0);
+		sync = !"false".equals(databaseObj.optString("sync", "true"));
+		commitDelay = SafeParse.getInt(databaseObj.optString("commitdelay"), 0);
+		commitBytes = SafeParse.getInt(databaseObj.optString("commitbytes"), 1 << 20);
+		segment = SafeParse.getInt(databaseObj.optString("segment"), 4096);
+		replicate = SafeParse.getInt(databaseObj.optString("replicate"), 0);
+		follow = databaseObj.optString("follow", "");
+		replicateAddress = databaseObj.optString("replicateaddress", "127.0.0.1");
+		replicateSecret = databaseObj.optString("replicatesecret", "");
+		if(replicate > 0){
+			shipper = new LogShipper(replicateAddress, replicate, replicateSecret);
+		}
 
-		Debug.println("Database -> " + dbPath);
+		Debug.println("Database -> " + dbPath + " (" + engine + (shards > 1 ? ", " + shards + " shards" : "") + (cache > 0 ? ", cache " + cache : "") + (bloom > 0 ? ", bloom " + bloom : "") + ")");
 	}
 
-	private HashMap<K, V> database;
+	/**
+	 * Starts shipping changes to followers and following a primary, as
+	 * given in database.json. The shared databases should be opened
+	 * first so that followers that connect straight away copy them
+	 *
+	 * @return false if the port for followers could not be listened on, or
+	 * there is no secret to follow with
+	 **/
+	public static synchronized boolean replicate(){
+		if(shipper != null){
+			try{
+				shipper.start();
+			}catch(IOException e){
+				System.err.println("Error starting replication");
+				System.err.println(e);
+				return false;
+			}
+		}
+		if(!follow.isEmpty() && follower == null){
+			if(replicateSecret.isEmpty()){
+				System.err.println("Error starting replication, no secret to follow with");
+				return false;
+			}
+			follower = new Follower(follow, replicateSecret);
+			follower.start();
+		}
+		return true;
+	}
+
+	/**
+	 * Says whether database.json makes this a primary or a follower
+	 *
+	 * @return true if "replicate" or "follow" is set
+	 **/
+	public static boolean isReplicated(){
+		return shipper != null || !follow.isEmpty();
+	}
+
+	/**
+	 * Stops following the primary, once it returns the databases
+	 * only change through this program
+	 *
+	 * @return false if this was not following
+	 **/
+	public static synchronized boolean promote(){
+		if(follower == null){
+			return false;
+		}
+		follower.close();
+		follower = null;
+		return true;
+	}
+
+	/**
+	 * Gets the shipper sending changes to followers, for their number and how far behind they are
+	 *
+	 * @return the shipper, null if "replicate" is not set in database.json
+	 **/
+	public static LogShipper getShipper(){
+		return shipper;
+	}
+
+	/**
+	 * Gets the follower applying the changes of a primary, for how far behind it is
+	 *
+	 * @return the follower, null if this is not following
+	 **/
+	public static Follower getFollower(){
+		return follower;
+	}
+
+	/**
+	 * Gets the database shared by the whole program, opening it
+	 * the first time. It is closed when the program exits
+	 *
+	 * @return the open database, null if it could not be opened
+	 **/
+	public static <K, V> Database<K, V> shared(){
+		return shared(null);
+	}
+
+	/**
+	 * Gets a database shared by the whole program, kept next to the main
+	 * one with "." and the name added to its path, opening it the first
+	 * time. It uses the same engine and is closed when the program exits
+	 *
+	 * @param name The name of the database, null for the main one
+	 *
+	 * @return the open database, null if it could not be opened
+	 **/
+	@SuppressWarnings("unchecked")
+	public static synchronized <K, V> Database<K, V> shared(String name){
+		Database<?, ?> database = shared.get(name);
+		if(database == null){
+			final Database<K, V> opened = new Database<>(name == null ? dbPath : dbPath + "." + name);
+			if(shipper != null){
+				// the same name on every server, whatever the paths
+				opened.storage = new ShippingStorage<>(opened.storage, shipper, name == null ? "" : name);
+			}
+			if(!opened.open()){
+				return null;
+			}
+			// make sure everything is saved however the program ends
+			Runtime.getRuntime().addShutdownHook(new Thread("database-close"){
+				@Override
+				public void run(){
+					opened.close();
+				}
+			});
+			shared.put(name, opened);
+			database = opened;
+		}
+		return (Database<K, V>) database;
+	}
+
+	/**
+	 * Reads everything out of a database that used to be kept next to the
+	 * main one by name, for data that has since moved into another database.
+	 * It is opened on its own, so nothing read is shipped, and closed after.
+	 * The database it is moved into should be flushed before drop() is
+	 * called, if the program stops in between it is simply read again
+	 *
+	 * @param name The name the database was shared by
+	 * @param action The action to run on each key and value
+	 *
+	 * @return false if there was something kept but it could not be read,
+	 * or it is still shared
+	 **/
+	public static synchronized <K, V> boolean drain(String name, BiConsumer<? super K, ? super V> action){
+		if(shared.containsKey(name)){
+			return false;
+		}
+		if(files(name).length == 0){
+			return true;
+		}
+		Database<K, V> old = new Database<>(dbPath + "." + name);
+		if(!old.open()){
+			return false;
+		}
+		old.forEach(action);
+		return old.close();
+	}
+
+	/**
+	 * Deletes every file kept for a database by name, by any engine,
+	 * once drain() has moved what it held somewhere else
+	 *
+	 * @param name The name the database was shared by
+	 *
+	 * @return false if a file could not be deleted, or it is still shared
+	 **/
+	public static synchronized boolean drop(String name){
+		if(shared.containsKey(name)){
+			return false;
+		}
+		boolean dropped = true;
+		for(File file : files(name)){
+			dropped &= file.delete();
+		}
+		return dropped;
+	}
+
+	/**
+	 * Finds the files kept for a database by name, each starts with its path
+	 *
+	 * @param name The name of the database
+	 *
+	 * @return the files, none if nothing is kept
+	 **/
+	private static File[] files(String name){
+		File path = new File(dbPath + "." + name).getAbsoluteFile();
+		final String base = path.getName();
+		File[] files = path.getParentFile().listFiles(new FileFilter(){
+			@Override
+			public boolean accept(File file){
+				return file.isFile() && (file.getName().equals(base) || file.getName().startsWith(base + "."));
+			}
+		});
+		return files == null ? new File[0] : files;
+	}
+
+	private final String path;
+	private Storage<K, V> storage;
+	private BloomStorage<K, V> filter;
+	private CachedStorage<K, V> cached;
+	private final ReentrantLock[] stripes;
+	private final AtomicLongArray versions;
+	private final ConcurrentHashMap<String, Index<K, V>> indexes;
 
 	/**
 	 * Creates a new database object,
@@ -67,10 +390,46 @@ public class Database<K extends Serializable, V extends Serializable> {
 	 *
 	 * open() must be called first to load the database
 	 * close() must be called last to save the database
+	 * shared() should be used instead unless a private copy is needed
 	 * 
 	 **/
 	public Database(){
-		database = new HashMap<>();
+		this(dbPath);
+	}
+
+	/**
+	 * Creates a new database object kept at the given path,
+	 * using the engine given in database.json
+	 * 
+	 * @param path The file the database is kept in
+	 **/
+	public Database(String path){
+		this.path = path;
+		indexes = new ConcurrentHashMap<>();
+		stripes = new ReentrantLock[1024];
+		for(int x = 0; x < stripes.length; x++){
+			stripes[x] = new ReentrantLock();
+		}
+		versions = new AtomicLongArray(stripes.length);
+		if(shards > 1){
+			@SuppressWarnings("unchecked")
+			Storage<K, V>[] engines = (Storage<K, V>[]) new Storage<?, ?>[shards];
+			for(int x = 0; x < shards; x++){
+				engines[x] = engine(path + "." + x);
+			}
+			storage = new ShardedStorage<>(path, engines, sync);
+		}else{
+			storage = engine(path);
+		}
+		if(bloom > 0){
+			// under the cache, so gets it answers don't check the filter
+			filter = new BloomStorage<>(storage, path, bloom);
+			storage = filter;
+		}
+		if(cache > 0){
+			cached = new CachedStorage<>(storage, cache);
+			storage = cached;
+		}
 	}
 
 	/**
@@ -81,7 +440,81 @@ public class Database<K extends Serializable, V extends Serializable> {
 	 * @param value The object to store in the database
 	 **/
 	public void put(K key, V value){
-		database.put(key, value);
+		// puts to one key are kept in order for engines that log them
+		int x = stripe(key);
+		ReentrantLock stripe = stripes[x];
+		stripe.lock();
+		try{
+			if(indexes.isEmpty()){
+				storage.put(key, value);
+			}else{
+				// the old value says where the key was indexed
+				V old = storage.get(key);
+				storage.put(key, value);
+				for(Index<K, V> index : indexes.values()){
+					index.update(key, old, value);
+				}
+			}
+			// after the put, so a transaction that read the old value sees the change
+			versions.incrementAndGet(x);
+		}finally{
+			stripe.unlock();
+		}
+	}
+
+	/**
+	 * Adds an amount to a number kept at a key, such as a balance, as long
+	 * as it stays at or above a floor, and stores a value made from the
+	 * result at another key, such as the posting that records it, as one
+	 * change. It takes the locks of the two keys rather than running in a
+	 * transaction, and a transaction that read either fails to commit.
+	 * Engines that keep numbers as primitives change it in place and log a
+	 * record of a fixed size (see Storage). Only for databases whose keys
+	 * are Long, and a number changed this way must not be indexed
+	 * 
+	 * @param key The key of the number, which must already be there
+	 * @param amount The amount to add, negative to take away
+	 * @param floor The lowest the number may become, above Long.MIN_VALUE
+	 * @param with The key to store the value made by the recorder at
+	 * @param recorder Makes the value stored with the result
+	 * 
+	 * @return the new number, Long.MIN_VALUE if the key holds no number or it
+	 * would go below the floor or overflow, and nothing is changed
+	 **/
+	public long add(long key, long amount, long floor, K with, Recorder<V> recorder){
+		int a = spread(Long.hashCode(key));
+		int b = stripe(with);
+		stripes[Math.min(a, b)].lock();
+		if(a != b){
+			stripes[Math.max(a, b)].lock();
+		}
+		try{
+			long number;
+			if(indexes.isEmpty()){
+				number = storage.add(key, amount, floor, with, recorder);
+			}else{
+				V old = storage.get(with);
+				number = storage.add(key, amount, floor, with, recorder);
+				if(number != Long.MIN_VALUE){
+					V value = storage.get(with);
+					for(Index<K, V> index : indexes.values()){
+						index.update(with, old, value);
+					}
+				}
+			}
+			if(number != Long.MIN_VALUE){
+				versions.incrementAndGet(a);
+				if(a != b){
+					versions.incrementAndGet(b);
+				}
+			}
+			return number;
+		}finally{
+			if(a != b){
+				stripes[Math.max(a, b)].unlock();
+			}
+			stripes[Math.min(a, b)].unlock();
+		}
 	}
 
 	/**
@@ -94,13 +527,23 @@ public class Database<K extends Serializable, V extends Serializable> {
 	 **/
 	public V get(K key){
 		try{
-			return database.get(key);
+			return storage.get(key);
 		}catch(ClassCastException e){
 			System.err.println("Type stored in database is different from the type specified");
 			return null;
 		}
 	}
 
+	/**
+	 * Starts a transaction, reading and putting several keys without
+	 * holding any locks until commit()
+	 * 
+	 * @return the transaction, end() must be called once it is finished with
+	 **/
+	public Transaction<K, V> begin(){
+		return new Transaction<>(this);
+	}
+
 	/**
 	 * Load the database from the database file given in "database.json"
 	 * if the file doesn't exist, it gets created here
@@ -109,33 +552,158 @@ public class Database<K extends Serializable, V extends Serializable> {
 	 * @return false if there is an error opening the database
 	 **/
 	public boolean open(){
-		try{
-			System.out.println(dbPath);
-			File dbFile = new File(dbPath);
-
-			// Only read the database from the file if it exists
-			if(dbFile.exists()){
-				FileInputStream fileIn = new FileInputStream(dbPath);
-				ObjectInputStream in = new ObjectInputStream(fileIn);
-				// load the database here
-				database = (HashMap<K, V>) in.readObject();
-				// make sure the streams close properly
-				in.close();
-				fileIn.close();
-
-				Debug.println("Database loaded");
-			}else{
-				dbFile.getParentFile().mkdirs(); 
-				dbFile.createNewFile();
+		Debug.println("Database opening " + path);
+		return storage.open();
+	}
+
+	/**
+	 * Locks a key so that its value can be read and changed
+	 * without anyone else changing it in between
+	 * 
+	 * @param key The key to lock
+	 **/
+	public void lock(K key){
+		stripes[stripe(key)].lock();
+	}
+
+	/**
+	 * Locks two keys at once, always in the same order
+	 * so that two callers can never wait on each other
+	 * 
+	 * @param first One key to lock
+	 * @param second The other key to lock, may be the same as the first
+	 **/
+	public void lock(K first, K second){
+		int a = stripe(first);
+		int b = stripe(second);
+		stripes[Math.min(a, b)].lock();
+		if(a != b){
+			stripes[Math.max(a, b)].lock();
+		}
+	}
+
+	/**
+	 * Unlocks a key locked with lock()
+	 * 
+	 * @param key The locked key
+	 **/
+	public void unlock(K key){
+		stripes[stripe(key)].unlock();
+	}
 
-				Debug.println("Database created");
+	/**
+	 * Unlocks two keys locked together with lock()
+	 * 
+	 * @param first One locked key
+	 * @param second The other locked key
+	 **/
+	public void unlock(K first, K second){
+		int a = stripe(first);
+		int b = stripe(second);
+		if(a != b){
+			stripes[Math.max(a, b)].unlock();
+		}
+		stripes[Math.min(a, b)].unlock();
+	}
+
+	/**
+	 * Declares a secondary index, built from everything stored and then
+	 * kept up to date by every put. Puts wait while it is built.
+	 * The keys of an indexed database must be Comparable
+	 * 
+	 * @param name The name the index is scanned by, replacing any index with that name
+	 * @param indexer Works out the index key of each value
+	 **/
+	public synchronized void index(String name, Indexer<K, V> indexer){
+		final Index<K, V> index = new Index<>(indexer);
+		// every stripe is held so no put is missed while the index is built
+		for(ReentrantLock stripe : stripes){
+			stripe.lock();
+		}
+		try{
+			storage.forEach(new BiConsumer<K, V>(){
+				@Override
+				public void accept(K key, V value){
+					index.update(key, null, value);
+				}
+			});
+			indexes.put(name, index);
+		}finally{
+			for(int x = stripes.length - 1; x >= 0; x--){
+				stripes[x].unlock();
 			}
-			return true;
-		}catch(Exception e){
-			System.err.println("Error opening database");
-			System.err.println(e);
-			return false;
 		}
+		Debug.println("Database index " + name + " built, " + index.size() + " values");
+	}
+
+	/**
+	 * Walks the values of an index key range in order, each value is only
+	 * read when it is reached. Puts made during the scan may or may not be seen
+	 * 
+	 * @param name The name of the index
+	 * @param from The lowest index key, included
+	 * @param to The highest index key, left out
+	 * @param reverse True to go from the highest to the lowest
+	 * 
+	 * @return the keys and values in the range
+	 * @throws IllegalArgumentException if there is no index with the name
+	 **/
+	public Iterator<Map.Entry<K, V>> scan(String name, Tuple from, Tuple to, boolean reverse){
+		Index<K, V> index = indexes.get(name);
+		if(index == null){
+			throw new IllegalArgumentException("No database index " + name);
+		}
+		return new Scan<>(index, storage, index.range(from, to, reverse));
+	}
+
+	/**
+	 * Walks the values whose index key starts with the given parts, in order
+	 * 
+	 * @param name The name of the index
+	 * @param prefix The first parts of the index keys wanted
+	 * @param reverse True to go from the highest to the lowest
+	 * 
+	 * @return the keys and values starting with the prefix
+	 * @throws IllegalArgumentException if there is no index with the name
+	 **/
+	public Iterator<Map.Entry<K, V>> prefix(String name, Tuple prefix, boolean reverse){
+		return scan(name, prefix, prefix.end(), reverse);
+	}
+
+	/**
+	 * Passes every key and value to an action, in no set order
+	 * 
+	 * @param action The action to run on each key and value
+	 **/
+	public void forEach(BiConsumer<? super K, ? super V> action){
+		storage.forEach(action);
+	}
+
+	/**
+	 * Gets the cache in front of the engine, for its hit, miss and eviction counts
+	 * 
+	 * @return the cache, null if "cache" is not set in database.json
+	 **/
+	public CachedStorage<K, V> getCache(){
+		return cached;
+	}
+
+	/**
+	 * Gets the filter in front of the engine, for the number of gets it answered
+	 * 
+	 * @return the filter, null if "bloom" is not set in database.json
+	 **/
+	public BloomStorage<K, V> getFilter(){
+		return filter;
+	}
+
+	/**
+	 * Makes sure everything put so far is saved, the database stays open
+	 * 
+	 * @return false if there is an error saving the database
+	 **/
+	public boolean flush(){
+		return storage.flush();
 	}
 
 	/**
@@ -144,20 +712,184 @@ public class Database<K extends Serializable, V extends Serializable> {
 	 * @return false if there is an error closing the database
 	 **/
 	public boolean close(){
-		try{
-			FileOutputStream fileOut = new FileOutputStream(dbPath);
-			ObjectOutputStream out = new ObjectOutputStream(fileOut);
-			// write the database before we close
-			out.writeObject(database);
-			// make sure the streams close correctly
-			out.close();
-			fileOut.close();
+		return storage.close();
+	}
 
+	/**
+	 * Gets the version of a lock, it goes up with every put to its keys.
+	 * Read before the value, so a put in between is seen at commit
+	 * 
+	 * @param stripe The index of the lock
+	 * 
+	 * @return the version
+	 **/
+	long version(int stripe){
+		return versions.get(stripe);
+	}
+
+	/**
+	 * Locks the given locks in order, for a transaction that keeps
+	 * failing to commit so it can run once more without being beaten
+	 * 
+	 * @param held The indexes of the locks
+	 **/
+	void lockAll(BitSet held){
+		for(int x = held.nextSetBit(0); x >= 0; x = held.nextSetBit(x + 1)){
+			stripes[x].lock();
+		}
+	}
+
+	/**
+	 * Unlocks locks locked with lockAll()
+	 * 
+	 * @param held The indexes of the locks
+	 **/
+	void unlockAll(BitSet held){
+		for(int x = held.length() - 1; x >= 0; x = held.previousSetBit(x - 1)){
+			stripes[x].unlock();
+		}
+	}
+
+	/**
+	 * Commits the puts of a transaction if nothing it read has changed.
+	 * The locks of the keys written are taken in order, unless the
+	 * transaction already holds some, then the rest are only tried so that
+	 * two transactions can't wait on each other. A lock read from that is
+	 * held by anyone else may be about to change, so it is waited for a
+	 * little and only counts as changed if its version moved on meanwhile
+	 * 
+	 * @param read The index of the lock of each key read
+	 * @param readVersions The version of each of those locks when read
+	 * @param reads The number of keys read
+	 * @param writes The keys and values to put
+	 * @param held The locks the transaction already holds
+	 * 
+	 * @return false if something read has changed, nothing is put
+	 **/
+	boolean commit(int[] read, long[] readVersions, int reads, Map<K, V> writes, BitSet held){
+		// the locks written, in order without repeats
+		int[] written = new int[writes.size()];
+		int count = 0;
+		for(K key : writes.keySet()){
+			int x = stripe(key);
+			int at = count;
+			while(at > 0 && written[at - 1] > x){
+				at--;
+			}
+			if(at == 0 || written[at - 1] != x){
+				System.arraycopy(written, at, written, at + 1, count - at);
+				written[at] = x;
+				count++;
+			}
+		}
+		int locked = 0;
+		try{
+			for(; locked < count; locked++){
+				int x = written[locked];
+				if(held.get(x)){
+					continue;
+				}
+				if(held.isEmpty()){
+					stripes[x].lock();
+				}else if(!stripes[x].tryLock()){
+					return false;
+				}
+			}
+			for(int x = 0; x < reads; x++){
+				if(!unchanged(read[x], readVersions[x])){
+					return false;
+				}
+			}
+			if(count == 0){
+				return true;
+			}
+			if(indexes.isEmpty()){
+				storage.putAll(writes);
+			}else{
+				HashMap<K, V> old = new HashMap<>();
+				for(K key : writes.keySet()){
+					old.put(key, storage.get(key));
+				}
+				storage.putAll(writes);
+				for(Map.Entry<K, V> write : writes.entrySet()){
+					for(Index<K, V> index : indexes.values()){
+						index.update(write.getKey(), old.get(write.getKey()), write.getValue());
+					}
+				}
+			}
+			for(int x = 0; x < count; x++){
+				versions.incrementAndGet(written[x]);
+			}
 			return true;
-		}catch(Exception e){
-			System.err.println("Error closing database");
-			System.err.println(e);
-			return false;
+		}finally{
+			while(locked > 0){
+				locked--;
+				if(!held.get(written[locked])){
+					stripes[written[locked]].unlock();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Checks a lock read from has not moved on, waiting for whoever holds
+	 * it to let go first. Waiting while holding locks of our own is bounded,
+	 * two commits that each read what the other writes both give up
+	 * 
+	 * @param x The index of the lock
+	 * @param version The version of the lock when read
+	 * 
+	 * @return false if the lock has moved on or is still held by someone else
+	 **/
+	private boolean unchanged(int x, long version){
+		ReentrantLock stripe = stripes[x];
+		long until = System.nanoTime() + READ_WAIT;
+		while(stripe.isLocked() && !stripe.isHeldByCurrentThread()){
+			if(versions.get(x) != version || System.nanoTime() - until > 0){
+				return false;
+			}
+			LockSupport.parkNanos(READ_WAIT_STEP);
+		}
+		// a change moves the version on before the lock is let go, so this sees it
+		return versions.get(x) == version;
+	}
+
+	/**
+	 * Creates the engine given in database.json
+	 * 
+	 * @param path The file the engine keeps the data in
+	 * 
+	 * @return the engine, not yet opened
+	 **/
+	private Storage<K, V> engine(String path){
+		if("log".equals(engine)){
+			// the rate is given in KB a second
+			return new LogStorage<>(path, checkpoint, sync, commitDelay, commitBytes, checkpointRate * 1024L, compression, segment * 1024L);
+		}else if("mapped".equals(engine)){
+			return new MappedStorage<>(path, sync);
 		}
+		return new SerialStorage<>(path, compression);
+	}
+
+	/**
+	 * Finds the lock that looks after a key
+	 * 
+	 * @param key The key
+	 * 
+	 * @return the index of the lock
+	 **/
+	int stripe(K key){
+		return spread(key.hashCode());
+	}
+
+	/**
+	 * Finds the lock that looks after a key from its hash
+	 * 
+	 * @param h The hash code of the key
+	 * 
+	 * @return the index of the lock
+	 **/
+	private int spread(int h){
+		return (h ^ (h >>> 16)) & (stripes.length - 1);
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,270 @@
+package netizens.bank.utils;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.HashSet;
+import netizens.bank.utils.database.LogShipper;
+import netizens.bank.utils.database.Record;
+
+/**
+ * Follower.java
+ *
+ * Keeps the databases of this server a copy of a primary's, applying the
+ * changes its LogShipper sends as they arrive, so that the copy can serve
+ * reads and take over without loading anything. Changes are put through
+ * the shared databases so their indexes stay up to date, and the changes
+ * of one transaction are put together. Each database is flushed whenever
+ * everything sent so far has been applied
+ * <br/>
+ * On connecting the primary sends a copy of every database first, reads
+ * may see part of it until isCopied(). If the connection is lost or the
+ * primary goes quiet the follower keeps trying to connect again, and is
+ * sent a new copy when it does
+ * <br/>
+ * The lag is how long ago the primary sent the last message applied, by
+ * the primary's clock, or how long it has been quiet for once no heartbeat
+ * has come in time, so the clocks of the two should agree
+ * <br/>
+ * Both sides prove they know the shared secret before anything is sent
+ * (see LogShipper), a primary that can't is disconnected
+ **/
+public class Follower {
+
+	// the primary is given up on after missing this many heartbeats
+	private static final int MISSED_HEARTBEATS = 3;
+	private static final int RECONNECT_TIME = 1000;
+
+	private final String host;
+	private final int port;
+	private final String secret;
+	private volatile boolean stopped;
+	private volatile boolean connected;
+	private volatile boolean copied;
+	private volatile long sequence;
+	private volatile long lag;
+	private volatile long received;
+	private volatile Socket socket;
+	private Thread thread;
+
+	/**
+	 * Creates a follower of the given primary, nothing is
+	 * connected to until start()
+	 *
+	 * @param address The host and port the primary ships changes on, "host:port"
+	 * @param secret The secret shared with the primary
+	 **/
+	public Follower(String address, String secret){
+		int colon = address.lastIndexOf(':');
+		host = colon > 0 ? address.substring(0, colon) : "localhost";
+		port = SafeParse.getInt(address.substring(colon + 1), 0);
+		this.secret = secret;
+	}
+
+	/**
+	 * Connects to the primary and applies its changes on a thread of its own
+	 **/
+	public synchronized void start(){
+		if(thread != null){
+			return;
+		}
+		received = System.currentTimeMillis();
+		thread = new Thread("database-follower"){
+			@Override
+			public void run(){
+				boolean reported = false;
+				while(!stopped){
+					try{
+						follow();
+					}catch(IOException e){
+						// once for each connection lost, not for every try after it
+						if(!stopped && (connected || !reported)){
+							System.err.println("Error following " + host + ":" + port);
+							System.err.println(e);
+							reported = true;
+						}
+					}finally{
+						connected = false;
+						copied = false;
+					}
+					try{
+						Thread.sleep(RECONNECT_TIME);
+					}catch(InterruptedException e){
+						return;
+					}
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+		Debug.println("Following " + host + ":" + port);
+	}
+
+	/**
+	 * Stops following, once it returns no more changes are applied
+	 **/
+	public synchronized void close(){
+		stopped = true;
+		if(thread == null){
+			return;
+		}
+		try{
+			Socket connection = socket;
+			if(connection != null){
+				connection.close();
+			}
+		}catch(IOException e){
+			// already closed
+		}
+		thread.interrupt();
+		try{
+			thread.join();
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+		Debug.println("Stopped following " + host + ":" + port + " at change " + sequence);
+	}
+
+	/**
+	 * Gets how far behind the primary the databases are
+	 *
+	 * @return the lag in milliseconds
+	 **/
+	public long getLag(){
+		long quiet = System.currentTimeMillis() - received - LogShipper.HEARTBEAT_TIME;
+		return Math.max(lag, quiet);
+	}
+
+	/**
+	 * @return the number of the last change applied
+	 **/
+	public long getSequence(){
+		return sequence;
+	}
+
+	/**
+	 * @return true while connected to the primary
+	 **/
+	public boolean isConnected(){
+		return connected;
+	}
+
+	/**
+	 * @return true once the copy sent on connecting has been applied
+	 **/
+	public boolean isCopied(){
+		return copied;
+	}
+
+	/**
+	 * Connects to the primary and applies what it sends until
+	 * the connection is lost
+	 *
+	 * @throws IOException if the connection fails or a change can't be applied
+	 **/
+	private void follow() throws IOException {
+		Socket connection = new Socket();
+		socket = connection;
+		try{
+			connection.setTcpNoDelay(true);
+			connection.setSoTimeout(LogShipper.HEARTBEAT_TIME * MISSED_HEARTBEATS);
+			connection.connect(new InetSocketAddress(host, port), LogShipper.HEARTBEAT_TIME * MISSED_HEARTBEATS);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream(), 1 << 16));
+			handshake(in, new DataOutputStream(connection.getOutputStream()));
+			connected = true;
+			Debug.println("Connected to primary " + host + ":" + port);
+			HashSet<Database<Object, Object>> changed = new HashSet<>();
+			while(!stopped){
+				byte kind = in.readByte();
+				long number = in.readLong();
+				long time = in.readLong();
+				if(kind == LogShipper.PUT){
+					changed.add(apply(in.readUTF(), in));
+				}else if(kind == LogShipper.COPIED){
+					copied = true;
+					Debug.println("Copied from primary at change " + number);
+				}else if(kind != LogShipper.HEARTBEAT){
+					throw new IOException("Unknown message from primary " + kind);
+				}
+				// a heartbeat carries the latest number, which may still be on its way
+				if(kind != LogShipper.HEARTBEAT){
+					sequence = number;
+				}
+				received = System.currentTimeMillis();
+				lag = Math.max(received - time, 0);
+				// saved whenever everything sent so far is applied
+				if(in.available() == 0 && !changed.isEmpty()){
+					for(Database<Object, Object> database : changed){
+						database.flush();
+					}
+					changed.clear();
+				}
+			}
+		}finally{
+			socket = null;
+			connection.close();
+		}
+	}
+
+	/**
+	 * Proves to the primary that this knows the secret and checks that the
+	 * primary does too
+	 *
+	 * @param in The connection, before anything has been read
+	 * @param out The connection, before anything has been written
+	 * @throws IOException if the primary gave the wrong proof or went quiet
+	 **/
+	private void handshake(DataInputStream in, DataOutputStream out) throws IOException {
+		byte[] challenge = new byte[LogShipper.CHALLENGE];
+		in.readFully(challenge);
+		byte[] mine = LogShipper.challenge();
+		out.write(mine);
+		out.write(LogShipper.prove(secret, LogShipper.FOLLOWER, challenge));
+		out.flush();
+		byte[] proof = new byte[LogShipper.PROOF];
+		in.readFully(proof);
+		if(!MessageDigest.isEqual(proof, LogShipper.prove(secret, LogShipper.PRIMARY, mine))){
+			throw new IOException("Primary gave the wrong secret");
+		}
+	}
+
+	/**
+	 * Reads a change and puts it in its database
+	 *
+	 * @param name The name of the database, empty for the main one
+	 * @param in The connection, at the record
+	 *
+	 * @return the database changed
+	 * @throws IOException if the record is damaged or the database can't be opened
+	 **/
+	private Database<Object, Object> apply(String name, DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if(length <= 0 || length > Record.MAX_LENGTH){
+			throw new IOException("Damaged change from primary");
+		}
+		byte[] body = new byte[length];
+		in.readFully(body);
+		Object[] puts = Record.decode(ByteBuffer.wrap(body));
+		Database<Object, Object> database = Database.shared(name.isEmpty() ? null : name);
+		if(database == null){
+			throw new IOException("Could not open database " + name);
+		}
+		if(puts.length == 2){
+			database.put(puts[0], puts[1]);
+			return database;
+		}
+		// the changes of one transaction, never seen apart
+		Transaction<Object, Object> transaction = database.begin();
+		try{
+			for(int x = 0; x < puts.length; x += 2){
+				transaction.put(puts[x], puts[x + 1]);
+			}
+			transaction.commit();
+		}finally{
+			transaction.end();
+		}
+		return database;
+	}
+}
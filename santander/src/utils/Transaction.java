@@ -0,0 +1,169 @@
+package netizens.bank.utils;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Transaction.java
+ *
+ * Reads and changes several keys of a database as one, without holding
+ * any locks while it works. Each read remembers the version of the lock
+ * looking after the key and each put is kept back until commit(), which
+ * puts them all only if none of the versions read have moved on. Reading
+ * a key again gives the same value, or the value put to it
+ * <br/>
+ * When commit() fails nothing has been put, retry() forgets everything
+ * so the work can be done again from fresh reads, after waiting a random
+ * moment that grows with each try so that the transactions which collided
+ * don't collide again straight away. After a few failed tries
+ * retry() locks every key the last try touched before returning, so a busy
+ * key can't keep a transaction failing forever. end() must always be
+ * called to give those locks back
+ * <br/>
+ * A transaction belongs to the thread that began it (see Database)
+ *
+ * @param <K> The type of key used by the database
+ * @param <V> The type of value used by the database
+ **/
+public class Transaction<K, V> {
+
+	// failed tries before the keys are locked for the next one
+	private static final int OPTIMISTIC_TRIES = 3;
+	// nanoseconds, the most a retry waits doubles from this each try
+	private static final long BACKOFF = 10000;
+
+	private final Database<K, V> database;
+	private final HashMap<K, V> reads;
+	private final HashMap<K, V> writes;
+	private final BitSet held;
+	// the lock and its version for each read, kept flat as most transactions read a few keys
+	private int[] stripes;
+	private long[] versions;
+	private int read;
+	private int tries;
+
+	/**
+	 * Creates a transaction, use Database.begin()
+	 *
+	 * @param database The database it works on
+	 **/
+	Transaction(Database<K, V> database){
+		this.database = database;
+		reads = new HashMap<>();
+		writes = new HashMap<>();
+		held = new BitSet();
+		stripes = new int[4];
+		versions = new long[4];
+		tries = 1;
+	}
+
+	/**
+	 * Gets the value at a key, as put by this transaction or else as read
+	 * the first time it was asked for
+	 *
+	 * @param key The location of the value
+	 *
+	 * @return the value, null if there's nothing there
+	 **/
+	public V get(K key){
+		if(writes.containsKey(key)){
+			return writes.get(key);
+		}
+		if(reads.containsKey(key)){
+			return reads.get(key);
+		}
+		int stripe = database.stripe(key);
+		// the version first, a put after it moves it on and fails the commit
+		long version = database.version(stripe);
+		V value = database.get(key);
+		if(read == stripes.length){
+			stripes = Arrays.copyOf(stripes, read * 2);
+			versions = Arrays.copyOf(versions, read * 2);
+		}
+		stripes[read] = stripe;
+		versions[read] = version;
+		read++;
+		reads.put(key, value);
+		return value;
+	}
+
+	/**
+	 * Puts a value at a key once the transaction commits
+	 *
+	 * @param key The location to put the value
+	 * @param value The object to store
+	 **/
+	public void put(K key, V value){
+		writes.put(key, value);
+	}
+
+	/**
+	 * Puts everything at once if nothing read has changed since
+	 *
+	 * @return false if something read has changed, nothing is put and retry() should be called
+	 **/
+	public boolean commit(){
+		return database.commit(stripes, versions, read, writes, held);
+	}
+
+	/**
+	 * Forgets everything read and put so the work can be done again, waiting
+	 * a little first, or locking the keys touched once enough tries have failed
+	 **/
+	public void retry(){
+		BitSet touched = new BitSet();
+		for(int x = 0; x < read; x++){
+			touched.set(stripes[x]);
+		}
+		for(K key : writes.keySet()){
+			touched.set(database.stripe(key));
+		}
+		reads.clear();
+		writes.clear();
+		read = 0;
+		tries++;
+		if(tries > OPTIMISTIC_TRIES){
+			// locks are only ever added in order, so first give back those held
+			touched.or(held);
+			database.unlockAll(held);
+			held.clear();
+			database.lockAll(touched);
+			held.or(touched);
+		}else{
+			// nothing is held, so waiting holds nobody else up
+			LockSupport.parkNanos(ThreadLocalRandom.current().nextLong(BACKOFF << tries));
+		}
+	}
+
+	/**
+	 * Gives back any locks taken by retry(), the transaction
+	 * must not be used afterwards
+	 **/
+	public void end(){
+		database.unlockAll(held);
+		held.clear();
+	}
+
+	/**
+	 * Checks whether retry() has locked the keys touched, anything else that
+	 * locks keys must not be done until end() as it could take them out of
+	 * order
+	 *
+	 * @return true while locks are held
+	 **/
+	public boolean isLocked(){
+		return !held.isEmpty();
+	}
+
+	/**
+	 * Gets the number of tries so far, one until retry() is called
+	 *
+	 * @return the number of tries
+	 **/
+	public int getTries(){
+		return tries;
+	}
+}
@@ -0,0 +1,195 @@
+package netizens.bank.utils.database;
+
+import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * BloomFilter.java
+ *
+ * A set of bits that says whether a key might have been added. A key that
+ * was added is always found, a key that wasn't is only found by chance,
+ * about 1% of the time with 10 bits for each key. Adding and checking take
+ * no lock and allocate nothing, the bits are set with atomic or
+ * <br/>
+ * Each key sets a few bits picked from its hash code, the filter is sized
+ * for a number of keys and gets less exact once more than that are added.
+ * A key is only counted if it set a bit, so adding a key again doesn't count
+ **/
+public final class BloomFilter {
+
+	private static final VarHandle WORDS = MethodHandles.arrayElementVarHandle(long[].class);
+
+	private final long[] words;
+	private final int mask;
+	private final int hashes;
+	private final long capacity;
+	private final LongAdder keys = new LongAdder();
+
+	/**
+	 * Creates an empty filter
+	 *
+	 * @param capacity The number of keys it is sized for
+	 * @param bitsPerKey The bits for each key, more makes it more exact
+	 **/
+	public BloomFilter(long capacity, int bitsPerKey){
+		this.capacity = Math.max(capacity, 1);
+		bitsPerKey = Math.max(bitsPerKey, 1);
+		// a power of two so a bit can be picked with a mask, at most 2^31 bits
+		long bits = Long.highestOneBit(Math.min(Math.max(this.capacity * bitsPerKey, 64), 1L << 31) * 2 - 1);
+		words = new long[(int) (bits >>> 6)];
+		mask = (int) (bits - 1);
+		// the number of bits per key that gives the fewest false matches
+		hashes = Math.max((int) Math.round(bitsPerKey * Math.log(2)), 1);
+	}
+
+	/**
+	 * Creates a filter from saved parts, see read()
+	 **/
+	private BloomFilter(long[] words, int hashes, long capacity, long keys){
+		this.words = words;
+		this.mask = words.length * 64 - 1;
+		this.hashes = hashes;
+		this.capacity = capacity;
+		this.keys.add(keys);
+	}
+
+	/**
+	 * Adds a key
+	 *
+	 * @param key The key
+	 **/
+	public void add(Object key){
+		long h = mix(key.hashCode());
+		int h1 = (int) h;
+		// odd, so every step lands on a different bit
+		int h2 = (int) (h >>> 32) | 1;
+		boolean added = false;
+		for(int x = 0; x < hashes; x++){
+			int bit = (h1 + x * h2) & mask;
+			long set = 1L << bit;
+			if(((long) WORDS.getAcquire(words, bit >>> 6) & set) == 0){
+				added |= ((long) WORDS.getAndBitwiseOrRelease(words, bit >>> 6, set) & set) == 0;
+			}
+		}
+		if(added){
+			keys.increment();
+		}
+	}
+
+	/**
+	 * Checks for a key
+	 *
+	 * @param key The key
+	 *
+	 * @return false if the key was certainly never added
+	 **/
+	public boolean mightContain(Object key){
+		long h = mix(key.hashCode());
+		int h1 = (int) h;
+		int h2 = (int) (h >>> 32) | 1;
+		for(int x = 0; x < hashes; x++){
+			int bit = (h1 + x * h2) & mask;
+			if(((long) WORDS.getAcquire(words, bit >>> 6) & (1L << bit)) == 0){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the number of keys added, a little under if some matched by chance
+	 **/
+	public long getKeys(){
+		return keys.sum();
+	}
+
+	/**
+	 * @return the number of keys the filter is sized for
+	 **/
+	public long getCapacity(){
+		return capacity;
+	}
+
+	/**
+	 * @return the size of the filter in bytes
+	 **/
+	public long bytes(){
+		return words.length * 8L;
+	}
+
+	/**
+	 * Writes the filter to a new file, made complete on disk
+	 * before it replaces the old one
+	 *
+	 * @param file The file to write
+	 * @throws IOException if the file could not be written
+	 **/
+	public void write(File file) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		FileOutputStream fileOut = new FileOutputStream(tmp);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 1 << 16));
+		try{
+			out.write(Snapshot.header(Snapshot.BLOOM));
+			out.writeInt(hashes);
+			out.writeLong(capacity);
+			out.writeLong(keys.sum());
+			out.writeInt(words.length);
+			for(int x = 0; x < words.length; x++){
+				out.writeLong((long) WORDS.getAcquire(words, x));
+			}
+			out.flush();
+			fileOut.getFD().sync();
+		}finally{
+			out.close();
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Reads a filter written by write()
+	 *
+	 * @param file The file to read
+	 *
+	 * @return the filter
+	 * @throws IOException if the file is damaged or from a newer version
+	 **/
+	public static BloomFilter read(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		try{
+			Snapshot.checkHeader(file, in, Snapshot.BLOOM);
+			int hashes = in.readInt();
+			long capacity = in.readLong();
+			long keys = in.readLong();
+			int length = in.readInt();
+			// a power of two number of words, as built by the constructor
+			if(hashes <= 0 || capacity <= 0 || keys < 0 || length <= 0 || Integer.bitCount(length) != 1 || length > 1 << 25){
+				throw new IOException("Damaged filter " + file);
+			}
+			long[] words = new long[length];
+			for(int x = 0; x < length; x++){
+				words[x] = in.readLong();
+			}
+			return new BloomFilter(words, hashes, capacity, keys);
+		}finally{
+			in.close();
+		}
+	}
+
+	/**
+	 * Spreads a hash code over 64 bits, hash codes are often in runs
+	 *
+	 * @param hash The hash code
+	 *
+	 * @return the mixed hash
+	 **/
+	private static long mix(int hash){
+		long h = hash * 0x9e3779b97f4a7c15L;
+		h ^= h >>> 31;
+		h *= 0xbf58476d1ce4e5b9L;
+		return h ^ (h >>> 29);
+	}
+}
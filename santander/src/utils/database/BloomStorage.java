@@ -0,0 +1,236 @@
+package netizens.bank.utils.database;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import netizens.bank.utils.Debug;
+
+/**
+ * BloomStorage.java
+ *
+ * Answers gets for keys that were never put without asking the engine
+ * behind it, using a Bloom filter of every key stored. Made for the mapped
+ * engine, where looking for a key that isn't there can mean reading from
+ * disk, so that lookups for unknown accounts cost a few memory reads
+ * <br/>
+ * Every put adds its key to the filter before it reaches the engine. The
+ * filter is saved next to the database with ".bloom" added when it closes
+ * and the file is deleted once it has been read on open, so a filter that
+ * may have missed puts is never read. Without the file the filter is
+ * rebuilt from every key in the engine, sized for twice as many keys as
+ * there are. Once more new keys have been put than it was sized for a filter
+ * twice the size is started for the keys after them, gets check both.
+ * Such a filter is not saved, so it is rebuilt as one the next time
+ *
+ * @param <K> The type of key to use (must have a codec, see Codecs)
+ * @param <V> The type of value to use (must have a codec, see Codecs)
+ **/
+public class BloomStorage<K, V> implements Storage<K, V> {
+
+	private static final long MIN_CAPACITY = 1 << 16;
+
+	private final Storage<K, V> storage;
+	private final File file;
+	private final int bitsPerKey;
+	private final LongAdder rejected = new LongAdder();
+	// the newest last, only it has keys added
+	private volatile BloomFilter[] filters;
+
+	/**
+	 * Puts a filter in front of an engine
+	 *
+	 * @param storage The engine the values are kept in
+	 * @param path The path of the database, the filter is kept next to it
+	 * @param bitsPerKey The bits of filter for each key, 10 gives about 1% false matches
+	 **/
+	public BloomStorage(Storage<K, V> storage, String path, int bitsPerKey){
+		this.storage = storage;
+		file = new File(path + ".bloom");
+		this.bitsPerKey = bitsPerKey;
+		filters = new BloomFilter[]{new BloomFilter(MIN_CAPACITY, bitsPerKey)};
+	}
+
+	@Override
+	public V get(K key){
+		for(BloomFilter filter : filters){
+			if(filter.mightContain(key)){
+				return storage.get(key);
+			}
+		}
+		rejected.increment();
+		return null;
+	}
+
+	@Override
+	public void put(K key, V value){
+		// in the filter before the engine, so a get never finds the value but not the key
+		add(key);
+		storage.put(key, value);
+	}
+
+	@Override
+	public void putAll(Map<K, V> values){
+		for(K key : values.keySet()){
+			add(key);
+		}
+		storage.putAll(values);
+	}
+
+	@Override
+	public long add(long key, long amount, long floor, K with, Recorder<V> recorder){
+		// the number is already there, only the other key can be new
+		add(with);
+		return storage.add(key, amount, floor, with, recorder);
+	}
+
+	@Override
+	public void forEach(BiConsumer<? super K, ? super V> action){
+		storage.forEach(action);
+	}
+
+	/**
+	 * Opens the engine and reads the saved filter, or
+	 * rebuilds it if there is none
+	 *
+	 * @return false if there is an error opening the storage
+	 **/
+	@Override
+	public boolean open(){
+		if(!storage.open()){
+			return false;
+		}
+		rejected.reset();
+		BloomFilter saved = null;
+		if(file.exists()){
+			try{
+				saved = BloomFilter.read(file);
+			}catch(IOException e){
+				System.err.println("Error reading database filter, rebuilding it");
+				System.err.println(e);
+			}
+			// puts from now on are only in memory until close() saves it again
+			file.delete();
+		}
+		if(saved != null){
+			filters = new BloomFilter[]{saved};
+			Debug.println("Database filter loaded, " + saved.bytes() / 1024 + " KB");
+		}else{
+			rebuild();
+		}
+		return true;
+	}
+
+	/**
+	 * Makes sure everything put so far is saved in the engine, starting
+	 * a bigger filter if the keys put have outgrown the ones there are
+	 *
+	 * @return false if there is an error saving the database
+	 **/
+	@Override
+	public boolean flush(){
+		BloomFilter[] current = filters;
+		if(current[current.length - 1].getKeys() > current[current.length - 1].getCapacity()){
+			grow();
+		}
+		return storage.flush();
+	}
+
+	/**
+	 * Closes the engine and saves the filter
+	 *
+	 * @return false if there is an error closing the storage
+	 **/
+	@Override
+	public boolean close(){
+		Debug.println("Database filter rejected " + getRejected() + " gets");
+		boolean closed = storage.close();
+		try{
+			// only saved once the engine holds every key in it
+			if(closed && filters.length == 1){
+				filters[0].write(file);
+			}
+		}catch(IOException e){
+			// rebuilt on the next open
+			System.err.println("Error saving database filter");
+			System.err.println(e);
+		}
+		return closed;
+	}
+
+	/**
+	 * Gets the number of gets answered by the filter alone
+	 *
+	 * @return the number of gets for keys that were never put
+	 **/
+	public long getRejected(){
+		return rejected.sum();
+	}
+
+	/**
+	 * Adds a key to the newest filter, unless a filter already has
+	 * it, as most puts are to accounts that are there
+	 *
+	 * @param key The key
+	 **/
+	private void add(K key){
+		BloomFilter[] current = filters;
+		for(BloomFilter filter : current){
+			if(filter.mightContain(key)){
+				return;
+			}
+		}
+		current[current.length - 1].add(key);
+	}
+
+	/**
+	 * Builds the filter from every key in the engine, before
+	 * the database is used
+	 **/
+	private void rebuild(){
+		final long[] count = new long[1];
+		storage.forEach(new BiConsumer<K, V>(){
+			@Override
+			public void accept(K key, V value){
+				count[0]++;
+			}
+		});
+		final BloomFilter built = new BloomFilter(Math.max(count[0] * 2, MIN_CAPACITY), bitsPerKey);
+		storage.forEach(new BiConsumer<K, V>(){
+			@Override
+			public void accept(K key, V value){
+				built.add(key);
+			}
+		});
+		filters = new BloomFilter[]{built};
+		Debug.println("Database filter built for " + built.getCapacity() + " keys, " + built.bytes() / 1024 + " KB");
+	}
+
+	/**
+	 * Starts a filter twice the size of all the others for the keys put from now on
+	 **/
+	private synchronized void grow(){
+		BloomFilter[] current = filters;
+		if(current[current.length - 1].getKeys() <= current[current.length - 1].getCapacity()){
+			return;
+		}
+		long capacity = capacity();
+		BloomFilter[] grown = Arrays.copyOf(current, current.length + 1);
+		grown[current.length] = new BloomFilter(capacity * 2, bitsPerKey);
+		filters = grown;
+		Debug.println("Database filter grown for " + capacity * 3 + " keys");
+	}
+
+	/**
+	 * @return the number of keys all the filters are sized for
+	 **/
+	private long capacity(){
+		long capacity = 0;
+		for(BloomFilter filter : filters){
+			capacity += filter.getCapacity();
+		}
+		return capacity;
+	}
+}
@@ -0,0 +1,363 @@
+package netizens.bank.utils.database;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import netizens.bank.utils.Debug;
+
+/**
+ * CachedStorage.java
+ *
+ * Keeps the most used values of another engine on the heap, so that gets
+ * for busy accounts don't have to read from disk. Made for the mapped
+ * engine, the others already keep everything on the heap
+ * <br/>
+ * The cache holds a fixed number of values, split into shards that each
+ * have their own lock. Each shard is a segmented LRU: a value read for the
+ * first time goes into the probation segment and only moves to the
+ * protected segment, which is most of the shard, if it is read again while
+ * still cached. Values are evicted from the end of probation, so a scan
+ * over many accounts that are read once can't push out the busy ones.
+ * A read of a protected value only marks it as used and takes no lock,
+ * it is moved back to the head of the segment if it reaches the end
+ * (second chance, as in a CLOCK cache)
+ * <br/>
+ * Puts go to the engine first and then replace the cached value if there
+ * is one. A get that missed only caches what it read if no put has been
+ * made to its shard since, so a value being replaced is never cached
+ *
+ * @param <K> The type of key to use (must have a codec, see Codecs)
+ * @param <V> The type of value to use (must have a codec, see Codecs)
+ **/
+public class CachedStorage<K, V> implements Storage<K, V> {
+
+	private static final int SHARDS = 16;
+
+	private final Storage<K, V> storage;
+	private final Shard<K, V>[] shards;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	/**
+	 * Puts a cache in front of an engine
+	 *
+	 * @param storage The engine the values are kept in
+	 * @param size The most values to keep cached
+	 **/
+	@SuppressWarnings("unchecked")
+	public CachedStorage(Storage<K, V> storage, int size){
+		this.storage = storage;
+		shards = (Shard<K, V>[]) new Shard<?, ?>[SHARDS];
+		for(int x = 0; x < SHARDS; x++){
+			// spread the size over the shards, every shard holds at least one value
+			shards[x] = new Shard<>(Math.max((size + SHARDS - 1 - x) / SHARDS, 1));
+		}
+	}
+
+	@Override
+	public V get(K key){
+		Shard<K, V> shard = shard(key);
+		Node<K, V> node = shard.nodes.get(key);
+		if(node != null){
+			if(node.protect){
+				node.used = true;
+			}else{
+				synchronized(shard){
+					// it may have been evicted or promoted since it was found
+					if(node.linked && !node.protect){
+						shard.promote(node);
+					}
+				}
+			}
+			hits.increment();
+			return node.value;
+		}
+
+		long version;
+		synchronized(shard){
+			version = shard.version;
+		}
+		misses.increment();
+
+		V value = storage.get(key);
+		if(value != null){
+			synchronized(shard){
+				// a put since the read may have replaced the value
+				if(shard.version == version && !shard.nodes.containsKey(key)){
+					evictions.add(shard.add(key, value));
+				}
+			}
+		}
+		return value;
+	}
+
+	@Override
+	public void put(K key, V value){
+		storage.put(key, value);
+		replace(key, value);
+	}
+
+	@Override
+	public void putAll(Map<K, V> values){
+		storage.putAll(values);
+		for(Map.Entry<K, V> entry : values.entrySet()){
+			replace(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * Adds an amount to a number in the engine, then replaces the cached
+	 * values of both keys. The cache holds objects, so this makes a Long
+	 * for the new number
+	 *
+	 * @param key The key of the number, which must already be there
+	 * @param amount The amount to add, negative to take away
+	 * @param floor The lowest the number may become, above Long.MIN_VALUE
+	 * @param with The key to store the value made by the recorder at
+	 * @param recorder Makes the value stored with the result
+	 *
+	 * @return the new number, Long.MIN_VALUE if nothing was changed
+	 **/
+	@Override
+	@SuppressWarnings("unchecked")
+	public long add(long key, long amount, long floor, K with, Recorder<V> recorder){
+		long number = storage.add(key, amount, floor, with, recorder);
+		if(number != Long.MIN_VALUE){
+			replace((K) Long.valueOf(key), (V) Long.valueOf(number));
+			replace(with, storage.get(with));
+		}
+		return number;
+	}
+
+	/**
+	 * Replaces the cached value of a key that has just been put
+	 *
+	 * @param key The key put
+	 * @param value The value put
+	 **/
+	private void replace(K key, V value){
+		Shard<K, V> shard = shard(key);
+		synchronized(shard){
+			shard.version++;
+			Node<K, V> node = shard.nodes.get(key);
+			if(node != null){
+				if(value == null){
+					shard.remove(node);
+				}else{
+					node.value = value;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Opens the engine with an empty cache
+	 *
+	 * @return false if there is an error opening the storage
+	 **/
+	@Override
+	public boolean open(){
+		for(Shard<K, V> shard : shards){
+			synchronized(shard){
+				shard.clear();
+			}
+		}
+		return storage.open();
+	}
+
+	@Override
+	public void forEach(BiConsumer<? super K, ? super V> action){
+		storage.forEach(action);
+	}
+
+	@Override
+	public boolean flush(){
+		return storage.flush();
+	}
+
+	@Override
+	public boolean close(){
+		Debug.println("Database cache " + getHits() + " hits, " + getMisses() + " misses, " + getEvictions() + " evictions");
+		return storage.close();
+	}
+
+	/**
+	 * @return the number of gets answered from the cache
+	 **/
+	public long getHits(){
+		return hits.sum();
+	}
+
+	/**
+	 * @return the number of gets that had to read from the engine
+	 **/
+	public long getMisses(){
+		return misses.sum();
+	}
+
+	/**
+	 * @return the number of values pushed out of the cache to make room
+	 **/
+	public long getEvictions(){
+		return evictions.sum();
+	}
+
+	/**
+	 * @return the number of values cached
+	 **/
+	public int size(){
+		int size = 0;
+		for(Shard<K, V> shard : shards){
+			synchronized(shard){
+				size += shard.count;
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Finds the shard that caches a key
+	 *
+	 * @param key The key
+	 *
+	 * @return the shard
+	 **/
+	private Shard<K, V> shard(K key){
+		int h = key.hashCode() * 0x9E3779B9;
+		return shards[(h >>> 28) & (SHARDS - 1)];
+	}
+
+	/**
+	 * A cached value, linked into the list of its segment
+	 **/
+	private static final class Node<K, V> {
+		final K key;
+		volatile V value;
+		volatile boolean protect;
+		// read since it was last at the end of the protected segment
+		boolean used;
+		boolean linked;
+		Node<K, V> prev;
+		Node<K, V> next;
+
+		Node(K key, V value){
+			this.key = key;
+			this.value = value;
+		}
+	}
+
+	/**
+	 * One shard of the cache, its two segments are lists kept from the
+	 * most recently used at the head to the least at the tail.
+	 * Values are found without the lock, everything else holds it
+	 **/
+	private static final class Shard<K, V> {
+		final ConcurrentHashMap<K, Node<K, V>> nodes = new ConcurrentHashMap<>();
+		// the lists are circular around an empty node, so there are no ends to check
+		final Node<K, V> probation = new Node<>(null, null);
+		final Node<K, V> protect = new Node<>(null, null);
+		final int capacity;
+		final int protectCapacity;
+		int count;
+		int protectCount;
+		long version;
+
+		Shard(int capacity){
+			this.capacity = capacity;
+			// most of the shard is kept for values read more than once
+			protectCapacity = capacity * 4 / 5;
+			clear();
+		}
+
+		/**
+		 * Empties the shard
+		 **/
+		void clear(){
+			nodes.clear();
+			probation.prev = probation.next = probation;
+			protect.prev = protect.next = protect;
+			count = 0;
+			protectCount = 0;
+		}
+
+		/**
+		 * Moves a value in probation that has been read again to the head
+		 * of the protected segment, making room by moving the last value
+		 * not read since it was last checked back to probation
+		 *
+		 * @param node The value read
+		 **/
+		void promote(Node<K, V> node){
+			unlink(node);
+			node.protect = true;
+			protectCount++;
+			link(protect, node);
+			while(protectCount > protectCapacity){
+				Node<K, V> last = protect.prev;
+				unlink(last);
+				if(last.used){
+					// read again while protected, it gets another pass
+					last.used = false;
+					link(protect, last);
+				}else{
+					last.protect = false;
+					protectCount--;
+					link(probation, last);
+				}
+			}
+		}
+
+		/**
+		 * Adds a value to the head of probation, evicting from the
+		 * tail of probation if the shard is full
+		 *
+		 * @param key The key
+		 * @param value The value read
+		 *
+		 * @return the number of values evicted
+		 **/
+		int add(K key, V value){
+			Node<K, V> node = new Node<>(key, value);
+			nodes.put(key, node);
+			link(probation, node);
+			count++;
+			if(count <= capacity){
+				return 0;
+			}
+			// probation is only empty when the shard is too small for it
+			Node<K, V> victim = probation.prev != probation ? probation.prev : protect.prev;
+			remove(victim);
+			return 1;
+		}
+
+		/**
+		 * Takes a value out of the shard
+		 *
+		 * @param node The value
+		 **/
+		void remove(Node<K, V> node){
+			unlink(node);
+			if(node.protect){
+				protectCount--;
+			}
+			count--;
+			nodes.remove(node.key);
+		}
+
+		private static <K, V> void link(Node<K, V> head, Node<K, V> node){
+			node.linked = true;
+			node.prev = head;
+			node.next = head.next;
+			head.next.prev = node;
+			head.next = node;
+		}
+
+		private static <K, V> void unlink(Node<K, V> node){
+			node.linked = false;
+			node.prev.next = node.next;
+			node.next.prev = node.prev;
+		}
+	}
+}
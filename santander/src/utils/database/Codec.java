@@ -0,0 +1,66 @@
+package netizens.bank.utils.database;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Codec.java
+ *
+ * Turns one type of key or value into bytes and back, for every engine
+ * that writes to disk. Each stored key and value starts with the tag of
+ * its codec, so a file can hold any mix of types and is read back without
+ * knowing them in advance (see Codecs and Record)
+ * <br/>
+ * A tag is part of the file format, once a codec has been used its tag
+ * must never be given to a different one. Encoding must be the same every
+ * time for equal values, as the mapped engine compares encoded keys
+ *
+ * @param <T> The type handled by the codec
+ **/
+public interface Codec<T> {
+
+	/**
+	 * The tag written before every value of this codec
+	 *
+	 * @return the tag, from 1 to 127
+	 **/
+	public byte tag();
+
+	/**
+	 * The class of the values this codec handles, values of a
+	 * subclass need a codec of their own
+	 *
+	 * @return the class
+	 **/
+	public Class<T> type();
+
+	/**
+	 * Gives the number of bytes write() will use for a value,
+	 * not counting the tag
+	 *
+	 * @param value The value to be written
+	 *
+	 * @return the encoded size
+	 **/
+	public int size(T value);
+
+	/**
+	 * Writes a value at the current position of a buffer,
+	 * which has at least size(value) bytes left
+	 *
+	 * @param out The buffer being filled
+	 * @param value The value to write
+	 **/
+	public void write(ByteBuffer out, T value);
+
+	/**
+	 * Reads a value at the current position of a buffer,
+	 * moving the position past it
+	 *
+	 * @param in The buffer holding the value
+	 *
+	 * @return the value
+	 * @throws IOException if the bytes are not a valid value
+	 **/
+	public T read(ByteBuffer in) throws IOException;
+}
@@ -0,0 +1,126 @@
+package netizens.bank.utils.database;
+
+import java.io.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Codecs.java
+ *
+ * Keeps the codec for every type that can be stored, found by the class
+ * of a value when writing and by its tag when reading. Longs, integers
+ * and strings are always there, other types are added with register()
+ * before the database is opened
+ * <br/>
+ * Example usage:
+ * <pre>
+ * 
+ * // Before Database.initialise()
+ * Codecs.register(new MyTypeCodec());
+ * </pre>
+ * 
+ * Tag 0 is kept for null, tag 4 for values written with Java
+ * serialization by older versions, which can still be read but
+ * only for the types in LEGACY_FILTER, and tag 127 for records
+ * holding several puts (see Record)
+ **/
+public final class Codecs {
+
+	/**
+	 * The tag written for a null key or value
+	 **/
+	public static final byte NULL = 0;
+
+	/**
+	 * The tag of values written with Java serialization by older versions
+	 **/
+	public static final byte LEGACY_OBJECT = 4;
+
+	/**
+	 * The tag starting a record that holds several puts
+	 **/
+	public static final byte BATCH = 127;
+
+	/**
+	 * The only classes that are deserialized from older files,
+	 * anything else in them is refused rather than constructed
+	 **/
+	public static final ObjectInputFilter LEGACY_FILTER = ObjectInputFilter.Config.createFilter(
+		"maxdepth=8;java.util.HashMap;java.util.Map$Entry;java.lang.Long;java.lang.Integer;java.lang.Number;java.lang.String;!*");
+
+	private static final Codec<?>[] byTag = new Codec<?>[128];
+	private static final ConcurrentHashMap<Class<?>, Codec<?>> byType = new ConcurrentHashMap<>();
+
+	static{
+		register(new LongCodec());
+		register(new IntegerCodec());
+		register(new StringCodec());
+	}
+
+	private Codecs(){}
+
+	/**
+	 * Adds a codec, so values of its type can be stored
+	 *
+	 * @param codec The codec to add
+	 * @throws IllegalArgumentException if the tag is reserved or already taken
+	 **/
+	public static synchronized void register(Codec<?> codec){
+		byte tag = codec.tag();
+		if(tag <= NULL || tag == LEGACY_OBJECT || tag == BATCH){
+			throw new IllegalArgumentException("Codec tag " + tag + " is reserved");
+		}
+		if(byTag[tag] != null && byTag[tag].getClass() != codec.getClass()){
+			throw new IllegalArgumentException("Codec tag " + tag + " is already used by " + byTag[tag].getClass().getName());
+		}
+		byTag[tag] = codec;
+		byType.put(codec.type(), codec);
+	}
+
+	/**
+	 * Gets the codec for a value
+	 *
+	 * @param o The key or value, not null
+	 *
+	 * @return the codec for its class
+	 * @throws IOException if no codec has been registered for the class
+	 **/
+	@SuppressWarnings("unchecked")
+	public static Codec<Object> forValue(Object o) throws IOException {
+		Codec<?> codec = byType.get(o.getClass());
+		if(codec == null){
+			throw new IOException("No codec for " + o.getClass().getName());
+		}
+		return (Codec<Object>) codec;
+	}
+
+	/**
+	 * Gets the codec that wrote a value
+	 *
+	 * @param tag The tag before the value
+	 *
+	 * @return the codec
+	 * @throws IOException if no codec has the tag
+	 **/
+	public static Codec<?> forTag(byte tag) throws IOException {
+		Codec<?> codec = tag > NULL && tag != BATCH ? byTag[tag] : null;
+		if(codec == null){
+			throw new IOException("Unknown record tag " + tag);
+		}
+		return codec;
+	}
+
+	/**
+	 * Opens a stream of Java serialized data from an older version,
+	 * refusing any class not in LEGACY_FILTER
+	 *
+	 * @param in The serialized data
+	 *
+	 * @return the filtered stream
+	 * @throws IOException if the stream header can't be read
+	 **/
+	public static ObjectInputStream legacyStream(InputStream in) throws IOException {
+		ObjectInputStream objectIn = new ObjectInputStream(in);
+		objectIn.setObjectInputFilter(LEGACY_FILTER);
+		return objectIn;
+	}
+}
@@ -0,0 +1,305 @@
+package netizens.bank.utils.database;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * GroupCommit.java
+ *
+ * Gathers records from any number of threads and hands them to a single
+ * writer thread in batches, so that many commits share one write and one
+ * sync to disk instead of each waiting for a sync of its own
+ * <br/>
+ * A thread adds its records and then waits for the last one to be written.
+ * The writer takes everything added so far, up to a size limit, writes it
+ * and then wakes every thread whose records were in the batch. Records added
+ * while a batch is being synced make up the next batch, so the busier it is
+ * the more each sync covers. The writer can also be told to wait a little
+ * for more records before starting a batch
+ * <br/>
+ * Records are written in the order they were added. The writer thread is
+ * started by the first record and stopped by close()
+ **/
+public final class GroupCommit {
+
+	/**
+	 * Where the batches are written
+	 **/
+	public interface Target {
+
+		/**
+		 * Writes a batch of records and makes sure they are on disk
+		 *
+		 * @param batch The records in the order they were added
+		 * @throws IOException if the batch could not be written
+		 **/
+		public void write(List<byte[]> batch) throws IOException;
+	}
+
+	private final String name;
+	private final Target target;
+	private final long delay;
+	private final int maxBytes;
+	private final ReentrantLock lock = new ReentrantLock();
+	// signalled for the writer when there is work, and for waiting threads when a batch is done
+	private final Condition work = lock.newCondition();
+	private final Condition done = lock.newCondition();
+	private ArrayList<byte[]> pending = new ArrayList<>();
+	private int pendingBytes;
+	private long added;
+	private long written;
+	private long batches;
+	private boolean failed;
+	private boolean closed;
+	private Thread writer;
+
+	/**
+	 * Creates the group commit for a target, no thread is started yet
+	 *
+	 * @param name The name of the writer thread
+	 * @param target Where the batches are written
+	 * @param delay The microseconds to wait for more records before writing a batch
+	 * @param maxBytes The size at which a batch is written without waiting, and the most in one batch
+	 **/
+	public GroupCommit(String name, Target target, int delay, int maxBytes){
+		this.name = name;
+		this.target = target;
+		this.delay = Math.max(delay, 0) * 1000L;
+		this.maxBytes = Math.max(maxBytes, 1);
+	}
+
+	/**
+	 * Adds a record to be written
+	 *
+	 * @param record The record
+	 *
+	 * @return the number of the record, to wait for with await()
+	 * @throws IOException if a batch has failed or the group commit is closed
+	 **/
+	public long add(byte[] record) throws IOException {
+		lock.lock();
+		try{
+			if(failed || closed){
+				throw new IOException(failed ? "Database log failed" : "Database log closed");
+			}
+			if(writer == null){
+				writer = new Thread(name){
+					@Override
+					public void run(){
+						writeBatches();
+					}
+				};
+				writer.setDaemon(true);
+				writer.start();
+			}
+			pending.add(record);
+			pendingBytes += record.length;
+			added++;
+			// the writer only needs waking for the first record or a full batch
+			if(pending.size() == 1 || pendingBytes >= maxBytes){
+				work.signal();
+			}
+			return added;
+		}finally{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits until a record, and every record before it, is written
+	 *
+	 * @param record The number given by add()
+	 *
+	 * @return false if a batch failed before the record was written
+	 **/
+	public boolean await(long record){
+		lock.lock();
+		try{
+			while(written < record && !failed){
+				done.awaitUninterruptibly();
+			}
+			return written >= record;
+		}finally{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits until every record added so far is written
+	 *
+	 * @return false if a batch failed
+	 **/
+	public boolean sync(){
+		long last;
+		lock.lock();
+		try{
+			last = added;
+		}finally{
+			lock.unlock();
+		}
+		return await(last);
+	}
+
+	/**
+	 * Writes everything still waiting and stops the writer
+	 *
+	 * @return false if a batch failed
+	 **/
+	public boolean close(){
+		Thread thread;
+		lock.lock();
+		try{
+			closed = true;
+			work.signal();
+			thread = writer;
+		}finally{
+			lock.unlock();
+		}
+		if(thread != null){
+			try{
+				thread.join();
+			}catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+			}
+		}
+		lock.lock();
+		try{
+			return !failed && written == added;
+		}finally{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return true once a batch has failed, nothing more will be written
+	 **/
+	public boolean isFailed(){
+		lock.lock();
+		try{
+			return failed;
+		}finally{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of batches written, for seeing how many records each sync covered
+	 **/
+	public long getBatches(){
+		lock.lock();
+		try{
+			return batches;
+		}finally{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of records written
+	 **/
+	public long getWritten(){
+		lock.lock();
+		try{
+			return written;
+		}finally{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * The writer thread, takes and writes batches until closed
+	 **/
+	private void writeBatches(){
+		for(;;){
+			List<byte[]> batch;
+			long last;
+			lock.lock();
+			try{
+				while(pending.isEmpty() && !closed){
+					work.awaitUninterruptibly();
+				}
+				if(pending.isEmpty()){
+					return;
+				}
+				// give other threads a chance to join the batch
+				long left = delay;
+				while(left > 0 && pendingBytes < maxBytes && !closed){
+					left = awaitWork(left);
+				}
+				batch = take();
+				last = written + batch.size();
+			}finally{
+				lock.unlock();
+			}
+
+			try{
+				target.write(batch);
+			}catch(IOException e){
+				System.err.println("Error writing to database log");
+				System.err.println(e);
+				lock.lock();
+				try{
+					failed = true;
+					done.signalAll();
+				}finally{
+					lock.unlock();
+				}
+				return;
+			}
+
+			lock.lock();
+			try{
+				written = last;
+				batches++;
+				done.signalAll();
+			}finally{
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Takes the records for the next batch, up to the size limit,
+	 * must hold the lock
+	 *
+	 * @return the records in the order added
+	 **/
+	private List<byte[]> take(){
+		if(pendingBytes <= maxBytes){
+			List<byte[]> batch = pending;
+			pending = new ArrayList<>();
+			pendingBytes = 0;
+			return batch;
+		}
+		int bytes = 0;
+		int count = 0;
+		// always at least one record, however big
+		while(count < pending.size() && (count == 0 || bytes + pending.get(count).length <= maxBytes)){
+			bytes += pending.get(count).length;
+			count++;
+		}
+		List<byte[]> head = pending.subList(0, count);
+		List<byte[]> batch = new ArrayList<>(head);
+		head.clear();
+		pendingBytes -= bytes;
+		return batch;
+	}
+
+	/**
+	 * Waits for more work, must hold the lock
+	 *
+	 * @param nanos The longest to wait
+	 *
+	 * @return the nanoseconds left to wait
+	 **/
+	private long awaitWork(long nanos){
+		try{
+			return work.awaitNanos(nanos);
+		}catch(InterruptedException e){
+			// the writer only stops once closed
+			return 0;
+		}
+	}
+}
@@ -0,0 +1,96 @@
+package netizens.bank.utils.database;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Index.java
+ *
+ * A secondary index kept in memory in sorted order, mapping the index key
+ * of every stored value to the key it is stored at. The key in the database
+ * is added as the last part of each index key so that values sharing an
+ * index key are all kept, which means the database keys must be Comparable
+ * <br/>
+ * The index is built from the data when it is declared and kept up to date
+ * by Database.put(), it is not saved. Sorted maps can be read while they are
+ * changed, so scans never stop puts
+ *
+ * @param <K> The type of key in the database
+ * @param <V> The type of value in the database
+ **/
+public final class Index<K, V> {
+
+	private final Indexer<K, V> indexer;
+	private final ConcurrentSkipListMap<Tuple, K> entries;
+
+	/**
+	 * Creates an empty index
+	 *
+	 * @param indexer Works out the index key of each value
+	 **/
+	public Index(Indexer<K, V> indexer){
+		this.indexer = indexer;
+		entries = new ConcurrentSkipListMap<>();
+	}
+
+	/**
+	 * Moves a key from where its old value was indexed to
+	 * where its new value belongs
+	 *
+	 * @param key The key in the database
+	 * @param old The value that was stored, null if there was none
+	 * @param value The value now stored, null if it was removed
+	 **/
+	public void update(K key, V old, V value){
+		Tuple before = old == null ? null : indexer.key(key, old);
+		Tuple after = value == null ? null : indexer.key(key, value);
+		if(before != null && before.equals(after)){
+			return;
+		}
+		if(before != null){
+			entries.remove(before.with(key));
+		}
+		if(after != null){
+			entries.put(after.with(key), key);
+		}
+	}
+
+	/**
+	 * Checks a value is still indexed under the given entry,
+	 * for scans that read the value after finding the entry
+	 *
+	 * @param entry The index key including the database key
+	 * @param key The key in the database
+	 * @param value The value read, null if there is none
+	 *
+	 * @return true if the value belongs at the entry
+	 **/
+	public boolean holds(Tuple entry, K key, V value){
+		if(value == null){
+			return false;
+		}
+		Tuple tuple = indexer.key(key, value);
+		return tuple != null && tuple.equals(entry.parent());
+	}
+
+	/**
+	 * Gives the entries in a range, in order
+	 *
+	 * @param from The lowest index key, included
+	 * @param to The highest index key, left out
+	 * @param reverse True to go from the highest to the lowest
+	 *
+	 * @return a live view of the range
+	 **/
+	public NavigableMap<Tuple, K> range(Tuple from, Tuple to, boolean reverse){
+		NavigableMap<Tuple, K> range = entries.subMap(from, true, to, false);
+		return reverse ? range.descendingMap() : range;
+	}
+
+	/**
+	 * @return the number of values in the index
+	 **/
+	public int size(){
+		return entries.size();
+	}
+}
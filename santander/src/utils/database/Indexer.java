@@ -0,0 +1,24 @@
+package netizens.bank.utils.database;
+
+/**
+ * Indexer.java
+ *
+ * Works out where a key and value go in a secondary index,
+ * given to Database.index() when the index is declared
+ *
+ * @param <K> The type of key in the database
+ * @param <V> The type of value in the database
+ **/
+public interface Indexer<K, V> {
+
+	/**
+	 * Gives the index key for a stored value. It must only depend on
+	 * the key and value, as it is worked out again to remove the entry
+	 *
+	 * @param key The key in the database
+	 * @param value The value stored, not null
+	 *
+	 * @return the index key, null to leave the value out of the index
+	 **/
+	public Tuple key(K key, V value);
+}
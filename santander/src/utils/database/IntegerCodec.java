@@ -0,0 +1,38 @@
+package netizens.bank.utils.database;
+
+import java.nio.ByteBuffer;
+
+/**
+ * IntegerCodec.java
+ *
+ * Integers, written as four bytes
+ **/
+public final class IntegerCodec implements Codec<Integer> {
+
+	public static final byte TAG = 2;
+
+	@Override
+	public byte tag(){
+		return TAG;
+	}
+
+	@Override
+	public Class<Integer> type(){
+		return Integer.class;
+	}
+
+	@Override
+	public int size(Integer value){
+		return 4;
+	}
+
+	@Override
+	public void write(ByteBuffer out, Integer value){
+		out.putInt(value);
+	}
+
+	@Override
+	public Integer read(ByteBuffer in){
+		return in.getInt();
+	}
+}
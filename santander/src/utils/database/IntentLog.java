@@ -0,0 +1,297 @@
+package netizens.bank.utils.database;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.zip.CRC32C;
+
+/**
+ * IntentLog.java
+ *
+ * Keeps a change that spans several shards whole across a crash (see
+ * ShardedStorage). The whole change is written here and synced before any
+ * shard is given its part, and marked done once every shard has saved its
+ * part. When the shards are opened again, the changes not marked done are
+ * given back to be put again, which only puts values again where a shard
+ * had saved its part already
+ * <br/>
+ * The file is the database path with ".intents" added. Each record is its
+ * length, a CRC-32C of its body and then the body: INTENT, the number of
+ * the change and its keys and values as in the log (see Record), or DONE
+ * and the number up to which every change is saved. A record cut short by
+ * a crash ends the file. Changes are marked done in order, so once one is
+ * done so is every change before it. The file is emptied again once
+ * nothing is waiting and it has grown large
+ **/
+public class IntentLog {
+
+	public static final byte INTENT = 1;
+	public static final byte DONE = 2;
+
+	// the file is emptied once it is larger than this and every change is done
+	private static final long RESET_BYTES = 1 << 20;
+
+	private final File file;
+	private final boolean sync;
+	private final CRC32C checksum = new CRC32C();
+	// changes given to the shards but not yet put in all of them, by number
+	private final TreeSet<Long> running = new TreeSet<>();
+	// held while writing the file, apart from this so a batch can be written while waiting on it
+	private final Object writing = new Object();
+	private GroupCommit commit;
+	private FileOutputStream out;
+	private volatile long bytes;
+	private long last;
+	private long done;
+
+	/**
+	 * Creates the intent log for a database, nothing is read until open()
+	 *
+	 * @param path The path of the database, the log is kept next to it
+	 * @param sync False to write changes without syncing them
+	 **/
+	public IntentLog(String path, boolean sync){
+		this.file = new File(path + ".intents");
+		this.sync = sync;
+	}
+
+	/**
+	 * Reads the changes not marked done, truncating a record cut short by a
+	 * crash, and starts a new file if there is none
+	 *
+	 * @return the keys and values of each change not marked done, in order
+	 * @throws IOException if the file can't be read or isn't an intent log
+	 **/
+	public synchronized List<Object[]> open() throws IOException {
+		TreeMap<Long, Object[]> intents = new TreeMap<>();
+		long good = 0;
+		// shorter than a header is a new file torn by a crash
+		if(file.exists() && file.length() >= Snapshot.HEADER){
+			byte[] content = Files.readAllBytes(file.toPath());
+			Snapshot.checkHeader(file, new DataInputStream(new ByteArrayInputStream(content)), Snapshot.INTENTS);
+			CRC32C crc = new CRC32C();
+			ByteBuffer in = ByteBuffer.wrap(content);
+			in.position(Snapshot.HEADER);
+			good = Snapshot.HEADER;
+			while(in.remaining() >= 8){
+				int length = in.getInt();
+				int sum = in.getInt();
+				if(length < 9 || length > Record.MAX_LENGTH || length > in.remaining()){
+					break;
+				}
+				crc.reset();
+				crc.update(content, in.position(), length);
+				if((int) crc.getValue() != sum){
+					break;
+				}
+				ByteBuffer body = in.slice();
+				body.limit(length);
+				byte kind = body.get();
+				long number = body.getLong();
+				if(kind == INTENT){
+					intents.put(number, Record.decode(body.slice()));
+				}else if(kind == DONE){
+					done = Math.max(done, number);
+				}else{
+					throw new IOException("Unknown record at " + good + " in " + file);
+				}
+				last = Math.max(last, number);
+				in.position(in.position() + length);
+				good = in.position();
+			}
+		}
+		synchronized(writing){
+			out = new FileOutputStream(file, true);
+			if(good == 0){
+				out.getChannel().truncate(0);
+				out.write(Snapshot.header(Snapshot.INTENTS, Snapshot.CHECKSUMMED));
+				if(sync){
+					out.getChannel().force(false);
+					Snapshot.syncDirectory(file);
+				}
+				good = Snapshot.HEADER;
+			}else if(good < file.length()){
+				// the end of a record torn by a crash
+				out.getChannel().truncate(good);
+			}
+			bytes = good;
+		}
+		commit = new GroupCommit("database-intents " + file.getName(), new GroupCommit.Target(){
+			@Override
+			public void write(List<byte[]> batch) throws IOException {
+				append(batch);
+			}
+		}, 0, 1 << 20);
+		return new ArrayList<>(intents.tailMap(done, false).values());
+	}
+
+	/**
+	 * Writes a change and waits until it is synced, finish() must be called
+	 * once every shard has been given its part
+	 *
+	 * @param values The keys and values of the change
+	 *
+	 * @return the number of the change
+	 * @throws IOException if the change could not be written
+	 **/
+	public long begin(Map<?, ?> values) throws IOException {
+		byte[] inner = Record.encode(values);
+		long number;
+		long record;
+		synchronized(this){
+			number = ++last;
+			record = commit.add(record(INTENT, number, inner, 4));
+			running.add(number);
+		}
+		if(!commit.await(record)){
+			finish(number);
+			throw new IOException("Database intent log failed");
+		}
+		return number;
+	}
+
+	/**
+	 * Notes that every shard has been given its part of a change
+	 *
+	 * @param number The number given by begin()
+	 **/
+	public synchronized void finish(long number){
+		running.remove(number);
+	}
+
+	/**
+	 * Gets the number up to which every change has been given to the
+	 * shards, to be marked done once the shards are flushed
+	 *
+	 * @return the number
+	 **/
+	public synchronized long getPut(){
+		return running.isEmpty() ? last : running.first() - 1;
+	}
+
+	/**
+	 * Marks every change up to a number done, once the shards have saved
+	 * their parts, emptying the file instead if nothing else is waiting
+	 *
+	 * @param number The number from getPut() before the shards were flushed
+	 *
+	 * @return false if the mark could not be written
+	 **/
+	public boolean done(long number){
+		long record;
+		synchronized(this){
+			if(number <= done){
+				return true;
+			}
+			try{
+				if(running.isEmpty() && number == last && bytes > RESET_BYTES){
+					if(!commit.sync()){
+						return false;
+					}
+					reset();
+					done = number;
+					return true;
+				}
+				record = commit.add(record(DONE, number, new byte[0], 0));
+			}catch(IOException e){
+				System.err.println("Error writing database intent log");
+				System.err.println(e);
+				return false;
+			}
+		}
+		if(!commit.await(record)){
+			return false;
+		}
+		synchronized(this){
+			done = Math.max(done, number);
+		}
+		return true;
+	}
+
+	/**
+	 * Empties the file once every change in it has been saved by the shards
+	 *
+	 * @throws IOException if the file could not be emptied
+	 **/
+	private void reset() throws IOException {
+		synchronized(writing){
+			out.getChannel().truncate(Snapshot.HEADER);
+			if(sync){
+				out.getChannel().force(false);
+			}
+			bytes = Snapshot.HEADER;
+		}
+	}
+
+	/**
+	 * Writes anything still waiting and closes the file
+	 *
+	 * @return false if something could not be written
+	 **/
+	public boolean close(){
+		if(commit == null){
+			return true;
+		}
+		boolean committed = commit.close();
+		synchronized(writing){
+			try{
+				out.close();
+				return committed;
+			}catch(IOException e){
+				System.err.println("Error closing database intent log");
+				System.err.println(e);
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Builds a record, with room for the checksum filled in when written
+	 *
+	 * @param kind INTENT or DONE
+	 * @param number The number of the change
+	 * @param inner The keys and values encoded by Record, or nothing
+	 * @param skip The bytes at the start of inner to leave out, its length
+	 *
+	 * @return the record
+	 **/
+	private static byte[] record(byte kind, long number, byte[] inner, int skip){
+		int length = 9 + inner.length - skip;
+		ByteBuffer record = ByteBuffer.allocate(8 + length);
+		record.putInt(length);
+		record.putInt(0);
+		record.put(kind);
+		record.putLong(number);
+		record.put(inner, skip, inner.length - skip);
+		return record.array();
+	}
+
+	/**
+	 * Appends a batch of records with their checksums and syncs them
+	 *
+	 * @param batch The records
+	 * @throws IOException if the records could not be written
+	 **/
+	private void append(List<byte[]> batch) throws IOException {
+		synchronized(writing){
+			ByteBuffer[] buffers = new ByteBuffer[batch.size()];
+			long length = 0;
+			for(int x = 0; x < batch.size(); x++){
+				byte[] record = batch.get(x);
+				checksum.reset();
+				checksum.update(record, 8, record.length - 8);
+				ByteBuffer.wrap(record).putInt(4, (int) checksum.getValue());
+				buffers[x] = ByteBuffer.wrap(record);
+				length += record.length;
+			}
+			bytes += length;
+			while(length > 0){
+				length -= out.getChannel().write(buffers);
+			}
+			if(sync){
+				out.getChannel().force(false);
+			}
+		}
+	}
+}
@@ -0,0 +1,464 @@
+package netizens.bank.utils.database;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import netizens.bank.utils.Debug;
+
+/**
+ * LogShipper.java
+ *
+ * Sends every change saved on the primary to its followers over TCP, so
+ * a follower holds a copy of the databases that is at most moments behind
+ * (see Follower). Changes are handed over by ShippingStorage once they are
+ * saved, numbered in the order they are shipped
+ * <br/>
+ * A follower that connects is first sent every key of every database as
+ * it is when reached, then the changes shipped since it connected. As in
+ * a checkpoint, a change made while the copy is sent may be in it and
+ * also be sent after it, and putting it again leaves the same value.
+ * Each follower has a queue of its own, one that falls too far behind is
+ * disconnected and copies everything again once it reconnects, as is
+ * every follower if a change can't be shipped. When there
+ * is nothing to send a heartbeat goes out every second, so the follower
+ * can tell how far behind it is
+ * <br/>
+ * Each message is the kind, the number of the change and the time it was
+ * shipped, a change then has the name of its database and a record in
+ * the same form as the log (see Record)
+ * <br/>
+ * Followers are only listened for on the address given, by default the
+ * loopback, and must know the shared secret. Before anything is sent each
+ * side sends a random challenge and proves it knows the secret with an
+ * HMAC of the other's, so the secret itself never crosses the network and
+ * a follower can't be fed changes by a server that doesn't know it either.
+ * The changes themselves are not encrypted, so a primary and its followers
+ * on different machines should talk over a private network or a tunnel
+ **/
+public class LogShipper {
+
+	public static final byte PUT = 1;
+	public static final byte HEARTBEAT = 2;
+	public static final byte COPIED = 3;
+
+	/**
+	 * The roles proven in the handshake, so that a proof can't be sent back
+	 **/
+	public static final byte PRIMARY = 1;
+	public static final byte FOLLOWER = 2;
+
+	/**
+	 * The size of a challenge and of a proof in the handshake
+	 **/
+	public static final int CHALLENGE = 32;
+	public static final int PROOF = 32;
+
+	/**
+	 * The most milliseconds between two messages to a follower
+	 **/
+	public static final int HEARTBEAT_TIME = 1000;
+
+	// changes waiting for a follower before it is disconnected
+	private static final int QUEUE = 1 << 18;
+	// keys sent together in one record of the copy
+	private static final int COPY_BATCH = 256;
+
+	private final String address;
+	private final int port;
+	private final String secret;
+	private final ConcurrentHashMap<String, Storage<?, ?>> databases = new ConcurrentHashMap<>();
+	private final CopyOnWriteArrayList<Link> followers = new CopyOnWriteArrayList<>();
+	private long sequence;
+	private ServerSocket server;
+
+	/**
+	 * A connected follower, with the changes waiting to be sent to it
+	 **/
+	private class Link extends Thread {
+
+		private final Socket socket;
+		private final BlockingQueue<byte[]> queue = new LinkedBlockingQueue<>(QUEUE);
+		private final long copied;
+
+		/**
+		 * @param socket The connection to the follower
+		 * @param copied The number of the last change before it connected
+		 **/
+		private Link(Socket socket, long copied){
+			super("database-shipper " + socket.getRemoteSocketAddress());
+			this.socket = socket;
+			this.copied = copied;
+			setDaemon(true);
+		}
+
+		@Override
+		public void run(){
+			try{
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+				handshake(out);
+				copy(out);
+				for(;;){
+					byte[] message = queue.poll();
+					if(message == null){
+						// sent before waiting, so a change never sits in the buffer
+						out.flush();
+						message = queue.poll(HEARTBEAT_TIME, TimeUnit.MILLISECONDS);
+					}
+					if(message == null){
+						out.write(header(HEARTBEAT, getSequence()));
+					}else{
+						out.write(message);
+					}
+				}
+			}catch(IOException e){
+				Debug.println("Follower " + socket.getRemoteSocketAddress() + " disconnected, " + e.getMessage());
+			}catch(InterruptedException e){
+				// stopped by close()
+			}finally{
+				drop();
+			}
+		}
+
+		/**
+		 * Checks the follower knows the secret and proves this does too,
+		 * before anything is sent to it
+		 *
+		 * @param out The connection
+		 * @throws IOException if the follower gave the wrong proof or went quiet
+		 **/
+		private void handshake(DataOutputStream out) throws IOException {
+			socket.setSoTimeout(HEARTBEAT_TIME * 3);
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			byte[] challenge = challenge();
+			out.write(challenge);
+			out.flush();
+			byte[] theirs = new byte[CHALLENGE];
+			in.readFully(theirs);
+			byte[] proof = new byte[PROOF];
+			in.readFully(proof);
+			if(!MessageDigest.isEqual(proof, prove(secret, FOLLOWER, challenge))){
+				throw new IOException("Wrong secret");
+			}
+			out.write(prove(secret, PRIMARY, theirs));
+			out.flush();
+			socket.setSoTimeout(0);
+		}
+
+		/**
+		 * Sends every key of every database, then marks the end of the copy
+		 *
+		 * @param out The connection
+		 * @throws IOException if the copy could not be sent
+		 **/
+		private void copy(final DataOutputStream out) throws IOException {
+			long start = System.nanoTime();
+			final long[] keys = new long[1];
+			for(Map.Entry<String, Storage<?, ?>> database : databases.entrySet()){
+				final String name = database.getKey();
+				final Map<Object, Object> batch = new HashMap<>();
+				final IOException[] failed = new IOException[1];
+				database.getValue().forEach(new BiConsumer<Object, Object>(){
+					@Override
+					public void accept(Object key, Object value){
+						if(failed[0] != null){
+							return;
+						}
+						batch.put(key, value);
+						keys[0]++;
+						if(batch.size() == COPY_BATCH){
+							failed[0] = send(out, name, batch);
+						}
+					}
+				});
+				if(failed[0] == null && !batch.isEmpty()){
+					failed[0] = send(out, name, batch);
+				}
+				if(failed[0] != null){
+					throw failed[0];
+				}
+			}
+			out.write(header(COPIED, copied));
+			out.flush();
+			Debug.println("Follower " + socket.getRemoteSocketAddress() + " sent " + keys[0] + " keys in " + (System.nanoTime() - start) / 1000000 + " ms");
+		}
+
+		/**
+		 * Sends a batch of the copy as one change and empties it
+		 *
+		 * @param out The connection
+		 * @param name The name of the database
+		 * @param batch The keys and values
+		 *
+		 * @return the error if it could not be sent, otherwise null
+		 **/
+		private IOException send(DataOutputStream out, String name, Map<Object, Object> batch){
+			try{
+				out.write(message(copied, name, Record.encode(batch)));
+				batch.clear();
+				return null;
+			}catch(IOException e){
+				return e;
+			}
+		}
+
+		/**
+		 * Disconnects the follower and stops sending to it
+		 **/
+		private void drop(){
+			followers.remove(this);
+			try{
+				socket.close();
+			}catch(IOException e){
+				// already closed
+			}
+		}
+	}
+
+	/**
+	 * Creates a shipper for the given address and port, nothing is
+	 * listened for until start()
+	 *
+	 * @param address The address followers connect to, empty for the loopback
+	 * @param port The port followers connect to
+	 * @param secret The secret followers must know
+	 **/
+	public LogShipper(String address, int port, String secret){
+		this.address = address;
+		this.port = port;
+		this.secret = secret;
+	}
+
+	/**
+	 * Adds a database to be copied to followers that connect, its changes
+	 * are shipped by ShippingStorage
+	 *
+	 * @param name The name of the database, the same on every server
+	 * @param storage The engine of the database
+	 **/
+	public void register(String name, Storage<?, ?> storage){
+		databases.put(name, storage);
+	}
+
+	/**
+	 * Listens for followers on a thread of its own
+	 *
+	 * @throws IOException if there is no secret or the port could not be listened on
+	 **/
+	public synchronized void start() throws IOException {
+		if(server != null){
+			return;
+		}
+		if(secret == null || secret.isEmpty()){
+			throw new IOException("No secret for followers");
+		}
+		server = new ServerSocket();
+		server.setReuseAddress(true);
+		server.bind(address == null || address.isEmpty() ? new InetSocketAddress(InetAddress.getLoopbackAddress(), port) : new InetSocketAddress(address, port));
+		final ServerSocket listening = server;
+		Thread acceptor = new Thread("database-shipper"){
+			@Override
+			public void run(){
+				while(!listening.isClosed()){
+					try{
+						accept(listening.accept());
+					}catch(IOException e){
+						if(!listening.isClosed()){
+							System.err.println("Error accepting follower");
+							System.err.println(e);
+						}
+					}
+				}
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+		Debug.println("Shipping database changes on " + server.getLocalSocketAddress());
+	}
+
+	/**
+	 * Ships saved changes to every follower, in the order given
+	 *
+	 * @param name The name of the database
+	 * @param records The changes, each encoded by Record
+	 **/
+	public synchronized void ship(String name, List<byte[]> records){
+		for(byte[] record : records){
+			byte[] message;
+			try{
+				message = message(++sequence, name, record);
+			}catch(IOException e){
+				System.err.println("Error shipping database change");
+				System.err.println(e);
+				// a follower can't tell a change is missing, so it must copy everything again
+				for(Link link : followers){
+					link.interrupt();
+					link.drop();
+				}
+				continue;
+			}
+			for(Link link : followers){
+				if(!link.queue.offer(message)){
+					Debug.println("Follower " + link.socket.getRemoteSocketAddress() + " fell too far behind");
+					link.interrupt();
+					link.drop();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Says whether any follower is connected, changes
+	 * need not be kept for shipping otherwise
+	 *
+	 * @return true if there is a follower
+	 **/
+	public boolean isFollowed(){
+		return !followers.isEmpty();
+	}
+
+	/**
+	 * @return the number of the last change shipped
+	 **/
+	public synchronized long getSequence(){
+		return sequence;
+	}
+
+	/**
+	 * @return the number of followers connected
+	 **/
+	public int getFollowers(){
+		return followers.size();
+	}
+
+	/**
+	 * Gets how far behind the slowest follower is
+	 *
+	 * @return the most changes waiting to be sent to one follower
+	 **/
+	public int getBehind(){
+		int behind = 0;
+		for(Link link : followers){
+			behind = Math.max(behind, link.queue.size());
+		}
+		return behind;
+	}
+
+	/**
+	 * Stops listening and disconnects every follower
+	 **/
+	public synchronized void close(){
+		try{
+			if(server != null){
+				server.close();
+			}
+		}catch(IOException e){
+			// already closed
+		}
+		for(Link link : followers){
+			link.interrupt();
+			link.drop();
+		}
+	}
+
+	/**
+	 * Starts sending to a follower that has connected, changes shipped
+	 * from now on are queued for it while it is sent the copy
+	 *
+	 * @param socket The connection to the follower
+	 * @throws IOException if the connection could not be set up
+	 **/
+	private void accept(Socket socket) throws IOException {
+		socket.setTcpNoDelay(true);
+		Link link;
+		// nothing is shipped between reading the number and joining
+		synchronized(this){
+			link = new Link(socket, sequence);
+			followers.add(link);
+		}
+		Debug.println("Follower " + socket.getRemoteSocketAddress() + " connected");
+		link.start();
+	}
+
+	/**
+	 * Builds a message without a change
+	 *
+	 * @param kind HEARTBEAT or COPIED
+	 * @param number The number of the last change
+	 *
+	 * @return the message
+	 **/
+	private static byte[] header(byte kind, long number){
+		ByteBuffer message = ByteBuffer.allocate(17);
+		message.put(kind);
+		message.putLong(number);
+		message.putLong(System.currentTimeMillis());
+		return message.array();
+	}
+
+	/**
+	 * Builds the message for a change
+	 *
+	 * @param number The number of the change
+	 * @param name The name of the database
+	 * @param record The change, encoded by Record
+	 *
+	 * @return the message
+	 * @throws IOException if the name could not be encoded
+	 **/
+	private static byte[] message(long number, String name, byte[] record) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(record.length + 32);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(PUT);
+		out.writeLong(number);
+		out.writeLong(System.currentTimeMillis());
+		out.writeUTF(name);
+		out.write(record);
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * @return a new random challenge for the handshake
+	 **/
+	public static byte[] challenge(){
+		byte[] challenge = new byte[CHALLENGE];
+		new SecureRandom().nextBytes(challenge);
+		return challenge;
+	}
+
+	/**
+	 * Proves knowing the secret, answering the challenge of the other side
+	 *
+	 * @param secret The shared secret
+	 * @param role PRIMARY or FOLLOWER, the side giving the proof
+	 * @param challenge The challenge sent by the other side
+	 *
+	 * @return the HMAC-SHA256 of the role and the challenge
+	 * @throws IOException if HMAC-SHA256 is not available
+	 **/
+	public static byte[] prove(String secret, byte role, byte[] challenge) throws IOException {
+		try{
+			Mac mac = Mac.getInstance("HmacSHA256");
+			mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+			mac.update(role);
+			return mac.doFinal(challenge);
+		}catch(GeneralSecurityException e){
+			throw new IOException(e);
+		}
+	}
+}
@@ -0,0 +1,828 @@
+package netizens.bank.utils.database;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32C;
+import netizens.bank.utils.Debug;
+
+/**
+ * LogStorage.java
+ *
+ * Keeps the data in memory like the original engine (see TableMap), but every put
+ * is appended to a log file as soon as it is made, so the cost of saving
+ * is the size of the change and nothing is lost if the program stops
+ * without closing the database
+ * <br/>
+ * Puts are handed to a single writer thread that appends them in batches
+ * (see GroupCommit). flush() waits until every put made before it is
+ * written and, unless sync is turned off, synced to disk, so once it
+ * returns the puts survive the machine stopping too. Threads flushing at
+ * the same time share one sync
+ * <br/>
+ * The log is kept in segments next to the checkpoint, the database path with
+ * ".log.1", ".log.2" and so on added. A segment is closed and synced once it
+ * grows past the segment size and the next one is started. Each record in
+ * a segment carries a CRC-32C of its body after its length, so a record torn
+ * by a crash is told apart from one that was written. On open the checkpoint
+ * is loaded and every segment is replayed over it in order. Segments are read
+ * and checked by a pool of threads, one for each core, and applied in order
+ * as each is ready, so replay takes the time of reading the segments spread
+ * over the cores. A bad record in the last segment is where a crash cut the
+ * log short, the segment is truncated there. Damage in an earlier segment
+ * can't come from a crash, as each was synced before the next was started,
+ * and the database is not opened rather than lose the puts after it
+ * <br/>
+ * After a number of puts the whole map is written to a checkpoint file on
+ * a thread of its own while gets and puts carry on. A new segment is started
+ * first, then the map is written as each value is reached, at a limited rate
+ * so that the disk is left free for the log. That image can hold puts made
+ * after the new segment started, or only part of a putAll(), but every such
+ * put is also in the new segment, which is replayed over it. Once the
+ * checkpoint is in place the segments before it are deleted, any still there
+ * on open are replayed before the ones after them. So a restart reads one
+ * checkpoint and at most the puts between two checkpoints, however long the
+ * database has been running. Segments start with a header giving the format
+ * version, and the checkpoint is written the same way as the serial engine
+ * saves (see Snapshot), compressed if asked, so a database saved by it is
+ * read as the checkpoint the first time it is opened. A log from before
+ * segments, ".log" and ".log.old", is replayed before them and replaced by
+ * a checkpoint
+ * <br/>
+ * add() changes a number in place in the map and logs the change with the
+ * value stored alongside it as one record. Every such record is the same
+ * size, so the arrays they are encoded into are handed back once written
+ * and used again instead of making one for each change
+ * <br/>
+ * Gets and puts never wait for a checkpoint, batches only wait while a new segment is started.
+ * Puts to the same key must not race each other or the log could hold
+ * them in a different order to the map, Database makes sure of this
+ *
+ * @param <K> The type of key to use (must have a codec, see Codecs)
+ * @param <V> The type of value to use (must have a codec, see Codecs)
+ **/
+public class LogStorage<K, V> implements Storage<K, V> {
+
+	// the most arrays kept for add() to use again
+	private static final int MAX_SPARE = 1024;
+
+	private final File checkpointFile;
+	private final File logFile;
+	private final File oldLogFile;
+	private final int checkpointEvery;
+	private final boolean sync;
+	private final int commitDelay;
+	private final int commitBytes;
+	private final long checkpointRate;
+	private final int compression;
+	private final long segmentBytes;
+	private final CRC32C checksum = new CRC32C();
+	// arrays of records written by add(), ready to be used again
+	private final ArrayDeque<byte[]> spare = new ArrayDeque<>();
+	private int spareLength;
+	private TableMap<K, V> database;
+	private GroupCommit commit;
+	private FileOutputStream log;
+	// the number of the segment being appended to and its size so far
+	private long segment;
+	private long logged;
+	private int appended;
+	private volatile boolean failed;
+	private Thread checkpointer;
+
+	/**
+	 * A segment read back on open, with the puts it holds
+	 **/
+	private static final class Replayed {
+
+		private final File file;
+		private final ArrayList<Object[]> puts = new ArrayList<>();
+		private int records;
+		// the bytes up to the end of the last good record
+		private long good;
+		private boolean damaged;
+
+		private Replayed(File file){
+			this.file = file;
+		}
+	}
+
+	/**
+	 * Creates the engine for the given file, syncing every batch
+	 * and writing a batch as soon as the last one is done
+	 *
+	 * @param path The checkpoint file, the log is kept next to it
+	 * @param checkpointEvery The number of puts between checkpoints
+	 **/
+	public LogStorage(String path, int checkpointEvery){
+		this(path, checkpointEvery, true, 0, 1 << 20, 0, 0, 4 << 20);
+	}
+
+	/**
+	 * Creates the engine for the given file
+	 *
+	 * @param path The checkpoint file, the log is kept next to it
+	 * @param checkpointEvery The number of puts between checkpoints
+	 * @param sync True to sync the log to disk after every batch
+	 * @param commitDelay The microseconds to wait for more puts before writing a batch
+	 * @param commitBytes The size at which a batch is written without waiting
+	 * @param checkpointRate The most bytes a second to write checkpoints at, 0 for no limit
+	 * @param compression The Deflater level to compress checkpoints with, 0 to not compress
+	 * @param segmentBytes The size at which a new segment of the log is started
+	 **/
+	public LogStorage(String path, int checkpointEvery, boolean sync, int commitDelay, int commitBytes, long checkpointRate, int compression, long segmentBytes){
+		checkpointFile = new File(path);
+		logFile = new File(path + ".log");
+		oldLogFile = new File(path + ".log.old");
+		this.checkpointEvery = Math.max(checkpointEvery, 1);
+		this.sync = sync;
+		this.commitDelay = commitDelay;
+		this.commitBytes = commitBytes;
+		this.checkpointRate = checkpointRate;
+		this.compression = compression;
+		this.segmentBytes = Math.max(segmentBytes, 1);
+		database = new TableMap<>();
+		commit = createCommit();
+	}
+
+	/**
+	 * Says whether there is a log kept at a path, for engines
+	 * that copy in the data of this one
+	 *
+	 * @param path The checkpoint file
+	 *
+	 * @return true if there is a log from before or after segments
+	 **/
+	public static boolean hasLog(String path){
+		return new File(path + ".log").exists() || !segments(new File(path)).isEmpty();
+	}
+
+	@Override
+	public V get(K key){
+		return database.get(key);
+	}
+
+	@Override
+	public void forEach(BiConsumer<? super K, ? super V> action){
+		database.forEach(action);
+	}
+
+	/**
+	 * Puts the value in the map and queues it to be appended to the log,
+	 * flush() waits for it to be written. Once the log has failed nothing
+	 * more is put, as it could never be saved
+	 *
+	 * @param key The location to put the value
+	 * @param value The object to store
+	 **/
+	@Override
+	public void put(K key, V value){
+		if(refused()){
+			return;
+		}
+		database.put(key, value);
+		try{
+			commit.add(Record.encode(key, value));
+		}catch(IOException e){
+			// remembered so that close() reports the put may not be on disk
+			failed = true;
+			System.err.println("Error writing to database log");
+			System.err.println(e);
+		}
+	}
+
+	/**
+	 * Puts the values in the map and queues them to be appended
+	 * to the log as one record, so a crash keeps all or none of them
+	 *
+	 * @param values The keys and the values to store at them
+	 **/
+	@Override
+	public void putAll(Map<K, V> values){
+		if(refused()){
+			return;
+		}
+		database.putAll(values);
+		try{
+			commit.add(Record.encode(values));
+		}catch(IOException e){
+			failed = true;
+			System.err.println("Error writing to database log");
+			System.err.println(e);
+		}
+	}
+
+	/**
+	 * Adds an amount to a number in the map in place, stores the value made
+	 * from the result and queues both to be appended to the log as one
+	 * record, encoded into an array that was written before if one is spare
+	 *
+	 * @param key The key of the number, which must already be there
+	 * @param amount The amount to add, negative to take away
+	 * @param floor The lowest the number may become, above Long.MIN_VALUE
+	 * @param with The key to store the value made by the recorder at
+	 * @param recorder Makes the value stored with the result
+	 *
+	 * @return the new number, Long.MIN_VALUE if nothing was changed
+	 **/
+	@Override
+	public long add(long key, long amount, long floor, K with, Recorder<V> recorder){
+		if(refused()){
+			return Long.MIN_VALUE;
+		}
+		long number = database.add(key, amount, floor);
+		if(number == Long.MIN_VALUE){
+			return number;
+		}
+		V value = recorder.record(number);
+		database.put(with, value);
+		try{
+			byte[] record = spare(Record.length(with, value));
+			Record.encode(record, key, number, with, value);
+			commit.add(record);
+		}catch(IOException e){
+			failed = true;
+			System.err.println("Error writing to database log");
+			System.err.println(e);
+		}
+		return number;
+	}
+
+	/**
+	 * Gets an array for a record of add(), one already written if there is
+	 * one of the right length
+	 *
+	 * @param length The length of the record
+	 *
+	 * @return the array
+	 **/
+	private byte[] spare(int length){
+		synchronized(spare){
+			byte[] record = spare.poll();
+			if(record != null && record.length == length){
+				return record;
+			}
+			if(length != spareLength){
+				// a codec of another size, the arrays kept are no use
+				spare.clear();
+				spareLength = length;
+			}
+		}
+		return new byte[length];
+	}
+
+	/**
+	 * Keeps the arrays of a batch just written that are the length of the
+	 * records of add(), nothing else holds them once they are written
+	 *
+	 * @param batch The records written
+	 **/
+	private void reuse(List<byte[]> batch){
+		synchronized(spare){
+			if(spareLength == 0){
+				return;
+			}
+			for(byte[] record : batch){
+				if(record.length == spareLength && spare.size() < MAX_SPARE){
+					spare.push(record);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Checks whether the log has failed, after which puts are refused until
+	 * the database is opened again
+	 *
+	 * @return true if the put must not be made
+	 **/
+	private boolean refused(){
+		if(!failed && !commit.isFailed()){
+			return false;
+		}
+		failed = true;
+		System.err.println("Error writing to database log, put refused");
+		return true;
+	}
+
+	/**
+	 * Loads the checkpoint and replays the log over it,
+	 * creating the directory if needed
+	 *
+	 * @return false if there is an error opening the database
+	 **/
+	@Override
+	public boolean open(){
+		try{
+			long start = System.nanoTime();
+			database = new TableMap<>();
+			commit = createCommit();
+			appended = 0;
+			failed = false;
+			checkpointFile.getAbsoluteFile().getParentFile().mkdirs();
+
+			if(checkpointFile.exists() && checkpointFile.length() > 0){
+				Snapshot.read(checkpointFile, database);
+			}
+			long loaded = System.nanoTime();
+
+			// a log from before segments, its puts come before them
+			boolean legacy = oldLogFile.exists() || logFile.exists();
+			if(oldLogFile.exists()){
+				replayLegacy(oldLogFile);
+			}
+			if(logFile.exists()){
+				replayLegacy(logFile);
+			}
+
+			TreeMap<Long, File> segments = segments(checkpointFile);
+			int threads = replay(new ArrayList<>(segments.values()));
+			segment = segments.isEmpty() ? 1 : segments.lastKey();
+
+			Debug.println("Database loaded in " + (System.nanoTime() - start) / 1000000 + " ms, checkpoint " + (loaded - start) / 1000000 + " ms, "
+				+ appended + " puts replayed from " + segments.size() + " log segments on " + threads + " threads");
+
+			if(legacy){
+				checkpoint();
+			}
+			return true;
+		}catch(Exception e){
+			System.err.println("Error opening database");
+			System.err.println(e);
+			return false;
+		}
+	}
+
+	/**
+	 * Waits until every put made so far is in the log, together
+	 * with any other threads flushing at the same time
+	 *
+	 * @return false if a put could not be written
+	 **/
+	@Override
+	public boolean flush(){
+		return commit.sync() && !failed;
+	}
+
+	/**
+	 * Writes the puts still waiting and closes the log
+	 *
+	 * @return false if a put could not be written or the log could not be closed
+	 **/
+	@Override
+	public boolean close(){
+		boolean committed = commit.close();
+		awaitCheckpoint();
+		synchronized(this){
+			try{
+				if(log != null){
+					log.close();
+					log = null;
+				}
+				return committed && !failed;
+			}catch(IOException e){
+				System.err.println("Error closing database");
+				System.err.println(e);
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Gets the group commit writing the log, for its counts
+	 *
+	 * @return the group commit
+	 **/
+	public GroupCommit getCommit(){
+		return commit;
+	}
+
+	/**
+	 * Gives everything that is stored, for moving the data to another engine
+	 *
+	 * @return a read only view of the data
+	 **/
+	public Map<K, V> entries(){
+		return Collections.unmodifiableMap(database);
+	}
+
+	/**
+	 * Writes the whole map to a new checkpoint file, swaps it in
+	 * and deletes the log before it, waiting for any background
+	 * checkpoint first. If this is interrupted the old checkpoint and
+	 * the full log are still there. Batches wait for the checkpoint
+	 * to finish before being written
+	 *
+	 * @throws IOException if the checkpoint could not be written
+	 **/
+	public synchronized void checkpoint() throws IOException {
+		awaitCheckpoint();
+		nextSegment();
+		// the checkpoint is on disk before the log it replaces is deleted
+		Snapshot.write(checkpointFile, database, 0, compression);
+		deleteSegments(segment);
+		logFile.delete();
+		oldLogFile.delete();
+		appended = 0;
+	}
+
+	/**
+	 * Starts a new segment and writes the checkpoint on a thread of
+	 * its own, called by the writer once enough puts have built up.
+	 * Nothing is started while a checkpoint is running
+	 *
+	 * @throws IOException if the segment could not be closed
+	 **/
+	private synchronized void startCheckpoint() throws IOException {
+		if(checkpointer != null && checkpointer.isAlive()){
+			return;
+		}
+		nextSegment();
+		appended = 0;
+
+		// segments left by a checkpoint that failed are deleted too, the new checkpoint covers them
+		final long first = segment;
+		checkpointer = new Thread("database-checkpoint " + checkpointFile.getName()){
+			@Override
+			public void run(){
+				try{
+					long start = System.nanoTime();
+					Snapshot.write(checkpointFile, database, checkpointRate, compression);
+					deleteSegments(first);
+					Debug.println("Database checkpoint written in " + (System.nanoTime() - start) / 1000000 + " ms");
+				}catch(IOException e){
+					// the segments are kept and replayed on open, the next checkpoint tries again
+					System.err.println("Error writing database checkpoint");
+					System.err.println(e);
+				}
+			}
+		};
+		checkpointer.setDaemon(true);
+		checkpointer.start();
+	}
+
+	/**
+	 * Waits for a background checkpoint to finish
+	 **/
+	private void awaitCheckpoint(){
+		Thread thread;
+		synchronized(this){
+			thread = checkpointer;
+		}
+		if(thread != null){
+			try{
+				thread.join();
+			}catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Creates the group commit that writes batches of records to the log
+	 *
+	 * @return the group commit, its thread starts with the first put
+	 **/
+	private GroupCommit createCommit(){
+		return new GroupCommit("database-commit " + checkpointFile.getName(), new GroupCommit.Target(){
+			@Override
+			public void write(List<byte[]> batch) throws IOException {
+				append(batch);
+				reuse(batch);
+			}
+		}, commitDelay, commitBytes);
+	}
+
+	/**
+	 * Appends a batch of records to the current segment, opening it the
+	 * first time, each with the checksum of its body after its length.
+	 * Starts a checkpoint once enough puts have built up, and a new
+	 * segment once this one is full
+	 *
+	 * @param batch The encoded puts
+	 * @throws IOException if the records could not be written
+	 **/
+	private synchronized void append(List<byte[]> batch) throws IOException {
+		if(log == null){
+			File file = segmentFile(segment);
+			log = new FileOutputStream(file, true);
+			if(file.length() == 0){
+				log.write(Snapshot.header(Snapshot.LOG, Snapshot.CHECKSUMMED));
+				if(sync){
+					// a segment whose name is lost would lose the puts synced to it
+					Snapshot.syncDirectory(file);
+				}
+			}
+			logged = file.length();
+		}
+		ByteBuffer[] buffers = new ByteBuffer[batch.size() * 3];
+		byte[] sums = new byte[batch.size() * 4];
+		ByteBuffer sumBuffer = ByteBuffer.wrap(sums);
+		long bytes = 0;
+		for(int x = 0; x < batch.size(); x++){
+			byte[] record = batch.get(x);
+			checksum.reset();
+			checksum.update(record, 4, record.length - 4);
+			sumBuffer.putInt((int) checksum.getValue());
+			// the length, the checksum and then the body
+			buffers[x * 3] = ByteBuffer.wrap(record, 0, 4);
+			buffers[x * 3 + 1] = ByteBuffer.wrap(sums, x * 4, 4);
+			buffers[x * 3 + 2] = ByteBuffer.wrap(record, 4, record.length - 4);
+			bytes += record.length + 4;
+		}
+		logged += bytes;
+		// the whole batch in as few writes as possible so a crash can only tear the end of it
+		FileChannel channel = log.getChannel();
+		while(bytes > 0){
+			bytes -= channel.write(buffers);
+		}
+		if(sync){
+			channel.force(false);
+		}
+		appended += batch.size();
+		if(appended >= checkpointEvery){
+			startCheckpoint();
+		}
+		// whether or not a checkpoint is running, so a segment never grows past its size for long
+		if(logged >= segmentBytes){
+			nextSegment();
+		}
+	}
+
+	/**
+	 * Syncs and closes the current segment, the next batch
+	 * is appended to a new one
+	 *
+	 * @throws IOException if the segment could not be synced
+	 **/
+	private synchronized void nextSegment() throws IOException {
+		if(log != null){
+			// on disk before anything is written after it, so only the last segment can be torn
+			log.getChannel().force(false);
+			log.close();
+			log = null;
+		}
+		logged = 0;
+		if(segmentFile(segment).exists()){
+			segment++;
+		}
+	}
+
+	/**
+	 * Deletes the segments a checkpoint has made unneeded
+	 *
+	 * @param first The number of the first segment to keep
+	 **/
+	private void deleteSegments(long first){
+		for(Map.Entry<Long, File> old : segments(checkpointFile).headMap(first).entrySet()){
+			if(!old.getValue().delete()){
+				System.err.println("Error deleting database log " + old.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Gives the file of a segment
+	 *
+	 * @param number The number of the segment
+	 *
+	 * @return the file, which may not exist yet
+	 **/
+	private File segmentFile(long number){
+		return new File(checkpointFile.getPath() + ".log." + number);
+	}
+
+	/**
+	 * Finds the segments of the log kept next to a checkpoint
+	 *
+	 * @param checkpoint The checkpoint file
+	 *
+	 * @return the segments by number, oldest first
+	 **/
+	private static TreeMap<Long, File> segments(File checkpoint){
+		TreeMap<Long, File> found = new TreeMap<>();
+		String prefix = checkpoint.getName() + ".log.";
+		File[] files = checkpoint.getAbsoluteFile().getParentFile().listFiles();
+		if(files == null){
+			return found;
+		}
+		for(File file : files){
+			String name = file.getName();
+			if(name.startsWith(prefix) && name.length() > prefix.length() && name.length() < prefix.length() + 19){
+				String number = name.substring(prefix.length());
+				boolean digits = true;
+				for(int x = 0; x < number.length(); x++){
+					digits &= Character.isDigit(number.charAt(x));
+				}
+				if(digits){
+					found.put(Long.parseLong(number), new File(checkpoint.getPath() + ".log." + number));
+				}
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Replays the segments of the log in order, reading and checking them
+	 * on as many threads as there are cores while the ones before are
+	 * applied, and truncates the last one at a record torn by a crash
+	 *
+	 * @param files The segments, oldest first
+	 *
+	 * @return the number of threads the segments were read on
+	 * @throws IOException if a segment can't be read or one before the last is damaged
+	 **/
+	private int replay(List<File> files) throws IOException {
+		if(files.isEmpty()){
+			return 0;
+		}
+		int threads = Math.min(Runtime.getRuntime().availableProcessors(), files.size());
+		ExecutorService pool = threads == 1 ? null : Executors.newFixedThreadPool(threads, new ThreadFactory(){
+			@Override
+			public Thread newThread(Runnable task){
+				Thread thread = new Thread(task, "database-replay " + checkpointFile.getName());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		try{
+			// a few segments ahead of the one being applied, so memory holds no more than that
+			ArrayDeque<Future<Replayed>> reading = new ArrayDeque<>();
+			int next = 0;
+			for(int x = 0; x < files.size(); x++){
+				Replayed replayed;
+				if(pool == null){
+					// nothing to read alongside, so applied as it is read
+					replayed = readSegment(files.get(x), true);
+				}else{
+					while(next < files.size() && next <= x + threads){
+						final File file = files.get(next++);
+						reading.add(pool.submit(new Callable<Replayed>(){
+							@Override
+							public Replayed call() throws IOException {
+								return readSegment(file, false);
+							}
+						}));
+					}
+					try{
+						replayed = reading.remove().get();
+					}catch(ExecutionException e){
+						throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+					}catch(InterruptedException e){
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException("Database replay interrupted");
+					}
+					for(Object[] puts : replayed.puts){
+						apply(puts);
+					}
+				}
+				appended += replayed.records;
+
+				if(replayed.damaged){
+					if(x < files.size() - 1){
+						throw new IOException("Damaged record at " + replayed.good + " in " + replayed.file + ", " + (files.size() - 1 - x) + " newer log segments follow it");
+					}
+					// cut off a record torn by a crash so new records follow the last good one
+					RandomAccessFile raf = new RandomAccessFile(replayed.file, "rw");
+					try{
+						raf.setLength(replayed.good);
+					}finally{
+						raf.close();
+					}
+					Debug.println("Database log " + replayed.file.getName() + " truncated to " + replayed.good + " bytes");
+				}
+			}
+		}finally{
+			if(pool != null){
+				pool.shutdownNow();
+			}
+		}
+		return threads;
+	}
+
+	/**
+	 * Reads the records of a segment and checks them against their
+	 * checksums, stopping at the first bad one
+	 *
+	 * @param file The segment
+	 * @param apply True to put each record in the map as it is read, rather than keep it
+	 *
+	 * @return the good records and where they end
+	 * @throws IOException if the file can't be read, isn't a segment, or a record that passed its checksum can't be decoded
+	 **/
+	private Replayed readSegment(File file, boolean apply) throws IOException {
+		Replayed replayed = new Replayed(file);
+		byte[] bytes = Files.readAllBytes(file.toPath());
+		if(bytes.length < Snapshot.HEADER){
+			// the header of a new segment torn by a crash
+			replayed.damaged = bytes.length > 0;
+			return replayed;
+		}
+		byte flags = Snapshot.checkHeader(file, new DataInputStream(new ByteArrayInputStream(bytes, 0, Snapshot.HEADER)), Snapshot.LOG);
+		if((flags & Snapshot.CHECKSUMMED) == 0){
+			throw new IOException(file + " is not a database log segment");
+		}
+		CRC32C crc = new CRC32C();
+		ByteBuffer in = ByteBuffer.wrap(bytes);
+		in.position(Snapshot.HEADER);
+		replayed.good = Snapshot.HEADER;
+		while(in.remaining() >= 8){
+			int length = in.getInt();
+			int sum = in.getInt();
+			if(length <= 0 || length > Record.MAX_LENGTH || length > in.remaining()){
+				break;
+			}
+			crc.reset();
+			crc.update(bytes, in.position(), length);
+			if((int) crc.getValue() != sum){
+				break;
+			}
+			ByteBuffer body = in.slice();
+			body.limit(length);
+			Object[] puts;
+			try{
+				puts = Record.decode(body);
+			}catch(IOException | RuntimeException e){
+				// written whole, so a type that can't be read rather than a crash
+				throw new IOException("Unreadable record at " + replayed.good + " in " + file, e);
+			}
+			if(apply){
+				apply(puts);
+			}else{
+				replayed.puts.add(puts);
+			}
+			replayed.records++;
+			in.position(in.position() + length);
+			replayed.good = in.position();
+		}
+		replayed.damaged = replayed.good < bytes.length;
+		return replayed;
+	}
+
+	/**
+	 * Puts the keys and values of a record in the map
+	 *
+	 * @param puts The keys and values in turn
+	 **/
+	@SuppressWarnings("unchecked")
+	private void apply(Object[] puts){
+		for(int x = 0; x < puts.length; x += 2){
+			database.put((K) puts[x], (V) puts[x + 1]);
+		}
+	}
+
+	/**
+	 * Applies every complete record in a log from before segments to
+	 * the map, stopping at a last record that is cut short or damaged
+	 *
+	 * @param file The log
+	 * @throws IOException if the file can't be read or a record before the last can't be decoded
+	 **/
+	private void replayLegacy(File file) throws IOException {
+		int skip = Snapshot.skipHeader(file);
+		long good = skip;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		try{
+			in.skipBytes(skip);
+			for(;;){
+				int length;
+				byte[] body;
+				try{
+					length = in.readInt();
+					if(length <= 0 || length > Record.MAX_LENGTH){
+						break;
+					}
+					body = new byte[length];
+					in.readFully(body);
+				}catch(EOFException e){
+					break;
+				}
+
+				Object[] puts;
+				try{
+					puts = Record.decode(ByteBuffer.wrap(body));
+				}catch(IOException | RuntimeException e){
+					// only the last record can be torn, one further in is a type that can't be read
+					if(good + 4 + length < file.length()){
+						throw new IOException("Unreadable record at " + good + " in " + file, e);
+					}
+					break;
+				}
+				apply(puts);
+				good += 4 + length;
+				appended++;
+			}
+		}finally{
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,40 @@
+package netizens.bank.utils.database;
+
+import java.nio.ByteBuffer;
+
+/**
+ * LongCodec.java
+ *
+ * Account numbers and balances, written as eight bytes so that
+ * a balance keeps its size when it changes and the mapped engine
+ * can write the new one in place
+ **/
+public final class LongCodec implements Codec<Long> {
+
+	public static final byte TAG = 1;
+
+	@Override
+	public byte tag(){
+		return TAG;
+	}
+
+	@Override
+	public Class<Long> type(){
+		return Long.class;
+	}
+
+	@Override
+	public int size(Long value){
+		return 8;
+	}
+
+	@Override
+	public void write(ByteBuffer out, Long value){
+		out.putLong(value);
+	}
+
+	@Override
+	public Long read(ByteBuffer in){
+		return in.getLong();
+	}
+}
@@ -0,0 +1,361 @@
+package netizens.bank.utils.database;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.*;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * LongTable.java
+ *
+ * A hash table from long keys to long values, such as account numbers to
+ * balances, kept in one array of primitives. Each key and its value sit
+ * next to each other and a key that is taken moves on to the next free
+ * place (open addressing), so an account costs 16 bytes for each place in
+ * the table, about 30 on average, with no objects for the garbage
+ * collector to follow or free
+ * <br/>
+ * Gets take no lock. Changing the value of a key already there only
+ * shares a lock with the other changes, it is held exclusively to add or
+ * remove a key and when the table grows, which copies it into one twice
+ * the size
+ * <br/>
+ * Long.MIN_VALUE and the value after it mark free and removed places and
+ * can't be used as keys
+ * <br/>
+ * add() debits or credits a value in place with a compare-and-set, so
+ * nothing is made for the garbage collector. Reached through Database.add()
+ * it never has to try again, as the lock of the key is held there so the
+ * engine logs the changes in the order they are made. The compare-and-set
+ * guards the table itself when an engine is used without a Database, as
+ * the engine checks do, where adds to the same key would otherwise be lost
+ **/
+public final class LongTable {
+
+	private static final VarHandle SLOTS = MethodHandles.arrayElementVarHandle(long[].class);
+	private static final long EMPTY = Long.MIN_VALUE;
+	private static final long REMOVED = Long.MIN_VALUE + 1;
+	private static final int MIN_CAPACITY = 16;
+
+	private final StampedLock lock = new StampedLock();
+	// key then value for each place, the length is always a power of two
+	private volatile long[] slots;
+	private int size;
+	private int removed;
+
+	/**
+	 * Creates an empty table
+	 **/
+	public LongTable(){
+		slots = empty(MIN_CAPACITY);
+	}
+
+	/**
+	 * Says whether a key can be kept in the table
+	 *
+	 * @param key The key
+	 *
+	 * @return false for the two keys used as markers
+	 **/
+	public static boolean allowed(long key){
+		return key != EMPTY && key != REMOVED;
+	}
+
+	/**
+	 * Gets the value at a key
+	 *
+	 * @param key The key
+	 * @param missing What to give if the key is not there
+	 *
+	 * @return the value, or missing
+	 **/
+	public long get(long key, long missing){
+		long[] s = slots;
+		int x = find(s, key);
+		return x < 0 ? missing : (long) SLOTS.getAcquire(s, x + 1);
+	}
+
+	/**
+	 * Says whether a key is in the table
+	 *
+	 * @param key The key
+	 *
+	 * @return true if it is there
+	 **/
+	public boolean contains(long key){
+		return find(slots, key) >= 0;
+	}
+
+	/**
+	 * Puts a value at a key, adding the key if needed
+	 *
+	 * @param key The key, see allowed()
+	 * @param value The value
+	 **/
+	public void put(long key, long value){
+		check(key);
+		long stamp = lock.readLock();
+		try{
+			long[] s = slots;
+			int x = find(s, key);
+			if(x >= 0){
+				SLOTS.setRelease(s, x + 1, value);
+				return;
+			}
+		}finally{
+			lock.unlockRead(stamp);
+		}
+		insert(key, value);
+	}
+
+	/**
+	 * Adds an amount to the value of a key already there, only sharing the
+	 * lock like changing a value with put()
+	 *
+	 * @param key The key
+	 * @param amount The amount to add, negative to take away
+	 * @param floor The lowest the value may become, above Long.MIN_VALUE
+	 *
+	 * @return the new value, Long.MIN_VALUE if the key is not there or the
+	 * value would go below the floor or overflow, and nothing is changed
+	 **/
+	public long add(long key, long amount, long floor){
+		long stamp = lock.readLock();
+		try{
+			long[] s = slots;
+			int x = find(s, key);
+			if(x < 0){
+				return Long.MIN_VALUE;
+			}
+			for(;;){
+				long value = (long) SLOTS.getAcquire(s, x + 1);
+				long sum = sum(value, amount, floor);
+				if(sum == Long.MIN_VALUE || SLOTS.compareAndSet(s, x + 1, value, sum)){
+					return sum;
+				}
+			}
+		}finally{
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Adds an amount to a value as long as the result stays at or above a floor
+	 *
+	 * @param value The value
+	 * @param amount The amount to add, negative to take away
+	 * @param floor The lowest the result may be, above Long.MIN_VALUE
+	 *
+	 * @return the result, Long.MIN_VALUE if it would go below the floor or overflow
+	 **/
+	public static long sum(long value, long amount, long floor){
+		long sum = value + amount;
+		// overflowed if the result has a different sign to both
+		if(((value ^ sum) & (amount ^ sum)) < 0 || sum < floor){
+			return Long.MIN_VALUE;
+		}
+		return sum;
+	}
+
+	/**
+	 * Removes a key
+	 *
+	 * @param key The key
+	 *
+	 * @return true if it was there
+	 **/
+	public boolean remove(long key){
+		long stamp = lock.writeLock();
+		try{
+			long[] s = slots;
+			int x = find(s, key);
+			if(x < 0){
+				return false;
+			}
+			// left marked so that keys placed after it are still found
+			SLOTS.setRelease(s, x, REMOVED);
+			size--;
+			removed++;
+			return true;
+		}finally{
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * @return the number of keys
+	 **/
+	public int size(){
+		long stamp = lock.readLock();
+		try{
+			return size;
+		}finally{
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Gives the keys and values in no set order, as they are when each is
+	 * reached. Changes made while going through may or may not be seen
+	 *
+	 * @return the keys and values
+	 **/
+	public Iterator<Map.Entry<Long, Long>> iterator(){
+		final long[] s = slots;
+		return new Iterator<Map.Entry<Long, Long>>(){
+			private int x = -2;
+			private long key;
+
+			{
+				advance();
+			}
+
+			@Override
+			public boolean hasNext(){
+				return x < s.length;
+			}
+
+			@Override
+			public Map.Entry<Long, Long> next(){
+				if(x >= s.length){
+					throw new NoSuchElementException();
+				}
+				Map.Entry<Long, Long> entry = new AbstractMap.SimpleImmutableEntry<>(key, (long) SLOTS.getAcquire(s, x + 1));
+				advance();
+				return entry;
+			}
+
+			private void advance(){
+				do{
+					x += 2;
+				}while(x < s.length && !allowed(key = (long) SLOTS.getAcquire(s, x)));
+			}
+		};
+	}
+
+	/**
+	 * Adds a key that was not found, growing the table first if it
+	 * would become more than 70% full
+	 *
+	 * @param key The key
+	 * @param value The value
+	 **/
+	private void insert(long key, long value){
+		long stamp = lock.writeLock();
+		try{
+			long[] s = slots;
+			int x = find(s, key);
+			if(x >= 0){
+				// added by another thread since it was looked for
+				SLOTS.setRelease(s, x + 1, value);
+				return;
+			}
+			int places = s.length / 2;
+			if((size + removed + 1) * 10L > places * 7L){
+				// doubled unless it is mostly removed places, which copying clears out
+				s = empty((size + 1) * 20L > places * 7L ? places * 2 : places);
+				long[] old = slots;
+				for(int y = 0; y < old.length; y += 2){
+					if(allowed(old[y])){
+						place(s, old[y], old[y + 1]);
+					}
+				}
+				removed = 0;
+				// readers still on the old array see the same values, changes wait for the lock
+				slots = s;
+			}
+			if(place(s, key, value)){
+				removed--;
+			}
+			size++;
+		}finally{
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Puts a key that is not in the table into the first free or removed
+	 * place, the value is set before the key so a reader never sees one
+	 * without the other
+	 *
+	 * @param s The slots
+	 * @param key The key
+	 * @param value The value
+	 *
+	 * @return true if a removed place was used
+	 **/
+	private static boolean place(long[] s, long key, long value){
+		int mask = s.length - 1;
+		int x = hash(key) & mask;
+		while(allowed(s[x])){
+			x = (x + 2) & mask;
+		}
+		boolean reused = s[x] == REMOVED;
+		SLOTS.setRelease(s, x + 1, value);
+		SLOTS.setRelease(s, x, key);
+		return reused;
+	}
+
+	/**
+	 * Finds the place of a key
+	 *
+	 * @param s The slots
+	 * @param key The key
+	 *
+	 * @return the index of the key in the slots, -1 if it is not there
+	 **/
+	private static int find(long[] s, long key){
+		if(!allowed(key)){
+			return -1;
+		}
+		int mask = s.length - 1;
+		int x = hash(key) & mask;
+		for(;;){
+			long at = (long) SLOTS.getAcquire(s, x);
+			if(at == key){
+				return x;
+			}
+			if(at == EMPTY){
+				return -1;
+			}
+			x = (x + 2) & mask;
+		}
+	}
+
+	/**
+	 * Spreads a key over the table, account numbers are often in runs
+	 *
+	 * @param key The key
+	 *
+	 * @return the index of the first place to look, always even
+	 **/
+	private static int hash(long key){
+		long h = key * 0x9e3779b97f4a7c15L;
+		return (int) (h ^ (h >>> 32)) << 1;
+	}
+
+	/**
+	 * Creates an array with every place free
+	 *
+	 * @param places The number of places, a power of two
+	 *
+	 * @return the slots
+	 **/
+	private static long[] empty(int places){
+		long[] s = new long[places * 2];
+		for(int x = 0; x < s.length; x += 2){
+			s[x] = EMPTY;
+		}
+		return s;
+	}
+
+	/**
+	 * @param key The key
+	 * @throws IllegalArgumentException if the key is one of the markers
+	 **/
+	private static void check(long key){
+		if(!allowed(key)){
+			throw new IllegalArgumentException("Key " + key + " can't be kept in a LongTable");
+		}
+	}
+}
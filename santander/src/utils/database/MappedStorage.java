@@ -0,0 +1,764 @@
+package netizens.bank.utils.database;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32C;
+import netizens.bank.utils.Debug;
+
+/**
+ * MappedStorage.java
+ *
+ * Keeps the data off the heap in two memory mapped files, so opening
+ * the database only maps the files instead of reading everything in,
+ * and lookups read straight from the mapped pages
+ * <br/>
+ * The data file holds the records one after another, in the same form
+ * as the log (see Record). The index file is an open addressing hash
+ * table of slots, each holding the position of a record, the hash of its
+ * key and a CRC-32C of the whole record. A put that keeps the size of the
+ * record is written over the old value in place, otherwise the record is
+ * appended and its slot moved. Once more than half the data file is old
+ * records it is rewritten into a new generation of the data file when opened
+ * <br/>
+ * The files are "path.index" and "path.data.N" where N is the generation,
+ * the index header also holds the format version (see Snapshot).
+ * Everything written goes straight to the mapped pages so it survives
+ * the program stopping, and flush() and close() force them to disk. Until
+ * then the system writes dirty pages back whenever it likes, in any order,
+ * so after a power cut a slot can point at a record that never reached the
+ * disk, or at a value only partly written over in place. Every record is
+ * checked against the checksum in its slot when it is read, and one that
+ * doesn't match is reported as damaged and left out rather than read back
+ * <br/>
+ * putAll() of more than one value is first written whole to an intent log,
+ * "path.index.intents", and synced (see IntentLog). flush()
+ * marks it done once the pages are forced, and opening puts any change not
+ * marked done again, so a crash keeps all or none of it. Single puts made
+ * since the last flush may be lost or reported damaged. A database
+ * kept by another engine is copied in the first time it is opened.
+ * add() reads the number and puts the result with the value made from it
+ * through putAll(), as a record in the data file is not changed in place
+ * by a compare-and-set.
+ * The data file is limited to 2GB
+ * <br/>
+ * Any number of gets run at once, a put waits for them as it may
+ * move the table or the data file
+ *
+ * @param <K> The type of key to use (must have a codec, see Codecs)
+ * @param <V> The type of value to use (must have a codec, see Codecs)
+ **/
+public class MappedStorage<K, V> implements Storage<K, V> {
+
+	// "NZMP", the start of the index file
+	private static final int MAGIC = 0x4e5a4d50;
+	private static final int HEADER = 64;
+	private static final int SLOT = 16;
+	private static final int MIN_CAPACITY = 1024;
+	private static final int MIN_DATA = 1 << 20;
+
+	// where each field of the index header is kept
+	private static final int H_MAGIC = 0;
+	private static final int H_CAPACITY = 4;
+	private static final int H_COUNT = 8;
+	private static final int H_GENERATION = 12;
+	private static final int H_END = 16;
+	private static final int H_LIVE = 24;
+	private static final int H_VERSION = 32;
+	private static final int H_FLAGS = 36;
+
+	private final String path;
+	private final File indexFile;
+	private final IntentLog intents;
+	private MappedByteBuffer index;
+	private MappedByteBuffer data;
+	private int capacity;
+	private int count;
+	private int generation;
+	private long end;
+	private long live;
+	private volatile boolean failed;
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/**
+	 * Creates the engine for the given path, syncing the intent log
+	 *
+	 * @param path The database path, the files are kept next to it
+	 **/
+	public MappedStorage(String path){
+		this(path, true);
+	}
+
+	/**
+	 * Creates the engine for the given path
+	 *
+	 * @param path The database path, the files are kept next to it
+	 * @param sync False to write batches to the intent log without syncing them
+	 **/
+	public MappedStorage(String path, boolean sync){
+		this.path = path;
+		indexFile = new File(path + ".index");
+		// apart from the intent log of shards kept at the same path
+		intents = new IntentLog(indexFile.getPath(), sync);
+	}
+
+	/**
+	 * Gets the value stored at the given key, read straight from
+	 * the mapped data file
+	 *
+	 * @param key the location of the value
+	 *
+	 * @return the value, null if there's nothing there
+	 **/
+	@Override
+	@SuppressWarnings("unchecked")
+	public V get(K key){
+		lock.readLock().lock();
+		try{
+			byte[] k = Record.encode(key);
+			int pos = slot(find(k, hash(k)));
+			long stored = index.getLong(pos);
+			if(stored == 0 || damaged(pos)){
+				return null;
+			}
+			ByteBuffer record = data.duplicate();
+			record.position((int) (stored - 1) + 4 + k.length);
+			return (V) Record.read(record);
+		}catch(IOException e){
+			System.err.println("Error reading from database");
+			System.err.println(e);
+			return null;
+		}finally{
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Puts the value at the given key, in place if the record keeps
+	 * its size and appended otherwise
+	 *
+	 * @param key The location to put the value
+	 * @param value The object to store
+	 **/
+	@Override
+	public void put(K key, V value){
+		lock.writeLock().lock();
+		try{
+			byte[] k = Record.encode(key);
+			byte[] v = Record.encode(value);
+			int h = hash(k);
+			int pos = slot(find(k, h));
+			long stored = index.getLong(pos);
+
+			if(stored != 0){
+				int offset = (int) (stored - 1);
+				int length = data.getInt(offset);
+				// same size, just write the new value over the old one
+				if(length == k.length + v.length){
+					ByteBuffer record = data.duplicate();
+					record.position(offset + 4 + k.length);
+					record.put(v);
+					index.putInt(pos + 12, checksum(offset));
+					return;
+				}
+				live -= 4 + length;
+			}
+
+			long offset = append(k, v);
+			index.putLong(pos, offset + 1);
+			index.putInt(pos + 8, h);
+			index.putInt(pos + 12, checksum((int) offset));
+			live += 4 + k.length + v.length;
+			if(stored == 0){
+				count++;
+			}
+			writeHeader(index);
+
+			// keep the table at most half full so probes stay short
+			if(count * 2 > capacity){
+				resize();
+			}
+		}catch(IOException e){
+			// remembered so that close() reports the put may not be stored
+			failed = true;
+			System.err.println("Error writing to database");
+			System.err.println(e);
+		}finally{
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Puts each value in turn, gets never see only some of them. More
+	 * than one value is written to the intent log and synced first, so
+	 * after a crash they are put again if they were not all saved
+	 *
+	 * @param values The keys and the values to store at them
+	 **/
+	@Override
+	public void putAll(Map<K, V> values){
+		long number = 0;
+		if(values.size() > 1){
+			try{
+				// before taking the lock, gets and puts carry on while it syncs
+				number = intents.begin(values);
+			}catch(IOException e){
+				// nothing is put, so the files never hold part of it
+				failed = true;
+				System.err.println("Error writing to database intent log, put refused");
+				System.err.println(e);
+				return;
+			}
+		}
+		lock.writeLock().lock();
+		try{
+			for(Map.Entry<K, V> entry : values.entrySet()){
+				put(entry.getKey(), entry.getValue());
+			}
+		}finally{
+			lock.writeLock().unlock();
+			if(number > 0){
+				intents.finish(number);
+			}
+		}
+	}
+
+	/**
+	 * Reads a number, then puts the result with the value made from it
+	 * together. The caller holds the lock of the key, so it can't change
+	 * in between
+	 *
+	 * @param key The key of the number, which must already be there
+	 * @param amount The amount to add, negative to take away
+	 * @param floor The lowest the number may become, above Long.MIN_VALUE
+	 * @param with The key to store the value made by the recorder at
+	 * @param recorder Makes the value stored with the result
+	 *
+	 * @return the new number, Long.MIN_VALUE if nothing was changed
+	 **/
+	@Override
+	@SuppressWarnings("unchecked")
+	public long add(long key, long amount, long floor, K with, Recorder<V> recorder){
+		K boxed = (K) Long.valueOf(key);
+		V old = get(boxed);
+		if(!(old instanceof Long)){
+			return Long.MIN_VALUE;
+		}
+		long number = LongTable.sum((Long) old, amount, floor);
+		if(number != Long.MIN_VALUE){
+			Map<K, V> values = new HashMap<>();
+			values.put(boxed, (V) Long.valueOf(number));
+			values.put(with, recorder.record(number));
+			putAll(values);
+		}
+		return number;
+	}
+
+	/**
+	 * Passes every key and value to an action, read from the data file
+	 * in the order of the index. Puts wait until it has finished
+	 *
+	 * @param action The action to run on each key and value
+	 **/
+	@Override
+	@SuppressWarnings("unchecked")
+	public void forEach(BiConsumer<? super K, ? super V> action){
+		lock.readLock().lock();
+		try{
+			for(int x = 0; x < capacity; x++){
+				long stored = index.getLong(slot(x));
+				if(stored != 0 && !damaged(slot(x))){
+					ByteBuffer record = data.duplicate();
+					record.position((int) (stored - 1) + 4);
+					action.accept((K) Record.read(record), (V) Record.read(record));
+				}
+			}
+		}catch(IOException e){
+			System.err.println("Error reading from database");
+			System.err.println(e);
+		}finally{
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Maps the index and data files, creating them if needed
+	 *
+	 * @return false if there is an error opening the database
+	 **/
+	@Override
+	public boolean open(){
+		try{
+			failed = false;
+			indexFile.getAbsoluteFile().getParentFile().mkdirs();
+
+			if(indexFile.exists()){
+				index = map(indexFile, 0);
+				if(index.getInt(H_MAGIC) != MAGIC){
+					throw new IOException("Unknown database format " + indexFile);
+				}
+				// version 1 left the field empty, its records are read the same way
+				if(index.getInt(H_VERSION) > Snapshot.VERSION){
+					throw new IOException(indexFile + " was written by a newer version (format " + index.getInt(H_VERSION) + ")");
+				}
+				capacity = index.getInt(H_CAPACITY);
+				count = index.getInt(H_COUNT);
+				generation = index.getInt(H_GENERATION);
+				end = index.getLong(H_END);
+				live = index.getLong(H_LIVE);
+				data = map(dataFile(generation), 0);
+				if((index.getInt(H_FLAGS) & Snapshot.CHECKSUMMED) == 0){
+					addChecksums();
+				}
+
+				// more old records than live ones, rewrite the data file
+				if(end - live > live && end - live > MIN_DATA){
+					compact();
+				}
+				Debug.println("Database mapped, " + count + " keys");
+			}else{
+				create();
+				Debug.println("Database created, " + count + " keys copied in");
+			}
+			finish();
+			return true;
+		}catch(Exception e){
+			System.err.println("Error opening database");
+			System.err.println(e);
+			return false;
+		}
+	}
+
+	/**
+	 * Forces the pages written so far to disk, then marks the batches put
+	 * before as done in the intent log. Gets carry on meanwhile, puts wait
+	 *
+	 * @return false if a put could not be stored or the pages could not be forced
+	 **/
+	@Override
+	public boolean flush(){
+		long put = intents.getPut();
+		lock.readLock().lock();
+		try{
+			if(data != null){
+				data.force();
+				index.force();
+			}
+		}catch(UncheckedIOException e){
+			System.err.println("Error flushing database");
+			System.err.println(e);
+			return false;
+		}finally{
+			lock.readLock().unlock();
+		}
+		return intents.done(put) && !failed;
+	}
+
+	/**
+	 * Forces everything written to disk and closes the intent log, the
+	 * files stay mapped until the engine is garbage collected
+	 *
+	 * @return false if a put could not be stored
+	 **/
+	@Override
+	public boolean close(){
+		long put = intents.getPut();
+		lock.writeLock().lock();
+		try{
+			if(data != null){
+				data.force();
+				index.force();
+			}
+		}finally{
+			lock.writeLock().unlock();
+		}
+		boolean closed = intents.done(put) && !failed;
+		return intents.close() && closed;
+	}
+
+	/**
+	 * Puts again every batch that was not marked done before the database
+	 * was last closed or the program stopped
+	 *
+	 * @throws IOException if the intent log can't be read or the batches could not be saved
+	 **/
+	@SuppressWarnings("unchecked")
+	private void finish() throws IOException {
+		List<Object[]> pending = intents.open();
+		if(pending.isEmpty()){
+			return;
+		}
+		for(Object[] puts : pending){
+			for(int x = 0; x < puts.length; x += 2){
+				put((K) puts[x], (V) puts[x + 1]);
+			}
+		}
+		if(!flush()){
+			throw new IOException("Could not finish the batches in the intent log");
+		}
+		Debug.println("Database finished " + pending.size() + " batches from the intent log");
+	}
+
+	/**
+	 * Fills in the checksum of every record for an index written before
+	 * slots had them, so this is only done once
+	 **/
+	private void addChecksums(){
+		for(int x = 0; x < capacity; x++){
+			long stored = index.getLong(slot(x));
+			if(stored != 0){
+				index.putInt(slot(x) + 12, checksum((int) (stored - 1)));
+			}
+		}
+		writeHeader(index);
+		index.force();
+		Debug.println("Database index checksummed, " + count + " keys");
+	}
+
+	/**
+	 * Creates empty files, copying in anything kept at the path by
+	 * another engine. The index only appears once it is complete so
+	 * an interrupted copy is started again next time
+	 *
+	 * @throws IOException if the files could not be created
+	 **/
+	private void create() throws IOException {
+		Map<K, V> old = Collections.emptyMap();
+		if(new File(path).length() > 0 || LogStorage.hasLog(path)){
+			LogStorage<K, V> log = new LogStorage<>(path, Integer.MAX_VALUE);
+			if(!log.open()){
+				throw new IOException("Could not read the existing database");
+			}
+			old = log.entries();
+		}
+
+		File tmp = new File(indexFile.getPath() + ".tmp");
+		// anything left by an earlier attempt is thrown away
+		tmp.delete();
+		generation = 0;
+		// sized up front so the copy never has to resize the table
+		capacity = tableSize(old.size());
+		count = 0;
+		end = 0;
+		live = 0;
+		index = map(tmp, HEADER + (long) capacity * SLOT);
+		data = map(dataFile(generation), MIN_DATA);
+		writeHeader(index);
+
+		for(Map.Entry<K, V> entry : old.entrySet()){
+			put(entry.getKey(), entry.getValue());
+		}
+		if(failed){
+			throw new IOException("Could not copy the existing database");
+		}
+
+		data.force();
+		index.force();
+		Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Doubles the size of the hash table, building the new table in
+	 * a new file and swapping it in
+	 *
+	 * @throws IOException if the new table could not be written
+	 **/
+	private void resize() throws IOException {
+		File tmp = new File(indexFile.getPath() + ".tmp");
+		// anything left by an earlier attempt is thrown away
+		tmp.delete();
+		int newCapacity = capacity * 2;
+		MappedByteBuffer table = map(tmp, HEADER + (long) newCapacity * SLOT);
+		for(int x = 0; x < capacity; x++){
+			long stored = index.getLong(slot(x));
+			if(stored != 0){
+				insert(table, newCapacity, stored, index.getInt(slot(x) + 8), index.getInt(slot(x) + 12));
+			}
+		}
+
+		capacity = newCapacity;
+		writeHeader(table);
+		table.force();
+		Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		index = table;
+	}
+
+	/**
+	 * Copies the live records into the next generation of the data file
+	 * with a new table pointing at them. Swapping in the new index is what
+	 * makes the new generation current, so if this is interrupted the old
+	 * files are still whole
+	 *
+	 * @throws IOException if the new files could not be written
+	 **/
+	private void compact() throws IOException {
+		File tmp = new File(indexFile.getPath() + ".tmp");
+		// anything left by an earlier attempt is thrown away
+		tmp.delete();
+		int newGeneration = generation + 1;
+		int newCapacity = tableSize(count);
+		MappedByteBuffer table = map(tmp, HEADER + (long) newCapacity * SLOT);
+		dataFile(newGeneration).delete();
+		MappedByteBuffer newData = map(dataFile(newGeneration), Math.max(live * 2, MIN_DATA));
+
+		int newEnd = 0;
+		for(int x = 0; x < capacity; x++){
+			long stored = index.getLong(slot(x));
+			if(stored == 0){
+				continue;
+			}
+			int offset = (int) (stored - 1);
+			int length = 4 + data.getInt(offset);
+			ByteBuffer record = data.duplicate();
+			record.position(offset).limit(offset + length);
+			newData.position(newEnd);
+			newData.put(record);
+			insert(table, newCapacity, newEnd + 1, index.getInt(slot(x) + 8), index.getInt(slot(x) + 12));
+			newEnd += length;
+		}
+
+		File oldData = dataFile(generation);
+		generation = newGeneration;
+		capacity = newCapacity;
+		end = newEnd;
+		live = newEnd;
+		writeHeader(table);
+		newData.force();
+		table.force();
+		Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		index = table;
+		data = newData;
+		oldData.delete();
+		Debug.println("Database compacted into generation " + generation);
+	}
+
+	/**
+	 * Appends a record to the data file, growing the file if needed
+	 *
+	 * @param k The encoded key
+	 * @param v The encoded value
+	 *
+	 * @return the position of the record
+	 * @throws IOException if the file could not grow
+	 **/
+	private long append(byte[] k, byte[] v) throws IOException {
+		int length = k.length + v.length;
+		long needed = end + 4 + length;
+		if(needed > data.capacity()){
+			if(needed > Integer.MAX_VALUE){
+				throw new IOException("Database data file is full");
+			}
+			data = map(dataFile(generation), Math.min(Math.max(needed, (long) data.capacity() * 2), Integer.MAX_VALUE));
+		}
+
+		int offset = (int) end;
+		ByteBuffer record = data.duplicate();
+		record.position(offset);
+		record.putInt(length);
+		record.put(k);
+		record.put(v);
+		end = needed;
+		return offset;
+	}
+
+	/**
+	 * Finds the slot holding the key, or the empty slot where it belongs.
+	 * A damaged record with the same hash is taken to be the key, so
+	 * putting it again takes over its slot
+	 *
+	 * @param k The encoded key
+	 * @param h The hash of the key
+	 *
+	 * @return the number of the slot
+	 **/
+	private int find(byte[] k, int h){
+		int mask = capacity - 1;
+		for(int x = h & mask;; x = (x + 1) & mask){
+			long stored = index.getLong(slot(x));
+			if(stored == 0){
+				return x;
+			}
+			if(index.getInt(slot(x) + 8) == h && (matches((int) (stored - 1), k) || checksum((int) (stored - 1)) != index.getInt(slot(x) + 12))){
+				return x;
+			}
+		}
+	}
+
+	/**
+	 * Checks the record a slot points at against its checksum,
+	 * reporting it if they differ
+	 *
+	 * @param pos The position of the slot in the index
+	 *
+	 * @return true if the record is not as it was written
+	 **/
+	private boolean damaged(int pos){
+		int offset = (int) (index.getLong(pos) - 1);
+		if(checksum(offset) == index.getInt(pos + 12)){
+			return false;
+		}
+		System.err.println("Damaged record at " + offset + " in " + dataFile(generation));
+		return true;
+	}
+
+	/**
+	 * Works out the CRC-32C of a record and its length
+	 *
+	 * @param offset The position of the record
+	 *
+	 * @return the checksum, one that can't match if the length runs past the file
+	 **/
+	private int checksum(int offset){
+		int length = offset <= data.capacity() - 4 ? data.getInt(offset) : -1;
+		if(length < 0 || length > data.capacity() - 4 - offset){
+			return 0;
+		}
+		ByteBuffer record = data.duplicate();
+		record.position(offset).limit(offset + 4 + length);
+		CRC32C crc = new CRC32C();
+		crc.update(record);
+		// never 0, which is kept for a record that can't be read
+		return (int) crc.getValue() | 1;
+	}
+
+	/**
+	 * Checks whether the record at a position has the given key
+	 *
+	 * @param offset The position of the record
+	 * @param k The encoded key
+	 *
+	 * @return true if the keys are the same
+	 **/
+	private boolean matches(int offset, byte[] k){
+		if(data.getInt(offset) < k.length){
+			return false;
+		}
+		for(int x = 0; x < k.length; x++){
+			if(data.get(offset + 4 + x) != k[x]){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Writes the current counts into an index header
+	 *
+	 * @param table The mapped index
+	 **/
+	private void writeHeader(MappedByteBuffer table){
+		table.putInt(H_MAGIC, MAGIC);
+		table.putInt(H_CAPACITY, capacity);
+		table.putInt(H_COUNT, count);
+		table.putInt(H_GENERATION, generation);
+		table.putLong(H_END, end);
+		table.putLong(H_LIVE, live);
+		table.putInt(H_VERSION, Snapshot.VERSION);
+		table.putInt(H_FLAGS, Snapshot.CHECKSUMMED);
+	}
+
+	/**
+	 * Gets the data file for a generation
+	 *
+	 * @param g The generation
+	 *
+	 * @return the data file
+	 **/
+	private File dataFile(int g){
+		return new File(path + ".data." + g);
+	}
+
+	/**
+	 * Places a record in the first empty slot of a table, for tables
+	 * being built where every key is known to be different
+	 *
+	 * @param table The mapped index
+	 * @param size The number of slots in the table
+	 * @param stored The position of the record plus one
+	 * @param h The hash of the key
+	 * @param sum The checksum of the record
+	 **/
+	private static void insert(MappedByteBuffer table, int size, long stored, int h, int sum){
+		int mask = size - 1;
+		int x = h & mask;
+		while(table.getLong(slot(x)) != 0){
+			x = (x + 1) & mask;
+		}
+		table.putLong(slot(x), stored);
+		table.putInt(slot(x) + 8, h);
+		table.putInt(slot(x) + 12, sum);
+	}
+
+	/**
+	 * Gets the position of a slot in the index file
+	 *
+	 * @param x The number of the slot
+	 *
+	 * @return the position in the index file
+	 **/
+	private static int slot(int x){
+		return HEADER + x * SLOT;
+	}
+
+	/**
+	 * Gets a table size with room for the given number of keys
+	 * while staying under half full
+	 *
+	 * @param keys The number of keys
+	 *
+	 * @return the number of slots, a power of two
+	 **/
+	private static int tableSize(int keys){
+		int size = MIN_CAPACITY;
+		while(size < keys * 4L){
+			size *= 2;
+		}
+		return size;
+	}
+
+	/**
+	 * Hashes an encoded key, FNV-1a with the bits mixed at the end
+	 *
+	 * @param k The encoded key
+	 *
+	 * @return the hash
+	 **/
+	private static int hash(byte[] k){
+		int h = 0x811c9dc5;
+		for(byte b : k){
+			h = (h ^ b) * 0x01000193;
+		}
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		return h;
+	}
+
+	/**
+	 * Maps a whole file for reading and writing, setting its size first
+	 *
+	 * @param file The file to map
+	 * @param size The size to make the file, 0 to keep its size
+	 *
+	 * @return the mapped file
+	 * @throws IOException if the file could not be mapped
+	 **/
+	private static MappedByteBuffer map(File file, long size) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try{
+			if(size > 0){
+				raf.setLength(size);
+			}
+			// the mapping stays valid once the file is closed
+			return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+		}finally{
+			raf.close();
+		}
+	}
+}
@@ -0,0 +1,221 @@
+package netizens.bank.utils.database;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * Record.java
+ *
+ * The on-disk form of a single put, used by the log, snapshots and the
+ * mapped data file. A record is a four byte length followed by the key
+ * and then the value, each written as the one byte tag of its codec and
+ * the value itself (see Codecs)
+ * <br/>
+ * Puts made together are logged as one record, so that a crash can't
+ * keep some of them and lose the rest. Such a record starts with the
+ * tag Codecs.BATCH and the number of puts, followed by each key and value.
+ * These only appear from format version 3
+ **/
+public final class Record {
+
+	/**
+	 * The largest record that will be read back, anything claiming
+	 * to be bigger is treated as damage
+	 **/
+	public static final int MAX_LENGTH = 1 << 26;
+
+	private Record(){}
+
+	/**
+	 * Encodes a put as a complete record, ready to be appended
+	 *
+	 * @param key The key put
+	 * @param value The value put
+	 *
+	 * @return the record including its length
+	 * @throws IOException if there is no codec for the key or value
+	 **/
+	public static byte[] encode(Object key, Object value) throws IOException {
+		Codec<Object> keyCodec = key == null ? null : Codecs.forValue(key);
+		Codec<Object> valueCodec = value == null ? null : Codecs.forValue(value);
+		int length = size(keyCodec, key) + size(valueCodec, value);
+		ByteBuffer out = ByteBuffer.allocate(4 + length);
+		out.putInt(length);
+		write(out, keyCodec, key);
+		write(out, valueCodec, value);
+		return out.array();
+	}
+
+	/**
+	 * Encodes several puts as one complete record
+	 *
+	 * @param values The keys and values put
+	 *
+	 * @return the record including its length
+	 * @throws IOException if there is no codec for a key or value
+	 **/
+	@SuppressWarnings("unchecked")
+	public static byte[] encode(Map<?, ?> values) throws IOException {
+		int size = values.size();
+		Object[] objects = new Object[size * 2];
+		Codec<Object>[] codecs = (Codec<Object>[]) new Codec<?>[size * 2];
+		int length = 1 + 4;
+		int x = 0;
+		for(Map.Entry<?, ?> entry : values.entrySet()){
+			objects[x] = entry.getKey();
+			objects[x + 1] = entry.getValue();
+			for(int y = x; y < x + 2; y++){
+				codecs[y] = objects[y] == null ? null : Codecs.forValue(objects[y]);
+				length += size(codecs[y], objects[y]);
+			}
+			x += 2;
+		}
+		ByteBuffer out = ByteBuffer.allocate(4 + length);
+		out.putInt(length);
+		out.put(Codecs.BATCH);
+		out.putInt(size);
+		for(x = 0; x < objects.length; x++){
+			write(out, codecs[x], objects[x]);
+		}
+		return out.array();
+	}
+
+	/**
+	 * Gives the length of the record for a number changed by add() and the
+	 * value stored with it, the same for every change to the number as long
+	 * as the codecs of the other key and value have a fixed size
+	 *
+	 * @param with The key the value is stored at
+	 * @param value The value
+	 *
+	 * @return the length of the record including its length
+	 * @throws IOException if there is no codec for the key or value
+	 **/
+	public static int length(Object with, Object value) throws IOException {
+		Codec<Object> withCodec = with == null ? null : Codecs.forValue(with);
+		Codec<Object> valueCodec = value == null ? null : Codecs.forValue(value);
+		// the batch tag and count, then the number's key and value
+		return 4 + 1 + 4 + 2 * (1 + 8) + size(withCodec, with) + size(valueCodec, value);
+	}
+
+	/**
+	 * Encodes a number changed by add() and the value stored with it as
+	 * one record of two puts, into an array that may be used again
+	 *
+	 * @param into The array, of the length given by length()
+	 * @param key The key of the number
+	 * @param number The number after the change
+	 * @param with The key the value is stored at
+	 * @param value The value
+	 * @throws IOException if there is no codec for the key or value
+	 **/
+	public static void encode(byte[] into, long key, long number, Object with, Object value) throws IOException {
+		Codec<Object> withCodec = with == null ? null : Codecs.forValue(with);
+		Codec<Object> valueCodec = value == null ? null : Codecs.forValue(value);
+		ByteBuffer out = ByteBuffer.wrap(into);
+		out.putInt(into.length - 4);
+		out.put(Codecs.BATCH);
+		out.putInt(2);
+		// written as LongCodec would, without making a Long
+		out.put(LongCodec.TAG);
+		out.putLong(key);
+		out.put(LongCodec.TAG);
+		out.putLong(number);
+		write(out, withCodec, with);
+		write(out, valueCodec, value);
+	}
+
+	/**
+	 * Decodes the puts in a record body, whether it holds one put or several
+	 *
+	 * @param body The record without its length
+	 *
+	 * @return the keys and values in turn
+	 * @throws IOException if the record is damaged
+	 **/
+	public static Object[] decode(ByteBuffer body) throws IOException {
+		int count = 1;
+		if(body.get(body.position()) == Codecs.BATCH){
+			body.get();
+			count = body.getInt();
+			if(count < 0 || count > body.remaining() / 2){
+				throw new IOException("Bad batch size " + count);
+			}
+		}
+		Object[] puts = new Object[count * 2];
+		for(int x = 0; x < puts.length; x++){
+			puts[x] = read(body);
+		}
+		return puts;
+	}
+
+	/**
+	 * Encodes a single key or value
+	 *
+	 * @param o The key or value
+	 *
+	 * @return the tagged bytes
+	 * @throws IOException if there is no codec for the object
+	 **/
+	public static byte[] encode(Object o) throws IOException {
+		Codec<Object> codec = o == null ? null : Codecs.forValue(o);
+		ByteBuffer out = ByteBuffer.allocate(size(codec, o));
+		write(out, codec, o);
+		return out.array();
+	}
+
+	/**
+	 * Reads the key or value at the current position of a buffer,
+	 * moving the position past it
+	 *
+	 * @param in The buffer holding the record
+	 *
+	 * @return the key or value
+	 * @throws IOException if the record is damaged
+	 **/
+	public static Object read(ByteBuffer in) throws IOException {
+		byte tag = in.get();
+		if(tag == Codecs.NULL){
+			return null;
+		}
+		if(tag == Codecs.LEGACY_OBJECT){
+			byte[] serial = new byte[in.getInt()];
+			in.get(serial);
+			try{
+				return Codecs.legacyStream(new ByteArrayInputStream(serial)).readObject();
+			}catch(ClassNotFoundException e){
+				throw new IOException(e);
+			}
+		}
+		return Codecs.forTag(tag).read(in);
+	}
+
+	/**
+	 * Gives the size of a tagged key or value
+	 *
+	 * @param codec The codec for the object, null for null
+	 * @param o The key or value
+	 *
+	 * @return the number of bytes including the tag
+	 **/
+	private static int size(Codec<Object> codec, Object o){
+		return codec == null ? 1 : 1 + codec.size(o);
+	}
+
+	/**
+	 * Writes a tagged key or value
+	 *
+	 * @param out Where the record is being built
+	 * @param codec The codec for the object, null for null
+	 * @param o The key or value
+	 **/
+	private static void write(ByteBuffer out, Codec<Object> codec, Object o){
+		if(codec == null){
+			out.put(Codecs.NULL);
+		}else{
+			out.put(codec.tag());
+			codec.write(out, o);
+		}
+	}
+}
@@ -0,0 +1,20 @@
+package netizens.bank.utils.database;
+
+/**
+ * Recorder.java
+ *
+ * Makes the value saved together with a number changed by Storage.add(),
+ * such as the posting that records a change to a balance. It is only
+ * called once the number has changed, so it knows the result
+ *
+ * @param <V> The type of value made
+ **/
+public interface Recorder<V> {
+
+	/**
+	 * @param number The number after the change
+	 *
+	 * @return the value to save with it
+	 **/
+	public V record(long number);
+}
@@ -0,0 +1,58 @@
+package netizens.bank.utils.database;
+
+import java.util.*;
+
+/**
+ * Scan.java
+ *
+ * Walks a range of a secondary index in order, reading each value from
+ * the database only when it is reached, so a scan never holds more than
+ * one value at a time however large the range is. A value changed since
+ * the scan found it is skipped if it no longer belongs in the range
+ *
+ * @param <K> The type of key in the database
+ * @param <V> The type of value in the database
+ **/
+public final class Scan<K, V> implements Iterator<Map.Entry<K, V>> {
+
+	private final Index<K, V> index;
+	private final Storage<K, V> storage;
+	private final Iterator<Map.Entry<Tuple, K>> entries;
+	private Map.Entry<K, V> next;
+
+	/**
+	 * Creates a scan over part of an index
+	 *
+	 * @param index The index being scanned
+	 * @param storage Where the values are read from
+	 * @param range The part of the index to scan, in the order wanted
+	 **/
+	public Scan(Index<K, V> index, Storage<K, V> storage, NavigableMap<Tuple, K> range){
+		this.index = index;
+		this.storage = storage;
+		entries = range.entrySet().iterator();
+	}
+
+	@Override
+	public boolean hasNext(){
+		while(next == null && entries.hasNext()){
+			Map.Entry<Tuple, K> entry = entries.next();
+			K key = entry.getValue();
+			V value = storage.get(key);
+			if(index.holds(entry.getKey(), key, value)){
+				next = new AbstractMap.SimpleImmutableEntry<>(key, value);
+			}
+		}
+		return next != null;
+	}
+
+	@Override
+	public Map.Entry<K, V> next(){
+		if(!hasNext()){
+			throw new NoSuchElementException();
+		}
+		Map.Entry<K, V> entry = next;
+		next = null;
+		return entry;
+	}
+}
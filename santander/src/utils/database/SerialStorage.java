@@ -0,0 +1,149 @@
+package netizens.bank.utils.database;
+
+import java.io.*;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import netizens.bank.utils.Debug;
+
+/**
+ * SerialStorage.java
+ *
+ * The original engine, the whole map is read from the file on open
+ * and written back to the file on flush or close (see Snapshot).
+ * A file saved with Java serialization by older versions is still read.
+ * The file can be saved in compressed pages, and is read either way.
+ * The map is kept in memory as a TableMap
+ *
+ * @param <K> The type of key to use (must have a codec, see Codecs)
+ * @param <V> The type of value to use (must have a codec, see Codecs)
+ **/
+public class SerialStorage<K, V> implements Storage<K, V> {
+
+	private final String path;
+	private final int compression;
+	private TableMap<K, V> database;
+
+	/**
+	 * Creates the engine for the given file, saved without compression
+	 *
+	 * @param path The file the data is kept in
+	 **/
+	public SerialStorage(String path){
+		this(path, 0);
+	}
+
+	/**
+	 * Creates the engine for the given file
+	 *
+	 * @param path The file the data is kept in
+	 * @param compression The Deflater level to save the file with, 0 to not compress
+	 **/
+	public SerialStorage(String path, int compression){
+		this.path = path;
+		this.compression = compression;
+		database = new TableMap<>();
+	}
+
+	@Override
+	public V get(K key){
+		return database.get(key);
+	}
+
+	@Override
+	public void put(K key, V value){
+		database.put(key, value);
+	}
+
+	@Override
+	public void putAll(Map<K, V> values){
+		database.putAll(values);
+	}
+
+	/**
+	 * Adds an amount to a number in the map in place and stores the value
+	 * made from the result, both are saved by the next flush
+	 *
+	 * @param key The key of the number, which must already be there
+	 * @param amount The amount to add, negative to take away
+	 * @param floor The lowest the number may become, above Long.MIN_VALUE
+	 * @param with The key to store the value made by the recorder at
+	 * @param recorder Makes the value stored with the result
+	 *
+	 * @return the new number, Long.MIN_VALUE if nothing was changed
+	 **/
+	@Override
+	public long add(long key, long amount, long floor, K with, Recorder<V> recorder){
+		long number = database.add(key, amount, floor);
+		if(number != Long.MIN_VALUE){
+			database.put(with, recorder.record(number));
+		}
+		return number;
+	}
+
+	@Override
+	public void forEach(BiConsumer<? super K, ? super V> action){
+		database.forEach(action);
+	}
+
+	/**
+	 * Load the database from the file
+	 * if the file doesn't exist, it gets created here
+	 * if the file has a database in it already, it is loaded here
+	 *
+	 * @return false if there is an error opening the database
+	 **/
+	@Override
+	public boolean open(){
+		try{
+			File dbFile = new File(path);
+
+			// Only read the database from the file if it exists and has been saved to
+			if(dbFile.exists() && dbFile.length() > 0){
+				// load the database here
+				database = new TableMap<>();
+				Snapshot.read(dbFile, database);
+
+				Debug.println("Database loaded");
+			}else if(!dbFile.exists()){
+				dbFile.getAbsoluteFile().getParentFile().mkdirs();
+				dbFile.createNewFile();
+
+				Debug.println("Database created");
+			}
+			return true;
+		}catch(Exception e){
+			System.err.println("Error opening database");
+			System.err.println(e);
+			return false;
+		}
+	}
+
+	/**
+	 * Save the whole database to the file, one save at a time
+	 *
+	 * @return false if there is an error saving the database
+	 **/
+	@Override
+	public synchronized boolean flush(){
+		try{
+			// written to the side and swapped in, a failed save leaves the last one
+			Snapshot.write(new File(path), database, 0, compression);
+
+			return true;
+		}catch(Exception e){
+			System.err.println("Error saving database");
+			System.err.println(e);
+			return false;
+		}
+	}
+
+	/**
+	 * Save the whole database to the file
+	 *
+	 * @return false if there is an error closing the database
+	 **/
+	@Override
+	public boolean close(){
+		return flush();
+	}
+}
@@ -0,0 +1,416 @@
+package netizens.bank.utils.database;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.BiConsumer;
+import netizens.bank.utils.Debug;
+
+/**
+ * ShardedStorage.java
+ *
+ * Splits the keys over a number of engines by their hash, each kept in its
+ * own files at the database path with "." and the shard number added. The
+ * shards are opened, flushed and closed at the same time, one thread each,
+ * so loading, saving and checkpoints are spread over the cores and disks.
+ * Each log shard also has its own writer thread (see GroupCommit)
+ * <br/>
+ * The number of shards is written to the path with ".shards" added the
+ * first time, a database is refused if it is opened with a different
+ * number as its keys would be looked for in the wrong shards. A database
+ * kept at the path without shards is copied in the first time it is opened
+ * <br/>
+ * putAll() within one shard is stored as one change by that shard. Values
+ * for several shards are first written whole to an intent log and synced,
+ * then split by shard. A flush marks them done once every shard has saved
+ * its part, and opening puts any change not marked done again, so a crash
+ * never keeps the values of one shard without another's (see IntentLog)
+ *
+ * @param <K> The type of key to use (must have a codec, see Codecs)
+ * @param <V> The type of value to use (must have a codec, see Codecs)
+ **/
+public class ShardedStorage<K, V> implements Storage<K, V> {
+
+	/**
+	 * Something done to every shard at once
+	 **/
+	private interface Task {
+
+		/**
+		 * @param shard The engine of the shard
+		 *
+		 * @return false if it failed
+		 **/
+		public boolean run(Storage<?, ?> shard);
+	}
+
+	private final String path;
+	private final Storage<K, V>[] shards;
+	private final IntentLog intents;
+	private volatile boolean failed;
+	private ExecutorService pool;
+
+	/**
+	 * Puts a set of engines together as shards
+	 *
+	 * @param path The path of the database, the shards are kept next to it
+	 * @param shards The engine of each shard, kept at the path with "." and its number added
+	 **/
+	public ShardedStorage(String path, Storage<K, V>[] shards){
+		this(path, shards, true);
+	}
+
+	/**
+	 * Puts a set of engines together as shards
+	 *
+	 * @param path The path of the database, the shards are kept next to it
+	 * @param shards The engine of each shard, kept at the path with "." and its number added
+	 * @param sync False to write changes across shards without syncing them
+	 **/
+	public ShardedStorage(String path, Storage<K, V>[] shards, boolean sync){
+		this.path = path;
+		this.shards = shards;
+		intents = new IntentLog(path, sync);
+	}
+
+	@Override
+	public V get(K key){
+		return shards[shard(key)].get(key);
+	}
+
+	@Override
+	public void put(K key, V value){
+		shards[shard(key)].put(key, value);
+	}
+
+	/**
+	 * Puts the values in their shards, writing them to the intent log
+	 * first when they are for more than one
+	 *
+	 * @param values The keys and the values to store at them
+	 **/
+	@Override
+	public void putAll(Map<K, V> values){
+		int first = -1;
+		boolean split = false;
+		for(K key : values.keySet()){
+			int x = shard(key);
+			if(first >= 0 && x != first){
+				split = true;
+				break;
+			}
+			first = x;
+		}
+		if(!split){
+			// one shard, the usual case for small transactions
+			if(first >= 0){
+				shards[first].putAll(values);
+			}
+			return;
+		}
+		long number;
+		try{
+			number = intents.begin(values);
+		}catch(IOException e){
+			// nothing is put, so the shards never hold part of it
+			failed = true;
+			System.err.println("Error writing to database intent log, put refused");
+			System.err.println(e);
+			return;
+		}
+		try{
+			split(values);
+		}finally{
+			intents.finish(number);
+		}
+	}
+
+	/**
+	 * Puts the values for each shard in it together
+	 *
+	 * @param values The keys and the values to store at them
+	 **/
+	private void split(Map<K, V> values){
+		HashMap<Integer, Map<K, V>> parts = new HashMap<>();
+		for(Map.Entry<K, V> entry : values.entrySet()){
+			int x = shard(entry.getKey());
+			Map<K, V> part = parts.get(x);
+			if(part == null){
+				part = new HashMap<>();
+				parts.put(x, part);
+			}
+			part.put(entry.getKey(), entry.getValue());
+		}
+		for(Map.Entry<Integer, Map<K, V>> part : parts.entrySet()){
+			shards[part.getKey()].putAll(part.getValue());
+		}
+	}
+
+	/**
+	 * Adds an amount to a number in its shard, which stores the value made
+	 * from the result too if its key is in the same shard. Otherwise the
+	 * number is read and the result put with the value through putAll(),
+	 * so the intent log keeps the two together
+	 *
+	 * @param key The key of the number, which must already be there
+	 * @param amount The amount to add, negative to take away
+	 * @param floor The lowest the number may become, above Long.MIN_VALUE
+	 * @param with The key to store the value made by the recorder at
+	 * @param recorder Makes the value stored with the result
+	 *
+	 * @return the new number, Long.MIN_VALUE if nothing was changed
+	 **/
+	@Override
+	@SuppressWarnings("unchecked")
+	public long add(long key, long amount, long floor, K with, Recorder<V> recorder){
+		int x = spread(Long.hashCode(key));
+		if(x == shard(with)){
+			return shards[x].add(key, amount, floor, with, recorder);
+		}
+		K boxed = (K) Long.valueOf(key);
+		V old = shards[x].get(boxed);
+		if(!(old instanceof Long)){
+			return Long.MIN_VALUE;
+		}
+		long number = LongTable.sum((Long) old, amount, floor);
+		if(number != Long.MIN_VALUE){
+			Map<K, V> values = new HashMap<>();
+			values.put(boxed, (V) Long.valueOf(number));
+			values.put(with, recorder.record(number));
+			putAll(values);
+		}
+		return number;
+	}
+
+	@Override
+	public void forEach(BiConsumer<? super K, ? super V> action){
+		for(Storage<K, V> shard : shards){
+			shard.forEach(action);
+		}
+	}
+
+	/**
+	 * Opens every shard at once, checking they were written with
+	 * the same number of shards and copying in data kept without shards
+	 *
+	 * @return false if there is an error opening a shard
+	 **/
+	@Override
+	public boolean open(){
+		try{
+			File count = new File(path + ".shards");
+			count.getAbsoluteFile().getParentFile().mkdirs();
+			if(count.exists()){
+				int stored = Integer.parseInt(new String(Files.readAllBytes(count.toPath()), StandardCharsets.UTF_8).trim());
+				if(stored != shards.length){
+					throw new IOException(path + " has " + stored + " shards, not " + shards.length);
+				}
+			}
+			if(pool == null){
+				pool = Executors.newFixedThreadPool(shards.length, new ThreadFactory(){
+					private int threads;
+
+					@Override
+					public synchronized Thread newThread(Runnable runnable){
+						Thread thread = new Thread(runnable, "database-shard-" + threads++);
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+			}
+			if(!all(new Task(){
+				@Override
+				public boolean run(Storage<?, ?> shard){
+					return shard.open();
+				}
+			})){
+				return false;
+			}
+			finish();
+			if(!count.exists()){
+				copyUnsharded();
+				// only written once the copy is saved, an interrupted copy is made again
+				Files.write(count.toPath(), Integer.toString(shards.length).getBytes(StandardCharsets.UTF_8));
+			}
+			Debug.println("Database opened, " + shards.length + " shards");
+			return true;
+		}catch(Exception e){
+			System.err.println("Error opening database");
+			System.err.println(e);
+			return false;
+		}
+	}
+
+	/**
+	 * Puts again every change across shards that was not marked done
+	 * before the database was last closed or the program stopped
+	 *
+	 * @throws IOException if the intent log can't be read or the changes could not be saved
+	 **/
+	@SuppressWarnings("unchecked")
+	private void finish() throws IOException {
+		failed = false;
+		List<Object[]> pending = intents.open();
+		for(Object[] puts : pending){
+			Map<K, V> values = new HashMap<>();
+			for(int x = 0; x < puts.length; x += 2){
+				values.put((K) puts[x], (V) puts[x + 1]);
+			}
+			split(values);
+		}
+		if(!pending.isEmpty()){
+			if(!flush()){
+				throw new IOException("Could not finish the changes across shards");
+			}
+			Debug.println("Database finished " + pending.size() + " changes across shards");
+		}
+	}
+
+	/**
+	 * Flushes every shard at once, then marks the changes across shards
+	 * they were given before as done
+	 *
+	 * @return false if a shard or the intent log could not be saved
+	 **/
+	@Override
+	public boolean flush(){
+		long put = intents.getPut();
+		boolean flushed = all(new Task(){
+			@Override
+			public boolean run(Storage<?, ?> shard){
+				return shard.flush();
+			}
+		});
+		return flushed && intents.done(put) && !failed;
+	}
+
+	/**
+	 * Closes every shard at once and stops their threads, marking the
+	 * changes across shards done
+	 *
+	 * @return false if a shard could not be closed
+	 **/
+	@Override
+	public boolean close(){
+		long put = intents.getPut();
+		boolean closed = all(new Task(){
+			@Override
+			public boolean run(Storage<?, ?> shard){
+				return shard.close();
+			}
+		});
+		// saved by every shard, so not to be put again over later values
+		closed = closed && intents.done(put) && !failed;
+		if(pool != null){
+			pool.shutdown();
+			pool = null;
+		}
+		return intents.close() && closed;
+	}
+
+	/**
+	 * Gets the engine of each shard
+	 *
+	 * @return the shards, by number
+	 **/
+	public List<Storage<K, V>> getShards(){
+		return Collections.unmodifiableList(Arrays.asList(shards));
+	}
+
+	/**
+	 * Runs a task on every shard, the first in the calling thread
+	 * and the rest on the pool, waiting for all of them
+	 *
+	 * @param task The task
+	 *
+	 * @return false if the task failed for any shard
+	 **/
+	private boolean all(final Task task){
+		if(pool == null){
+			return false;
+		}
+		List<Future<Boolean>> results = new ArrayList<>(shards.length - 1);
+		for(int x = 1; x < shards.length; x++){
+			final Storage<K, V> shard = shards[x];
+			results.add(pool.submit(new Callable<Boolean>(){
+				@Override
+				public Boolean call(){
+					return task.run(shard);
+				}
+			}));
+		}
+		boolean ok = task.run(shards[0]);
+		for(Future<Boolean> result : results){
+			try{
+				ok &= result.get();
+			}catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+				ok = false;
+			}catch(ExecutionException e){
+				System.err.println("Error in database shard");
+				System.err.println(e.getCause());
+				ok = false;
+			}
+		}
+		return ok;
+	}
+
+	/**
+	 * Copies in anything kept at the path without shards, by any engine
+	 *
+	 * @throws IOException if it could not be read or the copy could not be saved
+	 **/
+	private void copyUnsharded() throws IOException {
+		Storage<K, V> unsharded;
+		if(new File(path + ".index").exists()){
+			unsharded = new MappedStorage<>(path);
+		}else if(new File(path).length() > 0 || LogStorage.hasLog(path)){
+			// reads what the serial engine saved as well
+			unsharded = new LogStorage<>(path, Integer.MAX_VALUE);
+		}else{
+			return;
+		}
+		if(!unsharded.open()){
+			throw new IOException("Could not read the existing database");
+		}
+		final int[] copied = new int[1];
+		unsharded.forEach(new BiConsumer<K, V>(){
+			@Override
+			public void accept(K key, V value){
+				put(key, value);
+				copied[0]++;
+			}
+		});
+		unsharded.close();
+		if(!flush()){
+			throw new IOException("Could not copy the existing database");
+		}
+		Debug.println("Database split into " + shards.length + " shards, " + copied[0] + " keys copied in");
+	}
+
+	/**
+	 * Finds the shard a key is kept in, the same on every run
+	 *
+	 * @param key The key
+	 *
+	 * @return the number of the shard
+	 **/
+	private int shard(K key){
+		return spread(key.hashCode());
+	}
+
+	/**
+	 * Finds the shard a key is kept in from its hash
+	 *
+	 * @param hash The hash code of the key
+	 *
+	 * @return the number of the shard
+	 **/
+	private int spread(int hash){
+		// mixed so the shards don't follow the lock stripes in Database, which use the low bits
+		int h = hash * 0x9e3779b9;
+		return Math.floorMod(h ^ (h >>> 16), shards.length);
+	}
+}
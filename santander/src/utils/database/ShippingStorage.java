@@ -0,0 +1,193 @@
+package netizens.bank.utils.database;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.function.BiConsumer;
+
+/**
+ * ShippingStorage.java
+ *
+ * Hands the changes made to a database on the primary to its LogShipper,
+ * so they reach the followers. A change is only shipped once flush() has
+ * saved it, so a follower never holds a change the primary could lose by
+ * stopping. Nothing is kept while no follower is connected, one that
+ * connects is sent a copy of the engine instead
+ * <br/>
+ * Changes are shipped in the order they were put. Puts to the same key
+ * must not race each other, Database makes sure of this
+ *
+ * @param <K> The type of key to use (must have a codec, see Codecs)
+ * @param <V> The type of value to use (must have a codec, see Codecs)
+ **/
+public class ShippingStorage<K, V> implements Storage<K, V> {
+
+	private final Storage<K, V> storage;
+	private final LogShipper shipper;
+	private final String name;
+	// changes waiting to be saved, oldest first
+	private final ArrayList<byte[]> pending = new ArrayList<>();
+	// held while shipping, so changes from two flushes go out in order
+	private final Object shipping = new Object();
+	private volatile boolean failed;
+
+	/**
+	 * Ships the changes made to an engine
+	 *
+	 * @param storage The engine the values are kept in
+	 * @param shipper The shipper to hand the changes to
+	 * @param name The name of the database, the same on every server
+	 **/
+	public ShippingStorage(Storage<K, V> storage, LogShipper shipper, String name){
+		this.storage = storage;
+		this.shipper = shipper;
+		this.name = name;
+	}
+
+	@Override
+	public V get(K key){
+		return storage.get(key);
+	}
+
+	@Override
+	public void put(K key, V value){
+		storage.put(key, value);
+		// checked after the put, a follower that joins later has it in its copy
+		if(shipper.isFollowed()){
+			keep(key, value, null);
+		}
+	}
+
+	@Override
+	public void putAll(Map<K, V> values){
+		storage.putAll(values);
+		if(shipper.isFollowed()){
+			keep(null, null, values);
+		}
+	}
+
+	/**
+	 * Adds an amount to a number in the engine and ships the result with
+	 * the value stored alongside it as one change
+	 *
+	 * @param key The key of the number, which must already be there
+	 * @param amount The amount to add, negative to take away
+	 * @param floor The lowest the number may become, above Long.MIN_VALUE
+	 * @param with The key to store the value made by the recorder at
+	 * @param recorder Makes the value stored with the result
+	 *
+	 * @return the new number, Long.MIN_VALUE if nothing was changed
+	 **/
+	@Override
+	public long add(long key, long amount, long floor, K with, Recorder<V> recorder){
+		long number = storage.add(key, amount, floor, with, recorder);
+		if(number != Long.MIN_VALUE && shipper.isFollowed()){
+			V value = storage.get(with);
+			try{
+				byte[] record = new byte[Record.length(with, value)];
+				Record.encode(record, key, number, with, value);
+				synchronized(pending){
+					pending.add(record);
+				}
+			}catch(IOException e){
+				failed = true;
+				System.err.println("Error encoding database change for followers");
+				System.err.println(e);
+			}
+		}
+		return number;
+	}
+
+	@Override
+	public void forEach(BiConsumer<? super K, ? super V> action){
+		storage.forEach(action);
+	}
+
+	/**
+	 * Opens the engine and lets followers copy it
+	 *
+	 * @return false if there is an error opening the storage
+	 **/
+	@Override
+	public boolean open(){
+		if(!storage.open()){
+			return false;
+		}
+		shipper.register(name, storage);
+		return true;
+	}
+
+	/**
+	 * Saves the changes made so far and ships them
+	 *
+	 * @return false if there is an error saving the database
+	 **/
+	@Override
+	public boolean flush(){
+		int saved;
+		synchronized(pending){
+			saved = pending.size();
+		}
+		// changes kept after this point may not be covered by the flush
+		if(!storage.flush()){
+			return false;
+		}
+		ship(saved);
+		return !failed;
+	}
+
+	/**
+	 * Closes the engine, shipping what it saved
+	 *
+	 * @return false if there is an error closing the storage
+	 **/
+	@Override
+	public boolean close(){
+		boolean closed = storage.close();
+		if(closed){
+			ship(Integer.MAX_VALUE);
+		}
+		return closed && !failed;
+	}
+
+	/**
+	 * Encodes a change to be shipped once it is saved
+	 *
+	 * @param key The key put, or null for putAll()
+	 * @param value The value put
+	 * @param values The values given to putAll()
+	 **/
+	private void keep(K key, V value, Map<K, V> values){
+		try{
+			byte[] record = values == null ? Record.encode(key, value) : Record.encode(values);
+			synchronized(pending){
+				pending.add(record);
+			}
+		}catch(IOException e){
+			// remembered so that flush() reports the follower may miss it
+			failed = true;
+			System.err.println("Error encoding database change for followers");
+			System.err.println(e);
+		}
+	}
+
+	/**
+	 * Ships the oldest changes waiting
+	 *
+	 * @param count The most changes to ship
+	 **/
+	private void ship(int count){
+		synchronized(shipping){
+			List<byte[]> saved;
+			synchronized(pending){
+				int ready = Math.min(count, pending.size());
+				if(ready == 0){
+					return;
+				}
+				saved = new ArrayList<>(pending.subList(0, ready));
+				pending.subList(0, ready).clear();
+			}
+			// outside the lock, puts carry on keeping changes meanwhile
+			shipper.ship(name, saved);
+		}
+	}
+}
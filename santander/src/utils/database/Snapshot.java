@@ -0,0 +1,446 @@
+package netizens.bank.utils.database;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Snapshot.java
+ *
+ * Reads and writes whole maps as files of records, and the header
+ * that starts every file written by the engines. The header is the
+ * magic number, the format version and the kind of file, so a later
+ * version can change the layout and still read files written now
+ * <br/>
+ * A snapshot can be compressed with Deflater, set by the last byte of the
+ * header. The records are then grouped into pages of about 64KB, each
+ * compressed on its own and written as its length before and after
+ * compression followed by the compressed bytes, and a record never spans
+ * two pages. Pages only bound the memory a read needs: the file is always
+ * read whole from the start, there is no directory of pages and no way to
+ * read one account without the ones before it
+ * <br/>
+ * Older files are still read: version 1 checkpoints start with "NZLG"
+ * instead of a header, version 1 logs have no header at all, and files
+ * from before the engines are a Java serialized HashMap, which is read
+ * through Codecs.LEGACY_FILTER
+ **/
+public final class Snapshot {
+
+	/**
+	 * "NZDB", the start of every header
+	 **/
+	public static final int MAGIC = 0x4e5a4442;
+
+	/**
+	 * The format version written, files with a higher version are refused
+	 **/
+	public static final short VERSION = 4;
+
+	/**
+	 * The size of the header in bytes
+	 **/
+	public static final int HEADER = 8;
+
+	public static final byte SNAPSHOT = 1;
+	public static final byte LOG = 2;
+	public static final byte BLOOM = 3;
+	public static final byte INTENTS = 4;
+
+	/**
+	 * The flag in the header of a snapshot with compressed pages, from version 4
+	 **/
+	public static final byte COMPRESSED = 1;
+
+	/**
+	 * The flag in the header of a log segment whose records each have
+	 * a CRC-32C of the body after the length (see LogStorage)
+	 **/
+	public static final byte CHECKSUMMED = 2;
+
+	/**
+	 * The size of a page of records before it is compressed
+	 **/
+	public static final int PAGE = 1 << 16;
+
+	// "NZLG", the start of version 1 checkpoints
+	private static final int MAGIC_V1 = 0x4e5a4c47;
+
+	private Snapshot(){}
+
+	/**
+	 * Builds the header for a file
+	 *
+	 * @param kind SNAPSHOT, LOG or BLOOM
+	 *
+	 * @return the header bytes
+	 **/
+	public static byte[] header(byte kind){
+		return header(kind, (byte) 0);
+	}
+
+	/**
+	 * Builds the header for a file with flags set
+	 *
+	 * @param kind SNAPSHOT, LOG, BLOOM or INTENTS
+	 * @param flags COMPRESSED, CHECKSUMMED or 0
+	 *
+	 * @return the header bytes
+	 **/
+	public static byte[] header(byte kind, byte flags){
+		ByteBuffer header = ByteBuffer.allocate(HEADER);
+		header.putInt(MAGIC);
+		header.putShort(VERSION);
+		header.put(kind);
+		header.put(flags);
+		return header.array();
+	}
+
+	/**
+	 * Finds where the records of a log start, after the header if it
+	 * has one. A log too short to hold a header has no records
+	 *
+	 * @param file The log
+	 *
+	 * @return the number of bytes before the first record
+	 * @throws IOException if the header is for a newer version or another kind of file
+	 **/
+	public static int skipHeader(File file) throws IOException {
+		if(file.length() < HEADER){
+			return 0;
+		}
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try{
+			// a version 1 log starts with the length of its first record, which is never this big
+			if(in.readInt() != MAGIC){
+				return 0;
+			}
+			check(file, in, LOG);
+			return HEADER;
+		}finally{
+			in.close();
+		}
+	}
+
+	/**
+	 * Writes a map to a new file, made complete on disk
+	 * before it replaces the old one
+	 *
+	 * @param file The file to write
+	 * @param map The data to write
+	 * @throws IOException if the file could not be written
+	 **/
+	public static void write(File file, Map<?, ?> map) throws IOException {
+		write(file, map, 0, 0);
+	}
+
+	/**
+	 * Writes a map to a new file no faster than the given rate, so that
+	 * a snapshot taken in the background leaves the disk free for the log.
+	 * The map may change while it is written, each value is written as it
+	 * is when it is reached
+	 *
+	 * @param file The file to write
+	 * @param map The data to write
+	 * @param rate The most bytes to write a second, 0 for no limit
+	 * @param level The Deflater level to compress pages with, 1 to 9, 0 to not compress
+	 * @throws IOException if the file could not be written
+	 **/
+	public static void write(File file, Map<?, ?> map, long rate, int level) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		FileOutputStream fileOut = new FileOutputStream(tmp);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 1 << 16));
+		Deflater deflater = level > 0 ? new Deflater(Math.min(level, Deflater.BEST_COMPRESSION)) : null;
+		try{
+			out.write(header(SNAPSHOT, deflater != null ? COMPRESSED : 0));
+			long start = System.nanoTime();
+			long written = 0;
+			byte[] page = new byte[PAGE];
+			byte[] packed = new byte[0];
+			int used = 0;
+			for(Map.Entry<?, ?> entry : map.entrySet()){
+				byte[] record = Record.encode(entry.getKey(), entry.getValue());
+				long before = written;
+				if(deflater == null){
+					out.write(record);
+					written += record.length;
+				}else{
+					if(used > 0 && used + record.length > page.length){
+						packed = packedSize(packed, used);
+						written += writePage(out, deflater, page, used, packed);
+						used = 0;
+					}
+					if(record.length > page.length){
+						// a page of its own
+						page = new byte[record.length];
+					}
+					System.arraycopy(record, 0, page, used, record.length);
+					used += record.length;
+				}
+				// paced once per buffer full, by what reaches the disk
+				if(rate > 0 && (before >>> 16) != (written >>> 16)){
+					pace(start, written, rate);
+				}
+			}
+			if(used > 0){
+				writePage(out, deflater, page, used, packedSize(packed, used));
+			}
+			out.flush();
+			// on disk before it takes the place of the old file
+			fileOut.getFD().sync();
+		}finally{
+			if(deflater != null){
+				deflater.end();
+			}
+			out.close();
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		// the rename on disk too, before anything it replaces is deleted
+		syncDirectory(file);
+	}
+
+	/**
+	 * Syncs the directory holding a file, so that the file being created
+	 * or renamed there survives the machine stopping. Does nothing where
+	 * directories can't be opened, such as on Windows
+	 *
+	 * @param file The file
+	 * @throws IOException if the directory could not be synced
+	 **/
+	public static void syncDirectory(File file) throws IOException {
+		FileChannel directory;
+		try{
+			directory = FileChannel.open(file.getAbsoluteFile().getParentFile().toPath(), StandardOpenOption.READ);
+		}catch(IOException e){
+			return;
+		}
+		try{
+			directory.force(true);
+		}finally{
+			directory.close();
+		}
+	}
+
+	/**
+	 * Compresses a page of records and writes it with its lengths
+	 *
+	 * @param out The file
+	 * @param deflater The deflater, reset for each page
+	 * @param page The records
+	 * @param used The bytes of records in the page
+	 * @param packed A buffer for the compressed page, see packedSize()
+	 *
+	 * @return the bytes written
+	 * @throws IOException if the page could not be written
+	 **/
+	private static int writePage(DataOutputStream out, Deflater deflater, byte[] page, int used, byte[] packed) throws IOException {
+		deflater.reset();
+		deflater.setInput(page, 0, used);
+		deflater.finish();
+		int length = 0;
+		while(!deflater.finished()){
+			if(length == packed.length){
+				throw new IOException("Snapshot page grew too large to compress");
+			}
+			length += deflater.deflate(packed, length, packed.length - length);
+		}
+		out.writeInt(used);
+		out.writeInt(length);
+		out.write(packed, 0, length);
+		return 8 + length;
+	}
+
+	/**
+	 * Makes sure a buffer can hold a compressed page, which is a little
+	 * larger than the page itself when it doesn't compress at all
+	 *
+	 * @param packed The buffer
+	 * @param used The bytes of records in the page
+	 *
+	 * @return the buffer, or a larger one
+	 **/
+	private static byte[] packedSize(byte[] packed, int used){
+		int needed = used + (used >>> 8) + 64;
+		return packed.length >= needed ? packed : new byte[needed];
+	}
+
+	/**
+	 * Reads every record in a file into a map, whichever
+	 * version wrote it
+	 *
+	 * @param file The file to read
+	 * @param into The map to fill
+	 * @throws IOException if the file is damaged or in an unknown format
+	 **/
+	@SuppressWarnings("unchecked")
+	public static <K, V> void read(File file, Map<K, V> into) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		try{
+			in.mark(4);
+			int magic = in.readInt();
+			if(magic == MAGIC){
+				if((check(file, in, SNAPSHOT) & COMPRESSED) != 0){
+					readPages(file, in, into);
+					return;
+				}
+			}else if((magic >>> 16) == 0xACED){
+				in.reset();
+				try{
+					into.putAll((Map<K, V>) Codecs.legacyStream(in).readObject());
+				}catch(ClassNotFoundException e){
+					throw new IOException(e);
+				}
+				return;
+			}else if(magic != MAGIC_V1){
+				throw new IOException("Unknown database format " + file);
+			}
+
+			for(;;){
+				int length;
+				try{
+					length = in.readInt();
+				}catch(EOFException e){
+					return;
+				}
+				if(length <= 0 || length > Record.MAX_LENGTH){
+					throw new IOException("Damaged record in " + file);
+				}
+				byte[] body = new byte[length];
+				in.readFully(body);
+				Object[] puts = Record.decode(ByteBuffer.wrap(body));
+				for(int x = 0; x < puts.length; x += 2){
+					into.put((K) puts[x], (V) puts[x + 1]);
+				}
+			}
+		}finally{
+			in.close();
+		}
+	}
+
+	/**
+	 * Reads the compressed pages of a snapshot into a map, one at a time
+	 *
+	 * @param file The file, for the error
+	 * @param in The file, just past the header
+	 * @param into The map to fill
+	 * @throws IOException if a page is damaged
+	 **/
+	@SuppressWarnings("unchecked")
+	private static <K, V> void readPages(File file, DataInputStream in, Map<K, V> into) throws IOException {
+		Inflater inflater = new Inflater();
+		try{
+			byte[] page = new byte[PAGE];
+			byte[] packed = new byte[PAGE];
+			for(;;){
+				int used;
+				try{
+					used = in.readInt();
+				}catch(EOFException e){
+					return;
+				}
+				int length = in.readInt();
+				if(used <= 0 || used > Math.max(PAGE, Record.MAX_LENGTH) || length <= 0 || length > Record.MAX_LENGTH){
+					throw new IOException("Damaged page in " + file);
+				}
+				if(page.length < used){
+					page = new byte[used];
+				}
+				if(packed.length < length){
+					packed = new byte[length];
+				}
+				in.readFully(packed, 0, length);
+				inflater.reset();
+				inflater.setInput(packed, 0, length);
+				try{
+					if(inflater.inflate(page, 0, used) != used || !inflater.finished()){
+						throw new IOException("Damaged page in " + file);
+					}
+				}catch(DataFormatException e){
+					throw new IOException("Damaged page in " + file, e);
+				}
+
+				ByteBuffer records = ByteBuffer.wrap(page, 0, used);
+				while(records.hasRemaining()){
+					int size = records.getInt();
+					if(size <= 0 || size > records.remaining()){
+						throw new IOException("Damaged record in " + file);
+					}
+					ByteBuffer body = records.slice();
+					body.limit(size);
+					records.position(records.position() + size);
+					Object[] puts = Record.decode(body);
+					for(int x = 0; x < puts.length; x += 2){
+						into.put((K) puts[x], (V) puts[x + 1]);
+					}
+				}
+			}
+		}finally{
+			inflater.end();
+		}
+	}
+
+	/**
+	 * Sleeps for as long as a write is ahead of its rate
+	 *
+	 * @param start When the write started, from System.nanoTime()
+	 * @param written The bytes written so far
+	 * @param rate The most bytes to write a second
+	 * @throws IOException if interrupted while waiting
+	 **/
+	private static void pace(long start, long written, long rate) throws IOException {
+		long ahead = (long) (written * 1e9 / rate) - (System.nanoTime() - start);
+		if(ahead > 0){
+			try{
+				Thread.sleep(ahead / 1000000, (int) (ahead % 1000000));
+			}catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Snapshot interrupted");
+			}
+		}
+	}
+
+	/**
+	 * Reads and checks the header at the start of a file
+	 *
+	 * @param file The file, for the error
+	 * @param in The file, at its start
+	 * @param kind The kind of file expected
+	 *
+	 * @return the flags in the header
+	 * @throws IOException if there is no header, or it is for a newer version or another kind of file
+	 **/
+	public static byte checkHeader(File file, DataInputStream in, byte kind) throws IOException {
+		if(in.readInt() != MAGIC){
+			throw new IOException("Unknown database format " + file);
+		}
+		return check(file, in, kind);
+	}
+
+	/**
+	 * Checks the rest of a header once the magic number has been read
+	 *
+	 * @param file The file, for the error
+	 * @param in The file, just past the magic number
+	 * @param kind The kind of file expected
+	 *
+	 * @return the flags in the header, always 0 before version 4
+	 * @throws IOException if the header is for a newer version or another kind of file
+	 **/
+	private static byte check(File file, DataInputStream in, byte kind) throws IOException {
+		short version = in.readShort();
+		if(version > VERSION){
+			throw new IOException(file + " was written by a newer version (format " + version + ")");
+		}
+		if(in.readByte() != kind){
+			throw new IOException(file + " is not a database " + (kind == LOG ? "log" : kind == BLOOM ? "filter" : kind == INTENTS ? "intent log" : "snapshot"));
+		}
+		return in.readByte();
+	}
+}
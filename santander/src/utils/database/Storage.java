@@ -0,0 +1,93 @@
+package netizens.bank.utils.database;
+
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * Storage.java
+ *
+ * The engine behind a Database, deciding how the data is kept in memory
+ * and on disk. Database picks the engine named in database.json,
+ * every engine behaves the same way through this interface.
+ * Engines are shared between threads, get and put may be called
+ * from any number of threads at once
+ *
+ * @param <K> The type of key to use (must have a codec, see Codecs)
+ * @param <V> The type of value to use (must have a codec, see Codecs)
+ **/
+public interface Storage<K, V> {
+
+	/**
+	 * Loads the data from disk, creating the files if needed
+	 *
+	 * @return false if there is an error opening the storage
+	 **/
+	public boolean open();
+
+	/**
+	 * Gets the value stored at the given key
+	 *
+	 * @param key the location of the value
+	 *
+	 * @return the value, null if there's nothing there
+	 **/
+	public V get(K key);
+
+	/**
+	 * Stores the value at the given key, overwriting anything there
+	 *
+	 * @param key The location to put the value
+	 * @param value The object to store
+	 **/
+	public void put(K key, V value);
+
+	/**
+	 * Stores several values together. Engines that log puts keep them
+	 * in one record, the mapped engine writes them to an intent log
+	 * first, so after a crash either all or none are there
+	 *
+	 * @param values The keys and the values to store at them
+	 **/
+	public void putAll(Map<K, V> values);
+
+	/**
+	 * Adds an amount to a number kept at a key, such as a balance, and
+	 * stores a value made from the result at another key, such as its
+	 * posting, as one change the same way as putAll(). Engines that keep
+	 * numbers in a LongTable change it in place and log a record of a fixed
+	 * size for the change, the others put both values. Only for databases
+	 * whose keys are Long, the caller must hold the lock of the key
+	 *
+	 * @param key The key of the number, which must already be there
+	 * @param amount The amount to add, negative to take away
+	 * @param floor The lowest the number may become, above Long.MIN_VALUE
+	 * @param with The key to store the value made by the recorder at
+	 * @param recorder Makes the value stored with the result
+	 *
+	 * @return the new number, Long.MIN_VALUE if the key holds no number or it
+	 * would go below the floor or overflow, and nothing is changed
+	 **/
+	public long add(long key, long amount, long floor, K with, Recorder<V> recorder);
+
+	/**
+	 * Passes every stored key and value to an action, in no set order.
+	 * Puts made at the same time may or may not be seen
+	 *
+	 * @param action The action to run on each key and value
+	 **/
+	public void forEach(BiConsumer<? super K, ? super V> action);
+
+	/**
+	 * Makes sure everything put so far is saved, the storage stays open
+	 *
+	 * @return false if there is an error saving
+	 **/
+	public boolean flush();
+
+	/**
+	 * Makes sure everything put is on disk and lets go of the files
+	 *
+	 * @return false if there is an error closing the storage
+	 **/
+	public boolean close();
+}
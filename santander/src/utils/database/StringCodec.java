@@ -0,0 +1,64 @@
+package netizens.bank.utils.database;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * StringCodec.java
+ *
+ * Strings, written as a four byte length and the UTF-8 bytes
+ **/
+public final class StringCodec implements Codec<String> {
+
+	public static final byte TAG = 3;
+
+	@Override
+	public byte tag(){
+		return TAG;
+	}
+
+	@Override
+	public Class<String> type(){
+		return String.class;
+	}
+
+	@Override
+	public int size(String value){
+		// counted without building the bytes, write() builds them once
+		int size = 4;
+		for(int x = 0; x < value.length(); x++){
+			char c = value.charAt(x);
+			if(c < 0x80){
+				size += 1;
+			}else if(c < 0x800){
+				size += 2;
+			}else if(Character.isHighSurrogate(c) && x + 1 < value.length() && Character.isLowSurrogate(value.charAt(x + 1))){
+				size += 4;
+				x++;
+			}else{
+				// a lone surrogate is written as '?'
+				size += Character.isSurrogate(c) ? 1 : 3;
+			}
+		}
+		return size;
+	}
+
+	@Override
+	public void write(ByteBuffer out, String value){
+		byte[] utf = value.getBytes(StandardCharsets.UTF_8);
+		out.putInt(utf.length);
+		out.put(utf);
+	}
+
+	@Override
+	public String read(ByteBuffer in) throws IOException {
+		int length = in.getInt();
+		if(length < 0 || length > in.remaining()){
+			throw new IOException("Bad string length " + length);
+		}
+		byte[] utf = new byte[length];
+		in.get(utf);
+		return new String(utf, StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,144 @@
+package netizens.bank.utils.database;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+/**
+ * TableMap.java
+ *
+ * The map the serial and log engines keep their data in. Keys and values
+ * that are both Long, like account numbers and balances, go in a LongTable
+ * as primitives, everything else in a ConcurrentHashMap. The ledger keeps
+ * balances in the table and the postings saved with them in the map
+ * <br/>
+ * This saves the memory of the stored balances, about 33 bytes an
+ * account against about 88 in a HashMap. Being a Map, get() still makes a
+ * Long for the value it gives back and put() is given one, add() changes a
+ * balance in the table without making one
+ * <br/>
+ * Like ConcurrentHashMap it may be used from any number of threads,
+ * and null keys and values are refused
+ *
+ * @param <K> The type of key
+ * @param <V> The type of value
+ **/
+public class TableMap<K, V> extends AbstractMap<K, V> {
+
+	private final LongTable table = new LongTable();
+	private final ConcurrentHashMap<K, V> other = new ConcurrentHashMap<>();
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public V get(Object key){
+		if(key instanceof Long){
+			long k = (Long) key;
+			long value = table.get(k, Long.MIN_VALUE);
+			// the missing marker is also a balance that can be stored, so check
+			if(value != Long.MIN_VALUE || table.contains(k)){
+				return (V) Long.valueOf(value);
+			}
+		}
+		return other.isEmpty() ? null : other.get(key);
+	}
+
+	@Override
+	public boolean containsKey(Object key){
+		if(key instanceof Long && table.contains((Long) key)){
+			return true;
+		}
+		return !other.isEmpty() && other.containsKey(key);
+	}
+
+	/**
+	 * Puts a value, keeping it as a primitive if the key and value are Long
+	 *
+	 * @param key The key
+	 * @param value The value
+	 *
+	 * @return the value the key had, or null. It is read before the put,
+	 * so puts to the same key must not race each other
+	 **/
+	@Override
+	public V put(K key, V value){
+		if(key == null || value == null){
+			throw new NullPointerException();
+		}
+		V old = get(key);
+		if(key instanceof Long && value instanceof Long && LongTable.allowed((Long) key)){
+			table.put((Long) key, (Long) value);
+			if(!other.isEmpty()){
+				other.remove(key);
+			}
+		}else{
+			other.put(key, value);
+			// only when it was there, removing takes the whole table
+			if(old instanceof Long && key instanceof Long){
+				table.remove((Long) key);
+			}
+		}
+		return old;
+	}
+
+	/**
+	 * Adds an amount to a number kept in the table in place (see LongTable)
+	 *
+	 * @param key The key
+	 * @param amount The amount to add, negative to take away
+	 * @param floor The lowest the number may become, above Long.MIN_VALUE
+	 *
+	 * @return the new number, Long.MIN_VALUE if the key holds no number or it
+	 * would go below the floor or overflow
+	 **/
+	public long add(long key, long amount, long floor){
+		return table.add(key, amount, floor);
+	}
+
+	@Override
+	public void forEach(BiConsumer<? super K, ? super V> action){
+		Iterator<Map.Entry<K, V>> entries = entrySet().iterator();
+		while(entries.hasNext()){
+			Map.Entry<K, V> entry = entries.next();
+			action.accept(entry.getKey(), entry.getValue());
+		}
+	}
+
+	@Override
+	public int size(){
+		return table.size() + other.size();
+	}
+
+	/**
+	 * Gives every key and value, those in the table first. Changes made
+	 * while going through may or may not be seen, nothing can be removed
+	 *
+	 * @return the entries
+	 **/
+	@Override
+	public Set<Map.Entry<K, V>> entrySet(){
+		return new AbstractSet<Map.Entry<K, V>>(){
+			@Override
+			@SuppressWarnings("unchecked")
+			public Iterator<Map.Entry<K, V>> iterator(){
+				final Iterator<Map.Entry<Long, Long>> longs = table.iterator();
+				final Iterator<Map.Entry<K, V>> objects = other.entrySet().iterator();
+				return new Iterator<Map.Entry<K, V>>(){
+					@Override
+					public boolean hasNext(){
+						return longs.hasNext() || objects.hasNext();
+					}
+
+					@Override
+					public Map.Entry<K, V> next(){
+						return longs.hasNext() ? (Map.Entry<K, V>) (Map.Entry<?, ?>) longs.next() : objects.next();
+					}
+				};
+			}
+
+			@Override
+			public int size(){
+				return TableMap.this.size();
+			}
+		};
+	}
+}
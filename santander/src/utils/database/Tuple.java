@@ -0,0 +1,132 @@
+package netizens.bank.utils.database;
+
+import java.util.Arrays;
+
+/**
+ * Tuple.java
+ *
+ * The key of a secondary index, a list of parts compared one after another,
+ * for example an account number and then a time. A tuple that is the start
+ * of a longer one sorts before it, so every tuple with the same first parts
+ * is found together (see Database.prefix())
+ * <br/>
+ * The parts at the same position of every tuple in an index must be
+ * comparable with each other, such as all Longs or all Strings
+ **/
+public final class Tuple implements Comparable<Tuple> {
+
+	private final Object[] parts;
+	// sorts after every tuple starting with the same parts
+	private final boolean end;
+
+	private Tuple(Object[] parts, boolean end){
+		this.parts = parts;
+		this.end = end;
+	}
+
+	/**
+	 * Creates a tuple
+	 *
+	 * @param parts The parts in order, each Comparable and not null
+	 *
+	 * @return the tuple
+	 **/
+	public static Tuple of(Object... parts){
+		for(Object part : parts){
+			if(!(part instanceof Comparable)){
+				throw new IllegalArgumentException("Tuple parts must be Comparable and not null");
+			}
+		}
+		return new Tuple(parts.clone(), false);
+	}
+
+	/**
+	 * Creates a longer tuple with one more part at the end
+	 *
+	 * @param part The part to add, Comparable and not null
+	 *
+	 * @return the new tuple
+	 **/
+	public Tuple with(Object part){
+		if(!(part instanceof Comparable)){
+			throw new IllegalArgumentException("Tuple parts must be Comparable and not null");
+		}
+		Object[] longer = Arrays.copyOf(parts, parts.length + 1);
+		longer[parts.length] = part;
+		return new Tuple(longer, false);
+	}
+
+	/**
+	 * Gives a bound that sorts after this tuple and every tuple that
+	 * starts with it, for ending a range that should include them
+	 *
+	 * @return the bound
+	 **/
+	public Tuple end(){
+		return new Tuple(parts, true);
+	}
+
+	/**
+	 * Gives the tuple without its last part
+	 *
+	 * @return the shorter tuple
+	 **/
+	public Tuple parent(){
+		return new Tuple(Arrays.copyOf(parts, parts.length - 1), false);
+	}
+
+	/**
+	 * @return the number of parts
+	 **/
+	public int size(){
+		return parts.length;
+	}
+
+	/**
+	 * @param x The position of the part
+	 *
+	 * @return the part
+	 **/
+	public Object get(int x){
+		return parts[x];
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public int compareTo(Tuple other){
+		int shared = Math.min(parts.length, other.parts.length);
+		for(int x = 0; x < shared; x++){
+			int c = ((Comparable<Object>) parts[x]).compareTo(other.parts[x]);
+			if(c != 0){
+				return c;
+			}
+		}
+		if(parts.length == other.parts.length){
+			return Boolean.compare(end, other.end);
+		}
+		// one starts the other, an end bound sorts after everything it starts
+		if(parts.length < other.parts.length){
+			return end ? 1 : -1;
+		}
+		return other.end ? -1 : 1;
+	}
+
+	@Override
+	public boolean equals(Object o){
+		if(!(o instanceof Tuple)){
+			return false;
+		}
+		Tuple other = (Tuple) o;
+		return end == other.end && Arrays.equals(parts, other.parts);
+	}
+
+	@Override
+	public int hashCode(){
+		return Arrays.hashCode(parts) * 31 + (end ? 1 : 0);
+	}
+
+	@Override
+	public String toString(){
+		return Arrays.toString(parts) + (end ? "+" : "");
+	}
+}
@@ -0,0 +1,114 @@
+package netizens.bank;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Test.java
+ *
+ * A check of one part of the program, run by Tests. Each check is given a
+ * folder of its own to keep files in, which is deleted afterwards, and
+ * fails by throwing, usually from check().
+ **/
+public abstract class Test{
+  private File folder;
+
+  /**
+   * run()
+   *
+   * Runs the check.
+   *
+   * @throws Exception If the check fails or can't be run.
+   **/
+  public abstract void run() throws Exception;
+
+  /**
+   * folder()
+   *
+   * Gets the folder this check keeps its files in.
+   *
+   * @return The folder, which is empty when the check starts.
+   **/
+  protected File folder(){
+    return folder;
+  }
+
+  /**
+   * path()
+   *
+   * Gets the path of a file in the folder of this check.
+   *
+   * @param name The name of the file.
+   * @return The path.
+   **/
+  protected String path(String name){
+    return new File(folder, name).getPath();
+  }
+
+  /**
+   * check()
+   *
+   * Fails the check unless something holds.
+   *
+   * @param holds Whether it holds.
+   * @param what What should hold, given when it doesn't.
+   **/
+  protected static void check(boolean holds, String what){
+    if(!holds){
+      throw new AssertionError(what);
+    }
+  }
+
+  /**
+   * equal()
+   *
+   * Fails the check unless two values are equal.
+   *
+   * @param expected The value wanted.
+   * @param actual The value found.
+   * @param what What the values are, given when they differ.
+   **/
+  protected static void equal(Object expected, Object actual, String what){
+    if(expected == null ? actual != null : !expected.equals(actual)){
+      throw new AssertionError(what + ", expected " + expected + " but was " + actual);
+    }
+  }
+
+  /**
+   * begin()
+   *
+   * Gives the check a new folder, called by Tests before run().
+   *
+   * @throws IOException If the folder could not be made.
+   **/
+  void begin() throws IOException{
+    folder = Files.createTempDirectory("netizens-test").toFile();
+  }
+
+  /**
+   * end()
+   *
+   * Deletes the folder of the check, called by Tests after run().
+   **/
+  void end(){
+    delete(folder);
+  }
+
+  /**
+   * delete()
+   *
+   * Deletes a file, or a folder and everything in it.
+   *
+   * @param file The file or folder.
+   **/
+  private static void delete(File file){
+    File[] files = file.listFiles();
+    if(files != null){
+      for(File inside : files){
+        delete(inside);
+      }
+    }
+    file.delete();
+  }
+}
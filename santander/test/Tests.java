@@ -0,0 +1,125 @@
+package netizens.bank;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import netizens.bank.Test;
+import netizens.bank.server.AdmissionTest;
+import netizens.bank.server.FrameTest;
+import netizens.bank.server.IdempotencyCacheTest;
+import netizens.bank.server.LoadShedderTest;
+import netizens.bank.server.PipelineTest;
+import netizens.bank.server.TlsTest;
+import netizens.bank.server.router.LedgerTest;
+import netizens.bank.server.router.RouterTest;
+import netizens.bank.utils.ReplicationTest;
+import netizens.bank.utils.TransactionTest;
+import netizens.bank.utils.database.BloomStorageTest;
+import netizens.bank.utils.database.CachedStorageTest;
+import netizens.bank.utils.database.LogStorageTest;
+import netizens.bank.utils.database.MappedStorageTest;
+import netizens.bank.utils.database.ShardedStorageTest;
+import netizens.bank.utils.database.SnapshotTest;
+
+/**
+ * Tests.java
+ *
+ * Runs every check in turn and says which failed, exiting with an error if
+ * any did. Run by "ant test", or with the names of the checks to run just
+ * those. A check may set up the settings and databases the whole program
+ * shares, so run without names every check is run in a program of its own.
+ **/
+public class Tests{
+  private static final Test[] TESTS = new Test[]{
+    new LogStorageTest(),
+    new MappedStorageTest(),
+    new SnapshotTest(),
+    new TransactionTest(),
+    new ShardedStorageTest(),
+    new LedgerTest(),
+    new FrameTest(),
+    new PipelineTest(),
+    new IdempotencyCacheTest(),
+    new LoadShedderTest(),
+    new RouterTest(),
+    new TlsTest(),
+    new ReplicationTest(),
+    new CachedStorageTest(),
+    new BloomStorageTest(),
+    new AdmissionTest()
+  };
+
+  /**
+   * main()
+   *
+   * Runs the checks.
+   *
+   * @param args The simple names of the checks to run, none for all of them.
+   **/
+  public static void main(String[] args){
+    if(args.length == 0){
+      System.exit(fork());
+    }
+    int ran = 0;
+    int failed = 0;
+    for(Test test : TESTS){
+      String name = test.getClass().getSimpleName();
+      if(args.length > 0 && !Arrays.asList(args).contains(name)){
+        continue;
+      }
+      ran++;
+      long start = System.nanoTime();
+      try{
+        test.begin();
+        try{
+          test.run();
+        }finally{
+          test.end();
+        }
+        System.out.println("PASS " + name + " (" + (System.nanoTime() - start) / 1000000 + " ms)");
+      }catch(Throwable e){
+        failed++;
+        System.out.println("FAIL " + name);
+        e.printStackTrace(System.out);
+      }
+    }
+    /* A single check run by fork() is counted there */
+    if(ran != 1){
+      System.out.println(ran + " checks, " + failed + " failed");
+    }
+    /* Engines leave writer threads behind, so leave explicitly */
+    System.exit(failed > 0 || ran == 0 ? 1 : 0);
+  }
+
+  /**
+   * fork()
+   *
+   * Runs each check in a program of its own, one after another, with the
+   * same class path as this one.
+   *
+   * @return The exit code, an error if any check failed.
+   **/
+  private static int fork(){
+    String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+    String classPath = System.getProperty("java.class.path");
+    int failed = 0;
+    for(Test test : TESTS){
+      String name = test.getClass().getSimpleName();
+      /* Safely run the check, it reports for itself */
+      try{
+        Process process = new ProcessBuilder(java, "-cp", classPath, Tests.class.getName(), name)
+          .inheritIO()
+          .start();
+        if(process.waitFor() != 0){
+          failed++;
+        }
+      }catch(IOException | InterruptedException e){
+        failed++;
+        System.out.println("FAIL " + name);
+        e.printStackTrace(System.out);
+      }
+    }
+    System.out.println(TESTS.length + " checks, " + failed + " failed");
+    return failed > 0 ? 1 : 0;
+  }
+}
@@ -0,0 +1,239 @@
+package netizens.bank.server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import netizens.bank.Test;
+import netizens.bank.server.Admission;
+import netizens.bank.server.Client;
+import netizens.bank.server.Frame;
+import netizens.bank.server.router.Handler;
+import netizens.bank.server.router.Ledger;
+import netizens.bank.server.router.Reply;
+import netizens.bank.server.router.Request;
+import netizens.bank.server.router.RequestType;
+import netizens.bank.server.router.Router;
+import org.json.JSONObject;
+
+/**
+ * AdmissionTest.java
+ *
+ * Checks that no more requests than the cap are processed at once, that
+ * those over it wait in the queue until a slot is given back, that one is
+ * turned away once the queue is full or its wait is interrupted, and that a
+ * client turned away is sent the busy reply and closed.
+ **/
+public class AdmissionTest extends Test{
+  @Override
+  public void run() throws Exception{
+    queue();
+    interrupted();
+    busy();
+  }
+
+  /**
+   * queue()
+   *
+   * Takes both slots, queues one more and checks that the next is turned
+   * away and the queued one let in once a slot is given back.
+   *
+   * @throws Exception If a wait is interrupted.
+   **/
+  private void queue() throws Exception{
+    Admission admission = new Admission(2, 1);
+    check(admission.enter(), "first request admitted");
+    check(admission.enter(), "second request admitted");
+    Entry queued = new Entry(admission);
+    queued.start();
+    waiting(queued);
+    check(!admission.enter(), "request turned away with the queue full");
+    admission.exit();
+    queued.join(10000);
+    check(queued.admitted, "queued request admitted once a slot is free");
+    admission.exit();
+    admission.exit();
+  }
+
+  /**
+   * interrupted()
+   *
+   * Interrupts a queued request, it must be turned away and give back its
+   * place in the queue.
+   *
+   * @throws Exception If a wait is interrupted.
+   **/
+  private void interrupted() throws Exception{
+    Admission admission = new Admission(1, 1);
+    check(admission.enter(), "only request admitted");
+    Entry queued = new Entry(admission);
+    queued.start();
+    waiting(queued);
+    queued.interrupt();
+    queued.join(10000);
+    check(!queued.admitted, "interrupted request turned away");
+    check(queued.interrupted, "interrupt kept for the caller");
+    Entry next = new Entry(admission);
+    next.start();
+    waiting(next);
+    admission.exit();
+    next.join(10000);
+    check(next.admitted, "place in the queue given back by the interrupted request");
+    admission.exit();
+  }
+
+  /**
+   * busy()
+   *
+   * Holds the only slot with a request that waits, another client must be
+   * answered busy and closed while the first is still served.
+   *
+   * @throws Exception If the server can't be reached.
+   **/
+  private void busy() throws Exception{
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    Router router = new Router();
+    router.register(RequestType.CACHE, new Handler(){
+      @Override
+      public JSONObject handle(Request request, Ledger ledger){
+        started.countDown();
+        try{
+          release.await(10, TimeUnit.SECONDS);
+        }catch(InterruptedException e){
+          Thread.currentThread().interrupt();
+        }
+        return Reply.ok();
+      }
+    });
+    Client.setRouter(router);
+    ServerSocket server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+    accept(server, new Admission(1, 0));
+    try{
+      Socket first = connect(server);
+      Frame.write(first.getOutputStream(), request());
+      check(started.await(10, TimeUnit.SECONDS), "first request processed");
+      Socket second = connect(server);
+      try{
+        Frame.write(second.getOutputStream(), request());
+        JSONObject reply = PipelineTest.receive(second.getInputStream());
+        check(reply != null, "request over the cap answered");
+        equal("busy", reply.optString("reason"), "request over the cap answered busy");
+        check(PipelineTest.receive(second.getInputStream()) == null, "client over the cap closed");
+      }finally{
+        second.close();
+      }
+      release.countDown();
+      equal("ok", PipelineTest.receive(first.getInputStream()).optString("status"), "admitted request served");
+      Frame.write(first.getOutputStream(), request());
+      equal("ok", PipelineTest.receive(first.getInputStream()).optString("status"), "slot given back after the reply");
+      first.close();
+    }finally{
+      release.countDown();
+      server.close();
+    }
+  }
+
+  /**
+   * waiting()
+   *
+   * Waits for a thread to block waiting for a slot.
+   *
+   * @param entry The thread.
+   * @throws InterruptedException If the wait is interrupted.
+   **/
+  private static void waiting(Thread entry) throws InterruptedException{
+    for(int x = 0; x < 1000 && entry.getState() != Thread.State.WAITING; x++){
+      Thread.sleep(10);
+    }
+    equal(Thread.State.WAITING, entry.getState(), "request waits in the queue");
+  }
+
+  /**
+   * accept()
+   *
+   * Runs every connection on a thread of its own, passing its requests
+   * through the admission control as the virtual thread server does.
+   *
+   * @param server The listening socket.
+   * @param admission The admission control.
+   **/
+  private static void accept(final ServerSocket server, final Admission admission){
+    Thread acceptor = new Thread(){
+      @Override
+      public void run(){
+        try{
+          for(;;){
+            Socket socket = server.accept();
+            new Client(socket, admission, null).start();
+          }
+        }catch(IOException e){
+          /* Closed at the end of the check */
+        }
+      }
+    };
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  /**
+   * connect()
+   *
+   * Connects to the server.
+   *
+   * @param server The listening socket.
+   * @return The connection.
+   * @throws IOException If the server can't be reached.
+   **/
+  private static Socket connect(ServerSocket server) throws IOException{
+    Socket socket = new Socket(server.getInetAddress(), server.getLocalPort());
+    socket.setTcpNoDelay(true);
+    socket.setSoTimeout(10000);
+    return socket;
+  }
+
+  /**
+   * request()
+   *
+   * Creates a request that needs no ledger.
+   *
+   * @return The request.
+   **/
+  private static JSONObject request(){
+    JSONObject request = new JSONObject();
+    request.put("type", "cache");
+    return request;
+  }
+
+  /**
+   * Entry
+   *
+   * Asks for a slot on a thread of its own, remembering the answer.
+   **/
+  private static class Entry extends Thread{
+    private final Admission admission;
+    private volatile boolean admitted;
+    private volatile boolean interrupted;
+
+    /**
+     * Entry()
+     *
+     * Creates the thread, daemon so a check that fails never holds up the
+     * exit.
+     *
+     * @param admission The admission control.
+     **/
+    Entry(Admission admission){
+      this.admission = admission;
+      setDaemon(true);
+    }
+
+    @Override
+    public void run(){
+      admitted = admission.enter();
+      interrupted = Thread.currentThread().isInterrupted();
+    }
+  }
+}
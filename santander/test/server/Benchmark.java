@@ -0,0 +1,240 @@
+package netizens.bank.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import netizens.bank.server.Client;
+import netizens.bank.server.Frame;
+import netizens.bank.server.Server;
+import netizens.bank.server.router.Handler;
+import netizens.bank.server.router.Ledger;
+import netizens.bank.server.router.Reply;
+import netizens.bank.server.router.Request;
+import netizens.bank.server.router.RequestType;
+import netizens.bank.server.router.Router;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+/**
+ * Benchmark.java
+ *
+ * Runs the server in one mode and has many clients connect, send a request
+ * and close as fast as they can, then prints the requests served a second,
+ * the median and 99th percentile time for each and the number that failed.
+ * Run it once for each mode to compare them, it is not one of the checks as
+ * the numbers depend on the machine.
+ *
+ * Usage: Benchmark [mode] [clients] [seconds] [delay]
+ *
+ * The delay is how many milliseconds each request blocks for, as a request
+ * waiting on the database or another service would.
+ **/
+public class Benchmark{
+  /**
+   * main()
+   *
+   * Runs the benchmark.
+   *
+   * @param args The mode, clients, seconds and delay, each optional.
+   * @throws Exception If the server can't be started or reached.
+   **/
+  public static void main(String[] args) throws Exception{
+    String mode = args.length > 0 ? args[0] : "thread";
+    int clients = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+    int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 6;
+    final long delay = args.length > 3 ? Long.parseLong(args[3]) : 0;
+    final int port = freePort();
+    start(mode, port);
+    /* Replace the router the server made with one that only waits */
+    Router router = new Router();
+    router.register(RequestType.CACHE, new Handler(){
+      @Override
+      public JSONObject handle(Request request, Ledger ledger){
+        if(delay > 0){
+          try{
+            Thread.sleep(delay);
+          }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+          }
+        }
+        return Reply.ok();
+      }
+    });
+    Client.setRouter(router);
+
+    final long until = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+    final AtomicLong errors = new AtomicLong();
+    final long[][] times = new long[clients][];
+    Thread[] threads = new Thread[clients];
+    for(int x = 0; x < clients; x++){
+      final int client = x;
+      threads[x] = new Thread(){
+        @Override
+        public void run(){
+          times[client] = load(port, until, errors);
+        }
+      };
+      threads[x].start();
+    }
+    int served = 0;
+    for(int x = 0; x < clients; x++){
+      threads[x].join();
+      served += times[x].length;
+    }
+    long[] all = new long[served];
+    int at = 0;
+    for(long[] some : times){
+      System.arraycopy(some, 0, all, at, some.length);
+      at += some.length;
+    }
+    Arrays.sort(all);
+    System.out.println(String.format("%-8s %4d ms %7d req/s  p50 %8.1f ms  p99 %8.1f ms  %d errors",
+      mode, delay, served / seconds, percentile(all, 50), percentile(all, 99), errors.get()));
+    /* The server never stops by itself */
+    System.exit(0);
+  }
+
+  /**
+   * load()
+   *
+   * Connects, sends a request, reads the reply and closes until the time is
+   * up.
+   *
+   * @param port The port of the server.
+   * @param until When to stop, from System.nanoTime().
+   * @param errors Counts the requests that failed or were not served.
+   * @return The time each request served took, in nanoseconds.
+   **/
+  private static long[] load(int port, long until, AtomicLong errors){
+    long[] times = new long[1024];
+    int count = 0;
+    JSONObject request = new JSONObject();
+    request.put("type", "cache");
+    long start;
+    while((start = System.nanoTime()) < until){
+      /* Safely time one request, a failure is counted and the client goes on */
+      try{
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        try{
+          socket.setTcpNoDelay(true);
+          socket.setSoTimeout(30000);
+          Frame.write(socket.getOutputStream(), request);
+          JSONObject reply = PipelineTest.receive(socket.getInputStream());
+          if(reply == null || !"ok".equals(reply.optString("status"))){
+            errors.incrementAndGet();
+            continue;
+          }
+        }finally{
+          socket.close();
+        }
+        if(count == times.length){
+          times = Arrays.copyOf(times, count * 2);
+        }
+        times[count++] = System.nanoTime() - start;
+      }catch(IOException e){
+        errors.incrementAndGet();
+      }
+    }
+    return Arrays.copyOf(times, count);
+  }
+
+  /**
+   * percentile()
+   *
+   * Gets a percentile of the sorted times.
+   *
+   * @param sorted The times in nanoseconds, sorted.
+   * @param percent The percentile.
+   * @return The time in milliseconds, zero if there are none.
+   **/
+  private static double percentile(long[] sorted, int percent){
+    if(sorted.length == 0){
+      return 0;
+    }
+    int index = (int)Math.min(sorted.length - 1, (long)sorted.length * percent / 100);
+    return sorted[index] / 1000000.0;
+  }
+
+  /**
+   * start()
+   *
+   * Writes the settings for a server in the given mode with load shedding
+   * out of the way, starts it on a thread of its own and waits for it to
+   * listen.
+   *
+   * @param mode The mode.
+   * @param port The port to listen on.
+   * @throws Exception If the settings can't be written or it never listens.
+   **/
+  private static void start(String mode, int port) throws Exception{
+    File folder = Files.createTempDirectory("benchmark").toFile();
+    folder.deleteOnExit();
+    final File server = new File(folder, "server.json");
+    write(server, "{\"server\" : {\"port\" : \"" + port + "\", \"mode\" : \"" + mode + "\", " +
+      "\"backlog\" : \"4096\", \"connections\" : \"100000\", \"rate\" : \"1000000\", " +
+      "\"burst\" : \"1000000\", \"requestrate\" : \"1000000\", \"requestburst\" : \"1000000\"}}");
+    server.deleteOnExit();
+    final File main = new File(folder, "main.json");
+    write(main, "{\"main\" : {\"settings\" : {\"server\" : " + JSONObject.quote(server.getPath()) + "}}}");
+    main.deleteOnExit();
+    Thread thread = new Thread("benchmark-server"){
+      @Override
+      public void run(){
+        try{
+          new Server(new JSONTokener(new String(Files.readAllBytes(main.toPath()), StandardCharsets.UTF_8)));
+        }catch(IOException e){
+          e.printStackTrace();
+        }
+      }
+    };
+    thread.setDaemon(true);
+    thread.start();
+    for(int x = 0; x < 500; x++){
+      try{
+        new Socket(InetAddress.getLoopbackAddress(), port).close();
+        return;
+      }catch(IOException e){
+        /* Not listening yet */
+      }
+      Thread.sleep(20);
+    }
+    throw new IOException("Server never listened on " + port);
+  }
+
+  /**
+   * write()
+   *
+   * Writes a string to a file.
+   *
+   * @param file The file.
+   * @param text The string.
+   * @throws IOException If it can't be written.
+   **/
+  private static void write(File file, String text) throws IOException{
+    Files.write(file.toPath(), text.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * freePort()
+   *
+   * Finds a port nothing is listening on.
+   *
+   * @return The port.
+   * @throws IOException If no port could be found.
+   **/
+  private static int freePort() throws IOException{
+    ServerSocket socket = new ServerSocket(0);
+    try{
+      return socket.getLocalPort();
+    }finally{
+      socket.close();
+    }
+  }
+}
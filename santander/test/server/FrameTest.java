@@ -0,0 +1,162 @@
+package netizens.bank.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import netizens.bank.Test;
+import netizens.bank.server.BufferPool;
+import netizens.bank.server.Frame;
+import org.json.JSONObject;
+
+/**
+ * FrameTest.java
+ *
+ * Checks that frames split over many reads are put back together, that
+ * several frames sent at once are taken apart, and that a frame larger than
+ * the limit, with a bad length or cut short is refused.
+ **/
+public class FrameTest extends Test{
+  @Override
+  public void run() throws Exception{
+    split();
+    oversized();
+    cut();
+  }
+
+  /**
+   * split()
+   *
+   * Reads three frames from a stream that gives one byte at a time, with
+   * characters that take several bytes in UTF-8.
+   *
+   * @throws IOException If a frame can't be read.
+   **/
+  private void split() throws IOException{
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    for(int x = 0; x < 3; x++){
+      JSONObject request = new JSONObject();
+      request.put("type", "deposit");
+      request.put("account", x);
+      request.put("note", "caf\u00e9 \u20ac" + x);
+      Frame.write(bytes, request);
+    }
+    InputStream in = trickle(bytes.toByteArray());
+    for(int x = 0; x < 3; x++){
+      JSONObject request = next(in);
+      check(request != null, "frame " + x + " read");
+      equal(x, request.getInt("account"), "account of frame " + x);
+      equal("caf\u00e9 \u20ac" + x, request.getString("note"), "text of frame " + x);
+    }
+    check(Frame.read(in) == null, "clean end after the last frame");
+    check(Frame.decode(ByteBuffer.wrap("{\"type\" : ".getBytes("UTF-8"))) == null, "bad JSON decoded as nothing");
+  }
+
+  /**
+   * oversized()
+   *
+   * Reads frames at and over the limit, and one with a negative length.
+   *
+   * @throws IOException If a frame at the limit can't be read.
+   **/
+  private void oversized() throws IOException{
+    Frame.setMaxSize(64);
+    try{
+      byte[] body = new byte[64];
+      for(int x = 0; x < body.length; x++){
+        body[x] = ' ';
+      }
+      body[0] = '{';
+      body[63] = '}';
+      ByteBuffer frame = Frame.read(new ByteArrayInputStream(frame(64, body)));
+      check(frame != null && frame.remaining() == 64, "frame at the limit read");
+      BufferPool.release(frame);
+      refused(frame(65, new byte[65]), "frame over the limit");
+      refused(frame(-1, new byte[0]), "frame with a negative length");
+    }finally{
+      Frame.setMaxSize(1 << 20);
+    }
+  }
+
+  /**
+   * cut()
+   *
+   * Reads frames whose header or body ends early.
+   **/
+  private void cut(){
+    refused(new byte[]{0, 0}, "frame cut short in its header");
+    refused(frame(10, new byte[5]), "frame cut short in its body");
+  }
+
+  /**
+   * refused()
+   *
+   * Fails the check unless reading the bytes as a frame throws.
+   *
+   * @param bytes The bytes sent.
+   * @param what What was sent.
+   **/
+  private static void refused(byte[] bytes, String what){
+    try{
+      BufferPool.release(Frame.read(trickle(bytes)));
+    }catch(IOException e){
+      return;
+    }
+    throw new AssertionError(what + " read");
+  }
+
+  /**
+   * next()
+   *
+   * Reads and decodes one frame.
+   *
+   * @param in The stream to read from.
+   * @return The request, otherwise NULL at the end of the stream.
+   * @throws IOException If the frame can't be read.
+   **/
+  private static JSONObject next(InputStream in) throws IOException{
+    ByteBuffer body = Frame.read(in);
+    if(body == null){
+      return null;
+    }
+    try{
+      return Frame.decode(body);
+    }finally{
+      BufferPool.release(body);
+    }
+  }
+
+  /**
+   * frame()
+   *
+   * Puts a length in front of a body, whatever its real size.
+   *
+   * @param length The length to claim.
+   * @param body The body.
+   * @return The bytes of the frame.
+   **/
+  private static byte[] frame(int length, byte[] body){
+    ByteBuffer frame = ByteBuffer.allocate(Frame.HEADER + body.length);
+    frame.putInt(length);
+    frame.put(body);
+    return frame.array();
+  }
+
+  /**
+   * trickle()
+   *
+   * Gives bytes back one at a time, as a slow network might.
+   *
+   * @param bytes The bytes.
+   * @return The stream.
+   **/
+  private static InputStream trickle(byte[] bytes){
+    return new ByteArrayInputStream(bytes){
+      @Override
+      public synchronized int read(byte[] b, int off, int len){
+        return super.read(b, off, Math.min(len, 1));
+      }
+    };
+  }
+}
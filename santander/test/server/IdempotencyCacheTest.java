@@ -0,0 +1,183 @@
+package netizens.bank.server;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import netizens.bank.Test;
+import netizens.bank.server.IdempotencyCache;
+import netizens.bank.server.router.Reply;
+import org.json.JSONObject;
+
+/**
+ * IdempotencyCacheTest.java
+ *
+ * Checks that a request retried with the same key gets the first reply
+ * without being run again, also while the first attempt is still running,
+ * that a key is not shared between clients or operations, and that busy
+ * replies, expired entries and entries over the limit are forgotten.
+ **/
+public class IdempotencyCacheTest extends Test{
+  private AtomicInteger runs = new AtomicInteger(0);
+  private volatile CountDownLatch gate = null;
+  private volatile String reason = null;
+  private IdempotencyCache.Handler handler = new IdempotencyCache.Handler(){
+    @Override
+    public JSONObject handle(JSONObject request){
+      int run = runs.incrementAndGet();
+      CountDownLatch wait = gate;
+      if(wait != null){
+        try{
+          wait.await();
+        }catch(InterruptedException e){
+          Thread.currentThread().interrupt();
+        }
+      }
+      if(reason != null){
+        return Reply.error(reason);
+      }
+      JSONObject reply = Reply.ok();
+      reply.put("run", run);
+      return reply;
+    }
+  };
+
+  @Override
+  public void run() throws Exception{
+    retried();
+    waiting();
+    forgotten();
+  }
+
+  /**
+   * retried()
+   *
+   * Retries a request, then sends the same key for another operation and
+   * from another client.
+   **/
+  private void retried(){
+    IdempotencyCache cache = new IdempotencyCache(16, 60000, 1000);
+    JSONObject first = cache.run("a", "peer", deposit(7, 5), handler);
+    equal(1, runs.get(), "first attempt run");
+    JSONObject retry = cache.run("a", "peer", deposit(7, 5), handler);
+    equal(1, runs.get(), "retry not run");
+    equal(first.toString(), retry.toString(), "retry given the first reply");
+
+    equal("key reused", cache.run("a", "peer", deposit(7, 6), handler).optString("reason"), "key for another amount refused");
+    equal(1, runs.get(), "key for another amount not run");
+    cache.run("a", "other", deposit(7, 5), handler);
+    equal(2, runs.get(), "same key from another client run");
+    cache.run("a", "peer", deposit(8, 5), handler);
+    equal(3, runs.get(), "same key for another account run");
+  }
+
+  /**
+   * waiting()
+   *
+   * Retries a request while the first attempt is still running, once with
+   * time to wait for it and once without.
+   *
+   * @throws Exception If a thread fails.
+   **/
+  private void waiting() throws Exception{
+    final IdempotencyCache cache = new IdempotencyCache(16, 60000, 5000);
+    int before = runs.get();
+    gate = new CountDownLatch(1);
+    final JSONObject[] replies = new JSONObject[2];
+    Thread[] threads = new Thread[2];
+    for(int x = 0; x < threads.length; x++){
+      final int y = x;
+      threads[x] = new Thread(){
+        @Override
+        public void run(){
+          replies[y] = cache.run("b", "peer", deposit(7, 5), handler);
+        }
+      };
+      threads[x].start();
+      /* Let the first attempt start before the retry */
+      while(runs.get() == before){
+        Thread.sleep(1);
+      }
+    }
+    Thread.sleep(50);
+    equal(before + 1, runs.get(), "retry waits rather than runs");
+    IdempotencyCache impatient = new IdempotencyCache(16, 60000, 20);
+    Thread first = start(impatient);
+    while(runs.get() == before + 1){
+      Thread.sleep(1);
+    }
+    equal("busy", impatient.run("c", "peer", deposit(7, 5), handler).optString("reason"), "retry that can't wait is busy");
+    gate.countDown();
+    gate = null;
+    for(Thread thread : threads){
+      thread.join();
+    }
+    first.join();
+    equal(before + 2, runs.get(), "each first attempt run once");
+    equal(replies[0].toString(), replies[1].toString(), "waiting retry given the first reply");
+  }
+
+  /**
+   * forgotten()
+   *
+   * Checks that busy replies, expired entries and the oldest entries over
+   * the limit are not given to a retry.
+   *
+   * @throws Exception If the wait is interrupted.
+   **/
+  private void forgotten() throws Exception{
+    IdempotencyCache cache = new IdempotencyCache(2, 60000, 1000);
+    int before = runs.get();
+    reason = "busy";
+    cache.run("d", "peer", deposit(7, 5), handler);
+    reason = null;
+    JSONObject reply = cache.run("d", "peer", deposit(7, 5), handler);
+    equal(before + 2, runs.get(), "busy reply not remembered");
+    equal("ok", reply.optString("status"), "retry after busy run");
+
+    cache.run("e", "peer", deposit(7, 5), handler);
+    cache.run("f", "peer", deposit(7, 5), handler);
+    cache.run("d", "peer", deposit(7, 5), handler);
+    equal(before + 5, runs.get(), "oldest entry over the limit forgotten");
+
+    IdempotencyCache brief = new IdempotencyCache(16, 20, 1000);
+    brief.run("g", "peer", deposit(7, 5), handler);
+    Thread.sleep(50);
+    brief.run("g", "peer", deposit(7, 5), handler);
+    equal(before + 7, runs.get(), "expired entry forgotten");
+  }
+
+  /**
+   * start()
+   *
+   * Starts a first attempt on a thread of its own.
+   *
+   * @param cache The cache.
+   * @return The thread.
+   **/
+  private Thread start(final IdempotencyCache cache){
+    Thread thread = new Thread(){
+      @Override
+      public void run(){
+        cache.run("c", "peer", deposit(7, 5), handler);
+      }
+    };
+    thread.start();
+    return thread;
+  }
+
+  /**
+   * deposit()
+   *
+   * Creates a deposit request.
+   *
+   * @param account The account.
+   * @param amount The amount.
+   * @return The request.
+   **/
+  private static JSONObject deposit(long account, long amount){
+    JSONObject request = new JSONObject();
+    request.put("type", "deposit");
+    request.put("account", account);
+    request.put("amount", amount);
+    return request;
+  }
+}
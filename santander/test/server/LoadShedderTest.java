@@ -0,0 +1,179 @@
+package netizens.bank.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import netizens.bank.Test;
+import netizens.bank.server.Client;
+import netizens.bank.server.Frame;
+import netizens.bank.server.LoadShedder;
+import netizens.bank.server.RateLimiter;
+import netizens.bank.server.router.Handler;
+import netizens.bank.server.router.Ledger;
+import netizens.bank.server.router.Reply;
+import netizens.bank.server.router.Request;
+import netizens.bank.server.router.RequestType;
+import netizens.bank.server.router.Router;
+import org.json.JSONObject;
+
+/**
+ * LoadShedderTest.java
+ *
+ * Checks that a connection over the limit is sent the busy frame and closed
+ * without being served, that a client sending requests too often is
+ * answered busy but kept, and that a closed connection makes room for
+ * another.
+ **/
+public class LoadShedderTest extends Test{
+  @Override
+  public void run() throws Exception{
+    Router router = new Router();
+    router.register(RequestType.CACHE, new Handler(){
+      @Override
+      public JSONObject handle(Request request, Ledger ledger){
+        return Reply.ok();
+      }
+    });
+    Client.setRouter(router);
+    /* One connection at a time, two requests at once then two a second */
+    LoadShedder shedder = new LoadShedder(new RateLimiter(16, 1000, 1000), new RateLimiter(16, 2, 2), 1);
+    ServerSocket server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+    accept(server, shedder);
+    try{
+      Socket first = connect(server);
+      OutputStream out = first.getOutputStream();
+      InputStream in = first.getInputStream();
+      Frame.write(out, request());
+      equal("ok", PipelineTest.receive(in).optString("status"), "first connection served");
+
+      rejected(server);
+
+      for(int x = 0; x < 2; x++){
+        Frame.write(out, request());
+      }
+      equal("ok", PipelineTest.receive(in).optString("status"), "request in the burst served");
+      equal("busy", PipelineTest.receive(in).optString("reason"), "request over the rate answered busy");
+      Thread.sleep(600);
+      Frame.write(out, request());
+      equal("ok", PipelineTest.receive(in).optString("status"), "connection kept after a busy reply");
+      first.close();
+
+      check(admitted(server), "connection admitted once the first closed");
+    }finally{
+      server.close();
+    }
+  }
+
+  /**
+   * rejected()
+   *
+   * Connects while the only slot is taken and checks that the busy frame is
+   * all that comes back.
+   *
+   * @param server The listening socket.
+   * @throws IOException If the server can't be reached.
+   **/
+  private void rejected(ServerSocket server) throws IOException{
+    Socket second = connect(server);
+    try{
+      JSONObject reply = PipelineTest.receive(second.getInputStream());
+      check(reply != null, "connection over the limit answered");
+      equal("busy", reply.optString("reason"), "connection over the limit answered busy");
+      check(PipelineTest.receive(second.getInputStream()) == null, "connection over the limit closed");
+    }finally{
+      second.close();
+    }
+  }
+
+  /**
+   * admitted()
+   *
+   * Connects until a request is served, the slot of a closed connection is
+   * given back once the server sees it close.
+   *
+   * @param server The listening socket.
+   * @return True if a request was served within a few seconds.
+   * @throws Exception If the server can't be reached.
+   **/
+  private static boolean admitted(ServerSocket server) throws Exception{
+    for(int x = 0; x < 100; x++){
+      Socket socket = connect(server);
+      try{
+        Frame.write(socket.getOutputStream(), request());
+        JSONObject reply = PipelineTest.receive(socket.getInputStream());
+        if(reply != null && "ok".equals(reply.optString("status"))){
+          return true;
+        }
+      }catch(IOException e){
+        /* Turned away before the request was read */
+      }finally{
+        socket.close();
+      }
+      Thread.sleep(50);
+    }
+    return false;
+  }
+
+  /**
+   * accept()
+   *
+   * Accepts connections as the threaded server does, turning away those the
+   * shedder does not admit.
+   *
+   * @param server The listening socket.
+   * @param shedder The load shedder.
+   **/
+  private static void accept(final ServerSocket server, final LoadShedder shedder){
+    Thread acceptor = new Thread(){
+      @Override
+      public void run(){
+        try{
+          for(;;){
+            Socket socket = server.accept();
+            if(!shedder.admit(socket.getInetAddress())){
+              shedder.reject(socket);
+              continue;
+            }
+            new Client(socket, null, shedder).start();
+          }
+        }catch(IOException e){
+          /* Closed at the end of the check */
+        }
+      }
+    };
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  /**
+   * connect()
+   *
+   * Connects to the server.
+   *
+   * @param server The listening socket.
+   * @return The connection.
+   * @throws IOException If the server can't be reached.
+   **/
+  private static Socket connect(ServerSocket server) throws IOException{
+    Socket socket = new Socket(server.getInetAddress(), server.getLocalPort());
+    socket.setTcpNoDelay(true);
+    socket.setSoTimeout(10000);
+    return socket;
+  }
+
+  /**
+   * request()
+   *
+   * Creates a request that needs no ledger.
+   *
+   * @return The request.
+   **/
+  private static JSONObject request(){
+    JSONObject request = new JSONObject();
+    request.put("type", "cache");
+    return request;
+  }
+}
@@ -0,0 +1,195 @@
+package netizens.bank.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import netizens.bank.Test;
+import netizens.bank.server.BufferPool;
+import netizens.bank.server.Client;
+import netizens.bank.server.EventLoop;
+import netizens.bank.server.Frame;
+import netizens.bank.server.router.Handler;
+import netizens.bank.server.router.Ledger;
+import netizens.bank.server.router.Reply;
+import netizens.bank.server.router.Request;
+import netizens.bank.server.router.RequestType;
+import netizens.bank.server.router.Router;
+import org.json.JSONObject;
+
+/**
+ * PipelineTest.java
+ *
+ * Checks that the event driven server answers several requests written
+ * before any reply is read in the order they were sent, even when the
+ * earlier ones take longest, and puts back together a request that
+ * arrives a few bytes at a time.
+ **/
+public class PipelineTest extends Test{
+  private static final int REQUESTS = 5;
+
+  @Override
+  public void run() throws Exception{
+    Client.setRouter(router());
+    ServerSocketChannel server = ServerSocketChannel.open();
+    server.bind(new InetSocketAddress("127.0.0.1", 0));
+    ExecutorService workers = Executors.newFixedThreadPool(4);
+    EventLoop loop = new EventLoop("io-0", workers, null);
+    loop.start();
+    accept(server, loop);
+
+    Socket socket = new Socket("127.0.0.1", server.socket().getLocalPort());
+    try{
+      socket.setTcpNoDelay(true);
+      socket.setSoTimeout(10000);
+      pipelined(socket.getOutputStream(), socket.getInputStream());
+      split(socket.getOutputStream(), socket.getInputStream());
+    }finally{
+      socket.close();
+      server.close();
+      workers.shutdownNow();
+    }
+  }
+
+  /**
+   * pipelined()
+   *
+   * Writes every request at once and then reads the replies.
+   *
+   * @param out The stream to the server.
+   * @param in The stream from the server.
+   * @throws IOException If the server can't be reached.
+   **/
+  private void pipelined(OutputStream out, InputStream in) throws IOException{
+    ByteArrayOutputStream requests = new ByteArrayOutputStream();
+    for(int x = 1; x <= REQUESTS; x++){
+      Frame.write(requests, request(x));
+    }
+    out.write(requests.toByteArray());
+    out.flush();
+    for(int x = 1; x <= REQUESTS; x++){
+      JSONObject reply = receive(in);
+      check(reply != null, "reply " + x + " received");
+      equal(x, reply.getInt("count"), "reply " + x + " in order");
+    }
+  }
+
+  /**
+   * split()
+   *
+   * Writes a request a few bytes at a time, pausing between them so that
+   * the server reads each piece on its own.
+   *
+   * @param out The stream to the server.
+   * @param in The stream from the server.
+   * @throws Exception If the server can't be reached.
+   **/
+  private void split(OutputStream out, InputStream in) throws Exception{
+    ByteArrayOutputStream request = new ByteArrayOutputStream();
+    Frame.write(request, request(9));
+    byte[] bytes = request.toByteArray();
+    for(int x = 0; x < bytes.length; x += 3){
+      out.write(bytes, x, Math.min(3, bytes.length - x));
+      out.flush();
+      Thread.sleep(5);
+    }
+    JSONObject reply = receive(in);
+    check(reply != null, "split request answered");
+    equal(9, reply.getInt("count"), "split request read whole");
+  }
+
+  /**
+   * router()
+   *
+   * Creates a router that echoes the count of a cache request, taking
+   * longer for the smaller counts so that later requests finish first.
+   *
+   * @return The router.
+   **/
+  private static Router router(){
+    Router router = new Router();
+    router.register(RequestType.CACHE, new Handler(){
+      @Override
+      public JSONObject handle(Request request, Ledger ledger){
+        try{
+          Thread.sleep(Math.max(REQUESTS + 1 - request.getCount(), 0) * 40);
+        }catch(InterruptedException e){
+          Thread.currentThread().interrupt();
+        }
+        JSONObject reply = Reply.ok();
+        reply.put("count", request.getCount());
+        return reply;
+      }
+    });
+    return router;
+  }
+
+  /**
+   * accept()
+   *
+   * Hands every connection accepted to the loop, as the server does.
+   *
+   * @param server The listening channel.
+   * @param loop The loop.
+   **/
+  private static void accept(final ServerSocketChannel server, final EventLoop loop){
+    Thread acceptor = new Thread(){
+      @Override
+      public void run(){
+        try{
+          for(;;){
+            SocketChannel channel = server.accept();
+            loop.register(channel);
+          }
+        }catch(IOException e){
+          /* Closed at the end of the check */
+        }
+      }
+    };
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  /**
+   * request()
+   *
+   * Creates a cache request carrying a count.
+   *
+   * @param count The count.
+   * @return The request.
+   **/
+  private static JSONObject request(int count){
+    JSONObject request = new JSONObject();
+    request.put("type", "cache");
+    request.put("count", count);
+    return request;
+  }
+
+  /**
+   * receive()
+   *
+   * Reads and decodes one reply.
+   *
+   * @param in The stream from the server.
+   * @return The reply, otherwise NULL if the connection was closed.
+   * @throws IOException If the reply can't be read.
+   **/
+  static JSONObject receive(InputStream in) throws IOException{
+    ByteBuffer body = Frame.read(in);
+    if(body == null){
+      return null;
+    }
+    try{
+      return Frame.decode(body);
+    }finally{
+      BufferPool.release(body);
+    }
+  }
+}
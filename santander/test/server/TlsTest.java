@@ -0,0 +1,227 @@
+package netizens.bank.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import netizens.bank.Test;
+import netizens.bank.server.Client;
+import netizens.bank.server.EventLoop;
+import netizens.bank.server.Frame;
+import netizens.bank.server.Tls;
+import netizens.bank.server.router.Handler;
+import netizens.bank.server.router.Ledger;
+import netizens.bank.server.router.Reply;
+import netizens.bank.server.router.Request;
+import netizens.bank.server.router.RequestType;
+import netizens.bank.server.router.Router;
+import org.json.JSONObject;
+
+/**
+ * TlsTest.java
+ *
+ * Checks that both the threaded and the event driven server answer requests
+ * over TLS, and that a client connecting again resumes its session rather
+ * than making a new one. A resumed session keeps the time the session was
+ * first made, which a full handshake does not.
+ **/
+public class TlsTest extends Test{
+  @Override
+  public void run() throws Exception{
+    JSONObject settings = new JSONObject();
+    settings.put("keystore", keystore());
+    settings.put("password", "changeit");
+    Client.setTls(Tls.load(settings));
+    Router router = new Router();
+    router.register(RequestType.CACHE, new Handler(){
+      @Override
+      public JSONObject handle(Request request, Ledger ledger){
+        return Reply.ok();
+      }
+    });
+    Client.setRouter(router);
+
+    ServerSocket threaded = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+    ServerSocketChannel events = ServerSocketChannel.open();
+    events.bind(new InetSocketAddress("127.0.0.1", 0));
+    ExecutorService workers = Executors.newFixedThreadPool(2);
+    try{
+      accept(threaded);
+      resumed(threaded.getLocalPort(), "threaded");
+      EventLoop loop = new EventLoop("io-0", workers, null);
+      loop.start();
+      accept(events, loop);
+      resumed(events.socket().getLocalPort(), "event driven");
+    }finally{
+      threaded.close();
+      events.close();
+      workers.shutdownNow();
+    }
+  }
+
+  /**
+   * resumed()
+   *
+   * Connects twice with the same client and once with another, checking
+   * that only the same client resumes the first session.
+   *
+   * @param port The port of the server.
+   * @param server The kind of server.
+   * @throws Exception If the server can't be reached.
+   **/
+  private void resumed(int port, String server) throws Exception{
+    SSLContext client = trusting();
+    SSLSession first = exchange(client, port, server);
+    Thread.sleep(20);
+    SSLSession second = exchange(client, port, server);
+    equal(first.getCreationTime(), second.getCreationTime(), server + " session resumed");
+    Thread.sleep(20);
+    SSLSession other = exchange(trusting(), port, server);
+    check(other.getCreationTime() != first.getCreationTime(), server + " session made for a new client");
+  }
+
+  /**
+   * exchange()
+   *
+   * Connects, sends a request and reads its reply.
+   *
+   * @param client The client context.
+   * @param port The port of the server.
+   * @param server The kind of server.
+   * @return The session used.
+   * @throws IOException If the server can't be reached.
+   **/
+  private SSLSession exchange(SSLContext client, int port, String server) throws IOException{
+    SSLSocket socket = (SSLSocket)client.getSocketFactory().createSocket("127.0.0.1", port);
+    try{
+      socket.setSoTimeout(10000);
+      JSONObject request = new JSONObject();
+      request.put("type", "cache");
+      Frame.write(socket.getOutputStream(), request);
+      JSONObject reply = PipelineTest.receive(socket.getInputStream());
+      check(reply != null, server + " reply over TLS");
+      equal("ok", reply.optString("status"), server + " request served over TLS");
+      return socket.getSession();
+    }finally{
+      socket.close();
+    }
+  }
+
+  /**
+   * trusting()
+   *
+   * Creates a client context that trusts the self signed key of the check,
+   * each context keeps sessions of its own.
+   *
+   * @return The client context.
+   * @throws Exception If TLS is not available.
+   **/
+  private static SSLContext trusting() throws Exception{
+    SSLContext context = SSLContext.getInstance("TLS");
+    context.init(null, new TrustManager[]{
+      new X509TrustManager(){
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String type){
+          /* Only used as a client */
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String type){
+          /* The key was made by the check */
+        }
+
+        @Override
+        public X509Certificate[] getAcceptedIssuers(){
+          return new X509Certificate[0];
+        }
+      }
+    }, null);
+    return context;
+  }
+
+  /**
+   * keystore()
+   *
+   * Makes a key store holding a self signed key with the keytool that comes
+   * with Java.
+   *
+   * @return The path of the key store.
+   * @throws Exception If keytool fails.
+   **/
+  private String keystore() throws Exception{
+    String path = path("server.p12");
+    String keytool = new File(new File(System.getProperty("java.home"), "bin"), "keytool").getPath();
+    Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "server", "-keyalg", "EC",
+      "-dname", "CN=localhost", "-validity", "1", "-storetype", "PKCS12", "-keystore", path,
+      "-storepass", "changeit", "-keypass", "changeit").redirectErrorStream(true).start();
+    while(process.getInputStream().read() >= 0){
+      /* Nothing is asked, the output is only read so keytool never blocks */
+    }
+    equal(0, process.waitFor(), "keytool made the key store");
+    return path;
+  }
+
+  /**
+   * accept()
+   *
+   * Runs every connection on a thread of its own, as the threaded server
+   * does.
+   *
+   * @param server The listening socket.
+   **/
+  private static void accept(final ServerSocket server){
+    Thread acceptor = new Thread(){
+      @Override
+      public void run(){
+        try{
+          for(;;){
+            Socket socket = server.accept();
+            new Client(socket).start();
+          }
+        }catch(IOException e){
+          /* Closed at the end of the check */
+        }
+      }
+    };
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  /**
+   * accept()
+   *
+   * Hands every connection to the loop, as the event driven server does.
+   *
+   * @param server The listening channel.
+   * @param loop The loop.
+   **/
+  private static void accept(final ServerSocketChannel server, final EventLoop loop){
+    Thread acceptor = new Thread(){
+      @Override
+      public void run(){
+        try{
+          for(;;){
+            SocketChannel channel = server.accept();
+            loop.register(channel);
+          }
+        }catch(IOException e){
+          /* Closed at the end of the check */
+        }
+      }
+    };
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+}
@@ -0,0 +1,351 @@
+package netizens.bank.server.router;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import netizens.bank.Test;
+import netizens.bank.server.router.Ledger;
+import netizens.bank.server.router.Posting;
+import netizens.bank.server.router.PostingCodec;
+import netizens.bank.utils.Database;
+import netizens.bank.utils.database.Codecs;
+import org.json.JSONTokener;
+
+/**
+ * LedgerTest.java
+ *
+ * Checks that postings kept in their own database by older versions are
+ * moved in with the balances, that statements list postings newest first,
+ * that a commit saves balances and postings as one change, so a crash
+ * that tears it keeps neither, that credits and debits made in place
+ * from many threads at once are neither lost nor logged out of order, and
+ * that transfers by ledgers on many threads sharing the database neither
+ * lose nor make money.
+ **/
+public class LedgerTest extends Test{
+  @Override
+  public void run() throws Exception{
+    String path = path("bank.db");
+    settings(folder(), path);
+    oldPostings(path);
+
+    Ledger ledger = Ledger.open();
+    check(ledger != null, "ledger opens");
+    equal(3, ledger.statement(7, 10).size(), "old postings moved in");
+    equal(0, files(path + ".postings").size(), "old postings files deleted");
+
+    ledger.begin();
+    check(ledger.balance(7) == null, "no account yet");
+    ledger.set(7, 500);
+    check(ledger.commit(), "deposit commits");
+    ledger.end();
+    check(ledger.close(), "deposit saved");
+
+    ledger = Ledger.open();
+    ledger.begin();
+    ledger.set(7, ledger.balance(7) - 200, 8);
+    ledger.set(8, 200, 7);
+    check(ledger.commit(), "transfer commits");
+    ledger.end();
+    check(ledger.close(), "transfer saved");
+
+    List<Posting> statement = Ledger.open().statement(7, 10);
+    equal(5, statement.size(), "postings of the account");
+    equal(-200L, statement.get(0).getAmount(), "newest posting first");
+    equal(8L, statement.get(0).getOther(), "account paid");
+    equal(500L, statement.get(1).getAmount(), "deposit next");
+    equal(500L, statement.get(1).getBalance(), "balance after the deposit");
+
+    torn(path);
+    inPlace(path);
+    transfers();
+  }
+
+  /**
+   * transfers()
+   *
+   * Moves money between a few accounts from several threads, each with its
+   * own ledger, retrying as the router does, with credits made in place
+   * between them. Then checks the total and that the postings of every
+   * account add up to its balance.
+   *
+   * @throws Exception If a thread fails.
+   **/
+  private void transfers() throws Exception{
+    final int accounts = 8;
+    Ledger ledger = Ledger.open();
+    ledger.begin();
+    for(int x = 0; x < accounts; x++){
+      ledger.set(20 + x, 1000);
+    }
+    check(ledger.commit(), "accounts opened");
+    ledger.end();
+    check(ledger.close(), "accounts saved");
+
+    Thread[] threads = new Thread[8];
+    final Throwable[] failed = new Throwable[1];
+    final AtomicLong credited = new AtomicLong();
+    for(int x = 0; x < threads.length; x++){
+      final long seed = x;
+      threads[x] = new Thread(){
+        @Override
+        public void run(){
+          try{
+            Ledger ledger = Ledger.open();
+            for(long y = 0; y < 500; y++){
+              long from = 20 + (seed + y) % accounts;
+              long to = 20 + (seed * 3 + y * 5 + 1) % accounts;
+              if(y % 10 == 0){
+                check(ledger.credit(from, 5) != Long.MIN_VALUE, "credit made between transfers");
+                credited.addAndGet(5);
+              }
+              if(from == to){
+                continue;
+              }
+              ledger.begin();
+              try{
+                for(;;){
+                  long balance = ledger.balance(from);
+                  if(balance >= 7){
+                    ledger.set(from, balance - 7, to);
+                    ledger.set(to, ledger.balance(to) + 7, from);
+                  }
+                  if(ledger.commit()){
+                    break;
+                  }
+                  ledger.retry();
+                }
+              }finally{
+                ledger.end();
+              }
+            }
+            check(ledger.close(), "transfers saved");
+          }catch(Throwable e){
+            failed[0] = e;
+          }
+        }
+      };
+      threads[x].start();
+    }
+    for(Thread thread : threads){
+      thread.join();
+    }
+    if(failed[0] != null){
+      throw new AssertionError("thread failed", failed[0]);
+    }
+
+    ledger = Ledger.open();
+    long total = 0;
+    for(long account = 20; account < 20 + accounts; account++){
+      ledger.begin();
+      long balance = ledger.balance(account);
+      ledger.end();
+      check(balance >= 0, "balance of " + account + " not below zero");
+      total += balance;
+      List<Posting> statement = ledger.statement(account, Integer.MAX_VALUE);
+      equal(balance, statement.get(0).getBalance(), "newest posting of " + account + " holds the balance");
+      long sum = 0;
+      for(Posting posting : statement){
+        sum += posting.getAmount();
+      }
+      equal(balance, sum, "postings of " + account + " add up to the balance");
+    }
+    equal(accounts * 1000L + credited.get(), total, "total after transfers");
+    check(ledger.close(), "ledger closes");
+  }
+
+  /**
+   * inPlace()
+   *
+   * Credits and debits an account from several threads at once, then
+   * checks the balance, the postings, the changes refused and that the
+   * log replays to the same balance.
+   *
+   * @param path The path of the shared database.
+   * @throws Exception If a thread fails or the files can't be copied.
+   **/
+  private void inPlace(String path) throws Exception{
+    Thread[] threads = new Thread[4];
+    final Throwable[] failed = new Throwable[1];
+    for(int x = 0; x < threads.length; x++){
+      threads[x] = new Thread(){
+        @Override
+        public void run(){
+          try{
+            Ledger ledger = Ledger.open();
+            for(int y = 0; y < 250; y++){
+              check(ledger.credit(8, 3) != Long.MIN_VALUE, "credit made");
+              check(ledger.debit(8, 2) != Long.MIN_VALUE, "debit made");
+            }
+            check(ledger.close(), "credits and debits saved");
+          }catch(Throwable e){
+            failed[0] = e;
+          }
+        }
+      };
+      threads[x].start();
+    }
+    for(Thread thread : threads){
+      thread.join();
+    }
+    if(failed[0] != null){
+      throw new AssertionError("thread failed", failed[0]);
+    }
+
+    Ledger ledger = Ledger.open();
+    equal(Long.MIN_VALUE, ledger.debit(8, 5000), "debit past the balance refused");
+    equal(Long.MIN_VALUE, ledger.credit(99, 10), "credit to a missing account refused");
+    equal(Long.MIN_VALUE, ledger.credit(8, Long.MAX_VALUE), "credit that overflows refused");
+    ledger.begin();
+    while(ledger.getTries() <= 3){
+      ledger.balance(8);
+      ledger.retry();
+    }
+    equal(Long.MIN_VALUE, ledger.credit(8, 1), "credit refused while the transaction holds locks");
+    ledger.end();
+    ledger.begin();
+    equal(1200L, ledger.balance(8), "balance after every credit and debit");
+    ledger.end();
+    List<Posting> statement = ledger.statement(8, 5000);
+    equal(2001, statement.size(), "a posting for each credit and debit");
+    equal(1200L, statement.get(0).getBalance(), "newest posting holds the balance");
+    check(ledger.close(), "ledger closes");
+
+    Database<Long, Object> database = new Database<>(copy(path, "replayed"));
+    check(database.open(), "copy opens");
+    equal(1200L, database.get(8L), "balance replayed from the log");
+    check(database.close(), "copy closes");
+  }
+
+  /**
+   * copy()
+   *
+   * Copies the files of the shared database into a folder of its own.
+   *
+   * @param path The path of the shared database.
+   * @param name The name of the folder.
+   * @return The path of the copy.
+   * @throws Exception If the files can't be copied.
+   **/
+  private String copy(String path, String name) throws Exception{
+    File copy = new File(folder(), name);
+    copy.mkdirs();
+    for(File file : files(path).values()){
+      Files.copy(file.toPath(), new File(copy, file.getName()).toPath());
+    }
+    return new File(copy, new File(path).getName()).getPath();
+  }
+
+  /**
+   * torn()
+   *
+   * Copies the saved files and cuts the last record short, as a crash while
+   * the transfer was written would, then checks that neither its balances
+   * nor its postings are kept while the deposit before it is.
+   *
+   * @param path The path of the shared database.
+   * @throws Exception If the files can't be copied.
+   **/
+  private void torn(String path) throws Exception{
+    String copied = copy(path, "torn");
+    File last = files(copied + ".log.").lastEntry().getValue();
+    RandomAccessFile raf = new RandomAccessFile(last, "rw");
+    try{
+      raf.setLength(last.length() - 5);
+    }finally{
+      raf.close();
+    }
+
+    Database<Long, Object> database = new Database<>(copied);
+    check(database.open(), "copy opens with a torn last record");
+    equal(500L, database.get(7L), "deposit kept");
+    check(database.get(-4L) instanceof Posting, "posting of the deposit kept");
+    check(database.get(8L) == null, "balance of the torn transfer dropped");
+    check(database.get(-5L) == null && database.get(-6L) == null, "postings of the torn transfer dropped");
+    check(database.close(), "copy closes");
+  }
+
+  /**
+   * files()
+   *
+   * Finds the files whose names start with a path.
+   *
+   * @param path The path.
+   * @return The files by name.
+   **/
+  private static TreeMap<String, File> files(String path){
+    File start = new File(path).getAbsoluteFile();
+    TreeMap<String, File> found = new TreeMap<String, File>();
+    for(File file : start.getParentFile().listFiles()){
+      if(file.isFile() && file.getName().startsWith(start.getName())){
+        found.put(file.getName(), file);
+      }
+    }
+    return found;
+  }
+
+  /**
+   * oldPostings()
+   *
+   * Saves three postings in a database of their own, the way older
+   * versions kept them.
+   *
+   * @param path The path of the shared database.
+   **/
+  private static void oldPostings(String path){
+    Codecs.register(new PostingCodec());
+    Database<Long, Posting> old = new Database<>(path + ".postings");
+    check(old.open(), "old postings database opens");
+    for(long id = 1; id <= 3; id++){
+      old.put(id, new Posting(7, id, 100, 100 * id, -1));
+    }
+    check(old.close(), "old postings database closes");
+  }
+
+  /**
+   * settings()
+   *
+   * Writes the settings for a log database at the given path and loads
+   * them, as the server does on start.
+   *
+   * @param folder The folder to write the settings in.
+   * @param path The path of the shared database.
+   * @throws Exception If the settings can't be written.
+   **/
+  static void settings(File folder, String path) throws Exception{
+    String database = new File(folder, "database.json").getPath();
+    write(database, "{\"database\" : {\"path\" : " + quote(path) + ", \"engine\" : \"log\", \"segment\" : \"4\"}}");
+    String main = new File(folder, "main.json").getPath();
+    write(main, "{\"main\" : {\"settings\" : {\"database\" : " + quote(database) + "}}}");
+    Database.initialise(new JSONTokener(new String(Files.readAllBytes(new File(main).toPath()), StandardCharsets.UTF_8)));
+  }
+
+  /**
+   * write()
+   *
+   * Writes a string to a file.
+   *
+   * @param path The file.
+   * @param text The string.
+   * @throws Exception If it can't be written.
+   **/
+  private static void write(String path, String text) throws Exception{
+    Files.write(new File(path).toPath(), text.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * quote()
+   *
+   * Quotes a path for JSON.
+   *
+   * @param path The path.
+   * @return The quoted path.
+   **/
+  private static String quote(String path){
+    return "\"" + path.replace("\\", "\\\\") + "\"";
+  }
+}
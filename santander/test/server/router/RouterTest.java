@@ -0,0 +1,172 @@
+package netizens.bank.server.router;
+
+import netizens.bank.Test;
+import netizens.bank.server.router.LedgerTest;
+import netizens.bank.server.router.Handler;
+import netizens.bank.server.router.Ledger;
+import netizens.bank.server.router.Reply;
+import netizens.bank.server.router.Request;
+import netizens.bank.server.router.RequestType;
+import netizens.bank.server.router.Router;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * RouterTest.java
+ *
+ * Checks that requests are passed to the handler registered for their type,
+ * parsed and with their defaults filled in, that requests that can't be
+ * parsed or have no handler are refused, and that each operation in a batch
+ * gets its own result while the changes are saved together.
+ **/
+public class RouterTest extends Test{
+  @Override
+  public void run() throws Exception{
+    dispatch();
+    batch();
+  }
+
+  /**
+   * dispatch()
+   *
+   * Routes requests of each kind through a router with a single handler.
+   **/
+  private void dispatch(){
+    Router router = new Router();
+    router.register(RequestType.CACHE, echo("first"));
+    JSONObject reply = router.route(request("cache"));
+    equal("first", reply.optString("handler"), "registered handler run");
+    equal(10, reply.optInt("count"), "count defaults to ten");
+    JSONObject request = request("cache");
+    request.put("count", 3);
+    equal(3, router.route(request).optInt("count"), "handler given the parsed request");
+    router.register(RequestType.CACHE, echo("second"));
+    equal("second", router.route(request("cache")).optString("handler"), "handler replaced");
+
+    equal("unsupported", router.route(request("promote")).optString("reason"), "type with no handler unsupported");
+    equal("malformed", router.route(new JSONObject()).optString("reason"), "request with no type malformed");
+    equal("malformed", router.route(request("teleport")).optString("reason"), "unknown type malformed");
+    JSONObject deposit = request("deposit");
+    deposit.put("account", 7);
+    equal("malformed", router.route(deposit).optString("reason"), "deposit with no amount malformed");
+    JSONObject transfer = request("transfer");
+    transfer.put("account", 7);
+    transfer.put("amount", 5);
+    transfer.put("to", 7);
+    equal("malformed", router.route(transfer).optString("reason"), "transfer to the same account malformed");
+  }
+
+  /**
+   * batch()
+   *
+   * Runs a batch where some operations fail, then checks that the others
+   * were saved, and that empty and oversized batches are refused.
+   *
+   * @throws Exception If the settings can't be written.
+   **/
+  private void batch() throws Exception{
+    LedgerTest.settings(folder(), path("bank.db"));
+    Router router = Router.create("");
+    JSONArray operations = new JSONArray();
+    operations.put(operation("deposit", 7, 500, -1));
+    operations.put(operation("deposit", 8, 10, -1));
+    operations.put(operation("withdraw", 7, 900, -1));
+    operations.put("not a request");
+    operations.put(operation("transfer", 7, 100, 8));
+    operations.put(operation("transfer", 7, 100, 99));
+    operations.put(operation("balance", 8, 0, -1));
+    JSONObject reply = router.route(batch(operations));
+    equal("ok", reply.optString("status"), "batch run");
+    JSONArray results = reply.getJSONArray("results");
+    equal(operations.length(), results.length(), "a result for each operation");
+    equal(500L, results.getJSONObject(0).optLong("balance"), "deposit result");
+    equal("insufficient funds", results.getJSONObject(2).optString("reason"), "failed withdrawal result");
+    equal("malformed", results.getJSONObject(3).optString("reason"), "malformed operation result");
+    equal(400L, results.getJSONObject(4).optLong("balance"), "transfer result");
+    equal("unknown account", results.getJSONObject(5).optString("reason"), "transfer to a missing account result");
+    equal(110L, results.getJSONObject(6).optLong("balance"), "balance sees earlier operations");
+    equal(400L, router.route(operation("balance", 7, 0, -1)).optLong("balance"), "batch saved");
+
+    equal("malformed", router.route(batch(new JSONArray())).optString("reason"), "empty batch malformed");
+    equal("malformed", router.route(request("batch")).optString("reason"), "batch with no operations malformed");
+    Router.setMaxBatch(2);
+    try{
+      equal("batch too large", router.route(batch(operations)).optString("reason"), "batch over the limit refused");
+    }finally{
+      Router.setMaxBatch(64);
+    }
+    equal(400L, router.route(operation("balance", 7, 0, -1)).optLong("balance"), "refused batch not run");
+  }
+
+  /**
+   * echo()
+   *
+   * Creates a handler that replies with its name and the count it was
+   * given.
+   *
+   * @param name The name of the handler.
+   * @return The handler.
+   **/
+  private static Handler echo(final String name){
+    return new Handler(){
+      @Override
+      public JSONObject handle(Request request, Ledger ledger){
+        JSONObject reply = Reply.ok();
+        reply.put("handler", name);
+        reply.put("count", request.getCount());
+        return reply;
+      }
+    };
+  }
+
+  /**
+   * batch()
+   *
+   * Creates a batch request.
+   *
+   * @param operations The operations.
+   * @return The request.
+   **/
+  private static JSONObject batch(JSONArray operations){
+    JSONObject request = request("batch");
+    request.put("operations", operations);
+    return request;
+  }
+
+  /**
+   * operation()
+   *
+   * Creates a request for an account.
+   *
+   * @param type The name of the type.
+   * @param account The account.
+   * @param amount The amount, zero for none.
+   * @param to The account paid, negative for none.
+   * @return The request.
+   **/
+  private static JSONObject operation(String type, long account, long amount, long to){
+    JSONObject request = request(type);
+    request.put("account", account);
+    if(amount != 0){
+      request.put("amount", amount);
+    }
+    if(to >= 0){
+      request.put("to", to);
+    }
+    return request;
+  }
+
+  /**
+   * request()
+   *
+   * Creates a request of a type.
+   *
+   * @param type The name of the type.
+   * @return The request.
+   **/
+  private static JSONObject request(String type){
+    JSONObject request = new JSONObject();
+    request.put("type", type);
+    return request;
+  }
+}
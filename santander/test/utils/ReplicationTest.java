@@ -0,0 +1,358 @@
+package netizens.bank.utils;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import netizens.bank.Test;
+import netizens.bank.utils.Database;
+import netizens.bank.utils.Follower;
+import netizens.bank.utils.Transaction;
+import netizens.bank.utils.database.LogShipper;
+import org.json.JSONTokener;
+
+/**
+ * ReplicationTest.java
+ *
+ * Runs a primary in this program and a follower in another on the
+ * loopback, as two servers would. Checks that the follower is sent a copy
+ * of everything saved before it connected and then every change, with a
+ * transaction's changes together, that both sides report how far along
+ * they are, that neither side goes on with the other when the secret is
+ * wrong, and that a promoted follower stops following and takes changes
+ * of its own
+ * <br/>
+ * The follower is this class run with main(), answering commands read
+ * from its input with lines starting "= "
+ **/
+public class ReplicationTest extends Test {
+
+	private static final String SECRET = "replication secret";
+	// milliseconds to wait for the follower to catch up
+	private static final long WAIT = 15000;
+
+	private Process follower;
+	private BufferedReader answers;
+	private PrintStream commands;
+
+	@Override
+	public void run() throws Exception {
+		int port = freePort();
+		settings(folder(), path("primary.db"), "\"replicate\" : \"" + port + "\"");
+		Database<Long, Long> primary = Database.shared();
+		check(primary != null, "primary opens");
+		for(long key = 1; key <= 100; key++){
+			primary.put(key, key * 10);
+		}
+		check(Database.replicate(), "primary listens for followers");
+		LogShipper shipper = Database.getShipper();
+
+		start(port);
+		try{
+			await("copied", "true", "follower copied the primary");
+			equal("500", ask("get 50"), "key saved before connecting copied");
+
+			for(long key = 101; key <= 150; key++){
+				primary.put(key, key * 10);
+			}
+			Transaction<Long, Long> transaction = primary.begin();
+			try{
+				transaction.put(1L, 7L);
+				transaction.put(2L, 8L);
+				check(transaction.commit(), "transaction commits on the primary");
+			}finally{
+				transaction.end();
+			}
+			// changes are shipped once saved
+			check(primary.flush(), "primary saves the changes");
+			await("sequence", Long.toString(shipper.getSequence()), "follower applied every change shipped");
+			equal("1500", ask("get 150"), "change after connecting applied");
+			equal("7", ask("get 1"), "first change of the transaction applied");
+			equal("8", ask("get 2"), "second change of the transaction applied");
+			equal("true", ask("connected"), "follower says it is connected");
+			check(Long.parseLong(ask("lag")) < LogShipper.HEARTBEAT_TIME, "follower says it is moments behind");
+			equal(1, shipper.getFollowers(), "primary counts the follower");
+			equal(0, shipper.getBehind(), "primary has nothing waiting for the follower");
+
+			wrongFollower(port);
+			wrongPrimary();
+			equal(1, shipper.getFollowers(), "follower with the wrong secret not counted");
+
+			equal("true", ask("promote"), "follower promoted");
+			equal("false", ask("promote"), "follower promoted only once");
+			primary.put(151L, 1510L);
+			Thread.sleep(LogShipper.HEARTBEAT_TIME / 2);
+			equal("null", ask("get 151"), "change after promoting not applied");
+			equal("9", ask("put 3 9"), "promoted follower takes changes of its own");
+			followers(0, shipper, "primary drops the promoted follower");
+		}finally{
+			stop();
+		}
+	}
+
+	/**
+	 * Connects to the primary knowing the wrong secret, the primary must
+	 * hang up rather than prove itself or send anything
+	 *
+	 * @param port The port of the primary
+	 * @throws IOException if the primary can't be reached
+	 **/
+	private void wrongFollower(int port) throws IOException {
+		Socket socket = new Socket("127.0.0.1", port);
+		try{
+			socket.setSoTimeout((int) WAIT);
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			byte[] challenge = new byte[LogShipper.CHALLENGE];
+			in.readFully(challenge);
+			DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+			out.write(LogShipper.challenge());
+			out.write(LogShipper.prove("wrong secret", LogShipper.FOLLOWER, challenge));
+			out.flush();
+			check(in.read() < 0, "primary hangs up on the wrong secret");
+		}finally{
+			socket.close();
+		}
+	}
+
+	/**
+	 * Follows a primary that knows the wrong secret, the follower must not
+	 * take it as connected
+	 *
+	 * @throws Exception if the fake primary can't listen
+	 **/
+	private void wrongPrimary() throws Exception {
+		final ServerSocket server = new ServerSocket(0);
+		Thread primary = new Thread(){
+			@Override
+			public void run(){
+				try{
+					Socket socket = server.accept();
+					try{
+						DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+						out.write(LogShipper.challenge());
+						out.flush();
+						DataInputStream in = new DataInputStream(socket.getInputStream());
+						byte[] theirs = new byte[LogShipper.CHALLENGE];
+						in.readFully(theirs);
+						in.readFully(new byte[LogShipper.PROOF]);
+						out.write(LogShipper.prove("wrong secret", LogShipper.PRIMARY, theirs));
+						out.flush();
+						// waits for the follower to hang up
+						in.read();
+					}finally{
+						socket.close();
+					}
+				}catch(IOException e){
+					// closed at the end of the check
+				}
+			}
+		};
+		primary.setDaemon(true);
+		primary.start();
+		Follower follower = new Follower("127.0.0.1:" + server.getLocalPort(), SECRET);
+		follower.start();
+		try{
+			primary.join(WAIT);
+			check(!primary.isAlive(), "follower hangs up on the wrong secret");
+			check(!follower.isConnected(), "follower not connected to the wrong primary");
+		}finally{
+			follower.close();
+			server.close();
+		}
+	}
+
+	/**
+	 * Starts the follower in a program of its own
+	 *
+	 * @param port The port of the primary
+	 * @throws IOException if it can't be started
+	 **/
+	private void start(int port) throws IOException {
+		String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+		follower = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), ReplicationTest.class.getName(), folder().getPath(), Integer.toString(port))
+			.redirectError(ProcessBuilder.Redirect.INHERIT)
+			.start();
+		answers = new BufferedReader(new InputStreamReader(follower.getInputStream(), StandardCharsets.UTF_8));
+		commands = new PrintStream(follower.getOutputStream(), true, "UTF-8");
+	}
+
+	/**
+	 * Tells the follower to leave and waits for it
+	 *
+	 * @throws InterruptedException if the wait is interrupted
+	 **/
+	private void stop() throws InterruptedException {
+		if(follower == null){
+			return;
+		}
+		commands.println("quit");
+		if(!follower.waitFor(WAIT, TimeUnit.MILLISECONDS)){
+			follower.destroyForcibly();
+		}
+	}
+
+	/**
+	 * Sends the follower a command and reads its answer
+	 *
+	 * @param command The command
+	 *
+	 * @return the answer
+	 * @throws IOException if the follower has gone
+	 **/
+	private String ask(String command) throws IOException {
+		commands.println(command);
+		for(;;){
+			String line = answers.readLine();
+			if(line == null){
+				throw new IOException("Follower stopped");
+			}
+			// anything else is the follower's own output
+			if(line.startsWith("= ")){
+				return line.substring(2);
+			}
+			System.out.println(line);
+		}
+	}
+
+	/**
+	 * Asks the follower until it gives an answer
+	 *
+	 * @param command The command
+	 * @param expected The answer waited for
+	 * @param what What the answer means, given if it never comes
+	 * @throws Exception if the follower has gone
+	 **/
+	private void await(String command, String expected, String what) throws Exception {
+		long until = System.currentTimeMillis() + WAIT;
+		String answer;
+		while(!expected.equals(answer = ask(command)) && System.currentTimeMillis() < until){
+			Thread.sleep(20);
+		}
+		equal(expected, answer, what);
+	}
+
+	/**
+	 * Waits for the primary to count its followers
+	 *
+	 * @param expected The count waited for
+	 * @param shipper The shipper of the primary
+	 * @param what What the count means, given if it never comes
+	 * @throws InterruptedException if the wait is interrupted
+	 **/
+	private static void followers(int expected, LogShipper shipper, String what) throws InterruptedException {
+		long until = System.currentTimeMillis() + WAIT;
+		while(shipper.getFollowers() != expected && System.currentTimeMillis() < until){
+			Thread.sleep(20);
+		}
+		equal(expected, shipper.getFollowers(), what);
+	}
+
+	/**
+	 * Runs the follower, answering commands until told to quit
+	 *
+	 * @param args The folder of the check and the port of the primary
+	 * @throws Exception if the follower can't be set up
+	 **/
+	public static void main(String[] args) throws Exception {
+		File folder = new File(args[0], "follower");
+		folder.mkdirs();
+		settings(folder, new File(folder, "follower.db").getPath(), "\"follow\" : \"127.0.0.1:" + args[1] + "\"");
+		Database<Long, Long> database = Database.shared();
+		if(database == null || !Database.replicate()){
+			System.exit(1);
+		}
+		BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+		String line;
+		while((line = in.readLine()) != null && !line.equals("quit")){
+			String[] words = line.split(" ");
+			Follower following = Database.getFollower();
+			String answer;
+			switch(words[0]){
+				case "get":
+					answer = String.valueOf(database.get(Long.parseLong(words[1])));
+					break;
+				case "put":
+					database.put(Long.parseLong(words[1]), Long.parseLong(words[2]));
+					answer = String.valueOf(database.get(Long.parseLong(words[1])));
+					break;
+				case "copied":
+					answer = Boolean.toString(following != null && following.isCopied());
+					break;
+				case "connected":
+					answer = Boolean.toString(following != null && following.isConnected());
+					break;
+				case "sequence":
+					answer = following == null ? "-1" : Long.toString(following.getSequence());
+					break;
+				case "lag":
+					answer = following == null ? "-1" : Long.toString(following.getLag());
+					break;
+				case "promote":
+					answer = Boolean.toString(Database.promote());
+					break;
+				default:
+					answer = "unknown";
+					break;
+			}
+			System.out.println("= " + answer);
+		}
+		database.close();
+		System.exit(0);
+	}
+
+	/**
+	 * Writes the settings for a log database and loads them, as the
+	 * server does on start
+	 *
+	 * @param folder The folder to write the settings in
+	 * @param path The path of the shared database
+	 * @param replication The replication settings, as JSON members
+	 * @throws IOException if the settings can't be written
+	 **/
+	private static void settings(File folder, String path, String replication) throws IOException {
+		File database = new File(folder, "database.json");
+		write(database, "{\"database\" : {\"path\" : " + quote(path) + ", \"engine\" : \"log\", " + replication + ", \"replicatesecret\" : \"" + SECRET + "\"}}");
+		File main = new File(folder, "main.json");
+		write(main, "{\"main\" : {\"settings\" : {\"database\" : " + quote(database.getPath()) + "}}}");
+		Database.initialise(new JSONTokener(new String(Files.readAllBytes(main.toPath()), StandardCharsets.UTF_8)));
+	}
+
+	/**
+	 * @param file The file
+	 * @param text The text written to it
+	 * @throws IOException if it can't be written
+	 **/
+	private static void write(File file, String text) throws IOException {
+		Files.write(file.toPath(), text.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * @param path A path
+	 *
+	 * @return the path quoted for JSON
+	 **/
+	private static String quote(String path){
+		return "\"" + path.replace("\\", "\\\\") + "\"";
+	}
+
+	/**
+	 * @return a port nothing is listening on
+	 * @throws IOException if no port could be found
+	 **/
+	private static int freePort() throws IOException {
+		ServerSocket socket = new ServerSocket(0);
+		try{
+			return socket.getLocalPort();
+		}finally{
+			socket.close();
+		}
+	}
+}
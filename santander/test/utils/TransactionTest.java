@@ -0,0 +1,230 @@
+package netizens.bank.utils;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import netizens.bank.Test;
+import netizens.bank.utils.Database;
+import netizens.bank.utils.Transaction;
+
+/**
+ * TransactionTest.java
+ *
+ * Checks that a transaction fails to commit when a key it read changes
+ * first, puts nothing when it does, succeeds once retried, locks its keys
+ * after a few failed tries, waits for a key it read that another has locked
+ * rather than failing at once, and that transfers run on many threads at
+ * once neither lose nor make money
+ **/
+public class TransactionTest extends Test {
+
+	@Override
+	public void run() throws Exception {
+		Database<Long, Long> database = new Database<>(path("transactions.db"));
+		check(database.open(), "database opens");
+		conflict(database);
+		locked(database);
+		readLocked(database, false);
+		readLocked(database, true);
+		transfers(database);
+		check(database.close(), "database closes");
+	}
+
+	/**
+	 * Changes a key read by a transaction before it commits
+	 *
+	 * @param database The open database
+	 **/
+	private void conflict(Database<Long, Long> database){
+		database.put(1L, 100L);
+		database.put(2L, 0L);
+		Transaction<Long, Long> transaction = database.begin();
+		try{
+			long from = transaction.get(1L);
+			long to = transaction.get(2L);
+			transaction.put(1L, from - 10);
+			transaction.put(2L, to + 10);
+			// another request gets in first
+			database.put(1L, 50L);
+			check(!transaction.commit(), "commit fails after a key read has changed");
+			equal(50L, database.get(1L), "the other change is kept");
+			equal(0L, database.get(2L), "nothing put by the failed commit");
+
+			transaction.retry();
+			equal(2, transaction.getTries(), "second try");
+			from = transaction.get(1L);
+			to = transaction.get(2L);
+			transaction.put(1L, from - 10);
+			transaction.put(2L, to + 10);
+			check(transaction.commit(), "commit after retry");
+		}finally{
+			transaction.end();
+		}
+		equal(40L, database.get(1L), "balance taken from");
+		equal(10L, database.get(2L), "balance given to");
+	}
+
+	/**
+	 * Fails a transaction until it locks its keys, then checks that a put by
+	 * another thread waits for it
+	 *
+	 * @param database The open database
+	 **/
+	private void locked(final Database<Long, Long> database) throws Exception {
+		database.put(3L, 0L);
+		Transaction<Long, Long> transaction = database.begin();
+		Thread other;
+		final CountDownLatch started = new CountDownLatch(1);
+		try{
+			for(;;){
+				long value = transaction.get(3L);
+				transaction.put(3L, value + 1);
+				if(transaction.getTries() <= 3){
+					// keep losing until the keys are locked
+					database.put(3L, value + 100);
+				}
+				if(transaction.commit()){
+					break;
+				}
+				transaction.retry();
+			}
+			check(transaction.getTries() > 3, "keys locked after failed tries");
+			other = new Thread("transaction-test"){
+				@Override
+				public void run(){
+					started.countDown();
+					database.put(3L, -1L);
+				}
+			};
+			other.start();
+			started.await();
+			other.join(200);
+			check(other.isAlive(), "put waits while the keys are locked");
+		}finally{
+			transaction.end();
+		}
+		other.join(TimeUnit.SECONDS.toMillis(10));
+		check(!other.isAlive(), "put runs once the transaction ends");
+		equal(-1L, database.get(3L), "put after the transaction");
+	}
+
+	/**
+	 * Commits a put to one key while another transaction holds the lock of
+	 * a key read, the commit must wait and only fail if that key changed
+	 *
+	 * @param database The open database
+	 * @param change Whether the other transaction changes the key read
+	 **/
+	private void readLocked(final Database<Long, Long> database, final boolean change) throws Exception {
+		final long key = 5;
+		long other = 6;
+		while(database.stripe(other) == database.stripe(key)){
+			other++;
+		}
+		database.put(key, 0L);
+		final Thread committing = Thread.currentThread();
+		final CountDownLatch locked = new CountDownLatch(1);
+		final CountDownLatch commit = new CountDownLatch(1);
+		Thread holder = new Thread("transaction-test"){
+			@Override
+			public void run(){
+				Transaction<Long, Long> transaction = database.begin();
+				try{
+					while(transaction.getTries() <= 3){
+						transaction.get(key);
+						transaction.retry();
+					}
+					locked.countDown();
+					// let go once the commit waits for the lock
+					commit.await();
+					while(committing.getState() != Thread.State.TIMED_WAITING){
+						Thread.yield();
+					}
+					if(change){
+						transaction.put(key, transaction.get(key) + 1);
+						transaction.commit();
+					}
+				}catch(InterruptedException e){
+					// the check fails on its own
+				}finally{
+					transaction.end();
+				}
+			}
+		};
+		holder.setDaemon(true);
+		holder.start();
+		check(locked.await(10, TimeUnit.SECONDS), "other transaction locks the key read");
+		Transaction<Long, Long> transaction = database.begin();
+		try{
+			transaction.put(other, transaction.get(key) + 100);
+			commit.countDown();
+			if(change){
+				check(!transaction.commit(), "commit fails once the key read is changed and let go");
+			}else{
+				check(transaction.commit(), "commit succeeds once the key read is let go unchanged");
+			}
+		}finally{
+			transaction.end();
+		}
+		holder.join(TimeUnit.SECONDS.toMillis(10));
+		equal(change ? 1L : 0L, database.get(key), "key read changed only by the other transaction");
+	}
+
+	/**
+	 * Moves money between a few accounts on many threads, retrying as the
+	 * router does, then checks the total
+	 *
+	 * @param database The open database
+	 **/
+	private void transfers(final Database<Long, Long> database) throws Exception {
+		final int accounts = 8;
+		for(long x = 0; x < accounts; x++){
+			database.put(100 + x, 1000L);
+		}
+		final AtomicLong retries = new AtomicLong();
+		Thread[] threads = new Thread[8];
+		for(int t = 0; t < threads.length; t++){
+			final long seed = t;
+			threads[t] = new Thread("transaction-test-" + t){
+				@Override
+				public void run(){
+					for(long x = 0; x < 2000; x++){
+						long from = 100 + (seed + x) % accounts;
+						long to = 100 + (seed * 3 + x * 5 + 1) % accounts;
+						if(from == to){
+							continue;
+						}
+						Transaction<Long, Long> transaction = database.begin();
+						try{
+							for(;;){
+								long balance = transaction.get(from);
+								if(balance >= 7){
+									transaction.put(from, balance - 7);
+									transaction.put(to, transaction.get(to) + 7);
+								}
+								if(transaction.commit()){
+									break;
+								}
+								retries.incrementAndGet();
+								transaction.retry();
+							}
+						}finally{
+							transaction.end();
+						}
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for(Thread thread : threads){
+			thread.join();
+		}
+		long total = 0;
+		for(long x = 0; x < accounts; x++){
+			long balance = database.get(100 + x);
+			check(balance >= 0, "balance of " + (100 + x) + " not below zero");
+			total += balance;
+		}
+		equal(accounts * 1000L, total, "total after transfers (" + retries.get() + " retries)");
+	}
+}
@@ -0,0 +1,125 @@
+package netizens.bank.utils.database;
+
+import java.io.File;
+import netizens.bank.Test;
+import netizens.bank.utils.database.CachedStorageTest.Counting;
+
+/**
+ * BloomStorageTest.java
+ *
+ * Checks that every key put is found once the filter has grown past what
+ * it was sized for, after the saved filter is read back, and after the
+ * filter is rebuilt because its file is missing, and that gets for keys
+ * never put are answered without the engine
+ **/
+public class BloomStorageTest extends Test {
+
+	private static final int BITS_PER_KEY = 10;
+	// more than the smallest filter is sized for, so it grows
+	private static final long KEYS = 100000;
+
+	@Override
+	public void run() throws Exception {
+		String path = path("bloom.db");
+		File saved = new File(path + ".bloom");
+		Counting<Long, Long> engine = engine(path);
+		BloomStorage<Long, Long> bloom = new BloomStorage<>(engine, path, BITS_PER_KEY);
+		check(bloom.open(), "filter opens");
+		put(bloom, 0, KEYS);
+		check(bloom.flush(), "first keys saved");
+		// the filter has outgrown its size, the keys from here go in a bigger one
+		put(bloom, KEYS, KEYS * 2);
+		check(bloom.flush(), "keys after growing saved");
+		found(bloom, engine, KEYS * 2, "after growing");
+		missed(bloom, engine, "after growing");
+		check(bloom.close(), "grown filter closes");
+		check(!saved.exists(), "grown filter not saved");
+
+		engine = engine(path);
+		bloom = new BloomStorage<>(engine, path, BITS_PER_KEY);
+		check(bloom.open(), "filter rebuilt as one");
+		found(bloom, engine, KEYS * 2, "after rebuilding");
+		check(bloom.close(), "rebuilt filter closes");
+		check(saved.exists(), "rebuilt filter saved");
+
+		engine = engine(path);
+		bloom = new BloomStorage<>(engine, path, BITS_PER_KEY);
+		check(bloom.open(), "saved filter read");
+		check(!saved.exists(), "saved filter deleted once read");
+		found(bloom, engine, KEYS * 2, "after reading the saved filter");
+		missed(bloom, engine, "after reading the saved filter");
+		// saved by the engine but never closed, as if the program stopped
+		put(bloom, KEYS * 2, KEYS * 2 + 1000);
+		check(bloom.flush(), "keys put before stopping saved");
+
+		engine = engine(path);
+		bloom = new BloomStorage<>(engine, path, BITS_PER_KEY);
+		check(bloom.open(), "filter rebuilt after stopping");
+		found(bloom, engine, KEYS * 2 + 1000, "after stopping without closing");
+		missed(bloom, engine, "after stopping without closing");
+		check(bloom.close(), "filter closes");
+	}
+
+	/**
+	 * Puts a range of keys, each with double the key as its value
+	 *
+	 * @param bloom The filter
+	 * @param from The first key
+	 * @param to The key after the last
+	 **/
+	private static void put(BloomStorage<Long, Long> bloom, long from, long to){
+		for(long key = from; key < to; key++){
+			bloom.put(key, key * 2);
+		}
+	}
+
+	/**
+	 * Gets every key put, each must be read from the engine
+	 *
+	 * @param bloom The filter
+	 * @param engine The engine behind it
+	 * @param keys The number of keys put
+	 * @param when When the keys are read, given if one is missing
+	 **/
+	private static void found(BloomStorage<Long, Long> bloom, Counting<Long, Long> engine, long keys, String when){
+		long gets = engine.gets;
+		long rejected = bloom.getRejected();
+		for(long key = 0; key < keys; key++){
+			Long value = bloom.get(key);
+			if(value == null || value != key * 2){
+				equal(key * 2, value, "key " + key + " found " + when);
+			}
+		}
+		equal(rejected, bloom.getRejected(), "no key put rejected " + when);
+		equal(gets + keys, engine.gets, "every key put read from the engine " + when);
+	}
+
+	/**
+	 * Gets keys never put, all but the few the filter matches by chance
+	 * must be answered without reading the engine
+	 *
+	 * @param bloom The filter
+	 * @param engine The engine behind it
+	 * @param when When the keys are read
+	 **/
+	private static void missed(BloomStorage<Long, Long> bloom, Counting<Long, Long> engine, String when){
+		long gets = engine.gets;
+		long rejected = bloom.getRejected();
+		// far above the keys put, a negative key hashes as a small positive one
+		for(long key = KEYS * 100; key < KEYS * 100 + 1000; key++){
+			equal(null, bloom.get(key), "key never put not found " + when);
+		}
+		long skipped = bloom.getRejected() - rejected;
+		equal(1000L, skipped + engine.gets - gets, "every get either rejected or read " + when);
+		check(skipped > 900, "gets for keys never put skip the engine " + when + ", " + skipped + " of 1000");
+	}
+
+	/**
+	 * @param path The path of the database
+	 *
+	 * @return a counting engine kept in a serial database
+	 **/
+	private static Counting<Long, Long> engine(String path){
+		return new Counting<>(new SerialStorage<Long, Long>(path));
+	}
+}
@@ -0,0 +1,220 @@
+package netizens.bank.utils.database;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import netizens.bank.Test;
+
+/**
+ * CachedStorageTest.java
+ *
+ * Checks that values read more than once are kept while a scan reads
+ * many others once, that puts and adds replace what is cached, that a
+ * value read while a put replaces it is never cached, and that hits,
+ * misses and evictions are counted exactly
+ **/
+public class CachedStorageTest extends Test {
+
+	// values each shard of the cache holds, eight of them protected
+	private static final int SHARD_SIZE = 10;
+	private static final int SHARDS = 16;
+
+	@Override
+	public void run() throws Exception {
+		scan();
+		writes();
+		racingPut();
+	}
+
+	/**
+	 * Reads a few keys twice, then scans many more keys of the same shard
+	 * once each, after which the first keys must all still be cached
+	 **/
+	private void scan(){
+		Counting<Long, Long> engine = engine("scan.db");
+		CachedStorage<Long, Long> cache = new CachedStorage<>(engine, SHARD_SIZE * SHARDS);
+		check(cache.open(), "cache opens");
+		List<Long> keys = sameShard(1008);
+		for(Long key : keys){
+			engine.put(key, key * 2);
+		}
+		List<Long> hot = keys.subList(0, 8);
+		for(int x = 0; x < 2; x++){
+			for(Long key : hot){
+				equal(key * 2, cache.get(key), "hot value read");
+			}
+		}
+		equal(8L, cache.getMisses(), "first reads of the hot keys missed");
+		equal(8L, cache.getHits(), "second reads of the hot keys hit");
+		equal(0L, cache.getEvictions(), "nothing evicted while there is room");
+
+		for(Long key : keys.subList(8, keys.size())){
+			equal(key * 2, cache.get(key), "scanned value read");
+		}
+		equal(1008L, cache.getMisses(), "every scanned key missed");
+		// the shard fills up after two scanned keys, each one after pushes out one
+		equal(998L, cache.getEvictions(), "scanned keys evicted from probation");
+
+		long gets = engine.gets;
+		for(Long key : hot){
+			equal(key * 2, cache.get(key), "hot value read after the scan");
+		}
+		equal(gets, engine.gets, "hot keys not read from the engine after the scan");
+		equal(16L, cache.getHits(), "hot keys hit after the scan");
+		equal(SHARD_SIZE, cache.size(), "shard full");
+		check(cache.close(), "cache closes");
+	}
+
+	/**
+	 * Puts and adds to cached keys, the cache must give the new values
+	 * without reading the engine
+	 **/
+	private void writes(){
+		Counting<Long, Long> engine = engine("writes.db");
+		CachedStorage<Long, Long> cache = new CachedStorage<>(engine, SHARD_SIZE * SHARDS);
+		check(cache.open(), "cache opens");
+		cache.put(1L, 100L);
+		cache.put(2L, 200L);
+		equal(100L, cache.get(1L), "value read");
+		equal(200L, cache.get(2L), "value read");
+		long gets = engine.gets;
+		long hits = cache.getHits();
+
+		cache.put(1L, 150L);
+		equal(150L, cache.get(1L), "put replaces the cached value");
+		Map<Long, Long> values = new HashMap<>();
+		values.put(1L, 160L);
+		values.put(2L, 260L);
+		cache.putAll(values);
+		equal(160L, cache.get(1L), "putAll replaces the cached value");
+		equal(260L, cache.get(2L), "putAll replaces every cached value");
+		equal(gets, engine.gets, "puts to cached keys never read them back");
+		equal(260L, cache.add(1L, 100L, 0, 2L, new Recorder<Long>(){
+			@Override
+			public Long record(long number){
+				return -number;
+			}
+		}), "add gives the new number");
+		equal(260L, cache.get(1L), "add replaces the cached number");
+		equal(-260L, cache.get(2L), "add replaces the cached value recorded with it");
+		equal(gets + 1, engine.gets, "add only reads back the value recorded");
+		equal(hits + 5, cache.getHits(), "every read after a write hit");
+		check(cache.close(), "cache closes");
+	}
+
+	/**
+	 * Puts a new value while a get that missed is reading the old one, the
+	 * old value must be returned to that get but not cached
+	 **/
+	private void racingPut(){
+		final Counting<Long, Long> engine = engine("race.db");
+		final CachedStorage<Long, Long> cache = new CachedStorage<>(engine, SHARD_SIZE * SHARDS);
+		check(cache.open(), "cache opens");
+		engine.put(42L, 1L);
+		engine.during = new Runnable(){
+			@Override
+			public void run(){
+				engine.during = null;
+				cache.put(42L, 2L);
+			}
+		};
+		equal(1L, cache.get(42L), "get that missed gives what it read");
+		equal(0, cache.size(), "value replaced while read not cached");
+		equal(2L, cache.get(42L), "new value read from the engine");
+		equal(2L, cache.getMisses(), "both reads missed");
+		equal(2L, cache.get(42L), "new value cached");
+		equal(1L, cache.getHits(), "read after caching hit");
+		check(cache.close(), "cache closes");
+	}
+
+	/**
+	 * Finds keys that are all cached in the same shard, the one the first
+	 * key falls in, hashed as CachedStorage does
+	 *
+	 * @param count The number of keys
+	 *
+	 * @return the keys
+	 **/
+	private static List<Long> sameShard(int count){
+		List<Long> keys = new ArrayList<>();
+		for(long key = 0; keys.size() < count; key++){
+			int h = Long.valueOf(key).hashCode() * 0x9E3779B9;
+			if(((h >>> 28) & (SHARDS - 1)) == 0){
+				keys.add(key);
+			}
+		}
+		return keys;
+	}
+
+	/**
+	 * @param name The name of the files in the folder of the check
+	 *
+	 * @return a counting engine kept in a serial database
+	 **/
+	private Counting<Long, Long> engine(String name){
+		return new Counting<>(new SerialStorage<Long, Long>(path(name)));
+	}
+
+	/**
+	 * An engine that counts the gets that reach it, and can run something
+	 * in the middle of a get, after the value has been read
+	 **/
+	static final class Counting<K, V> implements Storage<K, V> {
+
+		private final Storage<K, V> storage;
+		volatile long gets;
+		volatile Runnable during;
+
+		Counting(Storage<K, V> storage){
+			this.storage = storage;
+		}
+
+		@Override
+		public boolean open(){
+			return storage.open();
+		}
+
+		@Override
+		public V get(K key){
+			gets++;
+			V value = storage.get(key);
+			Runnable run = during;
+			if(run != null){
+				run.run();
+			}
+			return value;
+		}
+
+		@Override
+		public void put(K key, V value){
+			storage.put(key, value);
+		}
+
+		@Override
+		public void putAll(Map<K, V> values){
+			storage.putAll(values);
+		}
+
+		@Override
+		public long add(long key, long amount, long floor, K with, Recorder<V> recorder){
+			return storage.add(key, amount, floor, with, recorder);
+		}
+
+		@Override
+		public void forEach(BiConsumer<? super K, ? super V> action){
+			storage.forEach(action);
+		}
+
+		@Override
+		public boolean flush(){
+			return storage.flush();
+		}
+
+		@Override
+		public boolean close(){
+			return storage.close();
+		}
+	}
+}
@@ -0,0 +1,293 @@
+package netizens.bank.utils.database;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import netizens.bank.Test;
+
+/**
+ * LogStorageTest.java
+ *
+ * Checks that the log engine gives back every flushed put after the
+ * program stops without closing it, with checkpoints taken along the way,
+ * and after a clean close with checkpoints written in the background. A last
+ * segment cut short or ending in garbage is truncated to its last good
+ * record, damage in any other segment stops the log opening. Once writing
+ * the log fails no more puts are taken
+ **/
+public class LogStorageTest extends Test {
+
+	@Override
+	public void run() throws Exception {
+		crash();
+		checkpoints();
+		tornTail();
+		garbageTail();
+		damagedSegment();
+		failure();
+	}
+
+	/**
+	 * Flushes puts over many small segments and a checkpoint, then opens the
+	 * files again without closing, as a restart after a crash would
+	 **/
+	private void crash() throws Exception {
+		String path = path("crash.db");
+		LogStorage<Long, Long> log = engine(path, Integer.MAX_VALUE);
+		check(log.open(), "empty log opens");
+		for(long x = 0; x < 2000; x++){
+			log.put(x, x * 10);
+		}
+		Map<Long, Long> batch = new HashMap<>();
+		for(long x = 2000; x < 2050; x++){
+			batch.put(x, x * 10);
+		}
+		log.putAll(batch);
+		check(log.flush(), "puts flushed");
+		log.checkpoint();
+		// after the checkpoint, so only the segments replay them
+		for(long x = 0; x < 500; x++){
+			log.put(x, -x);
+			// small batches, so the segments fill and roll over
+			if(x % 20 == 19){
+				check(log.flush(), "puts after the checkpoint flushed");
+			}
+		}
+		check(new File(path).length() > 0, "checkpoint written");
+		check(segments(path) > 1, "puts spread over several segments");
+
+		// never closed, as if the program was killed here
+		LogStorage<Long, Long> reopened = engine(path, Integer.MAX_VALUE);
+		check(reopened.open(), "log opens after a crash");
+		for(long x = 0; x < 2050; x++){
+			equal(x < 500 ? -x : x * 10, reopened.get(x), "value of " + x + " after replay");
+		}
+
+		// new puts follow the replayed ones
+		reopened.put(1L, 42L);
+		check(reopened.close(), "log closes");
+		LogStorage<Long, Long> again = engine(path, Integer.MAX_VALUE);
+		check(again.open(), "log opens after close");
+		equal(42L, again.get(1L), "put made after replay");
+		equal(20000L, again.get(2000L), "put from before the crash");
+		check(again.close(), "log closes again");
+	}
+
+	/**
+	 * Puts enough to start several background checkpoints, then checks
+	 * that what is left after close reads back the same
+	 **/
+	private void checkpoints() throws Exception {
+		String path = path("checkpoints.db");
+		LogStorage<Long, String> log = engine(path, 100);
+		check(log.open(), "empty log opens");
+		for(long x = 0; x < 5000; x++){
+			log.put(x % 700, "value " + x);
+			if(x % 50 == 0){
+				check(log.flush(), "puts flushed");
+			}
+		}
+		check(log.close(), "log closes");
+		check(new File(path).length() > 0, "checkpoint written");
+
+		LogStorage<Long, String> reopened = engine(path, 100);
+		check(reopened.open(), "log opens");
+		for(long x = 4300; x < 5000; x++){
+			equal("value " + x, reopened.get(x % 700), "value of " + x % 700);
+		}
+		check(reopened.close(), "log closes again");
+	}
+
+	/**
+	 * Cuts the last record of the last segment short, as a crash while
+	 * appending would, then checks the log opens without it
+	 **/
+	private void tornTail() throws Exception {
+		String path = path("torn.db");
+		fill(path);
+		File last = segmentFiles(path).lastEntry().getValue();
+		long length = last.length();
+		RandomAccessFile raf = new RandomAccessFile(last, "rw");
+		try{
+			raf.setLength(length - 5);
+		}finally{
+			raf.close();
+		}
+
+		LogStorage<Long, Long> reopened = engine(path, Integer.MAX_VALUE);
+		check(reopened.open(), "log opens with a torn last record");
+		for(long x = 0; x < 599; x++){
+			equal(x * 2, reopened.get(x), "value of " + x + " before the torn record");
+		}
+		check(reopened.get(599L) == null, "torn record dropped");
+		check(last.length() < length - 5, "segment truncated to the last good record");
+
+		// appended after the last good record, not after the torn one
+		reopened.put(599L, 1198L);
+		check(reopened.close(), "log closes");
+		LogStorage<Long, Long> again = engine(path, Integer.MAX_VALUE);
+		check(again.open(), "log opens after the truncated segment is appended to");
+		equal(1198L, again.get(599L), "put made after the truncation");
+		check(again.close(), "log closes again");
+	}
+
+	/**
+	 * Ends the last segment with bytes that aren't a record, then checks
+	 * they are cut off and nothing before them is lost
+	 **/
+	private void garbageTail() throws Exception {
+		String path = path("garbage.db");
+		fill(path);
+		File last = segmentFiles(path).lastEntry().getValue();
+		long length = last.length();
+		byte[] garbage = new byte[100];
+		Arrays.fill(garbage, (byte) 0x5a);
+		RandomAccessFile raf = new RandomAccessFile(last, "rw");
+		try{
+			raf.seek(length);
+			raf.write(garbage);
+		}finally{
+			raf.close();
+		}
+
+		LogStorage<Long, Long> reopened = engine(path, Integer.MAX_VALUE);
+		check(reopened.open(), "log opens with garbage after the last record");
+		for(long x = 0; x < 600; x++){
+			equal(x * 2, reopened.get(x), "value of " + x);
+		}
+		equal(length, last.length(), "garbage cut off");
+		check(reopened.close(), "log closes");
+	}
+
+	/**
+	 * Changes a byte in a record of a segment before the last, which a
+	 * crash can't do, then checks the log refuses to open and keeps its files
+	 **/
+	private void damagedSegment() throws Exception {
+		String path = path("damaged.db");
+		fill(path);
+		TreeMap<Long, File> files = segmentFiles(path);
+		check(files.size() > 2, "puts spread over several segments");
+		File first = files.firstEntry().getValue();
+		long length = first.length();
+		RandomAccessFile raf = new RandomAccessFile(first, "rw");
+		try{
+			// in the body of the first record, after the header, length and checksum
+			raf.seek(Snapshot.HEADER + 10);
+			int b = raf.read();
+			raf.seek(Snapshot.HEADER + 10);
+			raf.write(b ^ 0xff);
+		}finally{
+			raf.close();
+		}
+
+		check(!engine(path, Integer.MAX_VALUE).open(), "log with a damaged earlier segment is refused");
+		equal(length, first.length(), "damaged segment kept as it was");
+		equal(files.keySet(), segmentFiles(path).keySet(), "every segment kept");
+	}
+
+	/**
+	 * Puts a folder where the next segments would be made, so that starting
+	 * one fails, then checks the log refuses puts from then on and that what
+	 * was flushed before is kept
+	 **/
+	private void failure() throws Exception {
+		String path = path("failure.db");
+		LogStorage<Long, Long> log = engine(path, Integer.MAX_VALUE);
+		check(log.open(), "empty log opens");
+		log.put(0L, 0L);
+		check(log.flush(), "first put flushed");
+		File[] traps = new File[5];
+		for(int x = 0; x < traps.length; x++){
+			traps[x] = new File(path + ".log." + (x + 2));
+			check(traps[x].mkdir(), "folder in the way of segment " + (x + 2));
+		}
+
+		long acked = 0;
+		for(long x = 1; x < 2000; x++){
+			log.put(x, x);
+			if(!log.flush()){
+				break;
+			}
+			acked = x;
+		}
+		check(acked < 1999, "flush fails once a segment can't be started");
+		check(!log.flush(), "flush keeps failing");
+		log.put(5000L, 1L);
+		check(log.get(5000L) == null, "put refused after the log failed");
+
+		for(File trap : traps){
+			check(trap.delete(), "folder removed");
+		}
+		LogStorage<Long, Long> reopened = engine(path, Integer.MAX_VALUE);
+		check(reopened.open(), "log opens again");
+		for(long x = 0; x <= acked; x++){
+			equal(x, reopened.get(x), "flushed value of " + x);
+		}
+		check(reopened.get(5000L) == null, "refused put not saved");
+		check(reopened.close(), "log closes");
+	}
+
+	/**
+	 * Flushes 600 puts to a new log in small batches so they fill a few
+	 * segments, without closing it
+	 *
+	 * @param path The checkpoint file
+	 **/
+	private static void fill(String path){
+		LogStorage<Long, Long> log = engine(path, Integer.MAX_VALUE);
+		check(log.open(), "empty log opens");
+		for(long x = 0; x < 600; x++){
+			log.put(x, x * 2);
+			if(x % 20 == 19){
+				check(log.flush(), "puts flushed");
+			}
+		}
+	}
+
+	/**
+	 * Creates a log engine with segments of a few KB, so that even a small
+	 * test writes many of them
+	 *
+	 * @param path The checkpoint file
+	 * @param checkpointEvery The number of puts between checkpoints
+	 *
+	 * @return the engine, not yet opened
+	 **/
+	static <K, V> LogStorage<K, V> engine(String path, int checkpointEvery){
+		return new LogStorage<>(path, checkpointEvery, true, 0, 1 << 20, 0, 0, 4096);
+	}
+
+	/**
+	 * Counts the log segments kept next to a checkpoint
+	 *
+	 * @param path The checkpoint file
+	 *
+	 * @return the number of segments
+	 **/
+	static int segments(String path){
+		return segmentFiles(path).size();
+	}
+
+	/**
+	 * Finds the log segments kept next to a checkpoint
+	 *
+	 * @param path The checkpoint file
+	 *
+	 * @return the segments by number
+	 **/
+	static TreeMap<Long, File> segmentFiles(String path){
+		File checkpoint = new File(path);
+		String prefix = checkpoint.getName() + ".log.";
+		TreeMap<Long, File> found = new TreeMap<>();
+		for(File file : checkpoint.getAbsoluteFile().getParentFile().listFiles()){
+			if(file.getName().startsWith(prefix)){
+				found.put(Long.parseLong(file.getName().substring(prefix.length())), file);
+			}
+		}
+		return found;
+	}
+}
@@ -0,0 +1,196 @@
+package netizens.bank.utils.database;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import netizens.bank.Test;
+
+/**
+ * MappedStorageTest.java
+ *
+ * Checks that the mapped engine reads back what it was given once its
+ * files are mapped again, after values have been overwritten, grown and
+ * compacted, and that a log database is copied in the first time. A record
+ * whose pages didn't reach the disk is left out rather than read, a batch
+ * that wasn't flushed is put again from the intent log, and an index from
+ * before slots had checksums is still read
+ **/
+public class MappedStorageTest extends Test {
+
+	@Override
+	public void run() throws Exception {
+		reopen();
+		copyIn();
+		torn();
+		unchecked();
+	}
+
+	/**
+	 * Puts, overwrites and grows values past the first index size, then
+	 * maps the files again
+	 **/
+	private void reopen() throws Exception {
+		String path = path("mapped.db");
+		MappedStorage<Long, String> mapped = new MappedStorage<>(path);
+		check(mapped.open(), "empty mapped files open");
+		for(long x = 0; x < 20000; x++){
+			mapped.put(x, "v" + x);
+		}
+		// each overwrite leaves an old record behind for compaction
+		for(int round = 0; round < 3; round++){
+			for(long x = 0; x < 20000; x += 2){
+				mapped.put(x, "round " + round + " of " + x);
+			}
+		}
+		Map<Long, String> batch = new HashMap<>();
+		for(long x = 20000; x < 20100; x++){
+			batch.put(x, "batch " + x);
+		}
+		mapped.putAll(batch);
+		check(mapped.flush(), "mapped pages forced");
+		check(mapped.close(), "mapped files close");
+
+		MappedStorage<Long, String> reopened = new MappedStorage<>(path);
+		check(reopened.open(), "mapped files open again");
+		for(long x = 0; x < 20000; x++){
+			equal(x % 2 == 0 ? "round 2 of " + x : "v" + x, reopened.get(x), "value of " + x);
+		}
+		equal("batch 20050", reopened.get(20050L), "value put in a batch");
+		check(reopened.get(30000L) == null, "missing key");
+		final int[] count = new int[1];
+		reopened.forEach(new BiConsumer<Long, String>(){
+			@Override
+			public void accept(Long key, String value){
+				count[0]++;
+			}
+		});
+		equal(20100, count[0], "keys walked");
+		check(reopened.close(), "mapped files close again");
+	}
+
+	/**
+	 * Opens the mapped engine over a log database, which is copied in
+	 **/
+	private void copyIn() throws Exception {
+		String path = path("copied.db");
+		LogStorage<Long, Long> log = LogStorageTest.engine(path, 100);
+		check(log.open(), "log opens");
+		for(long x = 0; x < 1000; x++){
+			log.put(x, x * x);
+		}
+		check(log.close(), "log closes");
+
+		MappedStorage<Long, Long> mapped = new MappedStorage<>(path);
+		check(mapped.open(), "mapped files open over a log");
+		for(long x = 0; x < 1000; x++){
+			equal(x * x, mapped.get(x), "copied value of " + x);
+		}
+		check(mapped.close(), "mapped files close");
+	}
+
+	/**
+	 * Spoils a record and the value of a batch in the data file, as if
+	 * their pages never reached the disk, then maps the files again
+	 **/
+	private void torn() throws Exception {
+		String path = path("torn.db");
+		MappedStorage<Long, String> mapped = new MappedStorage<>(path);
+		check(mapped.open(), "mapped files open");
+		for(long x = 0; x < 100; x++){
+			mapped.put(x, "v" + x);
+		}
+		check(mapped.flush(), "mapped pages forced");
+		Map<Long, String> batch = new HashMap<>();
+		batch.put(1000L, "first of a batch");
+		batch.put(1001L, "second of a batch");
+		// not flushed, so still waiting in the intent log
+		mapped.putAll(batch);
+		spoil(new File(path + ".data.0"), "v5");
+		spoil(new File(path + ".data.0"), "first of a batch");
+
+		// the first engine is left open, as if the program had stopped
+		MappedStorage<Long, String> reopened = new MappedStorage<>(path);
+		check(reopened.open(), "mapped files open after a crash");
+		check(reopened.get(5L) == null, "damaged record left out");
+		equal("v6", reopened.get(6L), "record next to a damaged one");
+		equal("first of a batch", reopened.get(1000L), "damaged value of a batch put again");
+		equal("second of a batch", reopened.get(1001L), "rest of the batch");
+		final int[] count = new int[1];
+		reopened.forEach(new BiConsumer<Long, String>(){
+			@Override
+			public void accept(Long key, String value){
+				count[0]++;
+			}
+		});
+		equal(101, count[0], "keys walked without the damaged one");
+		reopened.put(5L, "v5 again");
+		equal("v5 again", reopened.get(5L), "damaged key put again");
+		check(reopened.close(), "mapped files close");
+	}
+
+	/**
+	 * Clears the checksums from an index as version 4 wrote it, they are
+	 * filled in when it is opened
+	 **/
+	private void unchecked() throws Exception {
+		String path = path("unchecked.db");
+		MappedStorage<Long, String> mapped = new MappedStorage<>(path);
+		check(mapped.open(), "mapped files open");
+		for(long x = 0; x < 3000; x++){
+			mapped.put(x, "v" + x);
+		}
+		check(mapped.close(), "mapped files close");
+
+		RandomAccessFile index = new RandomAccessFile(path + ".index", "rw");
+		try{
+			index.seek(4);
+			int capacity = index.readInt();
+			for(int x = 0; x < capacity; x++){
+				index.seek(64 + x * 16L + 12);
+				index.writeInt(0);
+			}
+			index.seek(36);
+			index.writeInt(0);
+		}finally{
+			index.close();
+		}
+
+		MappedStorage<Long, String> reopened = new MappedStorage<>(path);
+		check(reopened.open(), "index without checksums opens");
+		for(long x = 0; x < 3000; x++){
+			equal("v" + x, reopened.get(x), "value of " + x);
+		}
+		check(reopened.close(), "mapped files close again");
+	}
+
+	/**
+	 * Changes the last byte of the first place a value is stored in a file
+	 *
+	 * @param file The data file
+	 * @param value The value, as encoded in a record
+	 **/
+	private static void spoil(File file, String value) throws Exception {
+		byte[] bytes = Files.readAllBytes(file.toPath());
+		byte[] wanted = Record.encode(value);
+		for(int x = 0; x + wanted.length <= bytes.length; x++){
+			int y = 0;
+			while(y < wanted.length && bytes[x + y] == wanted[y]){
+				y++;
+			}
+			if(y == wanted.length){
+				RandomAccessFile raf = new RandomAccessFile(file, "rw");
+				try{
+					raf.seek(x + wanted.length - 1);
+					raf.write(bytes[x + wanted.length - 1] ^ 0x55);
+				}finally{
+					raf.close();
+				}
+				return;
+			}
+		}
+		throw new AssertionError(value + " not found in " + file);
+	}
+}
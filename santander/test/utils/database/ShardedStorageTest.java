@@ -0,0 +1,191 @@
+package netizens.bank.utils.database;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import netizens.bank.Test;
+
+/**
+ * ShardedStorageTest.java
+ *
+ * Checks that a database kept without shards is copied into the shards the
+ * first time, that the keys are spread over all of them and read back from
+ * the right one after a restart, and that opening with another number of
+ * shards is refused. A change across shards is kept whole when a crash
+ * loses one shard's part of it, and is not put again once saved
+ **/
+public class ShardedStorageTest extends Test {
+
+	private static final int SHARDS = 4;
+
+	@Override
+	public void run() throws Exception {
+		copy();
+		crossShard();
+		crossShardSaved();
+	}
+
+	/**
+	 * Splits an unsharded log into shards and reopens them
+	 **/
+	private void copy() throws Exception {
+		String path = path("sharded.db");
+		LogStorage<Long, Long> unsharded = LogStorageTest.engine(path, 100);
+		check(unsharded.open(), "unsharded log opens");
+		for(long x = 0; x < 3000; x++){
+			unsharded.put(x, x + 1);
+		}
+		check(unsharded.close(), "unsharded log closes");
+
+		ShardedStorage<Long, Long> sharded = sharded(path, SHARDS);
+		check(sharded.open(), "shards open over an unsharded database");
+		equal(Integer.toString(SHARDS), new String(Files.readAllBytes(new File(path + ".shards").toPath()), StandardCharsets.UTF_8), "number of shards stored");
+		for(long x = 0; x < 3000; x++){
+			equal(x + 1, sharded.get(x), "copied value of " + x);
+		}
+		for(Storage<Long, Long> shard : sharded.getShards()){
+			check(((LogStorage<Long, Long>) shard).entries().size() > 3000 / SHARDS / 2, "keys spread over every shard");
+		}
+		sharded.put(7L, 70L);
+		sharded.put(5000L, 5001L);
+		check(sharded.close(), "shards close");
+
+		ShardedStorage<Long, Long> reopened = sharded(path, SHARDS);
+		check(reopened.open(), "shards open again");
+		equal(70L, reopened.get(7L), "value changed after the copy");
+		equal(5001L, reopened.get(5000L), "value added after the copy");
+		equal(2001L, reopened.get(2000L), "copied value after a restart");
+		check(reopened.close(), "shards close again");
+
+		// the keys would be looked for in the wrong shards
+		check(!sharded(path, SHARDS - 1).open(), "another number of shards is refused");
+	}
+
+	/**
+	 * Moves money between accounts in two shards, lets one shard save its
+	 * part, then cuts the other's part off its log as a crash before it was
+	 * synced would, and checks the move is finished on opening
+	 **/
+	private void crossShard() throws Exception {
+		String path = path("cross.db");
+		ShardedStorage<Long, Long> sharded = sharded(path, SHARDS);
+		check(sharded.open(), "shards open");
+		for(long x = 0; x < 100; x++){
+			sharded.put(x, 1000L);
+		}
+		check(sharded.flush(), "accounts flushed");
+		int from = shardOf(sharded, 0L);
+		long to = 1;
+		while(shardOf(sharded, to) == from){
+			to++;
+		}
+		int other = shardOf(sharded, to);
+
+		Map<Long, Long> transfer = new HashMap<>();
+		transfer.put(0L, 900L);
+		transfer.put(to, 1100L);
+		sharded.putAll(transfer);
+		// each part reaches its shard's log, but the change is never marked done
+		check(sharded.getShards().get(from).flush(), "part taken from saved");
+		check(sharded.getShards().get(other).flush(), "part given to saved");
+		File last = LogStorageTest.segmentFiles(path + "." + other).lastEntry().getValue();
+		cutLastRecord(last);
+
+		// never closed, as if the program was killed here
+		ShardedStorage<Long, Long> reopened = sharded(path, SHARDS);
+		check(reopened.open(), "shards open after a crash");
+		equal(900L, reopened.get(0L), "balance taken from");
+		equal(1100L, reopened.get(to), "balance given to, put again from the intent log");
+		long total = 0;
+		for(long x = 0; x < 100; x++){
+			total += reopened.get(x);
+		}
+		equal(100000L, total, "total after the crash");
+		check(reopened.close(), "shards close");
+	}
+
+	/**
+	 * Changes accounts again after a change across shards was saved, and
+	 * checks the later values are kept when the shards are opened again,
+	 * whether the change was flushed or only closed
+	 **/
+	private void crossShardSaved() throws Exception {
+		String path = path("saved.db");
+		ShardedStorage<Long, Long> sharded = sharded(path, SHARDS);
+		check(sharded.open(), "shards open");
+		Map<Long, Long> transfer = new HashMap<>();
+		for(long x = 0; x < 10; x++){
+			transfer.put(x, 1L);
+		}
+		sharded.putAll(transfer);
+		check(sharded.flush(), "change across shards flushed");
+		sharded.put(3L, 30L);
+		sharded.putAll(transfer);
+		sharded.put(4L, 40L);
+		check(sharded.close(), "shards close");
+
+		ShardedStorage<Long, Long> reopened = sharded(path, SHARDS);
+		check(reopened.open(), "shards open again");
+		equal(1L, reopened.get(3L), "value from the second change");
+		equal(40L, reopened.get(4L), "value put after the change, not put over");
+		check(reopened.close(), "shards close again");
+	}
+
+	/**
+	 * @param sharded The open shards
+	 * @param key A key that has been put
+	 *
+	 * @return the number of the shard holding it
+	 **/
+	private static int shardOf(ShardedStorage<Long, Long> sharded, Long key){
+		for(int x = 0; x < SHARDS; x++){
+			if(((LogStorage<Long, Long>) sharded.getShards().get(x)).entries().containsKey(key)){
+				return x;
+			}
+		}
+		throw new AssertionError("key " + key + " in no shard");
+	}
+
+	/**
+	 * Truncates a log segment to just before its last record
+	 *
+	 * @param segment The segment
+	 **/
+	private static void cutLastRecord(File segment) throws Exception {
+		ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(segment.toPath()));
+		int start = Snapshot.HEADER;
+		int lastStart = start;
+		while(start + 8 <= in.limit()){
+			lastStart = start;
+			start += 8 + in.getInt(start);
+		}
+		check(lastStart > Snapshot.HEADER, "segment has records before the last");
+		RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+		try{
+			raf.setLength(lastStart);
+		}finally{
+			raf.close();
+		}
+	}
+
+	/**
+	 * Creates log shards kept next to a path
+	 *
+	 * @param path The path of the database
+	 * @param count The number of shards
+	 *
+	 * @return the sharded engine, not yet opened
+	 **/
+	private static ShardedStorage<Long, Long> sharded(String path, int count){
+		@SuppressWarnings("unchecked")
+		Storage<Long, Long>[] shards = (Storage<Long, Long>[]) new Storage<?, ?>[count];
+		for(int x = 0; x < count; x++){
+			shards[x] = LogStorageTest.engine(path + "." + x, 100);
+		}
+		return new ShardedStorage<>(path, shards);
+	}
+}
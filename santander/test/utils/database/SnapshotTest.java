@@ -0,0 +1,249 @@
+package netizens.bank.utils.database;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import netizens.bank.Test;
+
+/**
+ * SnapshotTest.java
+ *
+ * Checks that keys and values come back the same through the codecs, alone
+ * and in batches, and that snapshots read back whichever way they were
+ * written: with a current header, compressed in pages, with a version 1 or
+ * version 2 header, or as a Java serialized map from before the engines
+ **/
+public class SnapshotTest extends Test {
+
+	@Override
+	public void run() throws Exception {
+		codecs();
+		current();
+		compressed();
+		older();
+		legacy();
+		refused();
+	}
+
+	/**
+	 * Encodes single puts, batches and lone values and decodes them again
+	 **/
+	private void codecs() throws Exception {
+		Object[] values = new Object[]{ 0L, Long.MIN_VALUE, Long.MAX_VALUE, -1, Integer.MAX_VALUE, "", "ascii", "\u00e9t\u00e9 \u20ac \ud83d\udcb0", null };
+		for(Object key : values){
+			for(Object value : values){
+				byte[] record = Record.encode(key, value);
+				equal(record.length - 4, ByteBuffer.wrap(record).getInt(), "length of record");
+				Object[] puts = Record.decode(ByteBuffer.wrap(record, 4, record.length - 4).slice());
+				equal(2, puts.length, "puts in record");
+				equal(key, puts[0], "key");
+				equal(value, puts[1], "value");
+			}
+			equal(key, Record.read(ByteBuffer.wrap(Record.encode(key))), "lone value");
+		}
+
+		Map<Object, Object> batch = new LinkedHashMap<>();
+		for(int x = 0; x < values.length - 1; x++){
+			batch.put(values[x], values[values.length - 2 - x]);
+		}
+		byte[] record = Record.encode(batch);
+		equal(Codecs.BATCH, record[4], "tag of a batch");
+		Object[] puts = Record.decode(ByteBuffer.wrap(record, 4, record.length - 4).slice());
+		Map<Object, Object> decoded = new LinkedHashMap<>();
+		for(int x = 0; x < puts.length; x += 2){
+			decoded.put(puts[x], puts[x + 1]);
+		}
+		equal(batch, decoded, "batch");
+
+		// values written with Java serialization by older versions
+		ByteArrayOutputStream serial = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(serial);
+		out.writeObject(Long.valueOf(1234));
+		out.close();
+		ByteBuffer old = ByteBuffer.allocate(5 + serial.size());
+		old.put(Codecs.LEGACY_OBJECT);
+		old.putInt(serial.size());
+		old.put(serial.toByteArray());
+		old.flip();
+		equal(1234L, Record.read(old), "legacy value");
+
+		try{
+			Record.encode(new Object());
+			check(false, "a type without a codec is refused");
+		}catch(IOException e){
+			// expected
+		}
+	}
+
+	/**
+	 * Writes and reads a snapshot without compression
+	 **/
+	private void current() throws Exception {
+		File file = new File(path("current.db"));
+		Map<Long, String> map = map(5000);
+		Snapshot.write(file, map);
+		equal((byte) 0, header(file)[7], "flags of an uncompressed snapshot");
+		equal(map, read(file), "uncompressed snapshot");
+	}
+
+	/**
+	 * Writes and reads snapshots compressed in many pages, and
+	 * one with a record larger than a page
+	 **/
+	private void compressed() throws Exception {
+		File file = new File(path("compressed.db"));
+		Map<Long, String> map = map(50000);
+		Snapshot.write(file, map, 0, 6);
+		equal(Snapshot.COMPRESSED, header(file)[7], "flags of a compressed snapshot");
+		File plain = new File(path("plain.db"));
+		Snapshot.write(plain, map);
+		check(file.length() < plain.length() / 2, "snapshot compressed");
+		equal(map, read(file), "compressed snapshot");
+
+		char[] big = new char[Snapshot.PAGE * 2];
+		Arrays.fill(big, 'x');
+		map.put(-1L, new String(big));
+		Snapshot.write(file, map, 0, 1);
+		equal(map, read(file), "compressed snapshot with a record larger than a page");
+	}
+
+	/**
+	 * Reads snapshots laid out as versions 1 and 2 wrote them
+	 **/
+	private void older() throws Exception {
+		Map<Long, String> map = map(100);
+
+		File v1 = new File(path("v1.db"));
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(v1));
+		out.writeInt(0x4e5a4c47);
+		records(out, map);
+		out.close();
+		equal(map, read(v1), "version 1 snapshot");
+
+		File v2 = new File(path("v2.db"));
+		out = new DataOutputStream(new FileOutputStream(v2));
+		out.writeInt(Snapshot.MAGIC);
+		out.writeShort(2);
+		out.writeByte(Snapshot.SNAPSHOT);
+		out.writeByte(0);
+		records(out, map);
+		out.close();
+		equal(map, read(v2), "version 2 snapshot");
+	}
+
+	/**
+	 * Reads a file saved by the engine from before the engines, a Java
+	 * serialized HashMap, and refuses one holding other classes
+	 **/
+	private void legacy() throws Exception {
+		HashMap<Long, Long> map = new HashMap<>();
+		for(long x = 0; x < 100; x++){
+			map.put(x, x * 3);
+		}
+		File file = new File(path("legacy.db"));
+		serialize(file, map);
+		Map<Long, Long> read = new HashMap<>();
+		Snapshot.read(file, read);
+		equal(map, read, "serialized snapshot");
+
+		HashMap<Long, Object> other = new HashMap<>();
+		other.put(1L, new Date());
+		serialize(file, other);
+		try{
+			Snapshot.read(file, new HashMap<Long, Object>());
+			check(false, "a class outside the legacy filter is refused");
+		}catch(IOException e){
+			// expected
+		}
+	}
+
+	/**
+	 * Refuses files from newer versions, of another kind or of no kind
+	 **/
+	private void refused() throws Exception {
+		File file = new File(path("refused.db"));
+		byte[][] headers = new byte[][]{
+			{ 0x4e, 0x5a, 0x44, 0x42, 0, (byte) (Snapshot.VERSION + 1), Snapshot.SNAPSHOT, 0 },
+			Snapshot.header(Snapshot.LOG),
+			"not a database".getBytes("UTF-8")
+		};
+		for(byte[] header : headers){
+			FileOutputStream out = new FileOutputStream(file);
+			out.write(header);
+			out.close();
+			try{
+				Snapshot.read(file, new HashMap<Object, Object>());
+				check(false, "file refused");
+			}catch(IOException e){
+				// expected
+			}
+		}
+	}
+
+	/**
+	 * @param size The number of keys
+	 *
+	 * @return a map with values of a few sizes
+	 **/
+	private static Map<Long, String> map(int size){
+		Map<Long, String> map = new HashMap<>();
+		for(long x = 0; x < size; x++){
+			map.put(x * 7919, "account " + x + (x % 10 == 0 ? " with a longer value" : ""));
+		}
+		return map;
+	}
+
+	/**
+	 * @param file A snapshot
+	 *
+	 * @return what it holds
+	 **/
+	private static Map<Long, String> read(File file) throws IOException {
+		Map<Long, String> read = new HashMap<>();
+		Snapshot.read(file, read);
+		return read;
+	}
+
+	/**
+	 * @param file A snapshot
+	 *
+	 * @return its first bytes
+	 **/
+	private static byte[] header(File file) throws IOException {
+		byte[] header = new byte[Snapshot.HEADER];
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try{
+			in.readFully(header);
+		}finally{
+			in.close();
+		}
+		return header;
+	}
+
+	/**
+	 * Writes the records of a map one after another
+	 *
+	 * @param out The file
+	 * @param map The map
+	 **/
+	private static void records(DataOutputStream out, Map<?, ?> map) throws IOException {
+		for(Map.Entry<?, ?> entry : map.entrySet()){
+			out.write(Record.encode(entry.getKey(), entry.getValue()));
+		}
+	}
+
+	/**
+	 * Saves a map with Java serialization
+	 *
+	 * @param file The file
+	 * @param map The map
+	 **/
+	private static void serialize(File file, Object map) throws IOException {
+		ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(file));
+		try{
+			out.writeObject(map);
+		}finally{
+			out.close();
+		}
+	}
+}